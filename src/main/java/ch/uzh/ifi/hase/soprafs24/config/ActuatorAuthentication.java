@@ -0,0 +1,63 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Actuator Authentication
+ * The actuator endpoints other than health and info (e.g. reshard) are administrative, some of
+ * them write data. They are only served to requests with user.actuator.token in the
+ * Authorization header, answered with 401 without the header and with 403 for a wrong token.
+ * Without a configured token they are not served at all.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class ActuatorAuthentication extends OncePerRequestFilter {
+  private final String basePath;
+  private final byte[] token;
+
+  public ActuatorAuthentication(
+      @Value("${management.endpoints.web.base-path:/actuator}") String basePath,
+      @Value("${user.actuator.token:}") String token) {
+    this.basePath = basePath;
+    this.token = token.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    if (!path.startsWith(basePath + "/")) {
+      return true;
+    }
+    String endpoint = path.substring(basePath.length() + 1);
+    return endpoint.equals("health") || endpoint.startsWith("health/") || endpoint.equals("info");
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+    if (authorization == null) {
+      response.sendError(HttpStatus.UNAUTHORIZED.value(), "Unauthorized");
+      return;
+    }
+    if (token.length == 0
+        || !MessageDigest.isEqual(token, authorization.getBytes(StandardCharsets.UTF_8))) {
+      response.sendError(HttpStatus.FORBIDDEN.value(), "Forbidden action");
+      return;
+    }
+    filterChain.doFilter(request, response);
+  }
+}
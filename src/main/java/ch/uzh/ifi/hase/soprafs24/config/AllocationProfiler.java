@@ -0,0 +1,284 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PreDestroy;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+/**
+ * Allocation Profiler
+ * Profiling mode, enabled with user.profiling.allocations=true, which measures the heap
+ * allocations per route (e.g. "GET /users/{id}"):
+ * - bytes allocated per request: exact, from the allocation counter of the request thread,
+ * also recorded in the metric user.allocation.bytes (tag route)
+ * - allocation rate: bytes allocated by the route per second since the profiler started
+ * - top allocation sites: from the JFR allocation samples (jdk.ObjectAllocationSample, rate
+ * user.profiling.allocations.sample-rate), attributed to the request running on the same thread
+ * at the time of the sample. A site is the innermost frame outside of the JDK.
+ * Available as actuator endpoint "allocations" (with user.actuator.token in the Authorization
+ * header), DELETE resets the figures.
+ */
+@Component
+@Endpoint(id = "allocations")
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+@ConditionalOnProperty(name = "user.profiling.allocations", havingValue = "true")
+public class AllocationProfiler extends OncePerRequestFilter {
+  private static final int TOP_SITES = 10;
+  // samples without a matching request are dropped after this long
+  private static final long MAX_SAMPLE_AGE_NANOS = 10_000_000_000L;
+
+  private final com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private final MeterRegistry meterRegistry;
+  private final RecordingStream recording;
+
+  private final Map<String, RouteAllocations> routes = new ConcurrentHashMap<>();
+  private volatile long startNanos = System.nanoTime();
+
+  // events of the recording, only accessed by the recording thread
+  private final List<RecordedEvent> pendingRequests = new ArrayList<>();
+  private final List<RecordedEvent> pendingSamples = new ArrayList<>();
+
+  public AllocationProfiler(MeterRegistry meterRegistry,
+      @Value("${user.profiling.allocations.sample-rate:1000/s}") String sampleRate) {
+    this.meterRegistry = meterRegistry;
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    recording = new RecordingStream();
+    recording.enable("jdk.ObjectAllocationSample").with("throttle", sampleRate).withStackTrace();
+    recording.enable(RequestEvent.class).withoutStackTrace().withThreshold(Duration.ZERO);
+    recording.onEvent("jdk.ObjectAllocationSample", pendingSamples::add);
+    recording.onEvent(RequestEvent.NAME, pendingRequests::add);
+    recording.onFlush(this::attributeSamples);
+    recording.startAsync();
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    RequestEvent event = new RequestEvent();
+    event.begin();
+    long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+    try {
+      filterChain.doFilter(request, response);
+    } finally {
+      long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+      String route = route(request);
+      routes.computeIfAbsent(route, RouteAllocations::new).record(allocated);
+
+      event.route = route;
+      event.commit();
+    }
+  }
+
+  /**
+   * @return route as method and path pattern, e.g. "GET /users/{id}"
+   */
+  private static String route(HttpServletRequest request) {
+    Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+    return request.getMethod() + " " + (pattern == null ? "unmapped" : pattern);
+  }
+
+  /**
+   * @return average bytes allocated per request of the route, 0 if there was no request
+   */
+  public long getBytesPerRequest(String route) {
+    RouteAllocations allocations = routes.get(route);
+    return allocations == null ? 0 : allocations.bytesPerRequest();
+  }
+
+  @ReadOperation
+  public Map<String, Object> allocations() {
+    double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+    Map<String, Object> result = new TreeMap<>();
+    routes.forEach((route, allocations) -> {
+      Map<String, Object> figures = new LinkedHashMap<>();
+      figures.put("requests", allocations.requests.sum());
+      figures.put("bytesPerRequest", allocations.bytesPerRequest());
+      figures.put("maxBytesPerRequest", allocations.maxBytes.get());
+      figures.put("bytesPerSecond", Math.round(allocations.bytes.sum() / seconds));
+      figures.put("topSites", allocations.topSites());
+      result.put(route, figures);
+    });
+    return result;
+  }
+
+  @DeleteOperation
+  public void reset() {
+    routes.values().forEach(RouteAllocations::reset);
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Attribute the allocation samples to the routes. The request event is committed when the
+   * request ends, so its samples arrived before or with it. Samples of running requests stay
+   * pending until the next flush.
+   */
+  private void attributeSamples() {
+    Map<Long, List<RecordedEvent>> requestsByThread = new HashMap<>();
+    Instant latest = null;
+    for (RecordedEvent request : pendingRequests) {
+      requestsByThread.computeIfAbsent(request.getThread().getJavaThreadId(),
+          key -> new ArrayList<>()).add(request);
+      if (latest == null || request.getEndTime().isAfter(latest)) {
+        latest = request.getEndTime();
+      }
+    }
+    pendingRequests.clear();
+    for (RecordedEvent sample : pendingSamples) {
+      if (latest == null || sample.getStartTime().isAfter(latest)) {
+        latest = sample.getStartTime();
+      }
+    }
+
+    for (Iterator<RecordedEvent> iterator = pendingSamples.iterator(); iterator.hasNext();) {
+      RecordedEvent sample = iterator.next();
+      RecordedEvent request = null;
+      if (sample.getThread() != null) {
+        for (RecordedEvent candidate : requestsByThread.getOrDefault(
+                 sample.getThread().getJavaThreadId(), List.of())) {
+          if (!sample.getStartTime().isBefore(candidate.getStartTime())
+              && !sample.getStartTime().isAfter(candidate.getEndTime())) {
+            request = candidate;
+            break;
+          }
+        }
+      }
+      if (request != null) {
+        routes.computeIfAbsent(request.getString("route"), RouteAllocations::new)
+            .sample(site(sample), sample.getLong("weight"));
+        iterator.remove();
+      } else if (sample.getStartTime().plusNanos(MAX_SAMPLE_AGE_NANOS).isBefore(latest)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * @return innermost frame outside of the JDK, e.g. "com.example.Foo.bar:12"
+   */
+  private static String site(RecordedEvent sample) {
+    if (sample.getStackTrace() == null) {
+      return "unknown";
+    }
+    RecordedFrame site = null;
+    for (RecordedFrame frame : sample.getStackTrace().getFrames()) {
+      String type = frame.getMethod().getType().getName();
+      site = frame;
+      if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+        break;
+      }
+    }
+    if (site == null) {
+      return "unknown";
+    }
+    return site.getMethod().getType().getName() + "." + site.getMethod().getName() + ":"
+        + site.getLineNumber();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    recording.close();
+  }
+
+  /**
+   * JFR event spanning a request, to attribute the allocation samples of its thread
+   */
+  @Name(RequestEvent.NAME)
+  @Label("Request")
+  static class RequestEvent extends Event {
+    static final String NAME = "ch.uzh.ifi.hase.soprafs24.Request";
+
+    @Label("Route") String route;
+  }
+
+  private class RouteAllocations {
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAccumulator maxBytes = new LongAccumulator(Math::max, 0);
+    // site -> sampled bytes
+    private final Map<String, AtomicLong> sites = new ConcurrentHashMap<>();
+    private final DistributionSummary summary;
+
+    private RouteAllocations(String route) {
+      this.summary = DistributionSummary.builder("user.allocation.bytes")
+                         .baseUnit("bytes")
+                         .tag("route", route)
+                         .register(meterRegistry);
+    }
+
+    private void record(long allocated) {
+      requests.increment();
+      bytes.add(allocated);
+      maxBytes.accumulate(allocated);
+      summary.record(allocated);
+    }
+
+    private void sample(String site, long weight) {
+      sites.computeIfAbsent(site, key -> new AtomicLong()).addAndGet(weight);
+    }
+
+    private long bytesPerRequest() {
+      long count = requests.sum();
+      return count == 0 ? 0 : bytes.sum() / count;
+    }
+
+    private List<Map<String, Object>> topSites() {
+      long total = sites.values().stream().mapToLong(AtomicLong::get).sum();
+      List<Map<String, Object>> top = new ArrayList<>();
+      sites.entrySet()
+          .stream()
+          .sorted((a, b) -> Long.compare(b.getValue().get(), a.getValue().get()))
+          .limit(TOP_SITES)
+          .forEach(entry -> {
+            Map<String, Object> site = new LinkedHashMap<>();
+            site.put("site", entry.getKey());
+            site.put("sampledBytes", entry.getValue().get());
+            site.put("share", Math.round(entry.getValue().get() * 1000.0 / total) / 10.0);
+            top.add(site);
+          });
+      return top;
+    }
+
+    private void reset() {
+      requests.reset();
+      bytes.reset();
+      maxBytes.reset();
+      sites.clear();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.util.Map;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Fast Start Configuration
+ * The fast-start profile creates beans lazily (spring.main.lazy-initialization). Beans with
+ * scheduled methods are still created at startup, otherwise their tasks would never be
+ * scheduled.
+ */
+@Configuration
+public class FastStartConfig {
+  @Bean
+  public static LazyInitializationExcludeFilter scheduledBeansExcludeFilter() {
+    return (beanName, beanDefinition, beanType) -> {
+      Map<?, Scheduled> scheduledMethods = MethodIntrospector.selectMethods(beanType,
+          (MethodIntrospector.MetadataLookup<Scheduled>) method
+          -> AnnotatedElementUtils.findMergedAnnotation(method, Scheduled.class));
+      return !scheduledMethods.isEmpty();
+    };
+  }
+}
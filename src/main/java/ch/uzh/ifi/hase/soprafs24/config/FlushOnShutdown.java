@@ -0,0 +1,10 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+/**
+ * Beans with buffered writes or cached state implement this to flush it on shutdown. It is
+ * called by GracefulShutdown once the in-flight requests are drained, while the database and
+ * all other beans are still available.
+ */
+public interface FlushOnShutdown {
+  void flushOnShutdown();
+}
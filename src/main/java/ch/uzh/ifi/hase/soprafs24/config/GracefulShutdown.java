@@ -0,0 +1,156 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Graceful Shutdown
+ * When the application context is closed (e.g. on SIGTERM during scale-in), this is the first
+ * lifecycle to stop, before the web server:
+ * 1. the readiness state changes to REFUSING_TRAFFIC and new requests are rejected with 503
+ * and a Retry-After header, so clients retry on another instance
+ * 2. in-flight requests get up to user.shutdown.drain-timeout to complete
+ * 3. all FlushOnShutdown beans flush their state
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class GracefulShutdown extends OncePerRequestFilter implements SmartLifecycle {
+  private final Logger log = LoggerFactory.getLogger(GracefulShutdown.class);
+
+  private final ObjectProvider<FlushOnShutdown> flushables;
+  private final ApplicationEventPublisher eventPublisher;
+  private final Duration drainTimeout;
+  private final Duration retryAfter;
+
+  // counted without a lock, so requests do not contend. The drain waits on this monitor, which
+  // is only notified while draining
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile boolean draining;
+  private volatile boolean running;
+
+  public GracefulShutdown(ObjectProvider<FlushOnShutdown> flushables,
+      ApplicationEventPublisher eventPublisher,
+      @Value("${user.shutdown.drain-timeout:PT20S}") Duration drainTimeout,
+      @Value("${user.shutdown.retry-after:PT5S}") Duration retryAfter) {
+    this.flushables = flushables;
+    this.eventPublisher = eventPublisher;
+    this.drainTimeout = drainTimeout;
+    this.retryAfter = retryAfter;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    if (!enter()) {
+      response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter.getSeconds()));
+      response.setHeader(HttpHeaders.CONNECTION, "close");
+      response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Shutting down");
+      return;
+    }
+    try {
+      filterChain.doFilter(request, response);
+    } finally {
+      exit();
+    }
+  }
+
+  /**
+   * @return false if the request has to be rejected
+   */
+  private boolean enter() {
+    if (draining) {
+      return false;
+    }
+    inFlight.incrementAndGet();
+    // the drain may have started and seen no request in flight meanwhile
+    if (draining) {
+      exit();
+      return false;
+    }
+    return true;
+  }
+
+  private void exit() {
+    if (inFlight.decrementAndGet() == 0 && draining) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void start() {
+    running = true;
+  }
+
+  @Override
+  public void stop() {
+    AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+    long start = System.nanoTime();
+    int remaining = drain();
+    if (remaining > 0) {
+      log.warn("Shutting down with {} requests still in flight after {}", remaining, drainTimeout);
+    } else {
+      log.info("Drained in-flight requests in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    flushables.orderedStream().forEach(flushable -> {
+      try {
+        flushable.flushOnShutdown();
+      } catch (RuntimeException e) {
+        log.error("Flushing {} on shutdown failed", flushable.getClass().getSimpleName(), e);
+      }
+    });
+    running = false;
+  }
+
+  /**
+   * reject new requests and wait for the in-flight requests
+   *
+   * @return number of requests still in flight after the drain timeout
+   */
+  synchronized int drain() {
+    draining = true;
+    long deadline = System.nanoTime() + drainTimeout.toNanos();
+    try {
+      while (inFlight.get() > 0 && deadline - System.nanoTime() > 0) {
+        wait(Math.max(1, (deadline - System.nanoTime()) / 1_000_000));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return inFlight.get();
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * stopped first, the web server lifecycles have lower phases
+   */
+  @Override
+  public int getPhase() {
+    return Integer.MAX_VALUE;
+  }
+}
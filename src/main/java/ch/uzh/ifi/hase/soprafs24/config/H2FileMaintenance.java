@@ -0,0 +1,58 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+import org.h2.engine.Session;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.mvstore.db.MVTableEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * H2 File Maintenance
+ * Periodically compacts the MVStore file of the file-backed database (profile "file"), so the
+ * file does not keep growing with every update. Each run rewrites at most
+ * user.h2.compact-write-limit bytes of partially filled chunks, so it never blocks the database
+ * for long. The full compaction is done on shutdown (MAX_COMPACT_TIME in the url).
+ */
+@Component
+@Profile("file")
+public class H2FileMaintenance {
+  private final Logger log = LoggerFactory.getLogger(H2FileMaintenance.class);
+
+  private final DataSource dataSource;
+  private final int targetFillRate;
+  private final int writeLimit;
+
+  public H2FileMaintenance(DataSource dataSource,
+      @Value("${user.h2.compact-fill-rate:80}") int targetFillRate,
+      @Value("${user.h2.compact-write-limit:16777216}") int writeLimit) {
+    this.dataSource = dataSource;
+    this.targetFillRate = targetFillRate;
+    this.writeLimit = writeLimit;
+  }
+
+  @Scheduled(fixedDelayString = "${user.h2.compact-interval:PT10M}",
+      initialDelayString = "${user.h2.compact-interval:PT10M}")
+  public void compact() {
+    try (Connection connection = dataSource.getConnection()) {
+      Session session = (Session) connection.unwrap(JdbcConnection.class).getSession();
+      MVTableEngine.Store store = session.getDatabase().getStore();
+      if (store == null) {
+        return;
+      }
+      long start = System.nanoTime();
+      boolean compacted = store.getMvStore().compact(targetFillRate, writeLimit);
+      if (compacted) {
+        log.info("Compacted database file in {} ms", (System.nanoTime() - start) / 1_000_000);
+      }
+    } catch (SQLException | RuntimeException e) {
+      log.warn("Could not compact database file", e);
+    }
+  }
+}
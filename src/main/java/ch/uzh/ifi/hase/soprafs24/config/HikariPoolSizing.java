@@ -0,0 +1,47 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hikari Pool Sizing
+ * Sizes the connection pool from the number of cores (cores * pool-size-per-core, within the
+ * configured bounds) unless spring.datasource.hikari.maximum-pool-size is set explicitly.
+ * The pool has a fixed size, so no connections are created under load.
+ */
+@Component
+@Profile("prod")
+public class HikariPoolSizing implements BeanPostProcessor {
+  private final Logger log = LoggerFactory.getLogger(HikariPoolSizing.class);
+
+  private final Environment environment;
+
+  public HikariPoolSizing(Environment environment) {
+    this.environment = environment;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName) {
+    if (bean instanceof HikariDataSource
+        && !environment.containsProperty("spring.datasource.hikari.maximum-pool-size")) {
+      int poolSize = poolSize(Runtime.getRuntime().availableProcessors());
+      HikariDataSource dataSource = (HikariDataSource) bean;
+      dataSource.setMaximumPoolSize(poolSize);
+      dataSource.setMinimumIdle(poolSize);
+      log.info("Sized connection pool {} to {} connections", dataSource.getPoolName(), poolSize);
+    }
+    return bean;
+  }
+
+  int poolSize(int cores) {
+    int perCore = environment.getProperty("user.datasource.pool-size-per-core", Integer.class, 2);
+    int min = environment.getProperty("user.datasource.min-pool-size", Integer.class, 2);
+    int max = environment.getProperty("user.datasource.max-pool-size", Integer.class, 20);
+    return Math.max(min, Math.min(max, cores * perCore));
+  }
+}
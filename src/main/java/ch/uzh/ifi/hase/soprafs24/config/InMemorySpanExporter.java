@@ -0,0 +1,91 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-Memory Span Exporter
+ * Keeps the spans of the last user.tracing.max-traces sampled traces. Available as actuator
+ * endpoint "traces" (with user.actuator.token in the Authorization header):
+ * - GET traces?name=GET%20/users/{id}&minDurationMs=100&limit=20: newest traces, optionally only
+ * with the given root span name (the first request of the trace) and at least the given duration
+ * - GET traces/{traceId}: all spans of the trace
+ */
+@Component
+@Endpoint(id = "traces")
+@ConditionalOnProperty(name = "user.tracing.enabled", havingValue = "true", matchIfMissing = true)
+public class InMemorySpanExporter implements SpanExporter {
+  private static final int DEFAULT_LIMIT = 100;
+
+  private final int maxTraces;
+
+  // trace id -> spans, oldest trace first, guarded by this
+  private final LinkedHashMap<String, List<Span>> traces;
+
+  public InMemorySpanExporter(@Value("${user.tracing.max-traces:1000}") int maxTraces) {
+    this.maxTraces = maxTraces;
+    this.traces = new LinkedHashMap<>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<Span>> eldest) {
+        return size() > InMemorySpanExporter.this.maxTraces;
+      }
+    };
+  }
+
+  @Override
+  public synchronized void export(List<Span> spans) {
+    if (!spans.isEmpty()) {
+      // a propagated trace can pass this service more than once
+      traces.computeIfAbsent(spans.get(0).getTraceId(), key -> new ArrayList<>()).addAll(spans);
+    }
+  }
+
+  /**
+   * @return summaries of the newest traces matching the filters
+   */
+  @ReadOperation
+  public synchronized List<Map<String, Object>> traces(
+      @Nullable String name, @Nullable Long minDurationMs, @Nullable Integer limit) {
+    List<Map<String, Object>> result = new ArrayList<>();
+    List<List<Span>> newestFirst = new ArrayList<>(traces.values());
+    for (ListIterator<List<Span>> iterator = newestFirst.listIterator(newestFirst.size());
+         iterator.hasPrevious() && result.size() < (limit == null ? DEFAULT_LIMIT : limit);) {
+      List<Span> spans = iterator.previous();
+      Span root = spans.get(0);
+      long durationMs = root.getDurationMicros() / 1000;
+      if ((name != null && !name.equals(root.getName()))
+          || (minDurationMs != null && durationMs < minDurationMs)) {
+        continue;
+      }
+      Map<String, Object> summary = new LinkedHashMap<>();
+      summary.put("traceId", root.getTraceId());
+      summary.put("name", root.getName());
+      summary.put("startEpochMicros", root.getStartEpochMicros());
+      summary.put("durationMs", durationMs);
+      summary.put("spans", spans.size());
+      summary.put("error", spans.stream().anyMatch(span -> span.getError() != null));
+      result.add(summary);
+    }
+    return result;
+  }
+
+  /**
+   * @return spans of the trace, empty if it is not (or no longer) kept
+   */
+  @ReadOperation
+  public synchronized List<Span> trace(@Selector String traceId) {
+    List<Span> spans = traces.get(traceId);
+    return spans == null ? Collections.emptyList() : new ArrayList<>(spans);
+  }
+}
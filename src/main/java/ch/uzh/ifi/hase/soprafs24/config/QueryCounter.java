@@ -0,0 +1,189 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+/**
+ * Query Counter
+ * Counts and times the JDBC statements of every request (see StatementObservation):
+ * - statements slower than user.queries.slow-query-threshold are logged
+ * - requests with more than user.queries.budget-count statements or more than
+ * user.queries.budget-time spent in them are logged as over budget
+ * - requests which execute the same statement user.queries.n-plus-one-threshold times or more
+ * are logged as N+1 candidates (a lookup per row instead of one query for all rows)
+ * Metrics (tag route, e.g. "GET /users/{id}"):
+ * - user.queries.count: statements per request
+ * - user.queries.time: time spent in statements per request
+ * - user.queries.over-budget: requests over budget
+ * - user.queries.n-plus-one: requests with N+1 candidates
+ * - user.queries.slow: slow statements (no tag)
+ * Tests count the statements of an operation without a request with measure.
+ * Only active with user.queries.enabled, which also enables the StatementObservation.
+ */
+@Component
+@ConditionalOnProperty(name = "user.queries.enabled", havingValue = "true")
+@Order(Ordered.HIGHEST_PRECEDENCE + 3)
+public class QueryCounter extends OncePerRequestFilter implements StatementListener {
+  private final Logger log = LoggerFactory.getLogger(QueryCounter.class);
+
+  private final ObjectProvider<MeterRegistry> meterRegistry;
+  private final long slowQueryNanos;
+  private final int budgetCount;
+  private final long budgetNanos;
+  private final int nPlusOneThreshold;
+
+  private final ThreadLocal<QueryStatistics> current = new ThreadLocal<>();
+
+  public QueryCounter(ObjectProvider<MeterRegistry> meterRegistry,
+      @Value("${user.queries.slow-query-threshold:PT0.1S}") Duration slowQueryThreshold,
+      @Value("${user.queries.budget-count:10}") int budgetCount,
+      @Value("${user.queries.budget-time:PT0.2S}") Duration budgetTime,
+      @Value("${user.queries.n-plus-one-threshold:5}") int nPlusOneThreshold) {
+    this.meterRegistry = meterRegistry;
+    this.slowQueryNanos = slowQueryThreshold.toNanos();
+    this.budgetCount = budgetCount;
+    this.budgetNanos = budgetTime.toNanos();
+    this.nPlusOneThreshold = nPlusOneThreshold;
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    QueryStatistics statistics = new QueryStatistics();
+    current.set(statistics);
+    try {
+      filterChain.doFilter(request, response);
+    } finally {
+      current.remove();
+      Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+      report(request.getMethod() + " " + (pattern == null ? "unmapped" : pattern), statistics);
+    }
+  }
+
+  /**
+   * Count the statements of the operation on this thread, e.g. in a test. Statements of
+   * operations handed to other threads are not counted. Nested measurements are also counted by
+   * the outer one.
+   *
+   * @return statistics of the operation
+   */
+  public QueryStatistics measure(Runnable operation) {
+    QueryStatistics outer = current.get();
+    QueryStatistics statistics = new QueryStatistics();
+    current.set(statistics);
+    try {
+      operation.run();
+      return statistics;
+    } finally {
+      if (outer != null) {
+        outer.add(statistics);
+        current.set(outer);
+      } else {
+        current.remove();
+      }
+    }
+  }
+
+  @Override
+  public void statementExecuted(String sql, long startNanos, long durationNanos, Throwable error) {
+    if (durationNanos >= slowQueryNanos) {
+      log.warn("Slow statement ({} ms): {}", TimeUnit.NANOSECONDS.toMillis(durationNanos), sql);
+      MeterRegistry registry = meterRegistry.getIfAvailable();
+      if (registry != null) {
+        registry.counter("user.queries.slow").increment();
+      }
+    }
+    QueryStatistics statistics = current.get();
+    if (statistics != null) {
+      statistics.record(sql, durationNanos);
+    }
+  }
+
+  private void report(String route, QueryStatistics statistics) {
+    MeterRegistry registry = meterRegistry.getIfAvailable();
+    if (registry != null) {
+      registry.summary("user.queries.count", "route", route).record(statistics.getCount());
+      registry.timer("user.queries.time", "route", route)
+          .record(statistics.getNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    if (statistics.getCount() > budgetCount || statistics.getNanos() > budgetNanos) {
+      log.warn("{} over query budget: {} statements in {} ms", route, statistics.getCount(),
+          TimeUnit.NANOSECONDS.toMillis(statistics.getNanos()));
+      if (registry != null) {
+        registry.counter("user.queries.over-budget", "route", route).increment();
+      }
+    }
+
+    Map.Entry<String, Integer> mostRepeated = statistics.getMostRepeated();
+    if (mostRepeated != null && mostRepeated.getValue() >= nPlusOneThreshold) {
+      log.warn("{} possible N+1: {} times {}", route, mostRepeated.getValue(),
+          mostRepeated.getKey());
+      if (registry != null) {
+        registry.counter("user.queries.n-plus-one", "route", route).increment();
+      }
+    }
+  }
+
+  /**
+   * Statements of one request or measured operation, only used by its thread
+   */
+  public static class QueryStatistics {
+    private int count;
+    private long nanos;
+    // statement -> executions
+    private final Map<String, Integer> executions = new HashMap<>();
+
+    private void record(String sql, long durationNanos) {
+      count++;
+      nanos += durationNanos;
+      executions.merge(String.valueOf(sql), 1, Integer::sum);
+    }
+
+    private void add(QueryStatistics other) {
+      count += other.count;
+      nanos += other.nanos;
+      other.executions.forEach((sql, times) -> executions.merge(sql, times, Integer::sum));
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * @return number of executions per statement
+     */
+    public Map<String, Integer> getExecutions() {
+      return executions;
+    }
+
+    /**
+     * @return the statement executed most often with its executions, null without statements
+     */
+    public Map.Entry<String, Integer> getMostRepeated() {
+      return executions.entrySet().stream().max(Map.Entry.comparingByValue()).orElse(null);
+    }
+  }
+}
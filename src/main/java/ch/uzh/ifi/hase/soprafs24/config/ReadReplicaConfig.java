@@ -0,0 +1,100 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Read Replica Configuration
+ * Only active if user.datasource.replica-urls is set (comma separated JDBC urls, same username
+ * and password as the primary). The primary is configured with the usual spring.datasource
+ * properties, spring.datasource.hikari applies to the pools of the primary and of every replica.
+ */
+@Configuration
+@ConditionalOnExpression("!'${user.datasource.replica-urls:}'.isBlank()")
+public class ReadReplicaConfig {
+  @Bean
+  public ReplicaRoutingDataSource dataSource(DataSourceProperties properties,
+      Environment environment, ObjectProvider<HikariPoolSizing> poolSizing,
+      ReadYourWrites readYourWrites,
+      @Value("${user.datasource.replica-urls}") String replicaUrls,
+      @Value("${user.datasource.replica-lag-query:select 0}") String lagQuery,
+      @Value("${user.datasource.replica-max-lag-seconds:5}") double maxLagSeconds) {
+    DataSource primary = pool(properties, environment, poolSizing, "primary", null);
+
+    Map<String, DataSource> replicas = new LinkedHashMap<>();
+    String[] urls = replicaUrls.split(",");
+    for (int i = 0; i < urls.length; i++) {
+      String name = "replica-" + i;
+      replicas.put(name, pool(properties, environment, poolSizing, name, urls[i].trim()));
+    }
+    return new ReplicaRoutingDataSource(
+        primary, replicas, readYourWrites, lagQuery, maxLagSeconds);
+  }
+
+  /**
+   * Create a connection pool configured like the pool Spring Boot creates without replicas: the
+   * spring.datasource.hikari properties are bound to it (as @ConfigurationProperties does) and it
+   * is sized by HikariPoolSizing in the prod profile. The pools are not beans, so neither happens
+   * on its own.
+   *
+   * @param url JDBC url, null for spring.datasource.url
+   */
+  private static HikariDataSource pool(DataSourceProperties properties, Environment environment,
+      ObjectProvider<HikariPoolSizing> poolSizing, String name, String url) {
+    HikariDataSource pool =
+        properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    if (url != null) {
+      pool.setJdbcUrl(url);
+    }
+    Binder.get(environment).bind("spring.datasource.hikari", Bindable.ofInstance(pool));
+    if (pool.getPoolName() == null) {
+      pool.setPoolName(name);
+    }
+    poolSizing.ifAvailable(sizing -> sizing.postProcessAfterInitialization(pool, name));
+    return pool;
+  }
+
+  /**
+   * Pin requests of clients which wrote recently to the primary.
+   */
+  @Bean
+  public WebMvcConfigurer readYourWritesConfigurer(ReadYourWrites readYourWrites) {
+    return new WebMvcConfigurer() {
+      @Override
+      public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new HandlerInterceptor() {
+          @Override
+          public boolean preHandle(
+              HttpServletRequest request, HttpServletResponse response, Object handler) {
+            readYourWrites.setCurrentRequestPinned(
+                readYourWrites.isPinned(request.getHeader(HttpHeaders.AUTHORIZATION)));
+            return true;
+          }
+
+          @Override
+          public void afterCompletion(HttpServletRequest request, HttpServletResponse response,
+              Object handler, Exception ex) {
+            readYourWrites.setCurrentRequestPinned(false);
+          }
+        });
+      }
+    };
+  }
+}
@@ -0,0 +1,68 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Read Your Writes
+ * Remembers which clients (by token) wrote recently. Requests of these clients read from the
+ * primary database for user.datasource.read-your-writes-window, so they see their own changes
+ * even if the replicas lag behind. Only active if read replicas are configured.
+ */
+@Component
+public class ReadYourWrites {
+  private static final int CLEANUP_SIZE = 10_000;
+
+  private final boolean enabled;
+  private final long windowNanos;
+
+  // token -> pinned until (System.nanoTime)
+  private final Map<String, Long> pinnedTokens = new ConcurrentHashMap<>();
+  private final ThreadLocal<Boolean> currentRequestPinned = new ThreadLocal<>();
+
+  public ReadYourWrites(@Value("${user.datasource.replica-urls:}") String replicaUrls,
+      @Value("${user.datasource.read-your-writes-window:PT5S}") Duration window) {
+    this.enabled = !replicaUrls.isBlank() && !window.isZero();
+    this.windowNanos = window.toNanos();
+  }
+
+  /**
+   * Pin the client with the given token to the primary database, called after it wrote.
+   */
+  public void pin(String token) {
+    if (!enabled || token == null || token.isEmpty()) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (pinnedTokens.size() >= CLEANUP_SIZE) {
+      pinnedTokens.values().removeIf(until -> until - now < 0);
+    }
+    pinnedTokens.put(token, now + windowNanos);
+  }
+
+  public boolean isPinned(String token) {
+    if (!enabled || token == null) {
+      return false;
+    }
+    Long until = pinnedTokens.get(token);
+    return until != null && until - System.nanoTime() > 0;
+  }
+
+  /**
+   * Mark the request handled by the current thread, see ReadReplicaConfig.
+   */
+  public void setCurrentRequestPinned(boolean pinned) {
+    if (pinned) {
+      currentRequestPinned.set(Boolean.TRUE);
+    } else {
+      currentRequestPinned.remove();
+    }
+  }
+
+  public boolean isCurrentRequestPinned() {
+    return currentRequestPinned.get() != null;
+  }
+}
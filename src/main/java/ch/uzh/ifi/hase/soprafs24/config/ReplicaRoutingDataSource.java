@@ -0,0 +1,135 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Replica Routing DataSource
+ * Routes read-only transactions (@Transactional(readOnly = true)) to one of the read replicas
+ * and everything else to the primary. Replicas which cannot be reached or lag behind more than
+ * maxLagSeconds are skipped; if no replica is usable, the primary is used. Requests of clients
+ * which wrote recently are pinned to the primary (see ReadYourWrites).
+ * The routing is wrapped in a LazyConnectionDataSourceProxy, so the connection is only fetched
+ * once the read-only flag of the transaction is known.
+ */
+public class ReplicaRoutingDataSource extends LazyConnectionDataSourceProxy {
+  static final String PRIMARY = "primary";
+
+  private final Logger log = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+  private final DataSource primary;
+  private final Map<String, DataSource> replicas;
+  private final ReadYourWrites readYourWrites;
+  private final String lagQuery;
+  private final double maxLagSeconds;
+
+  // replicas which answered the last check in time
+  private volatile List<String> usableReplicas = new ArrayList<>();
+  private final AtomicInteger next = new AtomicInteger();
+
+  public ReplicaRoutingDataSource(DataSource primary, Map<String, DataSource> replicas,
+      ReadYourWrites readYourWrites, String lagQuery, double maxLagSeconds) {
+    this.primary = primary;
+    this.replicas = replicas;
+    this.readYourWrites = readYourWrites;
+    this.lagQuery = lagQuery;
+    this.maxLagSeconds = maxLagSeconds;
+
+    Map<Object, Object> targets = new HashMap<>(replicas);
+    targets.put(PRIMARY, primary);
+    AbstractRoutingDataSource router = new AbstractRoutingDataSource() {
+      @Override
+      protected Object determineCurrentLookupKey() {
+        return lookupKey();
+      }
+    };
+    router.setTargetDataSources(targets);
+    router.setDefaultTargetDataSource(primary);
+    router.afterPropertiesSet();
+    setTargetDataSource(router);
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    super.afterPropertiesSet();
+    checkReplicas();
+  }
+
+  private Object lookupKey() {
+    if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+        || readYourWrites.isCurrentRequestPinned()) {
+      return PRIMARY;
+    }
+    List<String> candidates = usableReplicas;
+    if (candidates.isEmpty()) {
+      return PRIMARY;
+    }
+    return candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+  }
+
+  /**
+   * Check the lag of every replica with the lag query, replicas which fail or lag behind too
+   * much are not used until the next check.
+   */
+  @Scheduled(fixedDelayString = "${user.datasource.replica-check-interval:PT5S}")
+  public void checkReplicas() {
+    List<String> usable = new ArrayList<>();
+    for (Map.Entry<String, DataSource> replica : replicas.entrySet()) {
+      try (Connection connection = replica.getValue().getConnection();
+           Statement statement = connection.createStatement();
+           ResultSet resultSet = statement.executeQuery(lagQuery)) {
+        double lagSeconds = resultSet.next() ? resultSet.getDouble(1) : Double.MAX_VALUE;
+        if (lagSeconds <= maxLagSeconds) {
+          usable.add(replica.getKey());
+        } else {
+          log.warn("Replica {} lags {} s behind, using primary instead", replica.getKey(),
+              lagSeconds);
+        }
+      } catch (SQLException e) {
+        log.warn("Replica {} not usable: {}", replica.getKey(), e.getMessage());
+      }
+    }
+    usableReplicas = usable;
+  }
+
+  public List<String> getUsableReplicas() {
+    return usableReplicas;
+  }
+
+  /**
+   * @return the data source of the primary and of the replicas, by routing key
+   */
+  Map<String, DataSource> getTargets() {
+    Map<String, DataSource> targets = new HashMap<>(replicas);
+    targets.put(PRIMARY, primary);
+    return targets;
+  }
+
+  /**
+   * close the connection pools, called by Spring on shutdown
+   */
+  public void close() {
+    List<DataSource> dataSources = new ArrayList<>(replicas.values());
+    dataSources.add(primary);
+    for (DataSource dataSource : dataSources) {
+      if (dataSource instanceof HikariDataSource) {
+        ((HikariDataSource) dataSource).close();
+      }
+    }
+  }
+}
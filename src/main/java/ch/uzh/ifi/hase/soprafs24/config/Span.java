@@ -0,0 +1,100 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Span
+ * One timed operation of a trace, e.g. a request, a service call or a JDBC statement. Created
+ * and ended by the Tracer, exported once the request ended.
+ */
+public class Span {
+  private final String traceId;
+  private final String spanId;
+  private final String parentSpanId;
+  private final String layer;
+  private final long startEpochMicros;
+  private final long startNanos;
+  private final Map<String, String> attributes = new LinkedHashMap<>();
+  private String name;
+  private long durationMicros = -1;
+  private String error;
+
+  Span(String traceId, String spanId, String parentSpanId, String name, String layer,
+      long startEpochMicros, long startNanos) {
+    this.traceId = traceId;
+    this.spanId = spanId;
+    this.parentSpanId = parentSpanId;
+    this.name = name;
+    this.layer = layer;
+    this.startEpochMicros = startEpochMicros;
+    this.startNanos = startNanos;
+  }
+
+  public String getTraceId() {
+    return traceId;
+  }
+
+  public String getSpanId() {
+    return spanId;
+  }
+
+  /**
+   * @return id of the parent span, null for the root span of a trace
+   */
+  public String getParentSpanId() {
+    return parentSpanId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  void setName(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return http, controller, service, repository or jdbc
+   */
+  public String getLayer() {
+    return layer;
+  }
+
+  public long getStartEpochMicros() {
+    return startEpochMicros;
+  }
+
+  long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * @return duration, -1 while the span is running
+   */
+  public long getDurationMicros() {
+    return durationMicros;
+  }
+
+  /**
+   * @return class and message of the exception which ended the span, null if there was none
+   */
+  public String getError() {
+    return error;
+  }
+
+  public Map<String, String> getAttributes() {
+    return attributes;
+  }
+
+  void setAttribute(String key, String value) {
+    attributes.put(key, value);
+  }
+
+  void end(long endNanos, Throwable error) {
+    this.durationMicros = (endNanos - startNanos) / 1000;
+    if (error != null) {
+      this.error = error.getClass().getSimpleName() + ": " + error.getMessage();
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.util.List;
+
+/**
+ * Span Exporter
+ * Receives the spans of every sampled request from the Tracer, after the request ended.
+ */
+public interface SpanExporter {
+  /**
+   * @param spans finished spans of one request, the request span first
+   */
+  void export(List<Span> spans);
+}
@@ -0,0 +1,250 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+/**
+ * Startup Warmup
+ * Runs the code paths every request needs before the application reports ready (the readiness
+ * state changes to ACCEPTING_TRAFFIC after all ApplicationReadyEvent listeners ran):
+ * - the JPA metamodel (lazy in the fast-start profile)
+ * - the connection pool is filled up to its minimum idle connections
+ * - the queries behind findByToken, findByUsername and the pages of GET /users (findAfterId) are
+ * prepared
+ * - the DTOMapper and the Jackson (de)serializers of the DTOs
+ * - user.startup.warmup-iterations synthetic requests to every UserController route. A warmup
+ * user is registered for them, so the authorized paths (lists, DTO mapping, serialization) run
+ * as well, and deleted afterwards. Its creation, updates and deletion are recorded in the change
+ * log and the outbox like any other.
+ * With user.startup.exit-after-warmup the application exits afterwards, this is the training run
+ * of the cdsArchive Gradle task.
+ */
+@Component
+public class StartupWarmup {
+  private static final String WARMUP = "warmup";
+
+  private final Logger log = LoggerFactory.getLogger(StartupWarmup.class);
+
+  private final ObjectMapper objectMapper;
+  private final ObjectProvider<EntityManagerFactory> entityManagerFactory;
+  private final DataSource dataSource;
+  private final UserRepository userRepository;
+  private final int iterations;
+  private final boolean exitAfterWarmup;
+
+  private final CountDownLatch warmedUp = new CountDownLatch(1);
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger failedRequests = new AtomicInteger();
+
+  public StartupWarmup(ObjectMapper objectMapper,
+      ObjectProvider<EntityManagerFactory> entityManagerFactory, DataSource dataSource,
+      @Qualifier("userRepository") UserRepository userRepository,
+      @Value("${user.startup.warmup-iterations:10}") int iterations,
+      @Value("${user.startup.exit-after-warmup:false}") boolean exitAfterWarmup) {
+    this.objectMapper = objectMapper;
+    this.entityManagerFactory = entityManagerFactory;
+    this.dataSource = dataSource;
+    this.userRepository = userRepository;
+    this.iterations = iterations;
+    this.exitAfterWarmup = exitAfterWarmup;
+  }
+
+  @EventListener
+  @Order
+  public void onApplicationReady(ApplicationReadyEvent event) throws Exception {
+    long start = System.nanoTime();
+    try {
+      warmup();
+      warmupRequests(event.getApplicationContext());
+    } finally {
+      warmedUp.countDown();
+    }
+    log.info("Warmed up with {} requests in {} ms, ready {} ms after JVM start", requests.get(),
+        (System.nanoTime() - start) / 1_000_000,
+        ManagementFactory.getRuntimeMXBean().getUptime());
+
+    if (exitAfterWarmup) {
+      System.exit(SpringApplication.exit(event.getApplicationContext()));
+    }
+  }
+
+  void warmup() throws JsonProcessingException, SQLException {
+    entityManagerFactory.ifAvailable(EntityManagerFactory::getMetamodel);
+    fillPool();
+
+    userRepository.findByToken(WARMUP);
+    userRepository.findByUsername(WARMUP);
+    // same query as the pages of GET /users, the page size is only the limit of the result
+    userRepository.findAfterId(0, PageRequest.of(0, 1));
+
+    UserPostDTO userPostDTO = objectMapper.readValue(
+        "{\"name\":\"warmup\",\"username\":\"warmup\",\"password\":\"warmup\","
+            + "\"birthday\":\"2000-01-01\",\"status\":\"OFFLINE\"}",
+        UserPostDTO.class);
+    User user = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+    user.setId(0L);
+    user.setStatus(UserStatus.OFFLINE);
+    user.setCreated(LocalDateTime.now());
+
+    UserGetDTO userGetDTO = DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+    objectMapper.writeValueAsBytes(userGetDTO);
+    objectMapper.writeValueAsBytes(List.of(userGetDTO));
+  }
+
+  /**
+   * open the minimum idle connections at once, so no request waits for a new connection
+   */
+  private void fillPool() throws SQLException {
+    if (!dataSource.isWrapperFor(HikariDataSource.class)) {
+      return;
+    }
+    HikariDataSource pool = dataSource.unwrap(HikariDataSource.class);
+    List<Connection> connections = new ArrayList<>();
+    try {
+      for (int i = 0; i < Math.min(pool.getMinimumIdle(), pool.getMaximumPoolSize()); i++) {
+        connections.add(pool.getConnection());
+      }
+    } finally {
+      for (Connection connection : connections) {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Send synthetic requests to the routes of the UserController through the web server, with the
+   * token of a warmup user. Logins and logouts use an invalid token and unknown users, they would
+   * replace the token of the warmup user.
+   */
+  private void warmupRequests(ApplicationContext context) throws InterruptedException {
+    if (!(context instanceof WebServerApplicationContext)
+        || ((WebServerApplicationContext) context).getWebServer() == null) {
+      return;
+    }
+    String baseUrl =
+        "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+    HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    // unique, instances may start at the same time
+    String username = WARMUP + "-" + UUID.randomUUID();
+    String user = "{\"name\":\"" + username + "\",\"username\":\"" + username
+        + "\",\"birthday\":\"2000-01-01\"}";
+    JsonNode created = send(httpClient, baseUrl, "POST", "/users", WARMUP,
+        "{\"name\":\"" + username + "\",\"username\":\"" + username + "\",\"password\":\""
+            + UUID.randomUUID() + "\"}");
+    // without the warmup user, only the unauthorized paths are warmed up
+    String id = created == null ? "0" : created.path("id").asText();
+    String token = created == null ? WARMUP : created.path("token").asText();
+    try {
+      for (int i = 0; i < iterations; i++) {
+        send(httpClient, baseUrl, "GET", "/users", token, null);
+        send(httpClient, baseUrl, "GET", "/users?ids=" + id, token, null);
+        send(httpClient, baseUrl, "GET", "/users?fields=username", token, null);
+        send(httpClient, baseUrl, "GET", "/users/search?q=warmup", token, null);
+        send(httpClient, baseUrl, "GET", "/users/changes?since=0", token, null);
+        send(httpClient, baseUrl, "GET", "/users/" + id, token, null);
+        send(httpClient, baseUrl, "GET", "/users/" + id + "?fields=username", token, null);
+        send(httpClient, baseUrl, "POST", "/users/auth", WARMUP,
+            "{\"username\":\"warmup\",\"password\":\"warmup\"}");
+        send(httpClient, baseUrl, "POST", "/users/auth", WARMUP, "{\"token\":\"warmup\"}");
+        send(httpClient, baseUrl, "DELETE", "/users/auth", WARMUP, null);
+        send(httpClient, baseUrl, "PUT", "/users/" + id, token, user);
+        send(httpClient, baseUrl, "PATCH", "/users/" + id + "/status", token,
+            "{\"status\":\"OFFLINE\"}");
+        send(httpClient, baseUrl, "DELETE", "/users/0", WARMUP, null);
+      }
+    } finally {
+      if (created != null) {
+        send(httpClient, baseUrl, "DELETE", "/users/" + id, token, null);
+      }
+    }
+  }
+
+  /**
+   * @return the response body of a successful request, null otherwise
+   */
+  private JsonNode send(HttpClient httpClient, String baseUrl, String method, String path,
+      String token, String body) throws InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                              .header("Content-Type", "application/json")
+                              .header("Authorization", token)
+                              .timeout(Duration.ofSeconds(10))
+                              .method(method,
+                                  body == null ? HttpRequest.BodyPublishers.noBody()
+                                               : HttpRequest.BodyPublishers.ofString(body))
+                              .build();
+    requests.incrementAndGet();
+    try {
+      HttpResponse<String> response =
+          httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+      if (response.statusCode() >= 500) {
+        failedRequests.incrementAndGet();
+        log.warn("Warmup request {} {} failed with {}", method, path, response.statusCode());
+      }
+      if (response.statusCode() >= 300 || response.body().isEmpty()) {
+        return null;
+      }
+      return objectMapper.readTree(response.body());
+    } catch (IOException e) {
+      failedRequests.incrementAndGet();
+      log.warn("Warmup request {} {} failed: {}", method, path, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Wait until the warmup finished.
+   *
+   * @return true if the warmup finished within the timeout
+   */
+  public boolean awaitWarmup(Duration timeout) throws InterruptedException {
+    return warmedUp.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public int getRequests() {
+    return requests.get();
+  }
+
+  public int getFailedRequests() {
+    return failedRequests.get();
+  }
+}
@@ -0,0 +1,17 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+/**
+ * Statement Listener
+ * Notified about every JDBC statement executed on a connection of the application's DataSource,
+ * on the thread which executed it, see StatementObservation.
+ */
+public interface StatementListener {
+  /**
+   * @param sql executed statement, a batch is reported once, null for a batch of a plain
+   * Statement
+   * @param startNanos System.nanoTime() at the start of the execution
+   * @param durationNanos duration of the execution
+   * @param error exception thrown by the execution, null if it succeeded
+   */
+  void statementExecuted(String sql, long startNanos, long durationNanos, Throwable error);
+}
@@ -0,0 +1,123 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.sql.DataSource;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Statement Observation
+ * Wraps the DataSource beans, so all StatementListener beans are notified about every executed
+ * JDBC statement with its duration. The DataSource is proxied by subclass, so it keeps its type
+ * (e.g. HikariDataSource). Without listeners the connections are handed out unwrapped.
+ * Connections of the shard databases (user.sharding.shard-urls) are not DataSource beans and
+ * are not observed.
+ * Every connection and statement is wrapped in a dynamic proxy, so the observation is only
+ * active with user.queries.enabled (e.g. in the dev profile and in tests).
+ */
+@Component
+@ConditionalOnProperty(name = "user.queries.enabled", havingValue = "true")
+public class StatementObservation implements BeanPostProcessor {
+  private final ObjectProvider<StatementListener> listenerProvider;
+  // resolved on the first connection, the listeners may need beans created after this one
+  private volatile List<StatementListener> listeners;
+
+  public StatementObservation(ObjectProvider<StatementListener> listenerProvider) {
+    this.listenerProvider = listenerProvider;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName) {
+    if (!(bean instanceof DataSource)) {
+      return bean;
+    }
+    ProxyFactory proxyFactory = new ProxyFactory(bean);
+    proxyFactory.setProxyTargetClass(true);
+    proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+      Object result = invocation.proceed();
+      if (result instanceof Connection
+          && invocation.getMethod().getName().equals("getConnection")) {
+        return observe((Connection) result);
+      }
+      return result;
+    });
+    return proxyFactory.getProxy(bean.getClass().getClassLoader());
+  }
+
+  private List<StatementListener> listeners() {
+    if (listeners == null) {
+      listeners = listenerProvider.orderedStream().collect(Collectors.toList());
+    }
+    return listeners;
+  }
+
+  private Connection observe(Connection connection) {
+    List<StatementListener> statementListeners = listeners();
+    if (statementListeners.isEmpty()) {
+      return connection;
+    }
+    return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+          if (method.getName().equals("equals")) {
+            return proxy == args[0];
+          } else if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+          }
+          Object result = invoke(connection, method, args);
+          if (result instanceof Statement) {
+            String sql = method.getName().startsWith("prepare") ? (String) args[0] : null;
+            return observe((Statement) result, sql, statementListeners);
+          }
+          return result;
+        });
+  }
+
+  private Statement observe(
+      Statement statement, String preparedSql, List<StatementListener> statementListeners) {
+    Class<?> type = statement instanceof CallableStatement ? CallableStatement.class
+        : statement instanceof PreparedStatement            ? PreparedStatement.class
+                                                            : Statement.class;
+    return (Statement) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+          if (!method.getName().startsWith("execute")) {
+            return invoke(statement, method, args);
+          }
+          String sql = args != null && args.length > 0 && args[0] instanceof String
+              ? (String) args[0]
+              : preparedSql;
+          long start = System.nanoTime();
+          Throwable error = null;
+          try {
+            return invoke(statement, method, args);
+          } catch (Throwable e) {
+            error = e;
+            throw e;
+          } finally {
+            long duration = System.nanoTime() - start;
+            for (StatementListener listener : statementListeners) {
+              listener.statementExecuted(sql, start, duration, error);
+            }
+          }
+        });
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
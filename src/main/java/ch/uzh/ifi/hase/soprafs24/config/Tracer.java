@@ -0,0 +1,267 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+/**
+ * Tracer
+ * Traces requests through the layers: the request itself (http), controller, service and
+ * repository calls (TracingAspect) and JDBC statements (StatementObservation, only with
+ * user.queries.enabled).
+ * The trace context is propagated with the W3C traceparent header: an incoming traceparent
+ * continues the caller's trace and keeps its sampling decision, the response carries the
+ * traceparent of the request span. New traces are sampled adaptively, so that about
+ * user.tracing.traces-per-second traces are recorded independent of the request rate.
+ * The spans of a sampled request are handed to the SpanExporter beans when the request ended.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+@ConditionalOnProperty(name = "user.tracing.enabled", havingValue = "true", matchIfMissing = true)
+public class Tracer extends OncePerRequestFilter implements StatementListener {
+  public static final String TRACEPARENT = "traceparent";
+  private static final Pattern TRACEPARENT_PATTERN =
+      Pattern.compile("([0-9a-f]{2})-([0-9a-f]{32})-([0-9a-f]{16})-([0-9a-f]{2})(-.*)?");
+  private static final int MAX_STATEMENT_LENGTH = 500;
+
+  private final ObjectProvider<SpanExporter> exporters;
+  private final AdaptiveSampler sampler;
+
+  private final ThreadLocal<Trace> currentTrace = new ThreadLocal<>();
+
+  public Tracer(ObjectProvider<SpanExporter> exporters,
+      @Value("${user.tracing.traces-per-second:10}") double tracesPerSecond) {
+    this.exporters = exporters;
+    this.sampler = new AdaptiveSampler(tracesPerSecond);
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+      FilterChain filterChain) throws ServletException, IOException {
+    String traceId;
+    String parentSpanId;
+    boolean sampled;
+    Matcher traceparent = parseTraceparent(request.getHeader(TRACEPARENT));
+    if (traceparent != null) {
+      traceId = traceparent.group(2);
+      parentSpanId = traceparent.group(3);
+      sampled = (Integer.parseInt(traceparent.group(4), 16) & 1) == 1;
+      sampler.count();
+    } else {
+      traceId = randomId(32);
+      parentSpanId = null;
+      sampled = sampler.sample(System.nanoTime());
+    }
+
+    Trace trace = new Trace(traceId, sampled);
+    Span span = trace.start(request.getMethod(), "http", parentSpanId);
+    response.setHeader(
+        TRACEPARENT, "00-" + traceId + "-" + span.getSpanId() + (sampled ? "-01" : "-00"));
+    currentTrace.set(trace);
+    Throwable error = null;
+    try {
+      filterChain.doFilter(request, response);
+    } catch (IOException | ServletException | RuntimeException e) {
+      error = e;
+      throw e;
+    } finally {
+      currentTrace.remove();
+      if (sampled) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        span.setName(request.getMethod() + " " + (pattern == null ? "unmapped" : pattern));
+        span.setAttribute("http.status", Integer.toString(response.getStatus()));
+        trace.end(span, error);
+        exporters.orderedStream().forEach(exporter -> exporter.export(trace.spans));
+      }
+    }
+  }
+
+  /**
+   * @return matcher with version, trace id, parent id and flags, null if the header is invalid
+   */
+  static Matcher parseTraceparent(String header) {
+    if (header == null) {
+      return null;
+    }
+    Matcher matcher = TRACEPARENT_PATTERN.matcher(header.trim().toLowerCase(Locale.ROOT));
+    if (!matcher.matches() || matcher.group(1).equals("ff")
+        || (matcher.group(1).equals("00") && matcher.group(5) != null)
+        || matcher.group(2).matches("0+") || matcher.group(3).matches("0+")) {
+      return null;
+    }
+    return matcher;
+  }
+
+  /**
+   * Start a span as child of the current span of this thread. Has to be ended with endSpan on
+   * the same thread.
+   *
+   * @return the span, null if the current request is not traced or not sampled
+   */
+  public Span startSpan(String name, String layer) {
+    Trace trace = currentTrace.get();
+    if (trace == null || !trace.sampled) {
+      return null;
+    }
+    return trace.start(name, layer, trace.current().getSpanId());
+  }
+
+  /**
+   * @param span span returned by startSpan, may be null
+   * @param error exception which ended the span, null if there was none
+   */
+  public void endSpan(Span span, Throwable error) {
+    Trace trace = currentTrace.get();
+    if (span != null && trace != null) {
+      trace.end(span, error);
+    }
+  }
+
+  /**
+   * record the executed statement as span of the current request
+   */
+  @Override
+  public void statementExecuted(String sql, long startNanos, long durationNanos, Throwable error) {
+    Trace trace = currentTrace.get();
+    if (trace == null || !trace.sampled) {
+      return;
+    }
+    String statement = sql == null ? "batch" : sql.trim();
+    int keywordEnd = statement.indexOf(' ');
+    Span span = new Span(trace.traceId, randomId(16), trace.current().getSpanId(),
+        "JDBC " + (keywordEnd < 0 ? statement : statement.substring(0, keywordEnd))
+                      .toUpperCase(Locale.ROOT),
+        "jdbc", trace.epochMicros(startNanos), startNanos);
+    span.setAttribute("db.statement",
+        statement.length() > MAX_STATEMENT_LENGTH ? statement.substring(0, MAX_STATEMENT_LENGTH)
+                                                  : statement);
+    span.end(startNanos + durationNanos, error);
+    trace.spans.add(span);
+  }
+
+  private static String randomId(int length) {
+    StringBuilder id = new StringBuilder(length);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (id.length() < length) {
+      String part = Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+      id.append(part, 0, Math.min(part.length(), length - id.length()));
+    }
+    return id.toString();
+  }
+
+  /**
+   * spans of the current request, only used by the request thread
+   */
+  private static class Trace {
+    private final String traceId;
+    private final boolean sampled;
+    private final long startNanos = System.nanoTime();
+    private final long startEpochMicros =
+        TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final List<Span> spans = new ArrayList<>();
+    private final Deque<Span> running = new ArrayDeque<>();
+
+    private Trace(String traceId, boolean sampled) {
+      this.traceId = traceId;
+      this.sampled = sampled;
+    }
+
+    private long epochMicros(long nanos) {
+      return startEpochMicros + (nanos - startNanos) / 1000;
+    }
+
+    private Span current() {
+      return running.peek();
+    }
+
+    private Span start(String name, String layer, String parentSpanId) {
+      long now = System.nanoTime();
+      Span span =
+          new Span(traceId, randomId(16), parentSpanId, name, layer, epochMicros(now), now);
+      spans.add(span);
+      running.push(span);
+      return span;
+    }
+
+    private void end(Span span, Throwable error) {
+      span.end(System.nanoTime(), error);
+      running.remove(span);
+    }
+  }
+
+  /**
+   * Samples new traces with a probability adapted every second, so that about tracesPerSecond
+   * traces are sampled. A burst within a second is capped at twice the target.
+   * Entered by every request, so it does not lock: the counts are approximate, a request racing
+   * with the roll-over of the window may be counted in the other window.
+   */
+  static class AdaptiveSampler {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private final double tracesPerSecond;
+
+    private volatile double probability = 1;
+    private final AtomicLong windowStart = new AtomicLong(NOT_STARTED);
+    private final LongAdder requests = new LongAdder();
+    private final AtomicLong sampled = new AtomicLong();
+
+    AdaptiveSampler(double tracesPerSecond) {
+      this.tracesPerSecond = tracesPerSecond;
+    }
+
+    /**
+     * count a request which is not sampled by this sampler, e.g. one with a traceparent
+     */
+    void count() {
+      requests.increment();
+    }
+
+    boolean sample(long nowNanos) {
+      long start = windowStart.get();
+      if (start == NOT_STARTED) {
+        windowStart.compareAndSet(NOT_STARTED, nowNanos);
+      } else if (nowNanos - start >= WINDOW_NANOS && windowStart.compareAndSet(start, nowNanos)) {
+        // only the thread which moved the window adapts the probability
+        double seconds = (double) (nowNanos - start) / WINDOW_NANOS;
+        double rate = requests.sumThenReset() / seconds;
+        // smoothed, so a single quiet or busy second does not swing the probability
+        double target = rate <= tracesPerSecond ? 1 : tracesPerSecond / rate;
+        probability = Math.min(1, (probability + target) / 2);
+        sampled.set(0);
+      }
+      requests.increment();
+      if (sampled.get() >= 2 * tracesPerSecond
+          || ThreadLocalRandom.current().nextDouble() >= probability) {
+        return false;
+      }
+      sampled.incrementAndGet();
+      return true;
+    }
+
+    double getProbability() {
+      return probability;
+    }
+  }
+}
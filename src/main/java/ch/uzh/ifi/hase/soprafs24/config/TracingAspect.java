@@ -0,0 +1,61 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tracing Aspect
+ * Records a span for every call of a controller, a service and the user repository, as child of
+ * the current span of the Tracer. Calls within the same bean are not traced.
+ */
+@Aspect
+@Component
+@ConditionalOnProperty(name = "user.tracing.enabled", havingValue = "true", matchIfMissing = true)
+public class TracingAspect {
+  private final Tracer tracer;
+
+  public TracingAspect(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  @Around("within(@org.springframework.web.bind.annotation.RestController *)")
+  public Object traceController(ProceedingJoinPoint joinPoint) throws Throwable {
+    return trace(joinPoint, targetName(joinPoint), "controller");
+  }
+
+  @Around("within(@org.springframework.stereotype.Service *)")
+  public Object traceService(ProceedingJoinPoint joinPoint) throws Throwable {
+    return trace(joinPoint, targetName(joinPoint), "service");
+  }
+
+  @Around("this(ch.uzh.ifi.hase.soprafs24.repository.UserRepository)")
+  public Object traceRepository(ProceedingJoinPoint joinPoint) throws Throwable {
+    // the target of the generated repository is a generic implementation, name it by interface
+    return trace(joinPoint, "UserRepository", "repository");
+  }
+
+  private static String targetName(ProceedingJoinPoint joinPoint) {
+    return AopUtils.getTargetClass(joinPoint.getTarget()).getSimpleName();
+  }
+
+  private Object trace(ProceedingJoinPoint joinPoint, String type, String layer)
+      throws Throwable {
+    Span span = tracer.startSpan(type + "." + joinPoint.getSignature().getName(), layer);
+    if (span == null) {
+      return joinPoint.proceed();
+    }
+    Throwable error = null;
+    try {
+      return joinPoint.proceed();
+    } catch (Throwable e) {
+      error = e;
+      throw e;
+    } finally {
+      tracer.endSpan(span, error);
+    }
+  }
+}
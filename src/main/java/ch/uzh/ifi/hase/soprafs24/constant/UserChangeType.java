@@ -0,0 +1,8 @@
+package ch.uzh.ifi.hase.soprafs24.constant;
+
+public enum UserChangeType {
+  CREATED,
+  UPDATED,
+  STATUS_UPDATED,
+  DELETED;
+}
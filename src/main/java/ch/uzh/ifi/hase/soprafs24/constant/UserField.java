@@ -0,0 +1,44 @@
+package ch.uzh.ifi.hase.soprafs24.constant;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Fields of the user which can be selected with the fields= query parameter. The property is the
+ * name in the User entity and in the JSON response.
+ */
+public enum UserField {
+  ID("id"),
+  NAME("name"),
+  USERNAME("username"),
+  STATUS("status"),
+  TOKEN("token"),
+  BIRTHDAY("birthday"),
+  CREATED("created");
+
+  private final String property;
+
+  UserField(String property) {
+    this.property = property;
+  }
+
+  public String getProperty() {
+    return property;
+  }
+
+  /**
+   * Parse a comma separated list of fields, e.g. "id,username". The id is always selected.
+   *
+   * @throws IllegalArgumentException if a field is unknown
+   */
+  public static Set<UserField> parse(String fields) {
+    Set<UserField> result = EnumSet.of(ID);
+    for (String field : fields.split(",")) {
+      if (!field.isBlank()) {
+        result.add(UserField.valueOf(field.trim().toUpperCase(Locale.ROOT)));
+      }
+    }
+    return result;
+  }
+}
@@ -1,18 +1,43 @@
 package ch.uzh.ifi.hase.soprafs24.controller;
 
 import ch.uzh.ifi.hase.soprafs24.constant.Permissions;
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
 import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChange;
 import ch.uzh.ifi.hase.soprafs24.exceptions.NotFoundException;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserChangeDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserChangesDTO;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserRegistrationDTO;
 import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import ch.uzh.ifi.hase.soprafs24.service.IdempotencyStore;
+import ch.uzh.ifi.hase.soprafs24.service.UserPageCache;
+import ch.uzh.ifi.hase.soprafs24.service.UserRegistrationQueue;
+import ch.uzh.ifi.hase.soprafs24.service.UserRowStore;
 import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import javax.lang.model.type.NullType;
+import javax.persistence.Tuple;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
@@ -25,25 +50,84 @@ import org.springframework.web.server.ResponseStatusException;
  */
 @RestController
 public class UserController {
+  private static final int MAX_IDS = 1000;
+
   private final UserService userService;
+  private final IdempotencyStore idempotencyStore;
+  private final UserRegistrationQueue userRegistrationQueue;
+  private final UserRowStore userRowStore;
+  private final UserPageCache userPageCache;
+  private final ObjectMapper objectMapper;
 
-  UserController(UserService userService) {
+  UserController(UserService userService, IdempotencyStore idempotencyStore,
+      UserRegistrationQueue userRegistrationQueue, UserRowStore userRowStore,
+      UserPageCache userPageCache, ObjectMapper objectMapper) {
     this.userService = userService;
+    this.idempotencyStore = idempotencyStore;
+    this.userRegistrationQueue = userRegistrationQueue;
+    this.userRowStore = userRowStore;
+    this.userPageCache = userPageCache;
+    this.objectMapper = objectMapper;
+  }
+
+  /*
+   * With the user row store or the page cache, GET /users and GET /users/{id} write the
+   * serialized JSON as it is and return null, which leaves the response to them.
+   */
+  private static OutputStream jsonOutput(HttpServletResponse response) throws IOException {
+    response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    return response.getOutputStream();
   }
 
+  /*
+   * All users, the users with the given ids, or with limit a page of the users ordered by id
+   * which starts after the id "after" (the last id of the previous page, 0 for the first page).
+   * Without ids the response is served from the page cache if it is enabled.
+   */
   @GetMapping("/users")
   @ResponseStatus(HttpStatus.OK)
   @ResponseBody
   public List<UserGetDTO> getAllUsers(
-      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken) {
+      @RequestParam(value = "ids", required = false) List<Long> ids,
+      @RequestParam(value = "after", defaultValue = "0") long after,
+      @RequestParam(value = "limit", required = false) Integer limit,
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken,
+      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, defaultValue = "") String acceptEncoding,
+      HttpServletResponse response) throws IOException {
     System.out.println("Request to /users: Token='" + authToken + "'");
     // if not authorized
     if (!userService.isAuthorized(authToken, Permissions.READ)) {
       throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Forbidden action");
     }
+    checkPage(ids, after, limit);
+    if (ids == null && userPageCache.isEnabled()) {
+      UserPageCache.Page page =
+          userPageCache.get(pageKey(after, limit, null), () -> renderUsers(after, limit));
+      writePage(page, acceptEncoding, response);
+      return null;
+    }
+    if (userRowStore.isEnabled() && limit == null) {
+      if (ids == null) {
+        userRowStore.writeAll(jsonOutput(response));
+      } else {
+        userRowStore.writeAllById(ids, jsonOutput(response));
+      }
+      return null;
+    }
 
-    // fetch all users in the internal representation
-    List<User> users = userService.getUsers();
+    // fetch all (or the requested) users in the internal representation
+    List<User> users;
+    if (ids != null) {
+      users = userService.getUsersByIds(ids);
+    } else if (limit != null) {
+      users = userService.getUsersAfter(after, limit);
+    } else {
+      users = userService.getUsers();
+    }
+    return toUserGetDTOs(users);
+  }
+
+  private static List<UserGetDTO> toUserGetDTOs(List<User> users) {
     List<UserGetDTO> userGetDTOs = new ArrayList<>();
 
     // convert each user to the API representation
@@ -53,30 +137,255 @@ public class UserController {
     return userGetDTOs;
   }
 
+  private byte[] renderUsers(long after, Integer limit) throws IOException {
+    if (userRowStore.isEnabled() && limit == null) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      userRowStore.writeAll(out);
+      return out.toByteArray();
+    }
+    List<User> users =
+        limit == null ? userService.getUsers() : userService.getUsersAfter(after, limit);
+    return objectMapper.writeValueAsBytes(toUserGetDTOs(users));
+  }
+
+  /* Same as GET /users, but only with the fields given as comma separated list, e.g. id,username */
+  @GetMapping(value = "/users", params = "fields")
+  @ResponseStatus(HttpStatus.OK)
+  @ResponseBody
+  public List<Map<String, Object>> getAllUserFields(@RequestParam("fields") String fields,
+      @RequestParam(value = "ids", required = false) List<Long> ids,
+      @RequestParam(value = "after", defaultValue = "0") long after,
+      @RequestParam(value = "limit", required = false) Integer limit,
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken,
+      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, defaultValue = "") String acceptEncoding,
+      HttpServletResponse response) throws IOException {
+    // if not authorized
+    if (!userService.isAuthorized(authToken, Permissions.READ)) {
+      throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Forbidden action");
+    }
+    checkPage(ids, after, limit);
+    Set<UserField> fieldSet = parseFields(fields);
+    if (ids == null && userPageCache.isEnabled()) {
+      UserPageCache.Page page = userPageCache.get(pageKey(after, limit, fieldSet),
+          () -> objectMapper.writeValueAsBytes(userFields(null, after, limit, fieldSet)));
+      writePage(page, acceptEncoding, response);
+      return null;
+    }
+    return userFields(ids, after, limit, fieldSet);
+  }
+
+  private List<Map<String, Object>> userFields(
+      List<Long> ids, long after, Integer limit, Set<UserField> fieldSet) {
+    List<Tuple> tuples = limit == null
+        ? userService.getUserFields(ids, fieldSet)
+        : userService.getUserFieldsAfter(after, limit, fieldSet);
+    List<Map<String, Object>> userFields = new ArrayList<>();
+    for (Tuple tuple : tuples) {
+      userFields.add(DTOMapper.INSTANCE.convertTupleToUserFields(tuple));
+    }
+    return userFields;
+  }
+
+  private static void checkPage(List<Long> ids, long after, Integer limit) {
+    if (ids != null && ids.size() > MAX_IDS) {
+      throw new ResponseStatusException(
+          HttpStatus.BAD_REQUEST, "At most " + MAX_IDS + " ids per request");
+    }
+    if (limit != null && (ids != null || after < 0 || limit < 1 || limit > MAX_IDS)) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Limit must be between 1 and "
+          + MAX_IDS + " and after must not be negative, neither can be combined with ids");
+    }
+  }
+
+  /* the page cursor (after and limit, if paged) and the selected fields (null for all) */
+  private static String pageKey(long after, Integer limit, Set<UserField> fields) {
+    return limit == null
+        ? "all " + fields
+        : "after " + after + " limit " + limit + " " + fields;
+  }
+
+  private static void writePage(UserPageCache.Page page, String acceptEncoding,
+      HttpServletResponse response) throws IOException {
+    byte[] body = page.getJson();
+    if (page.getGzip() != null) {
+      response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+      if (acceptsGzip(acceptEncoding)) {
+        response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        body = page.getGzip();
+      }
+    }
+    response.setContentLength(body.length);
+    jsonOutput(response).write(body);
+  }
+
+  private static boolean acceptsGzip(String acceptEncoding) {
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parameters = coding.split(";");
+      if (parameters[0].trim().equalsIgnoreCase("gzip")) {
+        // gzip;q=0 refuses gzip
+        return parameters.length == 1 || !parameters[1].trim().matches("q=0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+
+  @GetMapping("/users/search")
+  @ResponseStatus(HttpStatus.OK)
+  @ResponseBody
+  public List<UserGetDTO> searchUsers(@RequestParam("q") String query,
+      @RequestParam(value = "limit", defaultValue = "20") int limit,
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken) {
+    // if not authorized
+    if (!userService.isAuthorized(authToken, Permissions.READ)) {
+      throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Forbidden action");
+    }
+    if (query.isBlank() || limit < 1 || limit > 100) {
+      throw new ResponseStatusException(
+          HttpStatus.BAD_REQUEST, "Query must not be empty and limit must be between 1 and 100");
+    }
+
+    List<UserGetDTO> userGetDTOs = new ArrayList<>();
+    for (User user : userService.searchUsers(query, limit)) {
+      userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+    }
+    return userGetDTOs;
+  }
+
+  /*
+   * Users changed since the change sequence "since" (0 for all users), ordered by sequence.
+   * Deleted users are returned as tombstones without user. The response contains the cursor for
+   * the next request, which has more changes if "more" is set.
+   */
+  @GetMapping("/users/changes")
+  @ResponseStatus(HttpStatus.OK)
+  @ResponseBody
+  public UserChangesDTO getUserChanges(
+      @RequestParam(value = "since", defaultValue = "0") long since,
+      @RequestParam(value = "limit", defaultValue = "100") int limit,
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken) {
+    // if not authorized
+    if (!userService.isAuthorized(authToken, Permissions.READ)) {
+      throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Forbidden action");
+    }
+    if (since < 0 || limit < 1 || limit > MAX_IDS) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+          "Since must not be negative and limit must be between 1 and " + MAX_IDS);
+    }
+
+    List<UserChangeDTO> changeDTOs = new ArrayList<>();
+    long next = since;
+    for (UserChange change : userService.getChanges(since, limit)) {
+      changeDTOs.add(DTOMapper.INSTANCE.convertEntityToUserChangeDTO(change));
+      next = change.getSequence();
+    }
+    UserChangesDTO userChangesDTO = new UserChangesDTO();
+    userChangesDTO.setChanges(changeDTOs);
+    userChangesDTO.setNext(next);
+    userChangesDTO.setMore(changeDTOs.size() == limit);
+    return userChangesDTO;
+  }
+
   @PostMapping("/users")
   @ResponseStatus(HttpStatus.CREATED)
   @ResponseBody
-  public UserGetDTO createUser(@RequestBody UserPostDTO userPostDTO) {
+  public UserGetDTO createUser(@RequestBody UserPostDTO userPostDTO,
+      @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey,
+      HttpServletRequest request) {
     // no auth needed to create user (this would actually be bad security design...)
 
-    // convert API user to internal representation
-    User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+    // a retry with the same key gets the user created by the first request
+    return idempotencyStore.execute("POST /users", caller(request), idempotencyKey,
+        fingerprint(userPostDTO), () -> {
+          // convert API user to internal representation
+          User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
 
-    // create user
-    User createdUser = userService.createUser(userInput);
-    // convert internal representation of user back to API
-    return DTOMapper.INSTANCE.convertEntityToUserGetDTO(createdUser);
+          // create user
+          User createdUser = userService.createUser(userInput);
+          // convert internal representation of user back to API
+          return DTOMapper.INSTANCE.convertEntityToUserGetDTO(createdUser);
+        });
+  }
+
+  /*
+   * Same as POST /users, but the user is created asynchronously if asynchronous registration is
+   * enabled: answers with 202 and the status URL (GET /users/registrations/{id}) in the Location
+   * header. Without asynchronous registration the preference is ignored.
+   */
+  @PostMapping(value = "/users", headers = "Prefer=respond-async")
+  public ResponseEntity<Object> createUserAsync(@RequestBody UserPostDTO userPostDTO,
+      @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey,
+      HttpServletRequest request) {
+    if (!userRegistrationQueue.isEnabled()) {
+      return ResponseEntity.status(HttpStatus.CREATED)
+          .body(createUser(userPostDTO, idempotencyKey, request));
+    }
+
+    UserRegistrationDTO registration = idempotencyStore.execute("POST /users async",
+        caller(request), idempotencyKey, fingerprint(userPostDTO), () -> {
+          User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+          return DTOMapper.INSTANCE.convertRegistrationToDTO(
+              userRegistrationQueue.submit(userInput));
+        });
+    return ResponseEntity.accepted()
+        .location(URI.create("/users/registrations/" + registration.getId()))
+        .body(registration);
+  }
+
+  /* Status of an asynchronous registration, contains the user once it is created */
+  @GetMapping("/users/registrations/{registrationId}")
+  @ResponseStatus(HttpStatus.OK)
+  @ResponseBody
+  public UserRegistrationDTO getRegistration(@PathVariable String registrationId) {
+    UserRegistrationQueue.Registration registration =
+        userRegistrationQueue.getRegistration(registrationId);
+    if (registration == null) {
+      throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Registration not found");
+    }
+    return DTOMapper.INSTANCE.convertRegistrationToDTO(registration);
+  }
+
+  /* The request body as JSON array with a fixed field order, hashed by the IdempotencyStore */
+  private String fingerprint(UserPostDTO userPostDTO) {
+    try {
+      return IdempotencyStore.fingerprint(objectMapper.writeValueAsBytes(
+          Arrays.asList(userPostDTO.getName(), userPostDTO.getUsername(),
+              userPostDTO.getPassword(), userPostDTO.getBirthday(), userPostDTO.getStatus())));
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /*
+   * The client an Idempotency-Key belongs to: POST /users needs no authentication, so without a
+   * principal or token the client is identified by its address
+   */
+  private static String caller(HttpServletRequest request) {
+    if (request.getUserPrincipal() != null) {
+      return "principal " + request.getUserPrincipal().getName();
+    }
+    String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+    if (authorization != null && !authorization.isEmpty()) {
+      return "token " + authorization;
+    }
+    return "address " + request.getRemoteAddr();
   }
 
   @GetMapping("/users/{id}")
   @ResponseStatus(HttpStatus.OK)
   @ResponseBody
   public UserGetDTO getUserWithId(@PathVariable Long id,
-      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken) {
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken,
+      HttpServletResponse response) throws IOException {
     // if not authorized
     if (!userService.isAuthorized(authToken, Permissions.READ)) {
       throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Forbidden action");
     }
+    if (userRowStore.isEnabled()) {
+      ByteBuffer row = userRowStore.findById(id).orElseThrow(
+          () -> new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found"));
+      Channels.newChannel(jsonOutput(response)).write(row);
+      return null;
+    }
 
     try {
       // need to return UserGetDTO, just User does not work
@@ -91,6 +400,36 @@ public class UserController {
     }
   }
 
+  /* Same as GET /users/{id}, but only with the fields given as comma separated list */
+  @GetMapping(value = "/users/{id}", params = "fields")
+  @ResponseStatus(HttpStatus.OK)
+  @ResponseBody
+  public Map<String, Object> getUserFieldsWithId(@PathVariable Long id,
+      @RequestParam("fields") String fields,
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken) {
+    // if not authorized
+    if (!userService.isAuthorized(authToken, Permissions.READ)) {
+      throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Forbidden action");
+    }
+
+    try {
+      Tuple tuple = userService.getUserFieldsById(id, parseFields(fields));
+      return DTOMapper.INSTANCE.convertTupleToUserFields(tuple);
+    } catch (NotFoundException e) {
+      // user id does not exist
+      throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found", e);
+    }
+  }
+
+  private static Set<UserField> parseFields(String fields) {
+    try {
+      return UserField.parse(fields);
+    } catch (IllegalArgumentException e) {
+      // without cause, otherwise the IllegalArgumentException handler would answer with 409
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown field in " + fields);
+    }
+  }
+
   /* Login, returns token */
   @PostMapping("/users/auth")
   @ResponseStatus(HttpStatus.OK)
@@ -117,25 +456,52 @@ public class UserController {
           HttpStatus.BAD_REQUEST, "Either pass username,password or pass token.");
     }
 
+    // every login hands out a fresh token
+    getUser = userService.rotateToken(getUser);
+
     // return user object
     return DTOMapper.INSTANCE.convertEntityToUserGetDTO(getUser);
   }
 
+  /* Logout, invalidates the token */
+  @DeleteMapping("/users/auth")
+  @ResponseStatus(HttpStatus.NO_CONTENT)
+  public void logoutUser(
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken) {
+    if (!userService.isAuthorized(authToken, Permissions.READ)) {
+      throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Invalid token");
+    }
+    userService.logout(authToken);
+  }
+
   @PutMapping("/users/{id}")
   @ResponseStatus(HttpStatus.NO_CONTENT)
   @ResponseBody
   public UserGetDTO editUser(@PathVariable Long id, @RequestBody UserPostDTO userPostDTO,
-      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken) {
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken,
+      @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey,
+      HttpServletRequest request) {
     System.out.println("PUT /users/id with id=" + id.toString());
 
-    // convert API user to internal representation
-    User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+    return idempotencyStore.execute("PUT /users/" + id, caller(request), idempotencyKey,
+        fingerprint(userPostDTO), () -> {
+          // convert API user to internal representation
+          User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
 
-    // update user
-    // auth token is the token of the user we want to edit
-    User updatedUser = userService.updateUser(userInput, id, authToken);
-    // convert internal representation of user back to API
-    return DTOMapper.INSTANCE.convertEntityToUserGetDTO(updatedUser);
+          // update user
+          // auth token is the token of the user we want to edit
+          User updatedUser = userService.updateUser(userInput, id, authToken);
+          // convert internal representation of user back to API
+          return DTOMapper.INSTANCE.convertEntityToUserGetDTO(updatedUser);
+        });
+  }
+
+  @DeleteMapping("/users/{id}")
+  @ResponseStatus(HttpStatus.NO_CONTENT)
+  public void deleteUser(@PathVariable Long id,
+      @RequestHeader(value = HttpHeaders.AUTHORIZATION, defaultValue = "") String authToken) {
+    // auth token is the token of the user we want to delete
+    userService.deleteUser(id, authToken);
   }
 
   @PatchMapping("/users/{id}/status")
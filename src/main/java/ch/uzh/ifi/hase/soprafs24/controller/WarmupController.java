@@ -0,0 +1,34 @@
+package ch.uzh.ifi.hase.soprafs24.controller;
+
+import ch.uzh.ifi.hase.soprafs24.config.StartupWarmup;
+import java.time.Duration;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Warmup Controller
+ * App Engine sends a warmup request to /_ah/warmup before it routes traffic to a new instance
+ * (inbound_services: warmup in app.yaml). The request only returns once the StartupWarmup is
+ * done, like the readiness probe (/actuator/health/readiness).
+ */
+@RestController
+public class WarmupController {
+  private static final Duration TIMEOUT = Duration.ofMinutes(1);
+
+  private final StartupWarmup startupWarmup;
+
+  WarmupController(StartupWarmup startupWarmup) {
+    this.startupWarmup = startupWarmup;
+  }
+
+  @GetMapping("/_ah/warmup")
+  @ResponseStatus(HttpStatus.OK)
+  public void warmup() throws InterruptedException {
+    if (!startupWarmup.awaitWarmup(TIMEOUT)) {
+      throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Warmup not finished");
+    }
+  }
+}
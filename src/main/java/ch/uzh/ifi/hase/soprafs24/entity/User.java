@@ -18,7 +18,8 @@ import org.hibernate.annotations.CreationTimestamp;
  * the primary key
  */
 @Entity
-@Table(name = "USER")
+@Table(name = "USER",
+    indexes = @Index(name = "USER_TOKEN_EXPIRES_IDX", columnList = "tokenExpires"))
 public class User implements Serializable {
   private static final long serialVersionUID = 1L;
 
@@ -30,7 +31,12 @@ public class User implements Serializable {
 
   @Column(nullable = false) private String password;
 
-  @Column(nullable = false, unique = true) private String token;
+  // null once the token expired and was invalidated by the TokenSweeper
+  @Column(nullable = true, unique = true) private String token;
+
+  @Column(nullable = true) private LocalDateTime tokenIssued;
+
+  @Column(nullable = true) private LocalDateTime tokenExpires;
 
   @Column(nullable = false) private UserStatus status;
 
@@ -70,6 +76,22 @@ public class User implements Serializable {
     this.token = token;
   }
 
+  public LocalDateTime getTokenIssued() {
+    return tokenIssued;
+  }
+
+  public void setTokenIssued(LocalDateTime tokenIssued) {
+    this.tokenIssued = tokenIssued;
+  }
+
+  public LocalDateTime getTokenExpires() {
+    return tokenExpires;
+  }
+
+  public void setTokenExpires(LocalDateTime tokenExpires) {
+    this.tokenExpires = tokenExpires;
+  }
+
   public UserStatus getStatus() {
     return status;
   }
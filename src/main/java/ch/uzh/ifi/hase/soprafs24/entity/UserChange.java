@@ -0,0 +1,58 @@
+package ch.uzh.ifi.hase.soprafs24.entity;
+
+import java.io.Serializable;
+import javax.persistence.*;
+
+/**
+ * Latest Change of a User
+ * One row per user with the change sequence of its last write (see UserChangeLog), the row of a
+ * deleted user is kept as tombstone. Indexed by sequence, so the changes since a sequence are
+ * found without reading all users.
+ */
+@Entity
+@Table(name = "USER_CHANGE",
+    indexes = @Index(name = "USER_CHANGE_SEQUENCE_IDX", columnList = "sequence", unique = true))
+public class UserChange implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Id private Long userId;
+
+  @Column(nullable = false) private long sequence;
+
+  @Column(nullable = false) private boolean deleted;
+
+  // loaded for the response (see UserService.getChanges), null for tombstones
+  @Transient private User user;
+
+  public Long getUserId() {
+    return userId;
+  }
+
+  public void setUserId(Long userId) {
+    this.userId = userId;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+
+  public boolean isDeleted() {
+    return deleted;
+  }
+
+  public void setDeleted(boolean deleted) {
+    this.deleted = deleted;
+  }
+
+  public User getUser() {
+    return user;
+  }
+
+  public void setUser(User user) {
+    this.user = user;
+  }
+}
@@ -0,0 +1,33 @@
+package ch.uzh.ifi.hase.soprafs24.entity;
+
+import java.io.Serializable;
+import javax.persistence.*;
+
+/**
+ * Single row with the last assigned change sequence (see UserChangeLog)
+ */
+@Entity
+@Table(name = "USER_CHANGE_COUNTER")
+public class UserChangeCounter implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Id private Integer id;
+
+  @Column(nullable = false) private long sequence;
+
+  public Integer getId() {
+    return id;
+  }
+
+  public void setId(Integer id) {
+    this.id = id;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+}
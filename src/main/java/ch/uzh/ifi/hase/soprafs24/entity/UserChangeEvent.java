@@ -0,0 +1,75 @@
+package ch.uzh.ifi.hase.soprafs24.entity;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserChangeType;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import javax.persistence.*;
+
+/**
+ * Change Event of a User
+ * Written to the outbox table in the same transaction as the change of the user (see
+ * UserChangeOutbox), and deleted once the UserOutboxRelay published it.
+ * - the id is assigned on insert, after the user row was written and locked, so the events of
+ * one user are ordered by id
+ * - payload is the user as JSON, without password and token
+ */
+@Entity
+@Table(name = "USER_OUTBOX")
+public class UserChangeEvent implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Id @GeneratedValue(strategy = GenerationType.IDENTITY) private Long id;
+
+  @Column(nullable = false) private Long userId;
+
+  @Enumerated(EnumType.STRING) @Column(nullable = false) private UserChangeType type;
+
+  @Column(nullable = false, length = 4000) private String payload;
+
+  @Column(nullable = false) private LocalDateTime created;
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public Long getUserId() {
+    return userId;
+  }
+
+  public void setUserId(Long userId) {
+    this.userId = userId;
+  }
+
+  public UserChangeType getType() {
+    return type;
+  }
+
+  public void setType(UserChangeType type) {
+    this.type = type;
+  }
+
+  public String getPayload() {
+    return payload;
+  }
+
+  public void setPayload(String payload) {
+    this.payload = payload;
+  }
+
+  public LocalDateTime getCreated() {
+    return created;
+  }
+
+  public void setCreated(LocalDateTime created) {
+    this.created = created;
+  }
+
+  @Override
+  public String toString() {
+    return "UserChangeEvent{id=" + id + ", userId=" + userId + ", type=" + type + "}";
+  }
+}
@@ -0,0 +1,10 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+/**
+ * Projection of an expired token and its user, as selected by the TokenSweeper.
+ */
+public interface ExpiredToken {
+  Long getId();
+
+  String getToken();
+}
@@ -0,0 +1,42 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository("userRepository")
+public interface JpaUserRepository
+    extends JpaRepository<User, Long>, UserRepository, UserRepositoryCustom {
+  @Override
+  @QueryHints(@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE, value = "1000"))
+  @Query("select u.id as id, u.username as username, u.name as name from User u")
+  Stream<UserSearchProjection> streamAllForSearch();
+
+  @Override
+  @Query("select u from User u where u.id > :after order by u.id")
+  List<User> findAfterId(@Param("after") long after, Pageable pageable);
+
+  @Override
+  @Query("select u.id as id, u.token as token from User u where u.tokenExpires < :now "
+      + "order by u.tokenExpires")
+  List<ExpiredToken> findTokensExpiredBefore(@Param("now") LocalDateTime now, Pageable pageable);
+
+  @Override
+  @Query("select min(u.tokenExpires) from User u where u.tokenExpires < :now")
+  LocalDateTime findOldestTokenExpiresBefore(@Param("now") LocalDateTime now);
+
+  @Override
+  @Modifying
+  @Query("update User u set u.token = null, u.tokenIssued = null, u.tokenExpires = null "
+      + "where u.id in :ids and u.tokenExpires < :now")
+  int invalidateTokens(@Param("ids") List<Long> ids, @Param("now") LocalDateTime now);
+}
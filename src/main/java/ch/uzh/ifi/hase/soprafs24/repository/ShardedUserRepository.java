@@ -0,0 +1,488 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.persistence.Tuple;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Primary;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Sharded User Repository
+ * Replaces the JPA UserRepository if user.sharding.shard-urls is set. The users are spread over
+ * the shards by id (see UserShards), lookups by username and token go through the global unique
+ * index in the directory database and need one query on one shard. Everything else (all users,
+ * search by name, expired tokens) is scattered to all shards and the results are merged.
+ * Implements only the narrow UserRepository, not the whole JpaRepository.
+ * Writes run in the caller's transaction: the index entries are written with the directory
+ * database's connection of the transaction, the shard rows in shard transactions joined to it
+ * (see UserShards.shard). A write locks the row of its user on the shard until the transaction
+ * ends, which also keeps the resharding from moving the user meanwhile. A write without a
+ * transaction commits every statement on its own, index entries it leaves behind when failing
+ * halfway are taken over by the next user claiming the value.
+ */
+@Repository
+@Primary
+@Qualifier("userRepository")
+@ConditionalOnExpression("!'${user.sharding.shard-urls:}'.isBlank()")
+public class ShardedUserRepository implements UserRepository {
+  private static final String USERNAME = "username";
+  private static final String TOKEN = "token";
+
+  static final RowMapper<User> USER_MAPPER = ShardedUserRepository::mapUser;
+
+  private final UserShards shards;
+
+  public ShardedUserRepository(UserShards shards) {
+    this.shards = shards;
+  }
+
+  private static User mapUser(ResultSet resultSet, int rowNum) throws SQLException {
+    User user = new User();
+    user.setId(resultSet.getLong("id"));
+    user.setName(resultSet.getString("name"));
+    user.setUsername(resultSet.getString(USERNAME));
+    user.setPassword(resultSet.getString("password"));
+    user.setToken(resultSet.getString(TOKEN));
+    user.setTokenIssued(toLocalDateTime(resultSet.getTimestamp("token_issued")));
+    user.setTokenExpires(toLocalDateTime(resultSet.getTimestamp("token_expires")));
+    user.setStatus(UserStatus.valueOf(resultSet.getString("status")));
+    user.setBirthday(resultSet.getString("birthday"));
+    user.setCreated(toLocalDateTime(resultSet.getTimestamp("created")));
+    return user;
+  }
+
+  private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+    return timestamp == null ? null : timestamp.toLocalDateTime();
+  }
+
+  private static Timestamp toTimestamp(LocalDateTime localDateTime) {
+    return localDateTime == null ? null : Timestamp.valueOf(localDateTime);
+  }
+
+  /* ---------- writes ---------- */
+
+  @Override
+  public <S extends User> S save(S user) {
+    if (user.getId() == null) {
+      user.setId(shards.nextId());
+      insert(user);
+      return user;
+    }
+    Located old = locateForWrite(user.getId());
+    if (old == null) {
+      insert(user);
+    } else {
+      update(old, user);
+    }
+    return user;
+  }
+
+  private void insert(User user) {
+    if (user.getCreated() == null) {
+      user.setCreated(LocalDateTime.now());
+    }
+    claim(USERNAME, user.getUsername(), user.getId());
+    claim(TOKEN, user.getToken(), user.getId());
+    insertRow(shards.shard(shards.shardOf(user.getId())), user);
+  }
+
+  private void update(Located old, User user) {
+    boolean usernameChanged = !Objects.equals(old.user.getUsername(), user.getUsername());
+    boolean tokenChanged = !Objects.equals(old.user.getToken(), user.getToken());
+    if (usernameChanged) {
+      claim(USERNAME, user.getUsername(), user.getId());
+    }
+    if (tokenChanged) {
+      claim(TOKEN, user.getToken(), user.getId());
+    }
+
+    old.shard.update("update users set name = ?, username = ?, password = ?, token = ?, "
+            + "token_issued = ?, token_expires = ?, status = ?, birthday = ? where id = ?",
+        user.getName(), user.getUsername(), user.getPassword(), user.getToken(),
+        toTimestamp(user.getTokenIssued()), toTimestamp(user.getTokenExpires()),
+        user.getStatus().name(), user.getBirthday(), user.getId());
+
+    if (usernameChanged) {
+      release(USERNAME, old.user.getUsername(), user.getId());
+    }
+    if (tokenChanged) {
+      release(TOKEN, old.user.getToken(), user.getId());
+    }
+  }
+
+  static void insertRow(JdbcTemplate shard, User user) {
+    shard.update("insert into users (" + UserShards.USER_COLUMNS
+            + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+        user.getId(), user.getName(), user.getUsername(), user.getPassword(), user.getToken(),
+        toTimestamp(user.getTokenIssued()), toTimestamp(user.getTokenExpires()),
+        user.getStatus().name(), user.getBirthday(), toTimestamp(user.getCreated()));
+  }
+
+  /**
+   * Add the value to the global unique index. A concurrent claim of the same value waits for
+   * the caller's transaction and then fails.
+   *
+   * @throws DuplicateKeyException if another user has this value
+   */
+  private void claim(String kind, String value, long userId) {
+    if (value == null) {
+      return;
+    }
+    Long owner = findIndexed(kind, value);
+    if (owner == null) {
+      shards.directory().update(
+          "insert into user_index (kind, value, user_id) values (?, ?, ?)", kind, value, userId);
+    } else if (owner != userId) {
+      if (locate(owner) != null) {
+        throw new DuplicateKeyException("The " + kind + " is already used");
+      }
+      // left over by a write without transaction which failed halfway, taken over
+      shards.directory().update(
+          "update user_index set user_id = ? where kind = ? and value = ?", userId, kind, value);
+    }
+  }
+
+  private void release(String kind, String value, long userId) {
+    if (value == null) {
+      return;
+    }
+    shards.directory().update(
+        "delete from user_index where kind = ? and value = ? and user_id = ?", kind, value,
+        userId);
+  }
+
+  private Long findIndexed(String kind, String value) {
+    List<Long> ids = shards.directory().queryForList(
+        "select user_id from user_index where kind = ? and value = ?", Long.class, kind, value);
+    return ids.isEmpty() ? null : ids.get(0);
+  }
+
+  @Override
+  public <S extends User> List<S> saveAll(Iterable<S> users) {
+    List<S> saved = new ArrayList<>();
+    users.forEach(user -> saved.add(save(user)));
+    return saved;
+  }
+
+  @Override
+  public <S extends User> S saveAndFlush(S user) {
+    return save(user);
+  }
+
+  @Override
+  public void flush() {
+    // every write goes to the shard right away
+  }
+
+  @Override
+  public void delete(User user) {
+    deleteById(user.getId());
+  }
+
+  private void deleteById(Long id) {
+    Located located = locateForWrite(id);
+    if (located == null) {
+      return;
+    }
+    located.shard.update("delete from users where id = ?", id);
+    release(USERNAME, located.user.getUsername(), id);
+    release(TOKEN, located.user.getToken(), id);
+  }
+
+  @Override
+  public void deleteAll() {
+    findAll().forEach(this::delete);
+  }
+
+  @Override
+  public int invalidateTokens(List<Long> ids, LocalDateTime now) {
+    int invalidated = 0;
+    for (Long id : ids) {
+      Located located = locateForWrite(id);
+      if (located == null) {
+        continue;
+      }
+      int updated = located.shard.update(
+          "update users set token = null, token_issued = null, token_expires = null "
+              + "where id = ? and token_expires < ?",
+          id, toTimestamp(now));
+      if (updated > 0) {
+        release(TOKEN, located.user.getToken(), id);
+      }
+      invalidated += updated;
+    }
+    return invalidated;
+  }
+
+  /* ---------- lookups on one shard ---------- */
+
+  private static class ShardedExpiredToken implements ExpiredToken {
+    private final Long id;
+    private final String token;
+
+    private ShardedExpiredToken(User user) {
+      this.id = user.getId();
+      this.token = user.getToken();
+    }
+
+    @Override
+    public Long getId() {
+      return id;
+    }
+
+    @Override
+    public String getToken() {
+      return token;
+    }
+  }
+
+  private static class Located {
+    private final JdbcTemplate shard;
+    private final User user;
+
+    private Located(JdbcTemplate shard, User user) {
+      this.shard = shard;
+      this.user = user;
+    }
+  }
+
+  /**
+   * find the user on its shard, or on its previous shard while resharding
+   */
+  private Located locate(long id) {
+    for (int index : shards.candidateShardsOf(id)) {
+      JdbcTemplate shard = shards.shard(index);
+      List<User> users = shard.query(
+          "select " + UserShards.USER_COLUMNS + " from users where id = ?", USER_MAPPER, id);
+      if (!users.isEmpty()) {
+        return new Located(shard, users.get(0));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find the user like locate, and lock its row in the caller's transaction. While resharding,
+   * the user may be moved to its new shard while this waits for the lock, so the shards are
+   * checked twice.
+   */
+  private Located locateForWrite(long id) {
+    List<Integer> candidates = shards.candidateShardsOf(id);
+    for (int attempt = candidates.size() > 1 ? 0 : 1; attempt < 2; attempt++) {
+      for (int index : candidates) {
+        JdbcTemplate shard = shards.shard(index);
+        List<User> users = shard.query("select " + UserShards.USER_COLUMNS
+                + " from users where id = ? for update",
+            USER_MAPPER, id);
+        if (!users.isEmpty()) {
+          return new Located(shard, users.get(0));
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Optional<User> findById(Long id) {
+    Located located = locate(id);
+    return located == null ? Optional.empty() : Optional.of(located.user);
+  }
+
+  @Override
+  public User findByUsername(String username) {
+    return findByIndex(USERNAME, username);
+  }
+
+  @Override
+  public User findByToken(String token) {
+    return findByIndex(TOKEN, token);
+  }
+
+  private User findByIndex(String kind, String value) {
+    if (value == null) {
+      return null;
+    }
+    Long id = findIndexed(kind, value);
+    if (id == null) {
+      return null;
+    }
+    // the index may be ahead of the shard while a write is in progress
+    User user = findById(id).orElse(null);
+    if (user == null || !value.equals(TOKEN.equals(kind) ? user.getToken() : user.getUsername())) {
+      return null;
+    }
+    return user;
+  }
+
+  @Override
+  public List<User> findAllByUsername(String username) {
+    User user = findByUsername(username);
+    return user == null ? List.of() : List.of(user);
+  }
+
+  @Override
+  public List<User> findAllById(Iterable<Long> ids) {
+    // group the ids by shard, one IN query per shard
+    Map<Integer, List<Long>> idsByShard = new TreeMap<>();
+    for (Long id : ids) {
+      for (int index : shards.candidateShardsOf(id)) {
+        idsByShard.computeIfAbsent(index, key -> new ArrayList<>()).add(id);
+      }
+    }
+    Map<Long, User> users = new TreeMap<>();
+    idsByShard.forEach((index, shardIds) -> {
+      String placeholders = shardIds.stream().map(id -> "?").collect(Collectors.joining(", "));
+      shards.shard(index)
+          .query("select " + UserShards.USER_COLUMNS + " from users where id in ("
+                  + placeholders + ")",
+              USER_MAPPER, shardIds.toArray())
+          .forEach(user -> users.putIfAbsent(user.getId(), user));
+    });
+    return new ArrayList<>(users.values());
+  }
+
+  @Override
+  public List<Tuple> findFieldsByIds(List<Long> ids, Set<UserField> fields) {
+    List<User> users = ids == null ? findAll() : findAllById(ids);
+    return users.stream()
+        .map(user -> (Tuple) new UserFieldTuple(user, fields))
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public List<Tuple> findFieldsAfterId(long after, int limit, Set<UserField> fields) {
+    return findAfterId(after, PageRequest.of(0, limit)).stream()
+        .map(user -> (Tuple) new UserFieldTuple(user, fields))
+        .collect(Collectors.toList());
+  }
+
+  /* ---------- scatter-gather over all shards ---------- */
+
+  /**
+   * run the query on every shard which may hold users, and merge the results by id (while
+   * resharding, a moved user may be found twice)
+   */
+  private List<User> scatter(String where, Object... args) {
+    Map<Long, User> users = new TreeMap<>();
+    for (JdbcTemplate shard : usedShards()) {
+      shard.query("select " + UserShards.USER_COLUMNS + " from users " + where, USER_MAPPER, args)
+          .forEach(user -> users.putIfAbsent(user.getId(), user));
+    }
+    return new ArrayList<>(users.values());
+  }
+
+  private List<JdbcTemplate> usedShards() {
+    Integer previous = shards.getPreviousShardCount();
+    int used = Math.max(shards.getShardCount(), previous == null ? 0 : previous);
+    List<JdbcTemplate> usedShards = new ArrayList<>(used);
+    for (int index = 0; index < used; index++) {
+      usedShards.add(shards.shard(index));
+    }
+    return usedShards;
+  }
+
+  @Override
+  public List<User> findAll() {
+    return scatter("order by id");
+  }
+
+  @Override
+  public List<User> findAfterId(long after, Pageable pageable) {
+    List<User> candidates =
+        scatter("where id > ? order by id limit ?", after, pageable.getPageSize());
+    return candidates.subList(0, Math.min(candidates.size(), pageable.getPageSize()));
+  }
+
+  @Override
+  public long count() {
+    Integer previous = shards.getPreviousShardCount();
+    if (previous != null) {
+      // moved users may be on two shards for a moment
+      return findAll().size();
+    }
+    long count = 0;
+    for (JdbcTemplate shard : usedShards()) {
+      count += shard.queryForObject("select count(*) from users", Long.class);
+    }
+    return count;
+  }
+
+  @Override
+  public User findByName(String name) {
+    List<User> users = scatter("where name = ?", name);
+    if (users.size() > 1) {
+      throw new IncorrectResultSizeDataAccessException(1, users.size());
+    }
+    return users.isEmpty() ? null : users.get(0);
+  }
+
+  @Override
+  public Stream<UserSearchProjection> streamAllForSearch() {
+    return findAll().stream().map(user -> new UserSearchProjection() {
+      @Override
+      public Long getId() {
+        return user.getId();
+      }
+
+      @Override
+      public String getUsername() {
+        return user.getUsername();
+      }
+
+      @Override
+      public String getName() {
+        return user.getName();
+      }
+    });
+  }
+
+  @Override
+  public List<ExpiredToken> findTokensExpiredBefore(LocalDateTime now, Pageable pageable) {
+    int limit = pageable.isPaged() ? pageable.getPageSize() : Integer.MAX_VALUE;
+    return scatter("where token_expires < ? order by token_expires limit ?", toTimestamp(now),
+        limit)
+        .stream()
+        .sorted(Comparator.comparing(User::getTokenExpires))
+        .limit(limit)
+        .map(ShardedExpiredToken::new)
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public LocalDateTime findOldestTokenExpiresBefore(LocalDateTime now) {
+    LocalDateTime oldest = null;
+    for (JdbcTemplate shard : usedShards()) {
+      Timestamp shardOldest = shard.queryForObject(
+          "select min(token_expires) from users where token_expires < ?", Timestamp.class,
+          toTimestamp(now));
+      if (shardOldest != null
+          && (oldest == null || shardOldest.toLocalDateTime().isBefore(oldest))) {
+        oldest = shardOldest.toLocalDateTime();
+      }
+    }
+    return oldest;
+  }
+}
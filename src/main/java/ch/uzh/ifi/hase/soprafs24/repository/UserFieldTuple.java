@@ -0,0 +1,98 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
+
+/**
+ * Tuple of selected fields of a user which was loaded without JPA, aliased by the property name
+ * like the tuples of UserRepositoryCustomImpl.
+ */
+class UserFieldTuple implements Tuple {
+  private final List<TupleElement<?>> elements = new ArrayList<>();
+  private final List<Object> values = new ArrayList<>();
+
+  UserFieldTuple(User user, Set<UserField> fields) {
+    for (UserField field : fields) {
+      Object value = valueOf(user, field);
+      Class<?> javaType = value == null ? Object.class : value.getClass();
+      elements.add(new TupleElement<Object>() {
+        @Override
+        public Class<?> getJavaType() {
+          return javaType;
+        }
+
+        @Override
+        public String getAlias() {
+          return field.getProperty();
+        }
+      });
+      values.add(value);
+    }
+  }
+
+  private static Object valueOf(User user, UserField field) {
+    switch (field) {
+      case ID:
+        return user.getId();
+      case NAME:
+        return user.getName();
+      case USERNAME:
+        return user.getUsername();
+      case STATUS:
+        return user.getStatus();
+      case TOKEN:
+        return user.getToken();
+      case BIRTHDAY:
+        return user.getBirthday();
+      case CREATED:
+        return user.getCreated();
+      default:
+        throw new IllegalArgumentException("Unknown field " + field);
+    }
+  }
+
+  @Override
+  public <X> X get(TupleElement<X> tupleElement) {
+    return tupleElement.getJavaType().cast(get(tupleElement.getAlias()));
+  }
+
+  @Override
+  public <X> X get(String alias, Class<X> type) {
+    return type.cast(get(alias));
+  }
+
+  @Override
+  public Object get(String alias) {
+    for (int i = 0; i < elements.size(); i++) {
+      if (elements.get(i).getAlias().equals(alias)) {
+        return values.get(i);
+      }
+    }
+    throw new IllegalArgumentException("Unknown alias " + alias);
+  }
+
+  @Override
+  public <X> X get(int i, Class<X> type) {
+    return type.cast(get(i));
+  }
+
+  @Override
+  public Object get(int i) {
+    return values.get(i);
+  }
+
+  @Override
+  public Object[] toArray() {
+    return values.toArray();
+  }
+
+  @Override
+  public List<TupleElement<?>> getElements() {
+    return elements;
+  }
+}
@@ -0,0 +1,18 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.entity.UserChangeEvent;
+import java.util.List;
+import javax.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+@Repository("userOutboxRepository")
+public interface UserOutboxRepository extends JpaRepository<UserChangeEvent, Long> {
+  // locked until the end of the transaction, so concurrent relays do not publish them twice
+  @Lock(LockModeType.PESSIMISTIC_WRITE)
+  @Query("select e from UserChangeEvent e order by e.id")
+  List<UserChangeEvent> findOldestForUpdate(Pageable pageable);
+}
@@ -1,12 +1,38 @@
 package ch.uzh.ifi.hase.soprafs24.repository;
 
 import ch.uzh.ifi.hase.soprafs24.entity.User;
+import java.time.LocalDateTime;
 import java.util.List;
-import org.springframework.data.jpa.repository.JpaRepository;
-import org.springframework.stereotype.Repository;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.springframework.data.domain.Pageable;
+
+/**
+ * The user repository operations used by the application, implemented by the JPA repository
+ * (see JpaUserRepository) and by the sharded one (see ShardedUserRepository). Kept narrow on
+ * purpose, so every operation is supported by both.
+ */
+public interface UserRepository extends UserRepositoryCustom {
+  <S extends User> S save(S user);
+
+  <S extends User> List<S> saveAll(Iterable<S> users);
+
+  <S extends User> S saveAndFlush(S user);
+
+  void flush();
+
+  void delete(User user);
+
+  void deleteAll();
+
+  Optional<User> findById(Long id);
+
+  List<User> findAllById(Iterable<Long> ids);
+
+  List<User> findAll();
+
+  long count();
 
-@Repository("userRepository")
-public interface UserRepository extends JpaRepository<User, Long> {
   User findByName(String name);
 
   User findByUsername(String username);
@@ -14,4 +40,22 @@ public interface UserRepository extends JpaRepository<User, Long> {
   User findByToken(String token);
 
   List<User> findAllByUsername(String username);
+
+  Stream<UserSearchProjection> streamAllForSearch();
+
+  /**
+   * Keyset pagination over all users: the first page is after id 0, each next page after the
+   * last id of the previous page.
+   */
+  List<User> findAfterId(long after, Pageable pageable);
+
+  List<ExpiredToken> findTokensExpiredBefore(LocalDateTime now, Pageable pageable);
+
+  LocalDateTime findOldestTokenExpiresBefore(LocalDateTime now);
+
+  /**
+   * Invalidate the tokens of the users which are still expired before now. A token issued since
+   * the ids were selected (login, rotation) is kept.
+   */
+  int invalidateTokens(List<Long> ids, LocalDateTime now);
 }
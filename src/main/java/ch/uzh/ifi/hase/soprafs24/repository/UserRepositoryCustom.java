@@ -0,0 +1,30 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
+import java.util.List;
+import java.util.Set;
+import javax.persistence.Tuple;
+
+/**
+ * Queries of the UserRepository which cannot be derived by Spring Data.
+ */
+public interface UserRepositoryCustom {
+  /**
+   * Load only the given fields of the users, so no full entities are loaded.
+   *
+   * @param ids ids of the users, or null for all users
+   * @param fields selected fields, each tuple element has the property name as alias
+   * @return one tuple per user, ordered by id
+   */
+  List<Tuple> findFieldsByIds(List<Long> ids, Set<UserField> fields);
+
+  /**
+   * Load only the given fields of a page of users, with keyset pagination like findAfterId.
+   *
+   * @param after id after which the page starts, 0 for the first page
+   * @param limit maximum number of users
+   * @param fields selected fields, each tuple element has the property name as alias
+   * @return one tuple per user, ordered by id
+   */
+  List<Tuple> findFieldsAfterId(long after, int limit, Set<UserField> fields);
+}
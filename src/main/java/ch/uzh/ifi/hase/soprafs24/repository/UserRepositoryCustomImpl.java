@@ -0,0 +1,60 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import org.springframework.beans.factory.annotation.Value;
+
+public class UserRepositoryCustomImpl implements UserRepositoryCustom {
+  @PersistenceContext private EntityManager entityManager;
+
+  @Value("${user.lookup.chunk-size:500}") private int chunkSize;
+
+  @Override
+  public List<Tuple> findFieldsByIds(List<Long> ids, Set<UserField> fields) {
+    if (ids == null) {
+      return entityManager.createQuery(fieldsQuery(null, null, fields)).getResultList();
+    }
+    // one IN query per chunk
+    List<Tuple> tuples = new ArrayList<>();
+    for (int start = 0; start < ids.size(); start += chunkSize) {
+      List<Long> chunk = ids.subList(start, Math.min(start + chunkSize, ids.size()));
+      tuples.addAll(entityManager.createQuery(fieldsQuery(chunk, null, fields)).getResultList());
+    }
+    return tuples;
+  }
+
+  @Override
+  public List<Tuple> findFieldsAfterId(long after, int limit, Set<UserField> fields) {
+    return entityManager.createQuery(fieldsQuery(null, after, fields))
+        .setMaxResults(limit)
+        .getResultList();
+  }
+
+  private CriteriaQuery<Tuple> fieldsQuery(List<Long> ids, Long after, Set<UserField> fields) {
+    CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+    CriteriaQuery<Tuple> query = builder.createTupleQuery();
+    Root<User> user = query.from(User.class);
+
+    List<Selection<?>> selections = new ArrayList<>();
+    for (UserField field : fields) {
+      selections.add(user.get(field.getProperty()).alias(field.getProperty()));
+    }
+    query.multiselect(selections);
+    if (ids != null) {
+      query.where(user.get("id").in(ids));
+    } else if (after != null) {
+      query.where(builder.greaterThan(user.get("id"), after));
+    }
+    return query.orderBy(builder.asc(user.get("id")));
+  }
+}
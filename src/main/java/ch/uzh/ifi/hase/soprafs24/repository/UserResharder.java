@@ -0,0 +1,143 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * User Resharder
+ * Moves the users to a new number of shards while the application keeps running. The new
+ * layout is used for new users right away, existing users are copied to their new shard and
+ * then deleted from the old one, in batches of user.sharding.reshard-batch-size. Until all users
+ * are moved, lookups by id also check the shard of the previous layout.
+ * Shards have to be added to user.sharding.shard-urls (and the application restarted) before
+ * they can be used. Available as actuator endpoint "reshard" (POST with {"shardCount": n}, with
+ * user.actuator.token in the Authorization header).
+ * The other instances take the new layout over within user.sharding.layout-refresh-interval,
+ * so the users are moved only after twice this interval. Only one resharding runs at a time
+ * across all instances. A move locks the row of the user on its old shard, so it waits for
+ * running writes of the user and the writes wait for it.
+ */
+@Component
+@Endpoint(id = "reshard")
+@ConditionalOnExpression("!'${user.sharding.shard-urls:}'.isBlank()")
+public class UserResharder {
+  private final Logger log = LoggerFactory.getLogger(UserResharder.class);
+
+  private final UserShards shards;
+  private final TransactionTemplate transactionTemplate;
+  private final int batchSize;
+
+  public UserResharder(UserShards shards, PlatformTransactionManager transactionManager,
+      @Value("${user.sharding.reshard-batch-size:500}") int batchSize) {
+    this.shards = shards;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.batchSize = batchSize;
+  }
+
+  @ReadOperation
+  public Map<String, Object> layout() {
+    Map<String, Object> layout = new LinkedHashMap<>();
+    layout.put("shardCount", shards.getShardCount());
+    layout.put("previousShardCount", shards.getPreviousShardCount());
+    layout.put("configuredShards", shards.size());
+    return layout;
+  }
+
+  /**
+   * Move all users to their shard in a layout with the given number of shards. Also continues
+   * an interrupted resharding, if called with the same shard count.
+   *
+   * @return number of moved users
+   */
+  @WriteOperation
+  public synchronized int reshard(int shardCount) {
+    shards.refreshLayout();
+    if (shards.getPreviousShardCount() == null) {
+      shards.startResharding(shardCount);
+      awaitLayoutRefresh();
+    } else if (shards.getShardCount() != shardCount) {
+      throw new IllegalStateException(
+          "Resharding to " + shards.getShardCount() + " shards was interrupted, finish it first");
+    }
+    long start = System.nanoTime();
+
+    int moved = 0;
+    for (int source = 0; source < shards.size(); source++) {
+      moved += moveFrom(source);
+    }
+    shards.finishResharding();
+
+    log.info("Resharded to {} shards, moved {} users in {} ms", shardCount, moved,
+        (System.nanoTime() - start) / 1_000_000);
+    return moved;
+  }
+
+  /**
+   * wait until every instance writes new users to their shard of the new layout, and looks up
+   * existing ones on both shards
+   */
+  private void awaitLayoutRefresh() {
+    try {
+      Thread.sleep(shards.getLayoutRefreshInterval().multipliedBy(2).toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted before moving the users, call again", e);
+    }
+  }
+
+  private int moveFrom(int source) {
+    JdbcTemplate sourceShard = shards.shard(source);
+    int moved = 0;
+    long lastId = Long.MIN_VALUE;
+    while (true) {
+      List<Long> ids = sourceShard.queryForList(
+          "select id from users where id > ? order by id limit ?", Long.class, lastId, batchSize);
+      if (ids.isEmpty()) {
+        return moved;
+      }
+      for (Long id : ids) {
+        int target = shards.shardOf(id);
+        if (target != source && move(id, source, target)) {
+          moved++;
+        }
+      }
+      lastId = ids.get(ids.size() - 1);
+    }
+  }
+
+  /**
+   * Copy the user to its new shard and delete it from the old one, in shard transactions which
+   * are committed target first, so a failure leaves a copy on both shards rather than none.
+   */
+  private boolean move(long id, int source, int target) {
+    Boolean moved = transactionTemplate.execute(status -> {
+      JdbcTemplate targetShard = shards.shard(target);
+      JdbcTemplate sourceShard = shards.shard(source);
+      List<User> users = sourceShard.query(
+          "select " + UserShards.USER_COLUMNS + " from users where id = ? for update",
+          ShardedUserRepository.USER_MAPPER, id);
+      if (users.isEmpty()) {
+        return false;
+      }
+      // an interrupted run may have copied the user already
+      targetShard.update("delete from users where id = ?", id);
+      ShardedUserRepository.insertRow(targetShard, users.get(0));
+      sourceShard.update("delete from users where id = ?", id);
+      return true;
+    });
+    return Boolean.TRUE.equals(moved);
+  }
+}
@@ -0,0 +1,13 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+/**
+ * Projection of the user columns needed to build the search index, so the table can be scanned
+ * without loading full User entities.
+ */
+public interface UserSearchProjection {
+  Long getId();
+
+  String getUsername();
+
+  String getName();
+}
@@ -0,0 +1,336 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.ConnectionHolder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * User Shards
+ * The shard databases (user.sharding.shard-urls) holding the users, and the directory database
+ * (the usual spring.datasource) holding what has to be global:
+ * - user_index: unique index of usernames and tokens to user ids
+ * - user_id_seq: ids of new users
+ * - user_shard_layout: number of shards in use, and the previous number while resharding
+ * A user lives on shard jumpHash(id, shardCount). While resharding, a user may still be on its
+ * shard of the previous layout, so lookups by id try both. Every instance reloads the layout
+ * every user.sharding.layout-refresh-interval, so all instances follow a resharding.
+ * The shards join the caller's transaction (see shard).
+ */
+@Component
+@ConditionalOnExpression("!'${user.sharding.shard-urls:}'.isBlank()")
+public class UserShards {
+  static final String USER_COLUMNS =
+      "id, name, username, password, token, token_issued, token_expires, status, birthday, "
+      + "created";
+
+  private final Logger log = LoggerFactory.getLogger(UserShards.class);
+
+  @PersistenceContext private EntityManager entityManager;
+
+  private final JdbcTemplate directory;
+  private final List<HikariDataSource> dataSources = new ArrayList<>();
+  private final List<JdbcTemplate> shards = new ArrayList<>();
+  private final Duration layoutRefreshInterval;
+
+  private volatile int shardCount;
+  // shard count before resharding, null if no resharding is running
+  private volatile Integer previousShardCount;
+
+  public UserShards(DataSource dataSource, DataSourceProperties properties,
+      @Value("${user.sharding.shard-urls}") String shardUrls,
+      @Value("${user.sharding.shard-count:0}") int configuredShardCount,
+      @Value("${user.sharding.layout-refresh-interval:PT5S}") Duration layoutRefreshInterval) {
+    this.directory = new JdbcTemplate(dataSource);
+    for (String url : shardUrls.split(",")) {
+      HikariDataSource shard = properties.initializeDataSourceBuilder()
+                                   .type(HikariDataSource.class)
+                                   .url(url.trim())
+                                   .build();
+      dataSources.add(shard);
+      shards.add(new JdbcTemplate(shard));
+    }
+    this.layoutRefreshInterval = layoutRefreshInterval;
+
+    createSchema();
+    loadLayout(configuredShardCount > 0 ? configuredShardCount : shards.size());
+  }
+
+  private void createSchema() {
+    directory.execute("create table if not exists user_index (kind varchar(16) not null, "
+        + "value varchar(255) not null, user_id bigint not null, primary key (kind, value))");
+    directory.execute("create sequence if not exists user_id_seq");
+    directory.execute("create table if not exists user_shard_layout (id int primary key, "
+        + "shard_count int not null, previous_shard_count int)");
+    for (JdbcTemplate shard : shards) {
+      shard.execute("create table if not exists users (id bigint primary key, "
+          + "name varchar(255) not null, username varchar(255) not null, "
+          + "password varchar(255) not null, token varchar(255), token_issued timestamp, "
+          + "token_expires timestamp, status varchar(16) not null, birthday varchar(255), "
+          + "created timestamp)");
+      shard.execute("create index if not exists users_token_expires on users (token_expires)");
+      shard.execute("create index if not exists users_name on users (name)");
+    }
+  }
+
+  /**
+   * the layout is stored in the directory, so an interrupted resharding is continued with the
+   * right layout after a restart, and the other instances follow a resharding
+   */
+  private void loadLayout(int configuredShardCount) {
+    if (directory.queryForList("select id from user_shard_layout where id = 1").isEmpty()) {
+      try {
+        directory.update("insert into user_shard_layout (id, shard_count) values (1, ?)",
+            configuredShardCount);
+      } catch (DuplicateKeyException e) {
+        // another instance created the layout at the same time
+        log.debug("Creating the shard layout failed", e);
+      }
+    }
+    refreshLayout();
+    log.info("Using {} of {} user shards", shardCount, shards.size());
+  }
+
+  /**
+   * Reload the layout from the directory, it may have been changed by another instance.
+   */
+  @Scheduled(fixedDelayString = "${user.sharding.layout-refresh-interval:PT5S}",
+      initialDelayString = "${user.sharding.layout-refresh-interval:PT5S}")
+  public void refreshLayout() {
+    Map<String, Object> row = directory.queryForMap(
+        "select shard_count, previous_shard_count from user_shard_layout where id = 1");
+    int count = ((Number) row.get("shard_count")).intValue();
+    Object previous = row.get("previous_shard_count");
+    Integer previousCount = previous == null ? null : ((Number) previous).intValue();
+    if (Math.max(count, previousCount == null ? 0 : previousCount) > shards.size()) {
+      throw new IllegalStateException("Shard layout uses " + count
+          + " shards, but only " + shards.size() + " shard urls are configured");
+    }
+    synchronized (this) {
+      previousShardCount = previousCount;
+      shardCount = count;
+    }
+  }
+
+  /**
+   * @return time until every instance uses a changed layout
+   */
+  Duration getLayoutRefreshInterval() {
+    return layoutRefreshInterval;
+  }
+
+  public JdbcTemplate directory() {
+    return directory;
+  }
+
+  /**
+   * @return number of configured shards, including the ones not used by the current layout
+   */
+  public int size() {
+    return shards.size();
+  }
+
+  /**
+   * The shard, joined to the transaction of the caller: the statements of this thread on the
+   * shard run in a shard transaction until the caller's transaction ends.
+   * - the shard transactions are committed right before the caller's transaction, after its
+   * pending JPA changes are flushed, in the order the shards were joined; if a shard commit
+   * fails, the caller's transaction and the remaining shard transactions are rolled back
+   * - if the caller's transaction is rolled back, so are the shard transactions
+   * Only a failing commit of the caller's transaction itself leaves the committed shard writes
+   * behind. Without a transaction of the caller, every statement is committed right away.
+   */
+  public JdbcTemplate shard(int index) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()
+        || TransactionSynchronizationManager.hasResource(dataSources.get(index))) {
+      return shards.get(index);
+    }
+    ShardTransactions shardTransactions =
+        (ShardTransactions) TransactionSynchronizationManager.getResource(this);
+    if (shardTransactions == null) {
+      shardTransactions = new ShardTransactions();
+      TransactionSynchronizationManager.bindResource(this, shardTransactions);
+      TransactionSynchronizationManager.registerSynchronization(shardTransactions);
+    }
+    shardTransactions.begin(dataSources.get(index));
+    return shards.get(index);
+  }
+
+  /**
+   * Connections of the shards joined to the transaction of the caller. They are bound like the
+   * connections of a DataSourceTransactionManager, so the JdbcTemplate of a shard uses them, but
+   * without a transaction manager of their own: starting a transaction with one would suspend
+   * the synchronizations of the caller's transaction.
+   */
+  private class ShardTransactions implements TransactionSynchronization {
+    private final List<DataSource> joined = new ArrayList<>();
+
+    private void begin(DataSource dataSource) {
+      try {
+        Connection connection = dataSource.getConnection();
+        try {
+          connection.setAutoCommit(false);
+        } catch (SQLException e) {
+          connection.close();
+          throw e;
+        }
+        ConnectionHolder holder = new ConnectionHolder(connection);
+        holder.setSynchronizedWithTransaction(true);
+        TransactionSynchronizationManager.bindResource(dataSource, holder);
+        joined.add(dataSource);
+      } catch (SQLException e) {
+        throw new CannotCreateTransactionException("Could not start a shard transaction", e);
+      }
+    }
+
+    @Override
+    public void beforeCommit(boolean readOnly) {
+      if (!readOnly && TransactionSynchronizationManager.isActualTransactionActive()) {
+        // a failing JPA write still rolls back the shards
+        entityManager.flush();
+      }
+      while (!joined.isEmpty()) {
+        DataSource dataSource = joined.get(0);
+        try {
+          connection(dataSource).commit();
+        } catch (SQLException e) {
+          throw new TransactionSystemException("Could not commit a shard transaction", e);
+        }
+        joined.remove(0);
+        release(dataSource);
+      }
+    }
+
+    @Override
+    public void afterCompletion(int status) {
+      TransactionSynchronizationManager.unbindResourceIfPossible(UserShards.this);
+      for (DataSource dataSource : joined) {
+        try {
+          connection(dataSource).rollback();
+        } catch (SQLException e) {
+          log.warn("Could not roll back a shard transaction", e);
+        }
+        release(dataSource);
+      }
+      joined.clear();
+    }
+
+    private Connection connection(DataSource dataSource) {
+      return ((ConnectionHolder) TransactionSynchronizationManager.getResource(dataSource))
+          .getConnection();
+    }
+
+    private void release(DataSource dataSource) {
+      ConnectionHolder holder =
+          (ConnectionHolder) TransactionSynchronizationManager.unbindResource(dataSource);
+      Connection connection = holder.getConnection();
+      try {
+        connection.setAutoCommit(true);
+        connection.close();
+      } catch (SQLException e) {
+        log.warn("Could not release a shard connection", e);
+      }
+    }
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  public Integer getPreviousShardCount() {
+    return previousShardCount;
+  }
+
+  /**
+   * @return index of the shard of the user in the current layout
+   */
+  public int shardOf(long id) {
+    return jumpHash(id, shardCount);
+  }
+
+  /**
+   * @return shards the user may be on, the shard of the current layout first
+   */
+  public List<Integer> candidateShardsOf(long id) {
+    int current = shardOf(id);
+    Integer previousCount = previousShardCount;
+    if (previousCount == null || jumpHash(id, previousCount) == current) {
+      return List.of(current);
+    }
+    return List.of(current, jumpHash(id, previousCount));
+  }
+
+  public long nextId() {
+    return directory.queryForObject("select next value for user_id_seq", Long.class);
+  }
+
+  /**
+   * Switch to a layout with the given number of shards, the previous layout is kept until
+   * finishResharding.
+   *
+   * @throws IllegalStateException if a resharding is already running, also on another instance
+   */
+  synchronized void startResharding(int newShardCount) {
+    if (newShardCount < 1 || newShardCount > shards.size()) {
+      throw new IllegalArgumentException(
+          "Shard count must be between 1 and " + shards.size() + ", was " + newShardCount);
+    }
+    refreshLayout();
+    int updated = directory.update("update user_shard_layout set shard_count = ?, "
+            + "previous_shard_count = ? where id = 1 and shard_count = ? "
+            + "and previous_shard_count is null",
+        newShardCount, shardCount, shardCount);
+    if (updated == 0) {
+      refreshLayout();
+      throw new IllegalStateException("Resharding is already running");
+    }
+    previousShardCount = shardCount;
+    shardCount = newShardCount;
+  }
+
+  synchronized void finishResharding() {
+    directory.update("update user_shard_layout set previous_shard_count = null where id = 1");
+    previousShardCount = null;
+  }
+
+  /**
+   * Jump consistent hash (Lamping, Veach). When going from n to n + 1 shards, only 1 / (n + 1) of
+   * the users move, all of them to the new shard.
+   */
+  static int jumpHash(long key, int buckets) {
+    long b = -1;
+    long j = 0;
+    while (j < buckets) {
+      b = j;
+      key = key * 2862933555777941757L + 1;
+      j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) b;
+  }
+
+  @PreDestroy
+  public void close() {
+    dataSources.forEach(HikariDataSource::close);
+  }
+}
@@ -0,0 +1,40 @@
+package ch.uzh.ifi.hase.soprafs24.rest.dto;
+
+public class UserChangeDTO {
+  private long sequence;
+  private Long id;
+  private boolean deleted;
+  private UserGetDTO user;
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public boolean isDeleted() {
+    return deleted;
+  }
+
+  public void setDeleted(boolean deleted) {
+    this.deleted = deleted;
+  }
+
+  public UserGetDTO getUser() {
+    return user;
+  }
+
+  public void setUser(UserGetDTO user) {
+    this.user = user;
+  }
+}
@@ -0,0 +1,34 @@
+package ch.uzh.ifi.hase.soprafs24.rest.dto;
+
+import java.util.List;
+
+public class UserChangesDTO {
+  private List<UserChangeDTO> changes;
+  // cursor for the next request (since)
+  private long next;
+  private boolean more;
+
+  public List<UserChangeDTO> getChanges() {
+    return changes;
+  }
+
+  public void setChanges(List<UserChangeDTO> changes) {
+    this.changes = changes;
+  }
+
+  public long getNext() {
+    return next;
+  }
+
+  public void setNext(long next) {
+    this.next = next;
+  }
+
+  public boolean isMore() {
+    return more;
+  }
+
+  public void setMore(boolean more) {
+    this.more = more;
+  }
+}
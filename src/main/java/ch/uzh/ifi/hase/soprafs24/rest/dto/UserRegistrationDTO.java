@@ -0,0 +1,40 @@
+package ch.uzh.ifi.hase.soprafs24.rest.dto;
+
+public class UserRegistrationDTO {
+  private String id;
+  private String status;
+  private UserGetDTO user;
+  private String message;
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  public UserGetDTO getUser() {
+    return user;
+  }
+
+  public void setUser(UserGetDTO user) {
+    this.user = user;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public void setMessage(String message) {
+    this.message = message;
+  }
+}
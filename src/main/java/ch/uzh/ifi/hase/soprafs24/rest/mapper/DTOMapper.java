@@ -1,8 +1,18 @@
 package ch.uzh.ifi.hase.soprafs24.rest.mapper;
 
 import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChange;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserChangeDTO;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserRegistrationDTO;
+import ch.uzh.ifi.hase.soprafs24.service.UserRegistrationQueue;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
 import org.mapstruct.*;
 import org.mapstruct.factory.Mappers;
 
@@ -27,6 +37,8 @@ public interface DTOMapper {
   @Mapping(source = "token", target = "token", defaultValue = "")
   @Mapping(source = "password", target = "password", defaultValue = "")
   @Mapping(source = "birthday", target = "birthday")
+  @Mapping(target = "tokenIssued", ignore = true)
+  @Mapping(target = "tokenExpires", ignore = true)
   User convertUserPostDTOtoEntity(UserPostDTO userPostDTO);
 
   @Mapping(source = "id", target = "id")
@@ -37,4 +49,33 @@ public interface DTOMapper {
   @Mapping(source = "birthday", target = "birthday")
   @Mapping(source = "created", target = "created")
   UserGetDTO convertEntityToUserGetDTO(User user);
+
+  @Mapping(source = "id", target = "id")
+  @Mapping(source = "state", target = "status")
+  @Mapping(source = "user", target = "user")
+  @Mapping(source = "message", target = "message")
+  UserRegistrationDTO convertRegistrationToDTO(UserRegistrationQueue.Registration registration);
+
+  // a user deleted after its change was read is a tombstone as well
+  @Mapping(source = "sequence", target = "sequence")
+  @Mapping(source = "userId", target = "id")
+  @Mapping(target = "deleted", expression = "java(change.isDeleted() || change.getUser() == null)")
+  @Mapping(source = "user", target = "user")
+  UserChangeDTO convertEntityToUserChangeDTO(UserChange change);
+
+  /**
+   * Map a tuple with only some user fields (see UserField) to the API representation. Only the
+   * selected fields are contained, formatted the same way as in UserGetDTO.
+   */
+  default Map<String, Object> convertTupleToUserFields(Tuple tuple) {
+    Map<String, Object> userFields = new LinkedHashMap<>();
+    for (TupleElement<?> element : tuple.getElements()) {
+      Object value = tuple.get(element);
+      if (value instanceof LocalDateTime) {
+        value = DateTimeFormatter.ISO_LOCAL_DATE_TIME.format((LocalDateTime) value);
+      }
+      userFields.put(element.getAlias(), value);
+    }
+    return userFields;
+  }
 }
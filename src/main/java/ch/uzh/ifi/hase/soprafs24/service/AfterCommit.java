@@ -0,0 +1,27 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * After Commit
+ * Updates of the in-memory read models (UserSearchIndex, UserDirectory, UserRowStore,
+ * UserPageCache) run once the current transaction committed, so rolled back changes never show
+ * up. Without a transaction they run right away.
+ */
+final class AfterCommit {
+  private AfterCommit() {}
+
+  static void run(Runnable change) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          change.run();
+        }
+      });
+    } else {
+      change.run();
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.UserChangeEvent;
+import java.util.List;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-process sink: every event is published as application event, consumed with
+ * {@code @EventListener} methods taking a UserChangeEvent. A listener which throws fails the
+ * batch, so it is published again.
+ */
+@Component
+@ConditionalOnProperty(name = "user.outbox.sink", havingValue = "event", matchIfMissing = true)
+public class ApplicationEventUserChangeSink implements UserChangeSink {
+  private final ApplicationEventPublisher eventPublisher;
+
+  public ApplicationEventUserChangeSink(ApplicationEventPublisher eventPublisher) {
+    this.eventPublisher = eventPublisher;
+  }
+
+  @Override
+  public void publish(List<UserChangeEvent> events) {
+    for (UserChangeEvent event : events) {
+      eventPublisher.publishEvent(event);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.UserChangeEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * File sink: appends every event as one JSON line to user.outbox.file. A batch is forced to disk
+ * before the relay deletes it from the outbox. If the relay fails in between, the batch is
+ * appended again, consumers skip lines with an event id they already read.
+ */
+@Component
+@ConditionalOnProperty(name = "user.outbox.sink", havingValue = "file")
+public class FileUserChangeSink implements UserChangeSink {
+  private final Path file;
+  private final ObjectMapper objectMapper;
+
+  public FileUserChangeSink(@Value("${user.outbox.file:./data/user-changes.jsonl}") Path file,
+      ObjectMapper objectMapper) {
+    this.file = file;
+    this.objectMapper = objectMapper;
+  }
+
+  @Override
+  public synchronized void publish(List<UserChangeEvent> events) throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (UserChangeEvent event : events) {
+      Map<String, Object> line = new LinkedHashMap<>();
+      line.put("id", event.getId());
+      line.put("userId", event.getUserId());
+      line.put("type", event.getType());
+      line.put("created", event.getCreated());
+      line.put("user", objectMapper.readTree(event.getPayload()));
+      lines.append(objectMapper.writeValueAsString(line)).append('\n');
+    }
+
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+             StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+  }
+}
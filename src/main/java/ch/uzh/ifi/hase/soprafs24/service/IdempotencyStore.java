@@ -0,0 +1,151 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Idempotency Store
+ * Results of requests with an Idempotency-Key header, so a retried request returns the result
+ * of the first one instead of executing again. A duplicate which arrives while the first request
+ * is still running waits for its result.
+ * - keys are scoped by route (and resource) and by caller, so a key of another client is never
+ * replayed, and are kept for user.idempotency.ttl
+ * - at most user.idempotency.max-keys keys are kept, the oldest are evicted first
+ * - only successful results are kept, after a failure the request can be retried with the same
+ * key
+ * - a key reused with a different request is rejected with 422, requests are compared by their
+ * SHA-256 fingerprint (see fingerprint)
+ */
+@Component
+public class IdempotencyStore {
+  public static final String HEADER = "Idempotency-Key";
+  private static final int MAX_KEY_LENGTH = 255;
+
+  private final long ttlNanos;
+  private final int maxKeys;
+
+  // [route, caller, key] -> entry, oldest first, guarded by this
+  private final LinkedHashMap<List<String>, Entry> entries = new LinkedHashMap<>();
+
+  public IdempotencyStore(@Value("${user.idempotency.ttl:PT24H}") Duration ttl,
+      @Value("${user.idempotency.max-keys:10000}") int maxKeys) {
+    this.ttlNanos = ttl.toNanos();
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Execute the operation once per key.
+   *
+   * @param route scope of the key, e.g. "PUT /users/5"
+   * @param caller scope of the key, identifies the client, e.g. its token or address
+   * @param key value of the Idempotency-Key header, the operation is always executed if null
+   * @param fingerprint identifies the request (see fingerprint), to detect reused keys
+   * @return result of the operation, or of the first execution with the same key
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T execute(
+      String route, String caller, String key, String fingerprint, Supplier<T> operation) {
+    if (key == null) {
+      return operation.get();
+    }
+    if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+          HEADER + " must have between 1 and " + MAX_KEY_LENGTH + " characters");
+    }
+
+    List<String> scopedKey = List.of(route, caller, key);
+    Entry entry;
+    boolean first = false;
+    synchronized (this) {
+      evictExpired(System.nanoTime());
+      entry = entries.get(scopedKey);
+      if (entry == null) {
+        entry = new Entry(fingerprint, System.nanoTime() + ttlNanos);
+        entries.put(scopedKey, entry);
+        first = true;
+        if (entries.size() > maxKeys) {
+          Iterator<Entry> eldest = entries.values().iterator();
+          eldest.next();
+          eldest.remove();
+        }
+      }
+    }
+    if (!entry.fingerprint.equals(fingerprint)) {
+      throw new ResponseStatusException(
+          HttpStatus.UNPROCESSABLE_ENTITY, HEADER + " was already used for a different request");
+    }
+
+    if (first) {
+      try {
+        T result = operation.get();
+        entry.result.complete(result);
+        return result;
+      } catch (RuntimeException | Error e) {
+        // not kept, so the request can be retried
+        synchronized (this) {
+          entries.remove(scopedKey, entry);
+        }
+        entry.result.completeExceptionally(e);
+        throw e;
+      }
+    }
+    try {
+      return (T) entry.result.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Fingerprint of a request for execute: the SHA-256 hash of its canonical serialization, e.g.
+   * the request body serialized as JSON with a fixed field order.
+   */
+  public static String fingerprint(byte[] request) {
+    try {
+      return Base64.getEncoder().encodeToString(
+          MessageDigest.getInstance("SHA-256").digest(request));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private void evictExpired(long now) {
+    // all keys have the same ttl, so the oldest expire first
+    Iterator<Map.Entry<List<String>, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next().getValue();
+      if (entry.expiresAtNanos - now > 0) {
+        return;
+      }
+      iterator.remove();
+    }
+  }
+
+  private static class Entry {
+    private final String fingerprint;
+    private final long expiresAtNanos;
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+    private Entry(String fingerprint, long expiresAtNanos) {
+      this.fingerprint = fingerprint;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+}
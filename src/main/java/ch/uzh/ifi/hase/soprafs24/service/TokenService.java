@@ -0,0 +1,229 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Token Service
+ * This class issues and verifies the tokens handed out to users.
+ * By default tokens are random UUIDs, which have to be looked up in the database.
+ * With user.token.signed=true the tokens are self-describing instead:
+ * v1.[key id].[user id].[issued at].[expires at].[nonce].[HMAC-SHA256 signature]
+ * Such tokens can be verified purely in CPU, so the database is not needed to check read access.
+ * Revoked tokens (logout) are kept in a bounded in-memory list until they expire anyway. When
+ * the list is full, the revoked token expiring soonest is dropped and all tokens expiring no
+ * later than it are rejected from then on, so a revocation is never lost (those users have to log
+ * in again). The list is per instance: with several instances, a logout is only honoured by the
+ * instance which handled it, the other ones accept the token until it expires.
+ */
+@Service
+public class TokenService {
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final String PREFIX = "v1.";
+  private static final int PARTS = 7;
+
+  private final Logger log = LoggerFactory.getLogger(TokenService.class);
+
+  private final boolean signed;
+  private final Duration ttl;
+  private final int revocationListSize;
+  private final Clock clock;
+
+  // key id -> key, the first entry is the active key used to sign new tokens
+  private final Map<String, SecretKeySpec> keys = new LinkedHashMap<>();
+  private final String activeKeyId;
+
+  // revoked token -> expiry (epoch seconds), entries are dropped once the token expired
+  private final Map<String, Long> revokedTokens = new ConcurrentHashMap<>();
+  // the revoked tokens, expiring soonest first, guarded by itself
+  private final PriorityQueue<Map.Entry<String, Long>> revocationOrder =
+      new PriorityQueue<>(Map.Entry.comparingByValue());
+  // tokens expiring at or before this time (epoch seconds) are rejected, raised when the
+  // revocation list overflows
+  private volatile long revokedExpiringUntil = Long.MIN_VALUE;
+
+  private final SecureRandom random = new SecureRandom();
+  private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+    try {
+      return Mac.getInstance(ALGORITHM);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(ALGORITHM + " not available", e);
+    }
+  });
+
+  @Autowired
+  public TokenService(@Value("${user.token.signed:false}") boolean signed,
+      @Value("${user.token.ttl:PT24H}") Duration ttl,
+      @Value("${user.token.keys:}") String keys,
+      @Value("${user.token.revocation-list-size:10000}") int revocationListSize) {
+    this(signed, ttl, keys, revocationListSize, Clock.systemUTC());
+  }
+
+  TokenService(boolean signed, Duration ttl, String keys, int revocationListSize, Clock clock) {
+    this.signed = signed;
+    this.ttl = ttl;
+    this.revocationListSize = revocationListSize;
+    this.clock = clock;
+
+    // keys are given as comma separated list of <key id>:<base64 secret>
+    for (String entry : keys.split(",")) {
+      if (entry.isBlank()) {
+        continue;
+      }
+      String[] keyParts = entry.trim().split(":", 2);
+      if (keyParts.length != 2 || keyParts[0].isEmpty() || keyParts[0].contains(".")) {
+        throw new IllegalArgumentException("Invalid token key entry: " + keyParts[0]);
+      }
+      byte[] secret = Base64.getDecoder().decode(keyParts[1]);
+      this.keys.put(keyParts[0], new SecretKeySpec(secret, ALGORITHM));
+    }
+
+    if (signed && this.keys.isEmpty()) {
+      // only fine for a single instance, tokens do not survive a restart
+      log.warn("No user.token.keys configured, generating a random signing key");
+      byte[] secret = new byte[32];
+      random.nextBytes(secret);
+      this.keys.put("local", new SecretKeySpec(secret, ALGORITHM));
+    }
+    this.activeKeyId = this.keys.isEmpty() ? null : this.keys.keySet().iterator().next();
+  }
+
+  public boolean isSigned() {
+    return signed;
+  }
+
+  public Duration getTtl() {
+    return ttl;
+  }
+
+  /**
+   * Issue a new token for the given user.
+   *
+   * @param userId id of the user the token belongs to
+   * @return signed token if signed tokens are enabled, random UUID otherwise
+   */
+  public String issue(Long userId) {
+    if (!signed || userId == null) {
+      return UUID.randomUUID().toString();
+    }
+    long issuedAt = clock.instant().getEpochSecond();
+    long expiresAt = issuedAt + ttl.getSeconds();
+    byte[] nonce = new byte[8];
+    random.nextBytes(nonce);
+
+    String payload = PREFIX + activeKeyId + "." + userId + "." + issuedAt + "." + expiresAt + "."
+        + Base64.getUrlEncoder().withoutPadding().encodeToString(nonce);
+    return payload + "." + sign(keys.get(activeKeyId), payload);
+  }
+
+  /**
+   * @return true if the token has the signed format and should be checked with verify
+   */
+  public boolean isSignedToken(String token) {
+    return signed && token != null && token.startsWith(PREFIX);
+  }
+
+  /**
+   * Verify a signed token without a database lookup.
+   *
+   * @param token signed token
+   * @return id of the user the token was issued for, or null if the token is invalid, expired
+   *     or revoked
+   */
+  public Long verify(String token) {
+    if (!isSignedToken(token)) {
+      return null;
+    }
+    String[] parts = token.split("\\.");
+    if (parts.length != PARTS) {
+      return null;
+    }
+    SecretKeySpec key = keys.get(parts[1]);
+    if (key == null) {
+      return null;
+    }
+
+    String payload = token.substring(0, token.lastIndexOf('.'));
+    byte[] expected = sign(key, payload).getBytes(StandardCharsets.US_ASCII);
+    if (!MessageDigest.isEqual(expected, parts[6].getBytes(StandardCharsets.US_ASCII))) {
+      return null;
+    }
+
+    try {
+      long expiresAt = Long.parseLong(parts[4]);
+      if (expiresAt <= clock.instant().getEpochSecond() || expiresAt <= revokedExpiringUntil
+          || revokedTokens.containsKey(token)) {
+        return null;
+      }
+      return Long.parseLong(parts[2]);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Revoke a signed token (e.g. on logout). Unsigned tokens are invalidated by replacing them
+   * in the database, so nothing has to be done for them here.
+   */
+  public void revoke(String token) {
+    if (!isSignedToken(token) || verify(token) == null) {
+      return;
+    }
+    long expiresAt = Long.parseLong(token.split("\\.")[4]);
+    synchronized (revocationOrder) {
+      purgeRevokedTokens();
+      if (revokedTokens.putIfAbsent(token, expiresAt) == null) {
+        revocationOrder.add(Map.entry(token, expiresAt));
+      }
+    }
+  }
+
+  /**
+   * remove revoked tokens which are expired anyway, and the ones expiring soonest while the list
+   * is full
+   */
+  private void purgeRevokedTokens() {
+    long now = clock.instant().getEpochSecond();
+    while (!revocationOrder.isEmpty() && revocationOrder.peek().getValue() <= now) {
+      revokedTokens.remove(revocationOrder.poll().getKey());
+    }
+    if (revocationOrder.size() >= revocationListSize) {
+      log.warn("Token revocation list is full ({} entries), rejecting the tokens expiring soonest",
+          revocationOrder.size());
+    }
+    while (!revocationOrder.isEmpty() && revocationOrder.size() >= revocationListSize) {
+      Map.Entry<String, Long> evicted = revocationOrder.poll();
+      // rejected before it is removed, so the token is not valid in between
+      revokedExpiringUntil = Math.max(revokedExpiringUntil, evicted.getValue());
+      revokedTokens.remove(evicted.getKey());
+    }
+  }
+
+  private String sign(SecretKeySpec key, String payload) {
+    try {
+      Mac mac = macs.get();
+      mac.init(key);
+      byte[] signature = mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not sign token", e);
+    }
+  }
+}
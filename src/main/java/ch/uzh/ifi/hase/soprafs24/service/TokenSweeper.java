@@ -0,0 +1,125 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.repository.ExpiredToken;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Token Sweeper
+ * This class periodically invalidates expired tokens in the database.
+ * The expired tokens are invalidated in chunks, each chunk in its own short transaction, so the
+ * sweeper never holds locks on many rows at once. The invalidated tokens are also removed from
+ * the user directory (see UserDirectory) and the user row store (see UserRowStore), and the
+ * cached GET /users pages are outdated (see UserPageCache).
+ * Metrics:
+ * - user.token.sweeper.invalidated: number of invalidated tokens
+ * - user.token.sweeper.duration: duration of a sweep
+ * - user.token.sweeper.lag: seconds the oldest expired token waited for the last sweep
+ */
+@Component
+@ConditionalOnProperty(name = "user.token.sweeper.enabled", havingValue = "true",
+    matchIfMissing = true)
+public class TokenSweeper {
+  private final Logger log = LoggerFactory.getLogger(TokenSweeper.class);
+
+  private final UserRepository userRepository;
+  private final UserDirectory userDirectory;
+  private final UserRowStore userRowStore;
+  private final UserPageCache userPageCache;
+  private final TransactionTemplate transactionTemplate;
+  private final int chunkSize;
+  private final int maxChunks;
+
+  private final Counter invalidatedCounter;
+  private final Timer sweepTimer;
+  private final AtomicLong lagSeconds = new AtomicLong();
+
+  public TokenSweeper(@Qualifier("userRepository") UserRepository userRepository,
+      UserDirectory userDirectory, UserRowStore userRowStore, UserPageCache userPageCache,
+      PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+      @Value("${user.token.sweeper.chunk-size:500}") int chunkSize,
+      @Value("${user.token.sweeper.max-chunks:100}") int maxChunks) {
+    this.userRepository = userRepository;
+    this.userDirectory = userDirectory;
+    this.userRowStore = userRowStore;
+    this.userPageCache = userPageCache;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.chunkSize = chunkSize;
+    this.maxChunks = maxChunks;
+
+    this.invalidatedCounter = meterRegistry.counter("user.token.sweeper.invalidated");
+    this.sweepTimer = meterRegistry.timer("user.token.sweeper.duration");
+    meterRegistry.gauge("user.token.sweeper.lag", lagSeconds);
+  }
+
+  @Scheduled(fixedDelayString = "${user.token.sweeper.interval:PT5M}",
+      initialDelayString = "${user.token.sweeper.interval:PT5M}")
+  public void scheduledSweep() {
+    sweepTimer.record(this::sweep);
+  }
+
+  /**
+   * Invalidate all tokens which expired before now, at most maxChunks * chunkSize per call. The
+   * rest is left for the next run.
+   *
+   * @return number of invalidated tokens
+   */
+  public int sweep() {
+    LocalDateTime now = LocalDateTime.now();
+    updateLag(now);
+
+    int invalidated = 0;
+    for (int chunk = 0; chunk < maxChunks; chunk++) {
+      Integer count = transactionTemplate.execute(status -> {
+        // invalidated tokens have no expiry anymore, so the next chunk is always the first page
+        List<ExpiredToken> expired =
+            userRepository.findTokensExpiredBefore(now, PageRequest.of(0, chunkSize));
+        if (expired.isEmpty()) {
+          return 0;
+        }
+        Map<Long, String> tokens = new HashMap<>();
+        for (ExpiredToken expiredToken : expired) {
+          tokens.put(expiredToken.getId(), expiredToken.getToken());
+        }
+        // only the expired tokens, a token issued meanwhile is neither invalidated nor cleared
+        userDirectory.clearTokens(tokens);
+        userRowStore.clearTokens(tokens);
+        userPageCache.invalidate();
+        return userRepository.invalidateTokens(List.copyOf(tokens.keySet()), now);
+      });
+      if (count == null || count == 0) {
+        break;
+      }
+      invalidated += count;
+      invalidatedCounter.increment(count);
+    }
+
+    if (invalidated > 0) {
+      log.debug("Invalidated {} expired tokens", invalidated);
+    }
+    return invalidated;
+  }
+
+  private void updateLag(LocalDateTime now) {
+    LocalDateTime oldest = userRepository.findOldestTokenExpiresBefore(now);
+    lagSeconds.set(oldest == null ? 0 : Duration.between(oldest, now).getSeconds());
+  }
+}
@@ -0,0 +1,175 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.UserChange;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChangeCounter;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * User Change Log
+ * Assigns a change sequence to every write of a user and keeps the latest one per user (see
+ * UserChange), so clients sync with GET /users/changes?since=<sequence> in O(changes).
+ * The sequences are taken from a single counter row which stays locked until the writing
+ * transaction ends. So writes get their sequences in commit order, and a client which read up to
+ * a sequence never misses a change committed later with a lower one.
+ * At the first start the existing users are added with their id as sequence.
+ * Can be turned off with user.change-log.enabled=false, GET /users/changes answers with 404 then.
+ */
+@Component
+public class UserChangeLog {
+  private static final int COUNTER_ID = 1;
+
+  private final Logger log = LoggerFactory.getLogger(UserChangeLog.class);
+
+  @PersistenceContext private EntityManager entityManager;
+
+  private final TransactionTemplate transactionTemplate;
+  private final boolean enabled;
+
+  public UserChangeLog(PlatformTransactionManager transactionManager,
+      @Value("${user.change-log.enabled:true}") boolean enabled) {
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @PostConstruct
+  public void initialize() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      transactionTemplate.executeWithoutResult(status -> {
+        if (entityManager.find(UserChangeCounter.class, COUNTER_ID) != null) {
+          return;
+        }
+        int existing = entityManager
+                           .createQuery("insert into UserChange (userId, sequence, deleted) "
+                               + "select u.id, u.id, false from User u")
+                           .executeUpdate();
+        UserChangeCounter counter = new UserChangeCounter();
+        counter.setId(COUNTER_ID);
+        counter.setSequence(
+            entityManager.createQuery("select coalesce(max(u.id), 0) from User u", Long.class)
+                .getSingleResult());
+        entityManager.persist(counter);
+        log.info("Initialized the user change log with {} existing users", existing);
+      });
+    } catch (RuntimeException e) {
+      // another instance initialized it at the same time
+      log.debug("Initializing the user change log failed", e);
+    }
+  }
+
+  /**
+   * record the creation of the users, with consecutive sequences in the given order
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void recordCreated(List<Long> userIds) {
+    if (!enabled) {
+      return;
+    }
+    long sequence = allocate(userIds.size());
+    for (Long userId : userIds) {
+      sequence++;
+      UserChange change = new UserChange();
+      change.setUserId(userId);
+      change.setSequence(sequence);
+      entityManager.persist(change);
+    }
+  }
+
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void recordUpdated(Long userId) {
+    record(userId, false);
+  }
+
+  /**
+   * record the deletion of the user, its change is kept as tombstone
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void recordDeleted(Long userId) {
+    record(userId, true);
+  }
+
+  private void record(Long userId, boolean deleted) {
+    if (!enabled) {
+      return;
+    }
+    long sequence = allocate(1) + 1;
+    int updated = entityManager
+                      .createQuery("update UserChange c set c.sequence = :sequence, "
+                          + "c.deleted = :deleted where c.userId = :userId")
+                      .setParameter("sequence", sequence)
+                      .setParameter("deleted", deleted)
+                      .setParameter("userId", userId)
+                      .executeUpdate();
+    if (updated == 0) {
+      UserChange change = new UserChange();
+      change.setUserId(userId);
+      change.setSequence(sequence);
+      change.setDeleted(deleted);
+      entityManager.persist(change);
+    }
+  }
+
+  /**
+   * Add the users without a change, e.g. after a bulk import. Their sequences follow the current
+   * ones, ordered by id.
+   *
+   * @return number of added users
+   */
+  @Transactional
+  public int recordImported() {
+    if (!enabled) {
+      return 0;
+    }
+    long maxId = entityManager.createQuery("select coalesce(max(u.id), 0) from User u", Long.class)
+                     .getSingleResult();
+    long last = allocate(maxId);
+    return entityManager
+        .createQuery("insert into UserChange (userId, sequence, deleted) "
+            + "select u.id, u.id + :last, false from User u "
+            + "where u.id not in (select c.userId from UserChange c)")
+        .setParameter("last", last)
+        .executeUpdate();
+  }
+
+  /**
+   * @return the last sequence before the allocated ones
+   */
+  private long allocate(long count) {
+    UserChangeCounter counter =
+        entityManager.find(UserChangeCounter.class, COUNTER_ID, LockModeType.PESSIMISTIC_WRITE);
+    long last = counter.getSequence();
+    counter.setSequence(last + count);
+    return last;
+  }
+
+  /**
+   * @return the changes with a sequence after since, ordered by sequence
+   */
+  @Transactional(readOnly = true)
+  public List<UserChange> findSince(long since, int limit) {
+    return entityManager
+        .createQuery("select c from UserChange c where c.sequence > :since order by c.sequence",
+            UserChange.class)
+        .setParameter("since", since)
+        .setMaxResults(limit)
+        .getResultList();
+  }
+}
@@ -0,0 +1,69 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserChangeType;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChangeEvent;
+import ch.uzh.ifi.hase.soprafs24.repository.UserOutboxRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * User Change Outbox
+ * Records a change event of a user in the outbox table, in the transaction which changed the
+ * user. The event is only visible to the UserOutboxRelay if that transaction commits, so every
+ * committed change is published and no rolled back one.
+ * Has to be called after the change of the user was flushed, so the events of a user are ordered
+ * by the row lock of the user.
+ * With sharding (see ShardedUserRepository) the row lock is on the shard and ends right before
+ * the transaction commits, so the events of a user may become visible out of order for a moment.
+ * Can be turned off with user.outbox.enabled=false.
+ */
+@Component
+public class UserChangeOutbox {
+  private final UserOutboxRepository userOutboxRepository;
+  private final ObjectMapper objectMapper;
+  private final boolean enabled;
+
+  public UserChangeOutbox(UserOutboxRepository userOutboxRepository, ObjectMapper objectMapper,
+      @Value("${user.outbox.enabled:true}") boolean enabled) {
+    this.userOutboxRepository = userOutboxRepository;
+    this.objectMapper = objectMapper;
+    this.enabled = enabled;
+  }
+
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void record(UserChangeType type, User user) {
+    if (!enabled) {
+      return;
+    }
+    UserChangeEvent event = new UserChangeEvent();
+    event.setUserId(user.getId());
+    event.setType(type);
+    event.setPayload(toPayload(user));
+    event.setCreated(LocalDateTime.now());
+    userOutboxRepository.save(event);
+  }
+
+  private String toPayload(User user) {
+    // no password and token, consumers must not be able to log in as the user
+    Map<String, Object> payload = new LinkedHashMap<>();
+    payload.put("id", user.getId());
+    payload.put("name", user.getName());
+    payload.put("username", user.getUsername());
+    payload.put("status", user.getStatus());
+    payload.put("birthday", user.getBirthday());
+    payload.put("created", user.getCreated());
+    try {
+      return objectMapper.writeValueAsString(payload);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("User " + user.getId() + " cannot be serialized", e);
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.UserChangeEvent;
+import java.util.List;
+
+/**
+ * Destination of the user change events relayed from the outbox (see UserOutboxRelay), selected
+ * with user.outbox.sink. The events of a batch are in the order they were recorded.
+ */
+public interface UserChangeSink {
+  /**
+   * Publish the events. If this throws, the whole batch is published again on the next relay
+   * run, so consumers have to handle events they already received.
+   */
+  void publish(List<UserChangeEvent> events) throws Exception;
+}
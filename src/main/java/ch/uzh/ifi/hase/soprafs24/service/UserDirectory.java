@@ -0,0 +1,626 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * User Directory
+ * Compact in-memory read model of all users (user.directory.enabled), which serves GET /users
+ * and GET /users/{id} without database queries. Instead of entities it keeps one row per user
+ * in columns, ordered by id:
+ * - ids and creation times (epoch microseconds, as stored by the database) in long arrays, and
+ * an open addressing map from id to row with primitive long keys
+ * - name, username, token and birthday as codes of a string dictionary, which keeps every
+ * distinct string once as UTF-8
+ * - the status packed into a bit set, 2 bits per user (deleted, ONLINE or OFFLINE)
+ * Loaded at startup in pages of user.directory.load-batch-size users, afterwards kept in sync by
+ * UserService and TokenSweeper once their transactions committed. Deleted rows and strings
+ * which are no longer used are compacted away once they take as much space as the used ones.
+ * Only sees the writes of this instance, so it is meant for deployments with one instance.
+ */
+@Component
+public class UserDirectory {
+  private final Logger log = LoggerFactory.getLogger(UserDirectory.class);
+
+  private final UserRepository userRepository;
+  private final TransactionTemplate transactionTemplate;
+  private final boolean enabled;
+  private final int loadBatchSize;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  // guarded by lock
+  private Table table = new Table(16);
+  // changes applied during a load, replayed on the loaded table, guarded by lock
+  private List<Consumer<Table>> changesDuringLoad;
+
+  public UserDirectory(@Qualifier("userRepository") UserRepository userRepository,
+      PlatformTransactionManager transactionManager,
+      @Value("${user.directory.enabled:false}") boolean enabled,
+      @Value("${user.directory.load-batch-size:1000}") int loadBatchSize) {
+    this.userRepository = userRepository;
+    // not read-only: read-only transactions may go to a lagging read replica (see
+    // ReplicaRoutingDataSource), and the writes committed before the load would be missing
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.enabled = enabled;
+    this.loadBatchSize = loadBatchSize;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Load all users from the database, replacing the current content.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void load() {
+    if (!enabled) {
+      return;
+    }
+    long start = System.nanoTime();
+    lock.writeLock().lock();
+    try {
+      changesDuringLoad = new ArrayList<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    Table loaded = new Table(16);
+    try {
+      long after = 0;
+      while (true) {
+        // one transaction per page, so the loaded entities do not pile up
+        long pageAfter = after;
+        List<User> page = transactionTemplate.execute(
+            status -> userRepository.findAfterId(pageAfter, PageRequest.of(0, loadBatchSize)));
+        for (User user : page) {
+          loaded.put(user.getId(), user.getName(), user.getUsername(), user.getStatus(),
+              user.getToken(), user.getBirthday(), user.getCreated());
+          after = user.getId();
+        }
+        if (page.size() < loadBatchSize) {
+          break;
+        }
+      }
+    } catch (RuntimeException e) {
+      // keep the current content
+      lock.writeLock().lock();
+      try {
+        changesDuringLoad = null;
+      } finally {
+        lock.writeLock().unlock();
+      }
+      throw e;
+    }
+
+    lock.writeLock().lock();
+    try {
+      for (Consumer<Table> change : changesDuringLoad) {
+        change.accept(loaded);
+      }
+      changesDuringLoad = null;
+      table = loaded.compactIfWasteful();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    log.info("Loaded user directory with {} users in {} ms", loaded.live,
+        (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * @return all users ordered by id, as detached users without token issue and expiry time
+   */
+  public List<User> findAll() {
+    lock.readLock().lock();
+    try {
+      List<User> users = new ArrayList<>(table.live);
+      for (int row = 0; row < table.size; row++) {
+        if (table.isLive(row)) {
+          users.add(table.toUser(row));
+        }
+      }
+      return users;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the user, detached and without token issue and expiry time
+   */
+  public Optional<User> findById(long id) {
+    lock.readLock().lock();
+    try {
+      int row = table.rows.get(id);
+      return row < 0 ? Optional.empty() : Optional.of(table.toUser(row));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the users found, in the order of the given ids
+   */
+  public List<User> findAllById(List<Long> ids) {
+    lock.readLock().lock();
+    try {
+      List<User> users = new ArrayList<>(ids.size());
+      for (Long id : ids) {
+        int row = table.rows.get(id);
+        if (row >= 0) {
+          users.add(table.toUser(row));
+        }
+      }
+      return users;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return table.live;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Add or update the user, once the current transaction committed.
+   */
+  public void put(User user) {
+    long id = user.getId();
+    String name = user.getName();
+    String username = user.getUsername();
+    UserStatus status = user.getStatus();
+    String token = user.getToken();
+    String birthday = user.getBirthday();
+    LocalDateTime created = user.getCreated();
+    afterCommit(table -> table.put(id, name, username, status, token, birthday, created));
+  }
+
+  /**
+   * Remove the user, once the current transaction committed.
+   */
+  public void remove(long id) {
+    afterCommit(table -> table.remove(id));
+  }
+
+  /**
+   * Remove the tokens of the users, e.g. swept expired tokens, once the current transaction
+   * committed. A user whose token was replaced meanwhile keeps the new token.
+   *
+   * @param tokens user id -> token to remove
+   */
+  public void clearTokens(Map<Long, String> tokens) {
+    Map<Long, String> copy = Map.copyOf(tokens);
+    afterCommit(table -> copy.forEach(table::clearToken));
+  }
+
+  private void afterCommit(Consumer<Table> change) {
+    if (!enabled) {
+      return;
+    }
+    AfterCommit.run(() -> apply(change));
+  }
+
+  private void apply(Consumer<Table> change) {
+    lock.writeLock().lock();
+    try {
+      change.accept(table);
+      if (changesDuringLoad != null) {
+        changesDuringLoad.add(change);
+      }
+      table = table.compactIfWasteful();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The rows of the users, ordered by id. Deleted rows keep their id until the next compaction.
+   */
+  private static final class Table {
+    private static final int NONE = -1;
+    private static final int STATUS_BITS = 2;
+    private static final int STATUS_MASK = (1 << STATUS_BITS) - 1;
+    private static final int DELETED = 0;
+    private static final UserStatus[] STATUSES = UserStatus.values();
+    private static final long NO_CREATED = Long.MIN_VALUE;
+
+    private long[] ids;
+    private long[] created;
+    private int[] names;
+    private int[] usernames;
+    private int[] tokens;
+    private int[] birthdays;
+    // 0 for deleted rows, otherwise the status ordinal + 1
+    private long[] statuses;
+    private int size;
+    private int live;
+    private final LongIntMap rows;
+    private final Strings strings = new Strings();
+
+    private Table(int capacity) {
+      ids = new long[capacity];
+      created = new long[capacity];
+      names = new int[capacity];
+      usernames = new int[capacity];
+      tokens = new int[capacity];
+      birthdays = new int[capacity];
+      statuses = new long[statusWords(capacity)];
+      rows = new LongIntMap(capacity);
+    }
+
+    private static int statusWords(int capacity) {
+      return (capacity * STATUS_BITS + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private boolean isLive(int row) {
+      return status(row) != DELETED;
+    }
+
+    private int status(int row) {
+      long bit = (long) row * STATUS_BITS;
+      return (int) (statuses[(int) (bit / Long.SIZE)] >>> (bit % Long.SIZE)) & STATUS_MASK;
+    }
+
+    private void setStatus(int row, int status) {
+      long bit = (long) row * STATUS_BITS;
+      int word = (int) (bit / Long.SIZE);
+      int shift = (int) (bit % Long.SIZE);
+      statuses[word] = (statuses[word] & ~((long) STATUS_MASK << shift))
+          | ((long) status << shift);
+    }
+
+    private void put(long id, String name, String username, UserStatus status, String token,
+        String birthday, LocalDateTime createdAt) {
+      int row = rows.get(id);
+      if (row < 0) {
+        row = insertRow(id);
+        live++;
+      } else {
+        strings.release(names[row]);
+        strings.release(usernames[row]);
+        strings.release(tokens[row]);
+        strings.release(birthdays[row]);
+      }
+      created[row] = createdAt == null ? NO_CREATED : toEpochMicros(createdAt);
+      names[row] = strings.encode(name);
+      usernames[row] = strings.encode(username);
+      tokens[row] = strings.encode(token);
+      birthdays[row] = strings.encode(birthday);
+      setStatus(row, status.ordinal() + 1);
+    }
+
+    /**
+     * insert a row at the position of the id, usually at the end (ids are ascending)
+     */
+    private int insertRow(long id) {
+      if (size == ids.length) {
+        grow();
+      }
+      int row = size;
+      while (row > 0 && ids[row - 1] > id) {
+        row--;
+      }
+      if (row < size) {
+        // users committed out of order, move the later rows
+        int moved = size - row;
+        System.arraycopy(ids, row, ids, row + 1, moved);
+        System.arraycopy(created, row, created, row + 1, moved);
+        System.arraycopy(names, row, names, row + 1, moved);
+        System.arraycopy(usernames, row, usernames, row + 1, moved);
+        System.arraycopy(tokens, row, tokens, row + 1, moved);
+        System.arraycopy(birthdays, row, birthdays, row + 1, moved);
+        for (int later = size; later > row; later--) {
+          setStatus(later, status(later - 1));
+          if (status(later) != DELETED) {
+            rows.put(ids[later], later);
+          }
+        }
+      }
+      ids[row] = id;
+      rows.put(id, row);
+      size++;
+      return row;
+    }
+
+    private void grow() {
+      int capacity = ids.length + (ids.length >> 1) + 1;
+      ids = Arrays.copyOf(ids, capacity);
+      created = Arrays.copyOf(created, capacity);
+      names = Arrays.copyOf(names, capacity);
+      usernames = Arrays.copyOf(usernames, capacity);
+      tokens = Arrays.copyOf(tokens, capacity);
+      birthdays = Arrays.copyOf(birthdays, capacity);
+      statuses = Arrays.copyOf(statuses, statusWords(capacity));
+    }
+
+    private void remove(long id) {
+      int row = rows.remove(id);
+      if (row < 0) {
+        return;
+      }
+      strings.release(names[row]);
+      strings.release(usernames[row]);
+      strings.release(tokens[row]);
+      strings.release(birthdays[row]);
+      setStatus(row, DELETED);
+      live--;
+    }
+
+    private void clearToken(long id, String token) {
+      int row = rows.get(id);
+      if (row >= 0 && token.equals(strings.decode(tokens[row]))) {
+        strings.release(tokens[row]);
+        tokens[row] = NONE;
+      }
+    }
+
+    private User toUser(int row) {
+      User user = new User();
+      user.setId(ids[row]);
+      user.setName(strings.decode(names[row]));
+      user.setUsername(strings.decode(usernames[row]));
+      user.setToken(strings.decode(tokens[row]));
+      user.setBirthday(strings.decode(birthdays[row]));
+      user.setStatus(STATUSES[status(row) - 1]);
+      user.setCreated(created[row] == NO_CREATED ? null : fromEpochMicros(created[row]));
+      return user;
+    }
+
+    /**
+     * @return a compacted copy if at least half of the rows or of the string bytes are unused,
+     *     otherwise this table
+     */
+    private Table compactIfWasteful() {
+      boolean wastefulRows = size - live > Math.max(live, 1024);
+      boolean wastefulStrings =
+          strings.deadBytes > Math.max(strings.end - strings.deadBytes, 64 * 1024);
+      if (!wastefulRows && !wastefulStrings) {
+        return this;
+      }
+      Table compacted = new Table(Math.max(live, 16));
+      for (int row = 0; row < size; row++) {
+        if (isLive(row)) {
+          compacted.ids[compacted.size] = ids[row];
+          compacted.created[compacted.size] = created[row];
+          compacted.names[compacted.size] = compacted.strings.copy(strings, names[row]);
+          compacted.usernames[compacted.size] = compacted.strings.copy(strings, usernames[row]);
+          compacted.tokens[compacted.size] = compacted.strings.copy(strings, tokens[row]);
+          compacted.birthdays[compacted.size] = compacted.strings.copy(strings, birthdays[row]);
+          compacted.setStatus(compacted.size, status(row));
+          compacted.rows.put(ids[row], compacted.size);
+          compacted.size++;
+        }
+      }
+      compacted.live = compacted.size;
+      return compacted;
+    }
+  }
+
+  /**
+   * Dictionary which keeps every distinct string once as UTF-8 bytes and identifies it by a code.
+   * Strings are counted by their uses, strings without use stay until the next compaction, when
+   * the used strings are copied to a new dictionary.
+   */
+  private static final class Strings {
+    private byte[] bytes = new byte[1024];
+    private int end;
+    // code -> first byte, the string ends where the next one starts
+    private int[] offsets = new int[17];
+    private int[] uses = new int[16];
+    private int count;
+    // open addressing hash table, code + 1 or 0 for empty slots
+    private int[] table = new int[32];
+    private long deadBytes;
+
+    private int encode(String value) {
+      return value == null ? Table.NONE : encode(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int encode(byte[] value) {
+      int mask = table.length - 1;
+      int slot = hash(value, 0, value.length) & mask;
+      while (table[slot] != 0) {
+        int code = table[slot] - 1;
+        if (Arrays.equals(bytes, offsets[code], offsets[code + 1], value, 0, value.length)) {
+          if (uses[code]++ == 0) {
+            deadBytes -= value.length;
+          }
+          return code;
+        }
+        slot = (slot + 1) & mask;
+      }
+
+      if (count == uses.length) {
+        uses = Arrays.copyOf(uses, count * 2);
+        offsets = Arrays.copyOf(offsets, count * 2 + 1);
+      }
+      if (end + value.length > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, end + value.length));
+      }
+      System.arraycopy(value, 0, bytes, end, value.length);
+      end += value.length;
+      int code = count++;
+      offsets[count] = end;
+      uses[code] = 1;
+      table[slot] = code + 1;
+      if (count * 2 > table.length) {
+        rehash();
+      }
+      return code;
+    }
+
+    /**
+     * @return code of the string with the given code in the other dictionary
+     */
+    private int copy(Strings other, int code) {
+      return code == Table.NONE ? Table.NONE
+                                : encode(Arrays.copyOfRange(other.bytes, other.offsets[code],
+                                    other.offsets[code + 1]));
+    }
+
+    private void release(int code) {
+      if (code != Table.NONE && --uses[code] == 0) {
+        deadBytes += offsets[code + 1] - offsets[code];
+      }
+    }
+
+    private String decode(int code) {
+      return code == Table.NONE ? null
+                                : new String(bytes, offsets[code],
+                                    offsets[code + 1] - offsets[code], StandardCharsets.UTF_8);
+    }
+
+    private void rehash() {
+      table = new int[table.length * 2];
+      int mask = table.length - 1;
+      for (int code = 0; code < count; code++) {
+        int slot = hash(bytes, offsets[code], offsets[code + 1]) & mask;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = code + 1;
+      }
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+      int hash = 0;
+      for (int i = from; i < to; i++) {
+        hash = 31 * hash + bytes[i];
+      }
+      // spread the bits, the table index uses the low bits
+      return hash ^ (hash >>> 16);
+    }
+  }
+
+  /**
+   * Open addressing hash map from long keys to non-negative int values, without boxing
+   */
+  private static final class LongIntMap {
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int count;
+
+    private LongIntMap(int expected) {
+      int capacity = Integer.highestOneBit(Math.max(expected * 2 - 1, 16)) * 2;
+      keys = new long[capacity];
+      values = new int[capacity];
+      used = new boolean[capacity];
+    }
+
+    /**
+     * @return the value, -1 if the key is not in the map
+     */
+    private int get(long key) {
+      int mask = keys.length - 1;
+      for (int slot = slot(key, mask); used[slot]; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return values[slot];
+        }
+      }
+      return -1;
+    }
+
+    private void put(long key, int value) {
+      int mask = keys.length - 1;
+      int slot = slot(key, mask);
+      while (used[slot]) {
+        if (keys[slot] == key) {
+          values[slot] = value;
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      values[slot] = value;
+      used[slot] = true;
+      if (++count * 2 > keys.length) {
+        resize();
+      }
+    }
+
+    /**
+     * @return the removed value, -1 if the key was not in the map
+     */
+    private int remove(long key) {
+      int mask = keys.length - 1;
+      int slot = slot(key, mask);
+      while (used[slot] && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      if (!used[slot]) {
+        return -1;
+      }
+      int value = values[slot];
+      // move later entries of the probe sequence into the gap, so lookups need no tombstones
+      int gap = slot;
+      for (int next = (gap + 1) & mask; used[next]; next = (next + 1) & mask) {
+        int home = slot(keys[next], mask);
+        if (((next - home) & mask) >= ((next - gap) & mask)) {
+          keys[gap] = keys[next];
+          values[gap] = values[next];
+          gap = next;
+        }
+      }
+      used[gap] = false;
+      count--;
+      return value;
+    }
+
+    private void resize() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      boolean[] oldUsed = used;
+      keys = new long[oldKeys.length * 2];
+      values = new int[oldKeys.length * 2];
+      used = new boolean[oldKeys.length * 2];
+      count = 0;
+      for (int slot = 0; slot < oldKeys.length; slot++) {
+        if (oldUsed[slot]) {
+          put(oldKeys[slot], oldValues[slot]);
+        }
+      }
+    }
+
+    private static int slot(long key, int mask) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+  }
+
+  private static long toEpochMicros(LocalDateTime dateTime) {
+    // rounded like the database does
+    return dateTime.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + (dateTime.getNano() + 500) / 1000;
+  }
+
+  private static LocalDateTime fromEpochMicros(long micros) {
+    return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+        Math.floorMod(micros, 1_000_000) * 1000, ZoneOffset.UTC);
+  }
+}
@@ -0,0 +1,158 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.config.FlushOnShutdown;
+import ch.uzh.ifi.hase.soprafs24.config.ReadYourWrites;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * User Lookup Coalescer
+ * Merges concurrent lookups of single users by id, which arrive within a short window, into one
+ * findAllById query. Disabled if the window (user.lookup.coalesce-window) is zero.
+ * Bulk lookups are loaded in chunks of the same maximum batch size (user.lookup.chunk-size).
+ * Single lookups are loaded in read-only transactions, so they can be served by a read replica,
+ * except for clients pinned to the primary (see ReadYourWrites), which are not coalesced.
+ */
+@Component
+public class UserLookupCoalescer implements FlushOnShutdown {
+  private final UserRepository userRepository;
+  private final TransactionTemplate readOnlyTransaction;
+  private final ReadYourWrites readYourWrites;
+  private final Duration window;
+  private final int maxBatchSize;
+  private final ScheduledExecutorService executor;
+
+  // user id -> waiting lookups, guarded by this
+  private Map<Long, CompletableFuture<Optional<User>>> pending = new HashMap<>();
+
+  public UserLookupCoalescer(@Qualifier("userRepository") UserRepository userRepository,
+      PlatformTransactionManager transactionManager, ReadYourWrites readYourWrites,
+      @Value("${user.lookup.coalesce-window:PT0S}") Duration window,
+      @Value("${user.lookup.chunk-size:500}") int maxBatchSize) {
+    this.userRepository = userRepository;
+    this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+    this.readOnlyTransaction.setReadOnly(true);
+    this.readYourWrites = readYourWrites;
+    this.window = window;
+    this.maxBatchSize = maxBatchSize;
+    this.executor = isEnabled() ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "user-lookup-coalescer");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+  }
+
+  public boolean isEnabled() {
+    return !window.isZero() && !window.isNegative();
+  }
+
+  /**
+   * Find the user with the given id. Blocks until the batch the lookup was added to is loaded.
+   *
+   * @param id user id
+   * @return the user, empty if there is no user with this id
+   */
+  public Optional<User> findById(Long id) {
+    // the pin of the current request does not reach the thread loading a coalesced batch
+    if (!isEnabled() || readYourWrites.isCurrentRequestPinned()) {
+      return readOnlyTransaction.execute(status -> userRepository.findById(id));
+    }
+
+    CompletableFuture<Optional<User>> lookup;
+    boolean batchFull = false;
+    synchronized (this) {
+      lookup = pending.get(id);
+      if (lookup == null) {
+        lookup = new CompletableFuture<>();
+        pending.put(id, lookup);
+        if (pending.size() == 1) {
+          // first lookup of a new batch
+          executor.schedule(this::flush, window.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        batchFull = pending.size() >= maxBatchSize;
+      }
+    }
+    if (batchFull) {
+      flush();
+    }
+    try {
+      return lookup.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Find many users by id, with one IN query per chunk of user.lookup.chunk-size ids.
+   *
+   * @param ids user ids
+   * @return found users, in no particular order
+   */
+  public List<User> findAllById(List<Long> ids) {
+    List<User> users = new ArrayList<>();
+    for (int start = 0; start < ids.size(); start += maxBatchSize) {
+      List<Long> chunk = ids.subList(start, Math.min(start + maxBatchSize, ids.size()));
+      users.addAll(userRepository.findAllById(chunk));
+    }
+    return users;
+  }
+
+  /**
+   * load all pending lookups with one query
+   */
+  void flush() {
+    Map<Long, CompletableFuture<Optional<User>>> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new HashMap<>();
+    }
+
+    try {
+      Map<Long, User> usersById = new HashMap<>();
+      List<User> users =
+          readOnlyTransaction.execute(status -> findAllById(new ArrayList<>(batch.keySet())));
+      for (User user : users) {
+        usersById.put(user.getId(), user);
+      }
+      batch.forEach((id, lookup) -> lookup.complete(Optional.ofNullable(usersById.get(id))));
+    } catch (RuntimeException e) {
+      batch.values().forEach(lookup -> lookup.completeExceptionally(e));
+    }
+  }
+
+  /**
+   * answer the waiting lookups while the database is still available
+   */
+  @Override
+  public void flushOnShutdown() {
+    flush();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+      flush();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.config.FlushOnShutdown;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChangeEvent;
+import ch.uzh.ifi.hase.soprafs24.repository.UserOutboxRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * User Outbox Relay
+ * Periodically publishes the user change events of the outbox (see UserChangeOutbox) to the
+ * UserChangeSink beans, in batches of user.outbox.batch-size events in the order they were
+ * recorded. Each batch is published in its own transaction, which locks the events and deletes
+ * them once they are published:
+ * - delivery is at least once, a batch is published again if publishing or the commit failed
+ * - the events of a user are published in order, a failed batch stops the run
+ * Metrics:
+ * - user.outbox.published: number of published events
+ * - user.outbox.failures: number of failed batches
+ * - user.outbox.lag: seconds the oldest event waited for the last relay run
+ */
+@Component
+@ConditionalOnProperty(name = "user.outbox.relay.enabled", havingValue = "true",
+    matchIfMissing = true)
+public class UserOutboxRelay implements FlushOnShutdown {
+  private final Logger log = LoggerFactory.getLogger(UserOutboxRelay.class);
+
+  private final UserOutboxRepository userOutboxRepository;
+  private final ObjectProvider<UserChangeSink> sinks;
+  private final TransactionTemplate transactionTemplate;
+  private final int batchSize;
+  private final int maxBatches;
+
+  private final Counter publishedCounter;
+  private final Counter failureCounter;
+  private final AtomicLong lagSeconds = new AtomicLong();
+
+  public UserOutboxRelay(UserOutboxRepository userOutboxRepository,
+      ObjectProvider<UserChangeSink> sinks, PlatformTransactionManager transactionManager,
+      MeterRegistry meterRegistry, @Value("${user.outbox.batch-size:100}") int batchSize,
+      @Value("${user.outbox.max-batches:100}") int maxBatches) {
+    this.userOutboxRepository = userOutboxRepository;
+    this.sinks = sinks;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.batchSize = batchSize;
+    this.maxBatches = maxBatches;
+
+    this.publishedCounter = meterRegistry.counter("user.outbox.published");
+    this.failureCounter = meterRegistry.counter("user.outbox.failures");
+    meterRegistry.gauge("user.outbox.lag", lagSeconds);
+  }
+
+  @Scheduled(fixedDelayString = "${user.outbox.relay-interval:PT1S}",
+      initialDelayString = "${user.outbox.relay-interval:PT1S}")
+  public void scheduledRelay() {
+    relay();
+  }
+
+  /**
+   * Publish the oldest events, at most maxBatches * batchSize per call. The rest is left for the
+   * next run.
+   *
+   * @return number of published events
+   */
+  public synchronized int relay() {
+    List<UserChangeSink> targets = sinks.orderedStream().collect(Collectors.toList());
+    if (targets.isEmpty()) {
+      return 0;
+    }
+
+    int published = 0;
+    for (int batch = 0; batch < maxBatches; batch++) {
+      boolean first = batch == 0;
+      Integer count;
+      try {
+        count = transactionTemplate.execute(status -> publishBatch(targets, first));
+      } catch (RuntimeException e) {
+        failureCounter.increment();
+        log.warn("Relaying user change events failed, retrying on the next run", e);
+        break;
+      }
+      published += count;
+      if (count < batchSize) {
+        break;
+      }
+    }
+    publishedCounter.increment(published);
+    return published;
+  }
+
+  private int publishBatch(List<UserChangeSink> targets, boolean first) {
+    List<UserChangeEvent> events =
+        userOutboxRepository.findOldestForUpdate(PageRequest.of(0, batchSize));
+    if (first) {
+      updateLag(events);
+    }
+    if (events.isEmpty()) {
+      return 0;
+    }
+    for (UserChangeSink sink : targets) {
+      try {
+        sink.publish(events);
+      } catch (Exception e) {
+        throw e instanceof RuntimeException ? (RuntimeException) e
+            : new IllegalStateException(
+                "Publishing to " + sink.getClass().getSimpleName() + " failed", e);
+      }
+    }
+    userOutboxRepository.deleteInBatch(events);
+    return events.size();
+  }
+
+  private void updateLag(List<UserChangeEvent> events) {
+    lagSeconds.set(events.isEmpty()
+            ? 0
+            : Math.max(0, Duration.between(events.get(0).getCreated(), LocalDateTime.now())
+                              .getSeconds()));
+  }
+
+  /**
+   * publish the remaining events while the database is still available
+   */
+  @Override
+  public void flushOnShutdown() {
+    relay();
+  }
+}
@@ -0,0 +1,231 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * User Page Cache
+ * Cache of fully serialized GET /users responses (user.page-cache.enabled), keyed by page cursor
+ * and field set (see UserController). The list changes far less often than it is requested, so
+ * most requests only copy the cached bytes to the response.
+ * - every write of a user (UserService, TokenSweeper, snapshot import) bumps the version once
+ * committed, pages of an older version are not served anymore
+ * - a missing or outdated page is rendered again by one of user.page-cache.rebuild-threads
+ * background threads. Only one rendering per page runs at a time (single flight), the requests
+ * arriving meanwhile wait for it instead of rendering the page themselves. Renderings run in a
+ * read-write transaction, so they read from the primary and never from a lagging read replica
+ * (see ReplicaRoutingDataSource)
+ * - with user.page-cache.compress, pages of at least 1 KB are also kept gzip compressed, for
+ * clients which accept gzip
+ * - at most user.page-cache.max-pages pages are kept, the least recently used are dropped
+ * Only sees the writes of this instance, like UserDirectory.
+ * Metrics:
+ * - user.page-cache.hits: requests served from the cache
+ * - user.page-cache.rebuilds: renderings of pages
+ */
+@Component
+public class UserPageCache {
+  private static final int MIN_COMPRESS_BYTES = 1024;
+
+  private final boolean enabled;
+  private final boolean compress;
+  private final ExecutorService rebuilders;
+  private final TransactionTemplate transactionTemplate;
+  private final Counter hitCounter;
+  private final Counter rebuildCounter;
+
+  // guarded by this
+  private long version;
+  // least recently used first, guarded by this
+  private final LinkedHashMap<String, Entry> entries;
+
+  public UserPageCache(MeterRegistry meterRegistry, PlatformTransactionManager transactionManager,
+      @Value("${user.page-cache.enabled:false}") boolean enabled,
+      @Value("${user.page-cache.compress:true}") boolean compress,
+      @Value("${user.page-cache.max-pages:1000}") int maxPages,
+      @Value("${user.page-cache.rebuild-threads:2}") int rebuildThreads) {
+    this.enabled = enabled;
+    this.compress = compress;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxPages;
+      }
+    };
+    if (enabled) {
+      AtomicInteger threadNumber = new AtomicInteger();
+      this.rebuilders = Executors.newFixedThreadPool(rebuildThreads, runnable -> {
+        Thread thread = new Thread(runnable, "user-page-cache-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    } else {
+      this.rebuilders = null;
+    }
+
+    this.hitCounter = meterRegistry.counter("user.page-cache.hits");
+    this.rebuildCounter = meterRegistry.counter("user.page-cache.rebuilds");
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Get the page of the current version, rendering it if it is missing or outdated. Waits for
+   * the rendering if one is running already.
+   *
+   * @param key page cursor and field set of the page
+   * @param renderer renders the page as JSON, from data at least as new as the current version
+   * @return the page
+   */
+  public Page get(String key, Renderer renderer) {
+    if (!enabled) {
+      throw new IllegalStateException("The page cache is disabled");
+    }
+    CompletableFuture<Page> rebuild;
+    synchronized (this) {
+      Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+      if (entry.page != null && entry.page.version == version) {
+        hitCounter.increment();
+        return entry.page;
+      }
+      if (entry.rebuild != null && entry.rebuildVersion == version) {
+        rebuild = entry.rebuild;
+      } else {
+        long renderedVersion = version;
+        CompletableFuture<Page> started =
+            CompletableFuture.supplyAsync(() -> render(renderedVersion, renderer), rebuilders);
+        entry.rebuild = started;
+        entry.rebuildVersion = renderedVersion;
+        rebuild = started;
+        // may complete right away, when the rendering is done already
+        started.whenComplete((page, error) -> completed(entry, started, page));
+        rebuildCounter.increment();
+      }
+    }
+
+    try {
+      return rebuild.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Outdate all pages, once the current transaction committed.
+   */
+  public void invalidate() {
+    if (!enabled) {
+      return;
+    }
+    AfterCommit.run(this::bumpVersion);
+  }
+
+  private synchronized void bumpVersion() {
+    version++;
+  }
+
+  private synchronized void completed(Entry entry, CompletableFuture<Page> rebuild, Page page) {
+    if (page != null && (entry.page == null || entry.page.version < page.version)) {
+      entry.page = page;
+    }
+    // a failed rendering is retried by the next request
+    if (entry.rebuild == rebuild) {
+      entry.rebuild = null;
+    }
+  }
+
+  private Page render(long renderedVersion, Renderer renderer) {
+    // not read-only: the page is cached under the current version, so it must not be rendered
+    // from a replica which has not seen the latest writes yet
+    byte[] json = transactionTemplate.execute(status -> {
+      try {
+        return renderer.render();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    try {
+      byte[] gzip = compress && json.length >= MIN_COMPRESS_BYTES ? gzip(json) : null;
+      return new Page(renderedVersion, json, gzip);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] gzip(byte[] json) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 4);
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(json);
+    }
+    return compressed.toByteArray();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (rebuilders != null) {
+      rebuilders.shutdownNow();
+    }
+  }
+
+  /**
+   * Renders a page as JSON.
+   */
+  @FunctionalInterface
+  public interface Renderer {
+    byte[] render() throws IOException;
+  }
+
+  /**
+   * the cached page and the running rendering of a key
+   */
+  private static final class Entry {
+    private Page page;
+    private CompletableFuture<Page> rebuild;
+    private long rebuildVersion;
+  }
+
+  /**
+   * A rendered page, as JSON and gzip compressed JSON.
+   */
+  public static final class Page {
+    private final long version;
+    private final byte[] json;
+    private final byte[] gzip;
+
+    public Page(long version, byte[] json, byte[] gzip) {
+      this.version = version;
+      this.json = json;
+      this.gzip = gzip;
+    }
+
+    public byte[] getJson() {
+      return json;
+    }
+
+    /**
+     * @return the compressed JSON, null if the page is not compressed
+     */
+    public byte[] getGzip() {
+      return gzip;
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.config.FlushOnShutdown;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * User Registration Queue
+ * Asynchronous user creation for registration spikes (user.registration.async.enabled):
+ * registrations are validated and put into a bounded queue of user.registration.queue-capacity,
+ * a pool of user.registration.workers threads creates them in batches of up to
+ * user.registration.batch-size users per transaction (see UserService.createUsers).
+ * - a full queue rejects new registrations with 503, the client should retry later
+ * - the state of a registration is kept for user.registration.status-ttl after it was
+ * submitted, at most user.registration.max-statuses
+ * - if a batch fails, its users are created one by one, so only the invalid ones fail
+ * - on shutdown the queued registrations are still created
+ */
+@Component
+public class UserRegistrationQueue implements FlushOnShutdown {
+  private static final long POLL_MILLIS = 100;
+
+  private final Logger log = LoggerFactory.getLogger(UserRegistrationQueue.class);
+
+  private final UserService userService;
+  private final UserRepository userRepository;
+  private final boolean enabled;
+  private final int batchSize;
+  private final long statusTtlNanos;
+  private final int maxStatuses;
+  private final BlockingQueue<Registration> queue;
+  private final ExecutorService workers;
+
+  // registration id -> registration, oldest first, guarded by this
+  private final LinkedHashMap<String, Registration> registrations = new LinkedHashMap<>();
+  // usernames of the queued registrations, guarded by this
+  private final Set<String> queuedUsernames = new HashSet<>();
+  private volatile boolean accepting = true;
+
+  public UserRegistrationQueue(UserService userService,
+      @Qualifier("userRepository") UserRepository userRepository,
+      @Value("${user.registration.async.enabled:false}") boolean enabled,
+      @Value("${user.registration.queue-capacity:1000}") int queueCapacity,
+      @Value("${user.registration.workers:2}") int workerCount,
+      @Value("${user.registration.batch-size:50}") int batchSize,
+      @Value("${user.registration.status-ttl:PT1H}") Duration statusTtl,
+      @Value("${user.registration.max-statuses:10000}") int maxStatuses) {
+    this.userService = userService;
+    this.userRepository = userRepository;
+    this.enabled = enabled;
+    this.batchSize = batchSize;
+    this.statusTtlNanos = statusTtl.toNanos();
+    this.maxStatuses = maxStatuses;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    if (enabled) {
+      AtomicInteger threadNumber = new AtomicInteger();
+      this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+        Thread thread = new Thread(runnable, "user-registration-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+      for (int i = 0; i < workerCount; i++) {
+        workers.execute(this::work);
+      }
+    } else {
+      this.workers = null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Validate the new user and queue it for creation.
+   *
+   * @param newUser user to create, as for UserService.createUser
+   * @return the queued registration
+   * @throws ResponseStatusException 400 if the username is missing, already used or already
+   *     queued, 503 if the queue is full or shutting down
+   */
+  public Registration submit(User newUser) {
+    if (!enabled) {
+      throw new IllegalStateException("Asynchronous registration is disabled");
+    }
+    if (newUser.getUsername() == null || newUser.getUsername().isEmpty()) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Username cannot be empty");
+    }
+    if (userRepository.findByUsername(newUser.getUsername()) != null) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+          "The username provided is not unique. Therefore, the user could not be created!");
+    }
+
+    Registration registration = new Registration(UUID.randomUUID().toString(), newUser);
+    synchronized (this) {
+      if (!accepting || queue.remainingCapacity() == 0) {
+        throw new ResponseStatusException(
+            HttpStatus.SERVICE_UNAVAILABLE, "Too many registrations, retry later");
+      }
+      if (!queuedUsernames.add(newUser.getUsername())) {
+        throw new ResponseStatusException(
+            HttpStatus.BAD_REQUEST, "A registration with this username is already queued");
+      }
+      // cannot fail, only submit adds to the queue and it is synchronized
+      queue.add(registration);
+      evictExpired(System.nanoTime());
+      registrations.put(registration.id, registration);
+      if (registrations.size() > maxStatuses) {
+        Iterator<Registration> eldest = registrations.values().iterator();
+        eldest.next();
+        eldest.remove();
+      }
+    }
+    return registration;
+  }
+
+  /**
+   * @return the registration, null if it is unknown or expired
+   */
+  public synchronized Registration getRegistration(String id) {
+    evictExpired(System.nanoTime());
+    return registrations.get(id);
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  private void work() {
+    List<Registration> batch = new ArrayList<>(batchSize);
+    try {
+      while (accepting || !queue.isEmpty()) {
+        Registration first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        create(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * create the users of the batch in one transaction, or one by one if that fails
+   */
+  private void create(List<Registration> batch) {
+    List<User> newUsers = new ArrayList<>(batch.size());
+    for (Registration registration : batch) {
+      newUsers.add(registration.newUser);
+    }
+    try {
+      List<User> createdUsers = userService.createUsers(newUsers);
+      for (int i = 0; i < batch.size(); i++) {
+        complete(batch.get(i), createdUsers.get(i), null);
+      }
+      return;
+    } catch (RuntimeException e) {
+      log.debug("Creating a batch of {} users failed, creating them one by one", batch.size(), e);
+    }
+    for (Registration registration : batch) {
+      try {
+        complete(registration, userService.createUser(registration.newUser), null);
+      } catch (RuntimeException e) {
+        complete(registration, null, e);
+      }
+    }
+  }
+
+  private void complete(Registration registration, User user, RuntimeException error) {
+    synchronized (this) {
+      queuedUsernames.remove(registration.newUser.getUsername());
+    }
+    if (error == null) {
+      registration.user = user;
+      registration.state = State.CREATED;
+    } else {
+      registration.message = error instanceof ResponseStatusException
+          ? ((ResponseStatusException) error).getReason()
+          : "The user could not be created";
+      registration.state = State.FAILED;
+      log.debug("Registration {} failed", registration.id, error);
+    }
+  }
+
+  private void evictExpired(long now) {
+    // all registrations have the same ttl, so the oldest expire first
+    Iterator<Map.Entry<String, Registration>> iterator = registrations.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Registration registration = iterator.next().getValue();
+      if (registration.submittedNanos + statusTtlNanos - now > 0) {
+        return;
+      }
+      iterator.remove();
+    }
+  }
+
+  /**
+   * stop accepting registrations and let the workers create the queued ones
+   */
+  @Override
+  public void flushOnShutdown() {
+    accepting = false;
+    if (workers != null) {
+      workers.shutdown();
+      try {
+        if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+          log.warn("Shutting down with {} registrations still queued", queue.size());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    accepting = false;
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+
+  public enum State { QUEUED, CREATED, FAILED }
+
+  /**
+   * A submitted registration, the user and message are set once it is no longer queued
+   */
+  public static class Registration {
+    private final String id;
+    private final User newUser;
+    private final long submittedNanos = System.nanoTime();
+    private volatile State state = State.QUEUED;
+    private volatile User user;
+    private volatile String message;
+
+    private Registration(String id, User newUser) {
+      this.id = id;
+      this.newUser = Objects.requireNonNull(newUser);
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    /**
+     * @return the created user, null unless the state is CREATED
+     */
+    public User getUser() {
+      return user;
+    }
+
+    /**
+     * @return why the user could not be created, null unless the state is FAILED
+     */
+    public String getMessage() {
+      return message;
+    }
+  }
+}
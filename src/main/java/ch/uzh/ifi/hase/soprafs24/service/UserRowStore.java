@@ -0,0 +1,477 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * User Row Store
+ * Off-heap read model for very large user tables (user.row-store.enabled): every user is kept
+ * as its serialized UserGetDTO outside of the Java heap, so the garbage collector neither scans
+ * nor copies it. GET /users and GET /users/{id} write these bytes to the response as they are,
+ * without entities, DTOs or JSON serialization.
+ * - the rows are appended to segments of user.row-store.segment-size, direct byte buffers or,
+ * with user.row-store.directory, memory mapped files in that directory
+ * - the index is a sorted buffer of ids and one of row locations (segment and position), both
+ * off-heap, searched binary
+ * - snapshots are never changed: a refresh loads all users from the database in pages of
+ * user.row-store.load-batch-size into new segments and swaps them in (copy on write), responses
+ * still being written keep the old snapshot until they are done
+ * - the writes of this instance (UserService, TokenSweeper) are kept on the heap on top of the
+ * snapshot once committed, and folded into a new snapshot every user.row-store.refresh-interval
+ * if at least user.row-store.refresh-threshold users changed
+ * The memory of an old snapshot is freed once it is garbage collected, so a refresh needs room
+ * for two snapshots. Only sees the writes of this instance, like UserDirectory.
+ */
+@Component
+public class UserRowStore {
+  // row of a deleted user in the changes
+  private static final byte[] DELETED = new byte[0];
+
+  private final Logger log = LoggerFactory.getLogger(UserRowStore.class);
+
+  private final UserRepository userRepository;
+  private final TransactionTemplate transactionTemplate;
+  private final ObjectMapper objectMapper;
+  private final boolean enabled;
+  private final int segmentSize;
+  private final Path directory;
+  private final int loadBatchSize;
+  private final int refreshThreshold;
+
+  private final Object refreshLock = new Object();
+  // guarded by this
+  private Snapshot snapshot = Snapshot.EMPTY;
+  // rows changed since the running or last refresh started, guarded by this
+  private TreeMap<Long, byte[]> changes = new TreeMap<>();
+  // rows changed before the running refresh started, guarded by this
+  private TreeMap<Long, byte[]> changesBeforeRefresh = new TreeMap<>();
+
+  public UserRowStore(@Qualifier("userRepository") UserRepository userRepository,
+      PlatformTransactionManager transactionManager, ObjectMapper objectMapper,
+      @Value("${user.row-store.enabled:false}") boolean enabled,
+      @Value("${user.row-store.segment-size:64MB}") DataSize segmentSize,
+      @Value("${user.row-store.directory:}") String directory,
+      @Value("${user.row-store.load-batch-size:1000}") int loadBatchSize,
+      @Value("${user.row-store.refresh-threshold:10000}") int refreshThreshold) {
+    this.userRepository = userRepository;
+    // not read-only: read-only transactions may go to a lagging read replica (see
+    // ReplicaRoutingDataSource), and the writes committed before the load would be missing
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.objectMapper = objectMapper;
+    this.enabled = enabled;
+    this.segmentSize = Math.toIntExact(segmentSize.toBytes());
+    this.directory = directory.isBlank() ? null : Paths.get(directory);
+    this.loadBatchSize = loadBatchSize;
+    this.refreshThreshold = refreshThreshold;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Load all users from the database into a new snapshot, which replaces the current one.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void refresh() {
+    if (!enabled) {
+      return;
+    }
+    synchronized (refreshLock) {
+      long start = System.nanoTime();
+      synchronized (this) {
+        // committed before the load starts, so the loaded snapshot contains them
+        changesBeforeRefresh = changes;
+        changes = new TreeMap<>();
+      }
+
+      Snapshot loaded;
+      try {
+        loaded = load();
+      } catch (RuntimeException e) {
+        // keep the current snapshot and all changes
+        synchronized (this) {
+          changesBeforeRefresh.putAll(changes);
+          changes = changesBeforeRefresh;
+          changesBeforeRefresh = new TreeMap<>();
+        }
+        throw e;
+      }
+
+      synchronized (this) {
+        snapshot = loaded;
+        changesBeforeRefresh = new TreeMap<>();
+      }
+      log.info("Loaded user row store with {} users in {} segments in {} ms", loaded.size,
+          loaded.segments.length, (System.nanoTime() - start) / 1_000_000);
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${user.row-store.refresh-interval:PT1M}",
+      initialDelayString = "${user.row-store.refresh-interval:PT1M}")
+  public void scheduledRefresh() {
+    int changed;
+    synchronized (this) {
+      changed = changes.size();
+    }
+    if (changed > 0 && changed >= refreshThreshold) {
+      refresh();
+    }
+  }
+
+  private Snapshot load() {
+    SnapshotBuilder builder = new SnapshotBuilder();
+    long after = 0;
+    while (true) {
+      // one transaction per page, so the loaded entities do not pile up
+      long pageAfter = after;
+      List<User> page = transactionTemplate.execute(
+          status -> userRepository.findAfterId(pageAfter, PageRequest.of(0, loadBatchSize)));
+      for (User user : page) {
+        builder.add(user.getId(), encode(user));
+        after = user.getId();
+      }
+      if (page.size() < loadBatchSize) {
+        return builder.build();
+      }
+    }
+  }
+
+  /**
+   * @return the serialized UserGetDTO of the user, as read-only buffer
+   */
+  public Optional<ByteBuffer> findById(long id) {
+    byte[] changed;
+    Snapshot current;
+    synchronized (this) {
+      changed = changes.get(id);
+      if (changed == null) {
+        changed = changesBeforeRefresh.get(id);
+      }
+      current = snapshot;
+    }
+    if (changed != null) {
+      return changed == DELETED
+          ? Optional.empty()
+          : Optional.of(ByteBuffer.wrap(changed).asReadOnlyBuffer());
+    }
+    int index = current.indexOf(id);
+    return index < 0 ? Optional.empty() : Optional.of(current.row(index));
+  }
+
+  /**
+   * Write all users ordered by id as JSON array, the same as the serialized UserGetDTOs.
+   */
+  public void writeAll(OutputStream out) throws IOException {
+    Snapshot current;
+    TreeMap<Long, byte[]> changed;
+    synchronized (this) {
+      current = snapshot;
+      changed = new TreeMap<>(changesBeforeRefresh);
+      changed.putAll(changes);
+    }
+
+    JsonArrayWriter writer = new JsonArrayWriter(out);
+    Iterator<Map.Entry<Long, byte[]>> changedRows = changed.entrySet().iterator();
+    Map.Entry<Long, byte[]> change = next(changedRows);
+    for (int index = 0; index < current.size; index++) {
+      long id = current.ids.get(index);
+      // changed rows come before or replace the row of the snapshot with the same id
+      while (change != null && change.getKey() < id) {
+        writer.write(change.getValue());
+        change = next(changedRows);
+      }
+      if (change != null && change.getKey() == id) {
+        writer.write(change.getValue());
+        change = next(changedRows);
+      } else {
+        writer.write(current.row(index));
+      }
+    }
+    while (change != null) {
+      writer.write(change.getValue());
+      change = next(changedRows);
+    }
+    writer.close();
+  }
+
+  private static <T> T next(Iterator<T> iterator) {
+    return iterator.hasNext() ? iterator.next() : null;
+  }
+
+  /**
+   * Write the users as JSON array in the order of the given ids, without duplicates. Ids without
+   * user are skipped.
+   */
+  public void writeAllById(List<Long> ids, OutputStream out) throws IOException {
+    JsonArrayWriter writer = new JsonArrayWriter(out);
+    for (Long id : new LinkedHashSet<>(ids)) {
+      Optional<ByteBuffer> row = findById(id);
+      if (row.isPresent()) {
+        writer.write(row.get());
+      }
+    }
+    writer.close();
+  }
+
+  /**
+   * Add or update the user, once the current transaction committed.
+   */
+  public void put(User user) {
+    if (!enabled) {
+      return;
+    }
+    long id = user.getId();
+    byte[] row = encode(user);
+    afterCommit(() -> change(id, row));
+  }
+
+  /**
+   * Remove the user, once the current transaction committed.
+   */
+  public void remove(long id) {
+    afterCommit(() -> change(id, DELETED));
+  }
+
+  /**
+   * Remove the tokens of the users, e.g. swept expired tokens, once the current transaction
+   * committed. A user whose token was replaced meanwhile keeps the new token.
+   *
+   * @param tokens user id -> token to remove
+   */
+  public void clearTokens(Map<Long, String> tokens) {
+    Map<Long, String> copy = Map.copyOf(tokens);
+    afterCommit(() -> {
+      // no other change of the users in between
+      synchronized (this) {
+        copy.forEach((id, token) -> {
+          Optional<ByteBuffer> row = findById(id);
+          if (row.isPresent()) {
+            UserGetDTO userGetDTO = decode(row.get());
+            if (token.equals(userGetDTO.getToken())) {
+              userGetDTO.setToken(null);
+              change(id, encode(userGetDTO, id));
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private void afterCommit(Runnable change) {
+    if (!enabled) {
+      return;
+    }
+    AfterCommit.run(change);
+  }
+
+  private synchronized void change(long id, byte[] row) {
+    changes.put(id, row);
+  }
+
+  private byte[] encode(User user) {
+    UserGetDTO userGetDTO = DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+    if (user.getCreated() != null) {
+      // rounded to microseconds like the database, so a refresh loads the same row
+      LocalDateTime created = user.getCreated().plusNanos(500).truncatedTo(ChronoUnit.MICROS);
+      userGetDTO.setCreated(DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(created));
+    }
+    return encode(userGetDTO, user.getId());
+  }
+
+  private byte[] encode(UserGetDTO userGetDTO, long id) {
+    try {
+      return objectMapper.writeValueAsBytes(userGetDTO);
+    } catch (IOException e) {
+      throw new IllegalStateException("User " + id + " cannot be serialized", e);
+    }
+  }
+
+  private UserGetDTO decode(ByteBuffer row) {
+    byte[] bytes = new byte[row.remaining()];
+    row.get(bytes);
+    try {
+      return objectMapper.readValue(bytes, UserGetDTO.class);
+    } catch (IOException e) {
+      throw new IllegalStateException("Stored user cannot be read", e);
+    }
+  }
+
+  private ByteBuffer allocateSegment(int bytes) {
+    if (directory == null) {
+      return ByteBuffer.allocateDirect(bytes);
+    }
+    try {
+      Path file = Files.createTempFile(directory, "users-", ".rows");
+      try (FileChannel channel =
+               FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+      } finally {
+        // the mapping stays valid, its space is freed once it is garbage collected
+        Files.delete(file);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static LongBuffer allocateLongs(int capacity) {
+    return ByteBuffer.allocateDirect(Math.multiplyExact(capacity, Long.BYTES))
+        .order(ByteOrder.nativeOrder())
+        .asLongBuffer();
+  }
+
+  /**
+   * Users of a refresh, ordered by id. Only read once built, so it can be shared by threads.
+   */
+  private static final class Snapshot {
+    private static final Snapshot EMPTY =
+        new Snapshot(new ByteBuffer[0], LongBuffer.allocate(0), LongBuffer.allocate(0), 0);
+
+    private final ByteBuffer[] segments;
+    private final LongBuffer ids;
+    // segment index in the upper, position of the length prefixed row in the lower 32 bits
+    private final LongBuffer locations;
+    private final int size;
+
+    private Snapshot(ByteBuffer[] segments, LongBuffer ids, LongBuffer locations, int size) {
+      this.segments = segments;
+      this.ids = ids;
+      this.locations = locations;
+      this.size = size;
+    }
+
+    private int indexOf(long id) {
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        long middleId = ids.get(middle);
+        if (middleId < id) {
+          low = middle + 1;
+        } else if (middleId > id) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -1;
+    }
+
+    private ByteBuffer row(int index) {
+      long location = locations.get(index);
+      ByteBuffer segment = segments[(int) (location >>> 32)];
+      int position = (int) location;
+      return segment.slice(position + Integer.BYTES, segment.getInt(position)).asReadOnlyBuffer();
+    }
+  }
+
+  /**
+   * appends the rows of a refresh to new segments, the ids must be ascending
+   */
+  private final class SnapshotBuilder {
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private ByteBuffer segment;
+    private LongBuffer ids = allocateLongs(1024);
+    private LongBuffer locations = allocateLongs(1024);
+    private int size;
+
+    private void add(long id, byte[] row) {
+      if (segment == null || segment.remaining() < Integer.BYTES + row.length) {
+        segment = allocateSegment(Math.max(segmentSize, Integer.BYTES + row.length));
+        segments.add(segment);
+      }
+      if (size == ids.capacity()) {
+        ids = grow(ids);
+        locations = grow(locations);
+      }
+      ids.put(size, id);
+      locations.put(size, (long) (segments.size() - 1) << 32 | segment.position());
+      segment.putInt(row.length).put(row);
+      size++;
+    }
+
+    private LongBuffer grow(LongBuffer buffer) {
+      LongBuffer grown = allocateLongs(buffer.capacity() * 2);
+      grown.put(0, buffer, 0, size);
+      return grown;
+    }
+
+    private Snapshot build() {
+      return new Snapshot(segments.toArray(new ByteBuffer[0]), ids, locations, size);
+    }
+  }
+
+  /**
+   * writes rows separated by commas in brackets, deleted rows are skipped
+   */
+  private static final class JsonArrayWriter {
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private boolean empty = true;
+
+    private JsonArrayWriter(OutputStream out) throws IOException {
+      this.out = out;
+      this.channel = Channels.newChannel(out);
+      out.write('[');
+    }
+
+    private void write(byte[] row) throws IOException {
+      if (row != DELETED) {
+        write(ByteBuffer.wrap(row));
+      }
+    }
+
+    private void write(ByteBuffer row) throws IOException {
+      if (!empty) {
+        out.write(',');
+      }
+      empty = false;
+      while (row.hasRemaining()) {
+        channel.write(row);
+      }
+    }
+
+    private void close() throws IOException {
+      out.write(']');
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.repository.UserSearchProjection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * User Search Index
+ * In-memory index over the username and name of all users, so searching does not need a table
+ * scan.
+ * - prefix search: all terms (username, name and the single words of the name) are kept in a
+ * sorted map, a prefix query is a range scan over this map
+ * - fuzzy search: every term is split into trigrams, users sharing enough trigrams with the query
+ * are returned ordered by the share of matching trigrams. The candidates are the users of the
+ * rarer trigrams of the query, trigrams of more than COMMON_GRAM_USERS users (e.g. "use" of
+ * usernames like "user123") are only checked for them, so a query does not touch every user
+ * The index is rebuilt from the database on startup and kept up to date by the UserService.
+ * Writes are rare and synchronized, searches run without locking. A rebuild fills new maps and
+ * swaps them in at once, so searches meanwhile see the complete previous index.
+ */
+@Component
+public class UserSearchIndex {
+  private static final int GRAM_SIZE = 3;
+  private static final char PADDING = '$';
+  private static final int COMMON_GRAM_USERS = 10_000;
+
+  private final Logger log = LoggerFactory.getLogger(UserSearchIndex.class);
+
+  private final UserRepository userRepository;
+  private final double fuzzyThreshold;
+
+  // replaced as a whole by a rebuild
+  private volatile Index index = new Index();
+
+  public UserSearchIndex(@Qualifier("userRepository") UserRepository userRepository,
+      @Value("${user.search.fuzzy-threshold:0.5}") double fuzzyThreshold) {
+    this.userRepository = userRepository;
+    this.fuzzyThreshold = fuzzyThreshold;
+  }
+
+  /**
+   * Rebuild the whole index by streaming over the user table.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  @Transactional(readOnly = true)
+  public void rebuild() {
+    long start = System.nanoTime();
+    Index rebuilt = new Index();
+    // writes wait for the rebuild, and are applied to the new index afterwards
+    synchronized (this) {
+      try (Stream<UserSearchProjection> users = userRepository.streamAllForSearch()) {
+        users.forEach(user -> add(rebuilt, user.getId(), user.getUsername(), user.getName()));
+      }
+      index = rebuilt;
+    }
+    log.info("Built user search index with {} users in {} ms", rebuilt.termsByUser.size(),
+        (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * Add or update the user in the index. Within a transaction the index is only updated once the
+   * transaction committed, so rolled back changes never show up in search results.
+   *
+   * @param user created or updated user
+   */
+  public void index(User user) {
+    Long id = user.getId();
+    String username = user.getUsername();
+    String name = user.getName();
+    if (id == null) {
+      return;
+    }
+
+    AfterCommit.run(() -> update(id, username, name));
+  }
+
+  /**
+   * Remove the user from the index, within a transaction once the transaction committed.
+   *
+   * @param id id of the deleted user
+   */
+  public void remove(Long id) {
+    AfterCommit.run(() -> removeNow(id));
+  }
+
+  private synchronized void removeNow(Long id) {
+    Index current = index;
+    Set<String> oldTerms = current.termsByUser.remove(id);
+    if (oldTerms == null) {
+      return;
+    }
+    for (String term : oldTerms) {
+      removeId(current.terms, term, id);
+      for (String gram : grams(term)) {
+        removeId(current.grams, gram, id);
+      }
+    }
+  }
+
+  public int size() {
+    return index.termsByUser.size();
+  }
+
+  /**
+   * Search users by prefix of their username or name. If there are not enough prefix matches,
+   * the result is filled up with fuzzy matches.
+   *
+   * @param query search query, case insensitive
+   * @param limit maximum number of ids returned
+   * @return ids of the matching users, best matches first
+   */
+  public List<Long> search(String query, int limit) {
+    String normalized = normalize(query);
+    if (normalized.isEmpty() || limit <= 0) {
+      return Collections.emptyList();
+    }
+    Index current = index;
+    LinkedHashSet<Long> result = new LinkedHashSet<>();
+
+    // prefix matches, in term order
+    for (Set<Long> ids : current.terms.subMap(normalized, true, normalized + Character.MAX_VALUE, true)
+                             .values()) {
+      for (Long id : ids) {
+        result.add(id);
+        if (result.size() >= limit) {
+          return new ArrayList<>(result);
+        }
+      }
+    }
+
+    // fuzzy matches, count the shared trigrams per user
+    Set<String> queryGrams = grams(normalized);
+    Map<Long, Integer> sharedGrams = new HashMap<>();
+    List<Set<Long>> commonGrams = new ArrayList<>();
+    for (String gram : queryGrams) {
+      Set<Long> ids = current.grams.getOrDefault(gram, Collections.emptySet());
+      if (ids.size() > COMMON_GRAM_USERS) {
+        commonGrams.add(ids);
+        continue;
+      }
+      for (Long id : ids) {
+        sharedGrams.merge(id, 1, Integer::sum);
+      }
+    }
+    if (sharedGrams.isEmpty()) {
+      // only common trigrams, all their users are candidates
+      for (Set<Long> ids : commonGrams) {
+        for (Long id : ids) {
+          sharedGrams.merge(id, 1, Integer::sum);
+        }
+      }
+    } else {
+      for (Set<Long> ids : commonGrams) {
+        sharedGrams.replaceAll((id, shared) -> ids.contains(id) ? shared + 1 : shared);
+      }
+    }
+    int minShared = (int) Math.ceil(queryGrams.size() * fuzzyThreshold);
+    sharedGrams.entrySet()
+        .stream()
+        .filter(entry -> entry.getValue() >= minShared && !result.contains(entry.getKey()))
+        .sorted(Map.Entry.<Long, Integer>comparingByValue().reversed().thenComparing(
+            Map.Entry.comparingByKey()))
+        .limit(limit - result.size())
+        .forEach(entry -> result.add(entry.getKey()));
+
+    return new ArrayList<>(result);
+  }
+
+  private synchronized void update(Long id, String username, String name) {
+    removeNow(id);
+    add(index, id, username, name);
+  }
+
+  private static void add(Index index, Long id, String username, String name) {
+    Set<String> userTerms = new LinkedHashSet<>();
+    addTerm(userTerms, username);
+    addTerm(userTerms, name);
+    if (name != null) {
+      for (String word : name.split("\\s+")) {
+        addTerm(userTerms, word);
+      }
+    }
+
+    for (String term : userTerms) {
+      index.terms.computeIfAbsent(term, key -> ConcurrentHashMap.newKeySet()).add(id);
+      for (String gram : grams(term)) {
+        index.grams.computeIfAbsent(gram, key -> ConcurrentHashMap.newKeySet()).add(id);
+      }
+    }
+    index.termsByUser.put(id, userTerms);
+  }
+
+  private static void addTerm(Set<String> userTerms, String value) {
+    String term = normalize(value);
+    if (!term.isEmpty()) {
+      userTerms.add(term);
+    }
+  }
+
+  private static void removeId(Map<String, Set<Long>> index, String key, Long id) {
+    Set<Long> ids = index.get(key);
+    if (ids != null) {
+      ids.remove(id);
+      if (ids.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  private static String normalize(String value) {
+    return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * split the term into trigrams, padded so that short terms and word boundaries are covered
+   */
+  private static Set<String> grams(String term) {
+    String padded = PADDING + term + PADDING;
+    Set<String> result = new LinkedHashSet<>();
+    if (padded.length() <= GRAM_SIZE) {
+      result.add(padded);
+      return result;
+    }
+    for (int i = 0; i + GRAM_SIZE <= padded.length(); i++) {
+      result.add(padded.substring(i, i + GRAM_SIZE));
+    }
+    return result;
+  }
+
+  private static final class Index {
+    // term -> user ids
+    private final NavigableMap<String, Set<Long>> terms = new ConcurrentSkipListMap<>();
+    // trigram -> user ids
+    private final Map<String, Set<Long>> grams = new ConcurrentHashMap<>();
+    // user id -> indexed terms, needed to remove the user again
+    private final Map<Long, Set<String>> termsByUser = new ConcurrentHashMap<>();
+  }
+}
@@ -1,21 +1,34 @@
 package ch.uzh.ifi.hase.soprafs24.service;
 
+import ch.uzh.ifi.hase.soprafs24.config.ReadYourWrites;
 import ch.uzh.ifi.hase.soprafs24.constant.Permissions;
+import ch.uzh.ifi.hase.soprafs24.constant.UserChangeType;
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
 import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChange;
 import ch.uzh.ifi.hase.soprafs24.exceptions.NotFoundException;
 import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.Set;
+import javax.persistence.Tuple;
 import org.apache.commons.logging.Log;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.ResponseStatusException;
 
@@ -25,6 +38,14 @@ import org.springframework.web.server.ResponseStatusException;
  * the user
  * (e.g., it creates, modifies, deletes, finds). The result will be passed back
  * to the caller.
+ * Read-only methods run in read-only transactions, which are sent to a read replica if replicas
+ * are configured (see ReadReplicaConfig).
+ * Creations, updates and deletions record a change event in the outbox (see UserChangeOutbox)
+ * and a change sequence (see UserChangeLog) in the same transaction.
+ * With the user directory enabled (see UserDirectory), the list and detail reads are served from
+ * memory, and the writes update it once committed. The same holds for the off-heap rows of the
+ * user row store (see UserRowStore), which the controller writes to the responses directly.
+ * Every write outdates the cached GET /users pages (see UserPageCache) once committed.
  */
 @Service
 @Transactional
@@ -33,18 +54,197 @@ public class UserService {
 
   private final UserRepository userRepository;
 
+  private final TokenService tokenService;
+
+  private final UserSearchIndex userSearchIndex;
+
+  private final UserLookupCoalescer userLookupCoalescer;
+
+  private final ReadYourWrites readYourWrites;
+
+  private final UserChangeOutbox userChangeOutbox;
+
+  private final UserChangeLog userChangeLog;
+
+  private final UserDirectory userDirectory;
+
+  private final UserRowStore userRowStore;
+
+  private final UserPageCache userPageCache;
+
   @Autowired
-  public UserService(@Qualifier("userRepository") UserRepository userRepository) {
+  public UserService(@Qualifier("userRepository") UserRepository userRepository,
+      TokenService tokenService, UserSearchIndex userSearchIndex,
+      UserLookupCoalescer userLookupCoalescer, ReadYourWrites readYourWrites,
+      UserChangeOutbox userChangeOutbox, UserChangeLog userChangeLog,
+      UserDirectory userDirectory, UserRowStore userRowStore, UserPageCache userPageCache) {
     this.userRepository = userRepository;
+    this.tokenService = tokenService;
+    this.userSearchIndex = userSearchIndex;
+    this.userLookupCoalescer = userLookupCoalescer;
+    this.readYourWrites = readYourWrites;
+    this.userChangeOutbox = userChangeOutbox;
+    this.userChangeLog = userChangeLog;
+    this.userDirectory = userDirectory;
+    this.userRowStore = userRowStore;
+    this.userPageCache = userPageCache;
   }
 
+  @Transactional(readOnly = true)
   public List<User> getUsers() {
+    if (userDirectory.isEnabled()) {
+      return userDirectory.findAll();
+    }
     return this.userRepository.findAll();
   }
 
+  /**
+   * Get a page of the users ordered by id, with keyset pagination.
+   *
+   * @param after id after which the page starts, 0 for the first page
+   * @param limit maximum number of users
+   */
+  @Transactional(readOnly = true)
+  public List<User> getUsersAfter(long after, int limit) {
+    return userRepository.findAfterId(after, PageRequest.of(0, limit));
+  }
+
+  /**
+   * Get many users by id with as few queries as possible. The ids are loaded in chunks of
+   * user.lookup.chunk-size with one IN query each.
+   *
+   * @param ids ids of the users, ids without user are skipped
+   * @return users in the order of the given ids, without duplicates
+   */
+  @Transactional(readOnly = true)
+  public List<User> getUsersByIds(List<Long> ids) {
+    List<Long> uniqueIds = new ArrayList<>(new LinkedHashSet<>(ids));
+    if (userDirectory.isEnabled()) {
+      return userDirectory.findAllById(uniqueIds);
+    }
+    Map<Long, User> usersById = new HashMap<>();
+    for (User user : userLookupCoalescer.findAllById(uniqueIds)) {
+      usersById.put(user.getId(), user);
+    }
+    return orderByIds(uniqueIds, usersById);
+  }
+
+  /**
+   * Search users by (prefix of) username or name, with fuzzy matching as fallback.
+   *
+   * @param query search query
+   * @param limit maximum number of users
+   * @return matching users, best matches first
+   */
+  @Transactional(readOnly = true)
+  public List<User> searchUsers(String query, int limit) {
+    List<Long> ids = userSearchIndex.search(query, limit);
+    Map<Long, User> usersById = new HashMap<>();
+    for (User user : userRepository.findAllById(ids)) {
+      usersById.put(user.getId(), user);
+    }
+
+    // keep the order of the search result
+    return orderByIds(ids, usersById);
+  }
+
+  /**
+   * Get only the selected fields of the users, loaded with a tuple projection instead of full
+   * entities.
+   *
+   * @param ids ids of the users in the order they are returned, or null for all users
+   * @param fields selected fields, always contains the id
+   * @return one tuple per found user
+   */
+  @Transactional(readOnly = true)
+  public List<Tuple> getUserFields(List<Long> ids, Set<UserField> fields) {
+    if (ids == null) {
+      return userRepository.findFieldsByIds(null, fields);
+    }
+    List<Long> uniqueIds = new ArrayList<>(new LinkedHashSet<>(ids));
+    Map<Long, Tuple> tuplesById = new HashMap<>();
+    for (Tuple tuple : userRepository.findFieldsByIds(uniqueIds, fields)) {
+      tuplesById.put(tuple.get(UserField.ID.getProperty(), Long.class), tuple);
+    }
+
+    List<Tuple> tuples = new ArrayList<>();
+    for (Long id : uniqueIds) {
+      if (tuplesById.containsKey(id)) {
+        tuples.add(tuplesById.get(id));
+      }
+    }
+    return tuples;
+  }
+
+  /**
+   * Get only the selected fields of a page of the users, like getUsersAfter.
+   */
+  @Transactional(readOnly = true)
+  public List<Tuple> getUserFieldsAfter(long after, int limit, Set<UserField> fields) {
+    return userRepository.findFieldsAfterId(after, limit, fields);
+  }
+
+  @Transactional(readOnly = true)
+  public Tuple getUserFieldsById(long id, Set<UserField> fields) {
+    List<Tuple> tuples = userRepository.findFieldsByIds(List.of(id), fields);
+    if (tuples.isEmpty()) {
+      throw new NotFoundException("User not found with ID: " + id);
+    }
+    return tuples.get(0);
+  }
+
+  /**
+   * Get the changes of users since the given change sequence, e.g. to sync a client which
+   * already has all users up to that sequence.
+   *
+   * @param since change sequence of the last change the client has, 0 for all users
+   * @param limit maximum number of changes
+   * @return changes ordered by sequence, with the current user, or without one for deleted users
+   */
+  @Transactional(readOnly = true)
+  public List<UserChange> getChanges(long since, int limit) {
+    if (!userChangeLog.isEnabled()) {
+      throw new ResponseStatusException(HttpStatus.NOT_FOUND, "The change log is disabled");
+    }
+    List<UserChange> changes = userChangeLog.findSince(since, limit);
+    List<Long> ids = new ArrayList<>();
+    for (UserChange change : changes) {
+      if (!change.isDeleted()) {
+        ids.add(change.getUserId());
+      }
+    }
+    Map<Long, User> usersById = new HashMap<>();
+    for (User user : userLookupCoalescer.findAllById(ids)) {
+      usersById.put(user.getId(), user);
+    }
+    for (UserChange change : changes) {
+      change.setUser(usersById.get(change.getUserId()));
+    }
+    return changes;
+  }
+
+  private static List<User> orderByIds(List<Long> ids, Map<Long, User> usersById) {
+    List<User> users = new ArrayList<>();
+    for (Long id : ids) {
+      User user = usersById.get(id);
+      if (user != null) {
+        users.add(user);
+      }
+    }
+    return users;
+  }
+
+  // no transaction, so no connection is held while waiting for a coalesced lookup, the lookup
+  // coalescer loads the user in a read-only transaction
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
   public User getUserById(long id) {
     // returns an Optional object that may or may not contain the user with the given ID
-    Optional<User> userOptional = this.userRepository.findById(id);
+    Optional<User> userOptional;
+    if (userDirectory.isEnabled()) {
+      userOptional = userDirectory.findById(id);
+    } else {
+      userOptional = userLookupCoalescer.findById(id);
+    }
 
     // checks if the optionalUser is present
     if (userOptional.isPresent()) {
@@ -56,18 +256,76 @@ public class UserService {
   }
 
   public User createUser(User newUser) {
-    newUser.setToken(UUID.randomUUID().toString());
-    newUser.setStatus(UserStatus.OFFLINE);
     checkIfUserExists(newUser);
-    // saves the given entity but data is only persisted in the database once
-    // flush() is called
-    newUser = userRepository.save(newUser);
+    newUser = saveNewUser(newUser);
     userRepository.flush();
+    userChangeOutbox.record(UserChangeType.CREATED, newUser);
+    userChangeLog.recordCreated(List.of(newUser.getId()));
+    userSearchIndex.index(newUser);
+    userDirectory.put(newUser);
+    userRowStore.put(newUser);
+    userPageCache.invalidate();
+    readYourWrites.pin(newUser.getToken());
 
     log.debug("Created Information for User: {}", newUser);
     return newUser;
   }
 
+  /**
+   * Create many users in one transaction, e.g. queued registrations (see UserRegistrationQueue).
+   * Either all or none of the users are created.
+   *
+   * @param newUsers users to create
+   * @return created users in the same order
+   */
+  public List<User> createUsers(List<User> newUsers) {
+    // all checks before the first insert: a check query flushes the pending inserts, which would
+    // then be sent one by one instead of in JDBC batches (hibernate.jdbc.batch_size)
+    Set<String> usernames = new HashSet<>();
+    for (User newUser : newUsers) {
+      // a username twice in the batch fails it, like a username which is already used
+      if (!usernames.add(newUser.getUsername())) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+            "The username provided is not unique. Therefore, the user could not be created!");
+      }
+      checkIfUserExists(newUser);
+    }
+    List<User> createdUsers = new ArrayList<>(newUsers.size());
+    for (User newUser : newUsers) {
+      createdUsers.add(saveNewUser(newUser));
+    }
+    userRepository.flush();
+    List<Long> createdIds = new ArrayList<>();
+    for (User createdUser : createdUsers) {
+      createdIds.add(createdUser.getId());
+    }
+    userChangeLog.recordCreated(createdIds);
+    for (User createdUser : createdUsers) {
+      userChangeOutbox.record(UserChangeType.CREATED, createdUser);
+      userSearchIndex.index(createdUser);
+      userDirectory.put(createdUser);
+      userRowStore.put(createdUser);
+      readYourWrites.pin(createdUser.getToken());
+    }
+    userPageCache.invalidate();
+
+    log.debug("Created {} users", createdUsers.size());
+    return createdUsers;
+  }
+
+  private User saveNewUser(User newUser) {
+    assignToken(newUser);
+    newUser.setStatus(UserStatus.OFFLINE);
+    // saves the given entity but data is only persisted in the database once
+    // flush() is called
+    newUser = userRepository.save(newUser);
+    // signed tokens contain the user id, which is only known after saving
+    if (tokenService.isSigned()) {
+      assignToken(newUser);
+    }
+    return newUser;
+  }
+
   /**
    * Helper function to get the user by the id and check if the auth token is the matching token.
    * This is needed for updating users. Because this is private, it cannot be tested...
@@ -134,6 +392,13 @@ public class UserService {
     // save to db
     foundUser = userRepository.save(foundUser);
     userRepository.flush();
+    userChangeOutbox.record(UserChangeType.UPDATED, foundUser);
+    userChangeLog.recordUpdated(id);
+    userSearchIndex.index(foundUser);
+    userDirectory.put(foundUser);
+    userRowStore.put(foundUser);
+    userPageCache.invalidate();
+    readYourWrites.pin(inputUserToken);
 
     log.debug("Updated Information for User: {}", inputUser);
     return foundUser;
@@ -151,12 +416,40 @@ public class UserService {
     // save to db
     foundUser = userRepository.save(foundUser);
     userRepository.flush();
+    userChangeOutbox.record(UserChangeType.STATUS_UPDATED, foundUser);
+    userChangeLog.recordUpdated(id);
+    userDirectory.put(foundUser);
+    userRowStore.put(foundUser);
+    userPageCache.invalidate();
+    readYourWrites.pin(inputUserToken);
 
     log.debug("Updated Information for User: {}", foundUser);
     System.out.println("Updated Information for User: " + foundUser);
     return foundUser;
   }
 
+  /**
+   * Delete the user. Its change is kept as tombstone, so clients syncing the changes remove it.
+   *
+   * @param id             id of user to delete
+   * @param inputUserToken token passed in Authorized header
+   */
+  public void deleteUser(Long id, String inputUserToken) {
+    User foundUser = prepareUpdateUser(id, inputUserToken);
+
+    userRepository.delete(foundUser);
+    userRepository.flush();
+    tokenService.revoke(foundUser.getToken());
+    userChangeOutbox.record(UserChangeType.DELETED, foundUser);
+    userChangeLog.recordDeleted(id);
+    userSearchIndex.remove(id);
+    userDirectory.remove(id);
+    userRowStore.remove(id);
+    userPageCache.invalidate();
+
+    log.debug("Deleted User: {}", foundUser);
+  }
+
   /**
    * This is a helper method that will check the uniqueness criteria of the
    * username (and the name)
@@ -184,6 +477,7 @@ public class UserService {
     //        }
   }
 
+  @Transactional(readOnly = true)
   public boolean isTokenInDB(String userToken) {
     try {
       User userOptional = getUserByToken(userToken);
@@ -193,6 +487,7 @@ public class UserService {
     }
   }
 
+  @Transactional(readOnly = true)
   public boolean isTokenCorrespondingToUserId(String userToken, Long userId) {
     try {
       User user = getUserByToken(userToken);
@@ -211,10 +506,15 @@ public class UserService {
    * @param permissions currently only READ permissions allowed
    * @return true if token is in DB
    */
+  @Transactional(readOnly = true)
   public boolean isAuthorized(String token, Permissions permissions) {
     System.out.println("service: Check if authorized with token='" + token + "' and permissions='"
         + permissions.toString() + "'");
     if (!Objects.equals(token, "") && permissions == Permissions.READ) {
+      // signed tokens are checked without a database lookup
+      if (tokenService.isSignedToken(token)) {
+        return tokenService.verify(token) != null;
+      }
       return isTokenInDB(token);
     }
     return false;
@@ -228,13 +528,18 @@ public class UserService {
    * @param userId      user id to edit
    * @return true if token corresponds to userId
    */
+  @Transactional(readOnly = true)
   public boolean isAuthorized(String token, Permissions permissions, Long userId) {
     if (!Objects.equals(token, "") && permissions == Permissions.READ_WRITE) {
+      if (tokenService.isSignedToken(token)) {
+        return Objects.equals(tokenService.verify(token), userId);
+      }
       return isTokenCorrespondingToUserId(token, userId);
     }
     return false;
   }
 
+  // login reads from the primary, the user may just have registered
   public User isUserAuthorized(String username, String password) {
     User userUsername = this.userRepository.findByUsername(username);
 
@@ -254,12 +559,65 @@ public class UserService {
     return userUsername;
   }
 
+  /**
+   * Rotate the token of the user, e.g. after each login. The old token is not valid anymore.
+   *
+   * @param user user which gets a new token
+   * @return user with the new token
+   */
+  public User rotateToken(User user) {
+    tokenService.revoke(user.getToken());
+    assignToken(user);
+
+    user = userRepository.save(user);
+    userRepository.flush();
+    userChangeLog.recordUpdated(user.getId());
+    userDirectory.put(user);
+    userRowStore.put(user);
+    userPageCache.invalidate();
+    // the client reads with the new token right away, e.g. after login
+    readYourWrites.pin(user.getToken());
+    return user;
+  }
+
+  /**
+   * Logout: invalidate the given token by revoking it and replacing it with a new one. The new
+   * token is only handed out on the next login.
+   *
+   * @param token token passed in Authorization header
+   */
+  public void logout(String token) {
+    User user = getUserByToken(token);
+    rotateToken(user);
+
+    log.debug("Logged out User: {}", user);
+  }
+
+  @Transactional(readOnly = true)
   public User getUserByToken(String token) {
+    // swept tokens are null in the db, so never look up an empty token
+    if (token == null || token.isEmpty()) {
+      throw new NotFoundException("user token not found");
+    }
     User user = this.userRepository.findByToken(token);
 
-    if (user != null) {
+    if (user != null && !isTokenExpired(user)) {
       return user;
     }
     throw new NotFoundException("user token not found");
   }
+
+  /**
+   * Helper function to give the user a new token, which is valid for the configured ttl.
+   */
+  private void assignToken(User user) {
+    LocalDateTime now = LocalDateTime.now();
+    user.setToken(tokenService.issue(user.getId()));
+    user.setTokenIssued(now);
+    user.setTokenExpires(now.plus(tokenService.getTtl()));
+  }
+
+  private boolean isTokenExpired(User user) {
+    return user.getTokenExpires() != null && !user.getTokenExpires().isAfter(LocalDateTime.now());
+  }
 }
@@ -0,0 +1,423 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * User Snapshot File
+ * Compact binary format of the USER table for exports and bulk imports (see UserSnapshots).
+ * The file starts with MAGIC, followed by blocks of up to BLOCK_ROWS users and an empty block as
+ * end marker. A block has a header (row count, raw length, compressed length) and its columns,
+ * one after the other and deflate compressed together:
+ * - ids, as zigzag deltas to the previous id (variable length, ids are exported in order)
+ * - created, epoch microseconds (UTC), as zigzag deltas to the previous row (variable length)
+ * - status ordinals, one byte each, -1 for none
+ * - usernames and names, UTF-8 with the byte length + 1 in front, 0 for none
+ * - SHA-256 hashes of the tokens, a flag byte followed by the hash if there is a token
+ * Writer and Reader stream through a FileChannel with buffers of a fixed size, so their memory
+ * does not depend on the number of users.
+ */
+public final class UserSnapshotFile {
+  static final byte[] MAGIC = "USERSNP1".getBytes(StandardCharsets.US_ASCII);
+  static final int BLOCK_ROWS = 4096;
+
+  private static final int HASH_LENGTH = 32;
+  private static final int MAX_VARLONG_LENGTH = 10;
+  private static final int HEADER_LENGTH = 3 * Integer.BYTES;
+  private static final int STRINGS_CAPACITY = 256 * 1024;
+  private static final int RAW_CAPACITY = 2 * BLOCK_ROWS * MAX_VARLONG_LENGTH + BLOCK_ROWS
+      + 2 * STRINGS_CAPACITY + BLOCK_ROWS * (1 + HASH_LENGTH);
+  // more than deflate needs for incompressible data
+  private static final int COMPRESSED_CAPACITY = RAW_CAPACITY + RAW_CAPACITY / 256 + 64;
+  private static final long NO_CREATED = Long.MIN_VALUE;
+
+  private UserSnapshotFile() {}
+
+  /**
+   * Writes users to a new snapshot file, in the order of the calls to write
+   */
+  public static final class Writer implements AutoCloseable {
+    private final FileChannel channel;
+    private final MessageDigest sha256 = sha256();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    // columns of the current block
+    private final ByteBuffer ids = ByteBuffer.allocate(BLOCK_ROWS * MAX_VARLONG_LENGTH);
+    private final ByteBuffer created = ByteBuffer.allocate(BLOCK_ROWS * MAX_VARLONG_LENGTH);
+    private final ByteBuffer statuses = ByteBuffer.allocate(BLOCK_ROWS);
+    private final ByteBuffer usernames = ByteBuffer.allocate(STRINGS_CAPACITY);
+    private final ByteBuffer names = ByteBuffer.allocate(STRINGS_CAPACITY);
+    private final ByteBuffer tokenHashes = ByteBuffer.allocate(BLOCK_ROWS * (1 + HASH_LENGTH));
+    private final ByteBuffer raw = ByteBuffer.allocate(RAW_CAPACITY);
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH);
+    private final ByteBuffer compressed = ByteBuffer.allocateDirect(COMPRESSED_CAPACITY);
+
+    private int rows;
+    private long previousId;
+    private long previousCreated;
+
+    private Writer(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Create the file, or replace an existing one.
+     */
+    public static Writer create(Path file) throws IOException {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      try {
+        writeFully(channel, ByteBuffer.wrap(MAGIC));
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      return new Writer(channel);
+    }
+
+    /**
+     * Append a user, only the hash of the token is written.
+     */
+    public void write(long id, String username, String name, String token, UserStatus status,
+        LocalDateTime created) throws IOException {
+      byte[] usernameBytes = utf8(username);
+      byte[] nameBytes = utf8(name);
+      if (rows == BLOCK_ROWS || !fits(usernames, usernameBytes) || !fits(names, nameBytes)) {
+        writeBlock();
+      }
+      if (!fits(usernames, usernameBytes) || !fits(names, nameBytes)) {
+        throw new IllegalArgumentException("Username or name of user " + id + " is too long");
+      }
+
+      putVarLong(ids, zigzag(id - previousId));
+      previousId = id;
+      long createdMicros = created == null ? NO_CREATED : toEpochMicros(created);
+      putVarLong(this.created, zigzag(createdMicros - previousCreated));
+      previousCreated = createdMicros;
+      statuses.put(status == null ? -1 : (byte) status.ordinal());
+      putString(usernames, usernameBytes);
+      putString(names, nameBytes);
+      if (token == null) {
+        tokenHashes.put((byte) 0);
+      } else {
+        tokenHashes.put((byte) 1).put(sha256.digest(token.getBytes(StandardCharsets.UTF_8)));
+      }
+      rows++;
+    }
+
+    private void writeBlock() throws IOException {
+      raw.clear();
+      for (ByteBuffer column : new ByteBuffer[] {ids, created, statuses, usernames, names,
+               tokenHashes}) {
+        raw.put(column.flip());
+        column.clear();
+      }
+      raw.flip();
+
+      deflater.reset();
+      deflater.setInput(raw);
+      deflater.finish();
+      compressed.clear();
+      while (!deflater.finished()) {
+        deflater.deflate(compressed);
+      }
+      compressed.flip();
+
+      header.clear();
+      header.putInt(rows).putInt(raw.limit()).putInt(compressed.limit()).flip();
+      writeFully(channel, header);
+      writeFully(channel, compressed);
+      rows = 0;
+      previousId = 0;
+      previousCreated = 0;
+    }
+
+    /**
+     * Write the remaining users and the end marker, and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        if (rows > 0) {
+          writeBlock();
+        }
+        header.clear();
+        header.putInt(0).putInt(0).putInt(0).flip();
+        writeFully(channel, header);
+        channel.force(false);
+      } finally {
+        deflater.end();
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the users of a snapshot file, one row after the other (like a ResultSet)
+   */
+  public static final class Reader implements AutoCloseable {
+    private final FileChannel channel;
+    private final Inflater inflater = new Inflater();
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH);
+    private final ByteBuffer compressed = ByteBuffer.allocateDirect(COMPRESSED_CAPACITY);
+    private final byte[] raw = new byte[RAW_CAPACITY];
+
+    // columns of the current block
+    private final long[] ids = new long[BLOCK_ROWS];
+    private final long[] created = new long[BLOCK_ROWS];
+    private final byte[] statuses = new byte[BLOCK_ROWS];
+    private final String[] usernames = new String[BLOCK_ROWS];
+    private final String[] names = new String[BLOCK_ROWS];
+    private final boolean[] hasToken = new boolean[BLOCK_ROWS];
+    private final byte[] tokenHashes = new byte[BLOCK_ROWS * HASH_LENGTH];
+
+    private int rows;
+    private int row = -1;
+    private boolean ended;
+
+    private Reader(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    public static Reader open(Path file) throws IOException {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        readFully(channel, magic);
+        if (!Arrays.equals(magic.array(), MAGIC)) {
+          throw new IOException(file + " is not a user snapshot");
+        }
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      return new Reader(channel);
+    }
+
+    /**
+     * Move to the next user.
+     *
+     * @return false if there are no more users
+     */
+    public boolean next() throws IOException {
+      if (row + 1 < rows) {
+        row++;
+        return true;
+      }
+      while (!ended) {
+        readBlock();
+        if (rows > 0) {
+          row = 0;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public long getId() {
+      return ids[row];
+    }
+
+    public String getUsername() {
+      return usernames[row];
+    }
+
+    public String getName() {
+      return names[row];
+    }
+
+    /**
+     * @return SHA-256 hash of the token, null if the user had no token
+     */
+    public byte[] getTokenHash() {
+      return hasToken[row]
+          ? Arrays.copyOfRange(tokenHashes, row * HASH_LENGTH, (row + 1) * HASH_LENGTH)
+          : null;
+    }
+
+    public UserStatus getStatus() {
+      return statuses[row] < 0 ? null : UserStatus.values()[statuses[row]];
+    }
+
+    public LocalDateTime getCreated() {
+      return created[row] == NO_CREATED ? null : fromEpochMicros(created[row]);
+    }
+
+    private void readBlock() throws IOException {
+      header.clear();
+      readFully(channel, header);
+      header.flip();
+      int blockRows = header.getInt();
+      int rawLength = header.getInt();
+      int compressedLength = header.getInt();
+      if (blockRows < 0 || blockRows > BLOCK_ROWS || rawLength < 0 || rawLength > RAW_CAPACITY
+          || compressedLength < 0 || compressedLength > COMPRESSED_CAPACITY) {
+        throw new IOException("Corrupt user snapshot block header");
+      }
+      rows = 0;
+      row = -1;
+      if (blockRows == 0) {
+        ended = true;
+        return;
+      }
+
+      compressed.clear().limit(compressedLength);
+      readFully(channel, compressed);
+      compressed.flip();
+      inflater.reset();
+      inflater.setInput(compressed);
+      try {
+        int inflated = 0;
+        while (!inflater.finished() && inflated < rawLength) {
+          int count = inflater.inflate(raw, inflated, rawLength - inflated);
+          if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          inflated += count;
+        }
+        if (inflated != rawLength || !inflater.finished()) {
+          throw new IOException("Corrupt user snapshot block");
+        }
+        decode(ByteBuffer.wrap(raw, 0, rawLength), blockRows);
+      } catch (DataFormatException | RuntimeException e) {
+        throw new IOException("Corrupt user snapshot block", e);
+      }
+      rows = blockRows;
+    }
+
+    private void decode(ByteBuffer block, int blockRows) {
+      long id = 0;
+      for (int i = 0; i < blockRows; i++) {
+        id += unzigzag(getVarLong(block));
+        ids[i] = id;
+      }
+      long createdMicros = 0;
+      for (int i = 0; i < blockRows; i++) {
+        createdMicros += unzigzag(getVarLong(block));
+        created[i] = createdMicros;
+      }
+      block.get(statuses, 0, blockRows);
+      for (int i = 0; i < blockRows; i++) {
+        usernames[i] = getString(block);
+      }
+      for (int i = 0; i < blockRows; i++) {
+        names[i] = getString(block);
+      }
+      for (int i = 0; i < blockRows; i++) {
+        hasToken[i] = block.get() != 0;
+        if (hasToken[i]) {
+          block.get(tokenHashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+      }
+      if (block.hasRemaining()) {
+        throw new IllegalStateException("Unexpected data after the columns");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      channel.close();
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] utf8(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static boolean fits(ByteBuffer column, byte[] value) {
+    return value == null || column.remaining() >= MAX_VARLONG_LENGTH + value.length;
+  }
+
+  private static void putString(ByteBuffer column, byte[] value) {
+    if (value == null) {
+      column.put((byte) 0);
+    } else {
+      putVarLong(column, value.length + 1L);
+      column.put(value);
+    }
+  }
+
+  private static String getString(ByteBuffer block) {
+    int length = (int) getVarLong(block) - 1;
+    if (length < 0) {
+      return null;
+    }
+    String value = new String(block.array(), block.position(), length, StandardCharsets.UTF_8);
+    block.position(block.position() + length);
+    return value;
+  }
+
+  private static void putVarLong(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  private static long getVarLong(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalStateException("Variable length number too long");
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static long toEpochMicros(LocalDateTime dateTime) {
+    return dateTime.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + dateTime.getNano() / 1000;
+  }
+
+  private static LocalDateTime fromEpochMicros(long micros) {
+    return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+        Math.floorMod(micros, 1_000_000) * 1000, ZoneOffset.UTC);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Truncated user snapshot");
+      }
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Component;
+
+/**
+ * User Snapshots
+ * Export of the USER table to a snapshot file (see UserSnapshotFile) and bulk import of such a
+ * file, e.g. to migrate or seed an environment. Available as actuator endpoint "usersnapshots"
+ * (POST to usersnapshots/export or usersnapshots/import with {"path": "<file>"}, with
+ * user.actuator.token in the Authorization header), which answers with the number of users and
+ * users per second.
+ * - the export streams the users ordered by id, with a fetch size of user.snapshot.batch-size
+ * - the import keeps the ids and inserts in JDBC batches of user.snapshot.batch-size users, each
+ * committed on its own (the batches imported before a failure stay). Afterwards, also after a
+ * failure, the id sequence is moved past the committed ids, the users are added to the change
+ * log, the search index, the user directory and the user row store are rebuilt, and the cached
+ * pages are outdated.
+ * - passwords and tokens are not exported, only a hash of the token. Imported users get a random
+ * password and no token, so they cannot log in until a new password is set.
+ * Imports should run while no users are created. Not available with sharding, the shards are
+ * moved with the "reshard" endpoint instead. Imported users are not recorded in the outbox (see
+ * UserChangeOutbox), so no created events are published for them: consumers of the events have
+ * to be seeded from the same snapshot.
+ */
+@Component
+@Endpoint(id = "usersnapshots")
+@ConditionalOnExpression("'${user.sharding.shard-urls:}'.isBlank()")
+public class UserSnapshots {
+  private static final String SELECT =
+      "select id, username, name, token, status, created from user order by id";
+  private static final String INSERT =
+      "insert into user (id, username, name, password, status, created) values (?, ?, ?, ?, ?, ?)";
+
+  private final Logger log = LoggerFactory.getLogger(UserSnapshots.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final UserChangeLog userChangeLog;
+  private final UserSearchIndex userSearchIndex;
+  private final UserDirectory userDirectory;
+  private final UserRowStore userRowStore;
+  private final UserPageCache userPageCache;
+  private final int batchSize;
+  private final SecureRandom random = new SecureRandom();
+
+  public UserSnapshots(DataSource dataSource, UserChangeLog userChangeLog,
+      UserSearchIndex userSearchIndex, UserDirectory userDirectory, UserRowStore userRowStore,
+      UserPageCache userPageCache,
+      @Value("${user.snapshot.batch-size:1000}") int batchSize) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.jdbcTemplate.setFetchSize(batchSize);
+    this.userChangeLog = userChangeLog;
+    this.userSearchIndex = userSearchIndex;
+    this.userDirectory = userDirectory;
+    this.userRowStore = userRowStore;
+    this.userPageCache = userPageCache;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Export or import the users.
+   *
+   * @param action "export" or "import"
+   * @param path snapshot file, replaced by an export
+   * @return number of users, duration and users per second
+   */
+  @WriteOperation
+  public synchronized Map<String, Object> run(@Selector String action, String path)
+      throws IOException {
+    long start = System.nanoTime();
+    long users;
+    if (action.equals("export")) {
+      users = export(Paths.get(path));
+    } else if (action.equals("import")) {
+      users = importSnapshot(Paths.get(path));
+    } else {
+      throw new IllegalArgumentException("Unknown action " + action);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("users", users);
+    result.put("millis", Math.round(seconds * 1000));
+    result.put("usersPerSecond", Math.round(users / seconds));
+    log.info("{} of {} users: {} ms, {} users/s", action, users, result.get("millis"),
+        result.get("usersPerSecond"));
+    return result;
+  }
+
+  /**
+   * Write all users to the file.
+   *
+   * @return number of exported users
+   */
+  public long export(Path file) throws IOException {
+    try (UserSnapshotFile.Writer writer = UserSnapshotFile.Writer.create(file)) {
+      ResultSetExtractor<Long> extractor = resultSet -> {
+        long users = 0;
+        while (resultSet.next()) {
+          int status = resultSet.getInt("status");
+          UserStatus userStatus = resultSet.wasNull() ? null : UserStatus.values()[status];
+          try {
+            writer.write(resultSet.getLong("id"), resultSet.getString("username"),
+                resultSet.getString("name"), resultSet.getString("token"), userStatus,
+                resultSet.getObject("created", LocalDateTime.class));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          users++;
+        }
+        return users;
+      };
+      return jdbcTemplate.query(SELECT, extractor);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Insert the users of the file, they must not exist yet.
+   *
+   * @return number of imported users
+   */
+  public long importSnapshot(Path file) throws IOException {
+    // highest id of the current batch and of the committed batches
+    long[] maxId = {0, 0};
+    try (UserSnapshotFile.Reader reader = UserSnapshotFile.Reader.open(file)) {
+      return jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+          long inserted = 0;
+          int batched = 0;
+          while (reader.next()) {
+            insert.setLong(1, reader.getId());
+            insert.setString(2, reader.getUsername());
+            insert.setString(3, reader.getName());
+            insert.setString(4, randomPassword());
+            if (reader.getStatus() == null) {
+              insert.setNull(5, Types.INTEGER);
+            } else {
+              insert.setInt(5, reader.getStatus().ordinal());
+            }
+            insert.setObject(6, reader.getCreated());
+            insert.addBatch();
+            maxId[0] = Math.max(maxId[0], reader.getId());
+            inserted++;
+            if (++batched == batchSize) {
+              insert.executeBatch();
+              connection.commit();
+              maxId[1] = maxId[0];
+              batched = 0;
+            }
+          }
+          insert.executeBatch();
+          connection.commit();
+          maxId[1] = maxId[0];
+          return inserted;
+        } catch (SQLException | RuntimeException e) {
+          connection.rollback();
+          throw e;
+        } catch (IOException e) {
+          connection.rollback();
+          throw new UncheckedIOException(e);
+        } finally {
+          connection.setAutoCommit(autoCommit);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      // the batches committed before a failure are imported as well
+      if (maxId[1] > 0) {
+        advanceIdSequence(maxId[1]);
+        userChangeLog.recordImported();
+        userSearchIndex.rebuild();
+        userDirectory.load();
+        userRowStore.refresh();
+        userPageCache.invalidate();
+      }
+    }
+  }
+
+  /**
+   * make sure the ids of new users come after the imported ones
+   */
+  private void advanceIdSequence(long maxId) {
+    Long next = jdbcTemplate.queryForObject("select next value for hibernate_sequence", Long.class);
+    if (next != null && next <= maxId) {
+      jdbcTemplate.execute("alter sequence hibernate_sequence restart with " + (maxId + 1));
+    }
+  }
+
+  private String randomPassword() {
+    byte[] bytes = new byte[18];
+    random.nextBytes(bytes);
+    return Base64.getUrlEncoder().encodeToString(bytes);
+  }
+}
@@ -0,0 +1,134 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.Application;
+import ch.uzh.ifi.hase.soprafs24.config.AllocationProfiler;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Measures the bytes allocated per request of every UserController route with the
+ * AllocationProfiler and fails if a route allocates more than its budget. Prints the allocation
+ * rate and the top allocation sites of every route.
+ * Run with ./gradlew benchmark
+ */
+@Tag("benchmark")
+public class AllocationBenchmark {
+  private static final int REQUESTS = 200;
+
+  // route -> maximum bytes allocated per request, about twice the measured figure
+  // (GET /users with 2 * REQUESTS users)
+  private static final Map<String, Long> BUDGETS = new LinkedHashMap<>();
+  static {
+    BUDGETS.put("POST /users", 200_000L);
+    BUDGETS.put("POST /users/auth", 150_000L);
+    BUDGETS.put("GET /users", 2_500_000L);
+    BUDGETS.put("GET /users/{id}", 150_000L);
+    BUDGETS.put("PUT /users/{id}", 200_000L);
+    BUDGETS.put("PATCH /users/{id}/status", 200_000L);
+  }
+
+  private final HttpClient httpClient = HttpClient.newHttpClient();
+  private String baseUrl;
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void bytesPerRequest() throws Exception {
+    ConfigurableApplicationContext context =
+        new SpringApplicationBuilder(Application.class)
+            .properties("logging.level.root=WARN", "spring.jpa.show-sql=false")
+            // application.properties takes precedence over the default properties above
+            .run("--server.port=0", "--spring.datasource.url=jdbc:h2:mem:benchmark-allocations",
+                "--user.profiling.allocations=true");
+    try {
+      baseUrl = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer()
+                                          .getPort();
+      AllocationProfiler profiler = context.getBean(AllocationProfiler.class);
+
+      // warm up, so class loading and JIT compilation are not part of the measurement
+      runRoutes("warmup");
+      profiler.reset();
+      runRoutes("run");
+      // the allocation samples are attributed on the next flush of the recording
+      Thread.sleep(2000);
+
+      List<String> failures = new ArrayList<>();
+      Map<String, Object> allocations = profiler.allocations();
+      BUDGETS.forEach((route, budget) -> {
+        Map<String, Object> figures = (Map<String, Object>) allocations.get(route);
+        assertNotNull(figures, route);
+        long bytesPerRequest = profiler.getBytesPerRequest(route);
+        System.out.printf("%-25s %,10d bytes/request %,14d bytes/s%n", route, bytesPerRequest,
+            figures.get("bytesPerSecond"));
+        for (Map<String, Object> site : (List<Map<String, Object>>) figures.get("topSites")) {
+          System.out.printf("    %5.1f%% %s%n", site.get("share"), site.get("site"));
+        }
+        if (bytesPerRequest > budget) {
+          failures.add(route + " allocates " + bytesPerRequest + " bytes per request, budget "
+              + budget);
+        }
+      });
+      assertTrue(failures.isEmpty(), String.join("\n", failures));
+    } finally {
+      context.close();
+    }
+  }
+
+  /**
+   * register REQUESTS users and send REQUESTS requests to every other route
+   */
+  private void runRoutes(String prefix) throws Exception {
+    List<String[]> users = new ArrayList<>();
+    for (int i = 0; i < REQUESTS; i++) {
+      String username = prefix + "-" + i;
+      String created = send("POST", "/users", null,
+          "{\"name\":\"" + username + "\",\"username\":\"" + username
+              + "\",\"password\":\"psw\"}",
+          201);
+      users.add(new String[] {created.replaceAll(".*\"id\":(\\d+).*", "$1"), username});
+    }
+
+    for (int i = 0; i < REQUESTS; i++) {
+      String id = users.get(i)[0];
+      String username = users.get(i)[1];
+      String login = send("POST", "/users/auth", null,
+          "{\"username\":\"" + username + "\",\"password\":\"psw\"}", 200);
+      String token = login.replaceAll(".*\"token\":\"([^\"]+)\".*", "$1");
+      send("GET", "/users", token, null, 200);
+      send("GET", "/users/" + id, token, null, 200);
+      send("PUT", "/users/" + id, token,
+          "{\"username\":\"" + username + "\",\"name\":\"" + username
+              + " edited\",\"birthday\":\"2000-01-01\"}",
+          204);
+      send("PATCH", "/users/" + id + "/status", token, "{\"status\":\"ONLINE\"}", 204);
+    }
+  }
+
+  private String send(String method, String path, String token, String body, int expectedStatus)
+      throws Exception {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                                      .header("Content-Type", "application/json")
+                                      .method(method,
+                                          body == null ? HttpRequest.BodyPublishers.noBody()
+                                                       : HttpRequest.BodyPublishers.ofString(body));
+    if (token != null) {
+      request.header("Authorization", token);
+    }
+    HttpResponse<String> response =
+        httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    assertEquals(expectedStatus, response.statusCode(), method + " " + path);
+    return response.body();
+  }
+}
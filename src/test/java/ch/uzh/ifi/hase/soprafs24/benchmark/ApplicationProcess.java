@@ -0,0 +1,127 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.Application;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The application started in its own process (a JVM or a native binary) on a free port, for
+ * benchmarks which measure the startup.
+ */
+class ApplicationProcess implements AutoCloseable {
+  private static final Duration TIMEOUT = Duration.ofMinutes(1);
+
+  private final HttpClient httpClient =
+      HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+  private final int port;
+  private final long start;
+  private final Process process;
+
+  /**
+   * @param command command starting the application, without application arguments
+   * @param appArgs application arguments, e.g. profiles
+   */
+  ApplicationProcess(List<String> command, List<String> appArgs) throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    List<String> fullCommand = new ArrayList<>(command);
+    fullCommand.add("--server.port=" + port);
+    fullCommand.add("--logging.level.root=WARN");
+    fullCommand.add("--spring.jpa.show-sql=false");
+    fullCommand.addAll(appArgs);
+
+    start = System.nanoTime();
+    process = new ProcessBuilder(fullCommand).redirectErrorStream(true)
+                  .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                  .start();
+  }
+
+  /**
+   * Command starting the application in a new JVM. The class path is taken from the
+   * startup.classpath system property (set by Gradle to the jar class path), or the class path
+   * of the tests.
+   */
+  static List<String> jvmCommand(List<String> jvmArgs) {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(jvmArgs);
+    command.add("-cp");
+    command.add(System.getProperty("startup.classpath", System.getProperty("java.class.path")));
+    command.add(Application.class.getName());
+    return command;
+  }
+
+  String baseUrl() {
+    return "http://localhost:" + port;
+  }
+
+  /**
+   * Wait until the first registration (POST /users with username "first") succeeded.
+   *
+   * @return milliseconds since the process was started
+   */
+  long awaitFirstRequest() throws Exception {
+    String body = "{\"name\":\"first\",\"username\":\"first\",\"password\":\"psw\"}";
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl() + "/users"))
+                              .header("Content-Type", "application/json")
+                              .POST(HttpRequest.BodyPublishers.ofString(body))
+                              .build();
+    while (System.nanoTime() - start < TIMEOUT.toNanos()) {
+      if (!process.isAlive()) {
+        fail("application exited with " + process.exitValue());
+      }
+      try {
+        HttpResponse<String> response =
+            httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(201, response.statusCode());
+        return (System.nanoTime() - start) / 1_000_000;
+      } catch (IOException e) {
+        // not listening yet, or connection reset while the server starts
+        Thread.sleep(10);
+      }
+    }
+    fail("no response within " + TIMEOUT);
+    return -1;
+  }
+
+  /**
+   * @return resident set size of the process in KiB, -1 if unknown (only available on Linux)
+   */
+  long rssKb() throws IOException {
+    Path status = Paths.get("/proc", Long.toString(process.pid()), "status");
+    if (!Files.exists(status)) {
+      return -1;
+    }
+    for (String line : Files.readAllLines(status)) {
+      if (line.startsWith("VmRSS:")) {
+        return Long.parseLong(line.replaceAll("\\D", ""));
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public void close() {
+    process.destroy();
+    try {
+      process.waitFor(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.Application;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Compares the in-memory database with the file-backed mode (profile "file"): time to restart
+ * the application and latency of findByToken, which is called for every authorized request.
+ * Run with ./gradlew benchmark
+ */
+@Tag("benchmark")
+public class H2PersistenceModeBenchmark {
+  private static final int USERS = 20_000;
+  private static final int LOOKUPS = 50_000;
+
+  @TempDir Path dataDirectory;
+
+  @Test
+  public void compareModes() {
+    measure("mem", null);
+    measure("file", dataDirectory.resolve("users").toString());
+  }
+
+  /**
+   * insert users, measure findByToken, restart the application and measure again
+   *
+   * @param file database file, or null for the in-memory database
+   */
+  private void measure(String mode, String file) {
+    List<String> tokens = new ArrayList<>();
+    try (ConfigurableApplicationContext context = start(file)) {
+      UserRepository userRepository = context.getBean(UserRepository.class);
+      List<User> users = new ArrayList<>();
+      for (int i = 0; i < USERS; i++) {
+        User user = new User();
+        user.setName("user " + i);
+        user.setUsername("user" + i);
+        user.setPassword("psw");
+        user.setStatus(UserStatus.OFFLINE);
+        user.setToken(UUID.randomUUID().toString());
+        users.add(user);
+        tokens.add(user.getToken());
+      }
+      userRepository.saveAll(users);
+      System.out.printf("%s: findByToken %s%n", mode, lookupLatency(userRepository, tokens));
+    }
+
+    long start = System.nanoTime();
+    try (ConfigurableApplicationContext context = start(file)) {
+      System.out.printf("%s: restart %.0f ms%n", mode, (System.nanoTime() - start) / 1e6);
+      UserRepository userRepository = context.getBean(UserRepository.class);
+      if (file == null) {
+        // the in-memory database is empty after a restart, all users have to register again
+        assertEquals(0, userRepository.count());
+      } else {
+        assertEquals(USERS, userRepository.count());
+        System.out.printf(
+            "%s: findByToken after restart %s%n", mode, lookupLatency(userRepository, tokens));
+      }
+    }
+  }
+
+  private String lookupLatency(UserRepository userRepository, List<String> tokens) {
+    Random random = new Random(42);
+    long[] latencies = new long[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      String token = tokens.get(random.nextInt(tokens.size()));
+      long lookupStart = System.nanoTime();
+      assertNotNull(userRepository.findByToken(token));
+      latencies[i] = System.nanoTime() - lookupStart;
+    }
+    Arrays.sort(latencies);
+    return String.format("p50=%.1f us, p99=%.1f us", latencies[LOOKUPS / 2] / 1e3,
+        latencies[LOOKUPS * 99 / 100] / 1e3);
+  }
+
+  private ConfigurableApplicationContext start(String file) {
+    SpringApplicationBuilder builder =
+        new SpringApplicationBuilder(Application.class)
+            .web(WebApplicationType.NONE)
+            .properties("logging.level.root=WARN", "spring.jpa.show-sql=false",
+                "user.token.sweeper.enabled=false");
+    if (file == null) {
+      return builder.properties("spring.datasource.url=jdbc:h2:mem:benchmark-mode").run();
+    }
+    return builder.profiles("file").properties("user.h2.file=" + file).run();
+  }
+}
@@ -0,0 +1,156 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the scenarios of the UserControllerTest over HTTP against the JVM build and the native
+ * binary and compares the results, the time to the first request and the resident memory.
+ * Run with ./gradlew nativeParity -PnativeBinary=path/to/binary. The native binary is built with
+ * ./gradlew -Pnative bootBuildImage (the binary is in /workspace of the image) or with the
+ * native-image tool of a local GraalVM. Without a native binary only the JVM build is checked.
+ */
+@Tag("benchmark")
+public class NativeImageBenchmark {
+  private static final Pattern JSON_KEY = Pattern.compile("\"(\\w+)\":");
+
+  /**
+   * status codes as expected by the UserControllerTest
+   */
+  private static final List<String> EXPECTED = List.of("POST /users -> 201",
+      "POST /users duplicate -> 400", "POST /users/auth -> 200",
+      "POST /users/auth wrong password -> 403", "POST /users/auth no input -> 400",
+      "GET /users -> 200", "GET /users invalid token -> 403", "GET /users?ids -> 200",
+      "GET /users?fields -> 200 [id, username]", "GET /users/search -> 200",
+      "GET /users/search empty query -> 400",
+      "GET /users/{id} -> 200 [birthday, created, id, name, status, token, username]",
+      "GET /users/{id} unknown id -> 404", "GET /users/{id}?fields unknown field -> 400",
+      "PUT /users/{id} -> 204", "PUT /users/{id} empty username -> 400",
+      "PATCH /users/{id}/status -> 204", "PATCH /users/{id}/status no status -> 400",
+      "DELETE /users/auth -> 204", "DELETE /users/auth old token -> 403");
+
+  private final HttpClient httpClient = HttpClient.newHttpClient();
+
+  @Test
+  public void compareJvmAndNative() throws Exception {
+    List<String> jvmResults;
+    long jvmStart;
+    long jvmRss;
+    try (ApplicationProcess jvm =
+             new ApplicationProcess(ApplicationProcess.jvmCommand(List.of()), List.of())) {
+      jvmStart = jvm.awaitFirstRequest();
+      jvmResults = runScenarios(jvm.baseUrl());
+      jvmRss = jvm.rssKb();
+    }
+    assertEquals(EXPECTED, jvmResults);
+    System.out.printf("JVM: first request after %d ms, RSS %d MiB%n", jvmStart, jvmRss / 1024);
+
+    String nativeBinary = System.getProperty("native.binary");
+    Assumptions.assumeTrue(
+        nativeBinary != null && !nativeBinary.isEmpty(), "no native binary given");
+    try (ApplicationProcess nativeImage =
+             new ApplicationProcess(List.of(nativeBinary), List.of())) {
+      long nativeStart = nativeImage.awaitFirstRequest();
+      assertEquals(jvmResults, runScenarios(nativeImage.baseUrl()));
+      System.out.printf("Native: first request after %d ms, RSS %d MiB%n", nativeStart,
+          nativeImage.rssKb() / 1024);
+    }
+  }
+
+  private List<String> runScenarios(String baseUrl) throws Exception {
+    List<String> results = new ArrayList<>();
+    String user = "{\"name\":\"parity\",\"username\":\"parity\",\"password\":\"psw\"}";
+
+    HttpResponse<String> created = send(baseUrl, "POST", "/users", null, user);
+    results.add("POST /users -> " + created.statusCode());
+    String id = created.body().replaceAll(".*\"id\":(\\d+).*", "$1");
+    results.add("POST /users duplicate -> " + status(baseUrl, "POST", "/users", null, user));
+
+    HttpResponse<String> login = send(baseUrl, "POST", "/users/auth", null,
+        "{\"username\":\"parity\",\"password\":\"psw\"}");
+    results.add("POST /users/auth -> " + login.statusCode());
+    String token = login.body().replaceAll(".*\"token\":\"([^\"]+)\".*", "$1");
+    results.add("POST /users/auth wrong password -> "
+        + status(baseUrl, "POST", "/users/auth", null,
+            "{\"username\":\"parity\",\"password\":\"wrong\"}"));
+    results.add(
+        "POST /users/auth no input -> " + status(baseUrl, "POST", "/users/auth", null, "{}"));
+
+    results.add("GET /users -> " + status(baseUrl, "GET", "/users", token, null));
+    results.add("GET /users invalid token -> " + status(baseUrl, "GET", "/users", "invalid", null));
+    results.add("GET /users?ids -> " + status(baseUrl, "GET", "/users?ids=" + id, token, null));
+    results.add("GET /users?fields -> "
+        + withKeys(send(baseUrl, "GET", "/users?fields=username", token, null)));
+    results.add(
+        "GET /users/search -> " + status(baseUrl, "GET", "/users/search?q=par", token, null));
+    results.add("GET /users/search empty query -> "
+        + status(baseUrl, "GET", "/users/search?q=", token, null));
+
+    results.add(
+        "GET /users/{id} -> " + withKeys(send(baseUrl, "GET", "/users/" + id, token, null)));
+    results.add("GET /users/{id} unknown id -> "
+        + status(baseUrl, "GET", "/users/999999", token, null));
+    results.add("GET /users/{id}?fields unknown field -> "
+        + status(baseUrl, "GET", "/users/" + id + "?fields=unknown", token, null));
+
+    results.add("PUT /users/{id} -> "
+        + status(baseUrl, "PUT", "/users/" + id, token,
+            "{\"username\":\"parity2\",\"name\":\"parity\",\"birthday\":\"2000-01-01\"}"));
+    results.add("PUT /users/{id} empty username -> "
+        + status(baseUrl, "PUT", "/users/" + id, token, "{\"username\":\"\"}"));
+    results.add("PATCH /users/{id}/status -> "
+        + status(baseUrl, "PATCH", "/users/" + id + "/status", token, "{\"status\":\"ONLINE\"}"));
+    results.add("PATCH /users/{id}/status no status -> "
+        + status(baseUrl, "PATCH", "/users/" + id + "/status", token, "{}"));
+
+    results.add("DELETE /users/auth -> " + status(baseUrl, "DELETE", "/users/auth", token, null));
+    results.add("DELETE /users/auth old token -> "
+        + status(baseUrl, "DELETE", "/users/auth", token, null));
+    return results;
+  }
+
+  /**
+   * status and the keys of the first JSON object in the body, shows that all fields are
+   * serialized
+   */
+  private static String withKeys(HttpResponse<String> response) {
+    String body = response.body();
+    String firstObject = body.substring(0, Math.max(body.indexOf('}'), 0));
+    TreeSet<String> keys = new TreeSet<>();
+    Matcher matcher = JSON_KEY.matcher(firstObject);
+    while (matcher.find()) {
+      keys.add(matcher.group(1));
+    }
+    return response.statusCode() + " " + keys;
+  }
+
+  private int status(String baseUrl, String method, String path, String token, String body)
+      throws Exception {
+    return send(baseUrl, method, path, token, body).statusCode();
+  }
+
+  private HttpResponse<String> send(
+      String baseUrl, String method, String path, String token, String body) throws Exception {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                                      .header("Content-Type", "application/json")
+                                      .method(method,
+                                          body == null ? HttpRequest.BodyPublishers.noBody()
+                                                       : HttpRequest.BodyPublishers.ofString(body));
+    if (token != null) {
+      request.header("Authorization", token);
+    }
+    return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+}
@@ -0,0 +1,183 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.Application;
+import ch.uzh.ifi.hase.soprafs24.config.QueryCounter;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Compares the UserController throughput with the default and the prod persistence profile.
+ * Both profiles run the same mix of registrations, logins, list and detail requests with
+ * concurrent clients against the application on a random port.
+ * Fails if the prod profile is not at least MIN_THROUGHPUT_RATIO times faster, or if creating
+ * BATCH_USERS users in one transaction does not send the user inserts as one JDBC batch.
+ * Run with ./gradlew benchmark
+ */
+@Tag("benchmark")
+public class PersistenceProfileBenchmark {
+  private static final int USERS = 200;
+  private static final int READS_PER_CLIENT = 200;
+  private static final int CLIENTS = 8;
+  // users created in one transaction, at most hibernate.jdbc.batch_size of the prod profile
+  private static final int BATCH_USERS = 50;
+  private static final double MIN_THROUGHPUT_RATIO = 1.2;
+
+  private final HttpClient httpClient = HttpClient.newHttpClient();
+
+  @Test
+  public void compareProfiles() throws Exception {
+    Result defaultResult = measure("default");
+    Result prodResult = measure("prod");
+
+    double ratio = prodResult.throughput / defaultResult.throughput;
+    System.out.printf("UserController throughput: default=%.0f req/s, prod=%.0f req/s (%+.0f%%)%n",
+        defaultResult.throughput, prodResult.throughput, (ratio - 1) * 100);
+    System.out.printf("Creating %d users: default=%d statements (%d user inserts),"
+            + " prod=%d statements (%d user inserts)%n",
+        BATCH_USERS, defaultResult.statements, defaultResult.userInserts, prodResult.statements,
+        prodResult.userInserts);
+
+    // one insert per user without batching, one JDBC batch of up to batch_size inserts with; the
+    // inserts into user_change are batched as well, the outbox ids are generated by the database
+    assertEquals(BATCH_USERS, defaultResult.userInserts);
+    assertEquals(1, prodResult.userInserts);
+    assertEquals(defaultResult.statements - 2 * (BATCH_USERS - 1), prodResult.statements);
+    assertTrue(ratio >= MIN_THROUGHPUT_RATIO, "prod / default throughput " + ratio);
+  }
+
+  private Result measure(String profile) throws Exception {
+    ConfigurableApplicationContext context =
+        new SpringApplicationBuilder(Application.class)
+            .profiles(profile)
+            .properties("logging.level.root=WARN", "spring.jpa.show-sql=false")
+            // arguments, application.properties takes precedence over the default properties
+            .run("--server.port=0", "--spring.datasource.url=jdbc:h2:mem:benchmark-" + profile,
+                "--user.queries.enabled=true");
+    try {
+      int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+      String baseUrl = "http://localhost:" + port;
+
+      // warm up, so JIT and connection creation are not part of the measurement
+      runMix(baseUrl, "warmup", USERS / 4, READS_PER_CLIENT / 4);
+
+      Result result = new Result();
+      long start = System.nanoTime();
+      int requests = runMix(baseUrl, "run", USERS, READS_PER_CLIENT);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      result.throughput = requests / seconds;
+
+      List<User> newUsers = new ArrayList<>();
+      for (int i = 0; i < BATCH_USERS; i++) {
+        User user = new User();
+        user.setName("batch-" + i);
+        user.setUsername("batch-" + i);
+        user.setPassword("psw");
+        newUsers.add(user);
+      }
+      UserService userService = context.getBean(UserService.class);
+      QueryCounter.QueryStatistics statistics =
+          context.getBean(QueryCounter.class).measure(() -> userService.createUsers(newUsers));
+      result.statements = statistics.getCount();
+      statistics.getExecutions().forEach((sql, executions) -> {
+        if (sql.toLowerCase().startsWith("insert into user ")) {
+          result.userInserts += executions;
+        }
+      });
+      return result;
+    } finally {
+      context.close();
+    }
+  }
+
+  private static class Result {
+    private double throughput;
+    // statements and executions of the user insert (one per JDBC batch) of createUsers
+    private int statements;
+    private int userInserts;
+  }
+
+  /**
+   * register users, then let concurrent clients log in and read lists and single users
+   *
+   * @return number of requests sent
+   */
+  private int runMix(String baseUrl, String prefix, int users, int readsPerClient)
+      throws Exception {
+    AtomicInteger requests = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+    try {
+      List<Future<?>> registrations = new ArrayList<>();
+      for (int i = 0; i < users; i++) {
+        String username = prefix + "-" + i;
+        registrations.add(executor.submit(() -> {
+          send(baseUrl + "/users", "POST", null,
+              "{\"name\":\"" + username + "\",\"username\":\"" + username
+                  + "\",\"password\":\"psw\"}",
+              201);
+          requests.incrementAndGet();
+          return null;
+        }));
+      }
+      for (Future<?> registration : registrations) {
+        registration.get();
+      }
+
+      List<Future<?>> clients = new ArrayList<>();
+      for (int client = 0; client < CLIENTS; client++) {
+        String username = prefix + "-" + client;
+        clients.add(executor.submit(() -> {
+          String login = send(baseUrl + "/users/auth", "POST", null,
+              "{\"username\":\"" + username + "\",\"password\":\"psw\"}", 200);
+          String token = login.replaceAll(".*\"token\":\"([^\"]+)\".*", "$1");
+          String id = login.replaceAll(".*\"id\":(\\d+).*", "$1");
+          requests.incrementAndGet();
+          for (int i = 0; i < readsPerClient; i++) {
+            String path = i % 10 == 0 ? "/users" : "/users/" + id;
+            send(baseUrl + path, "GET", token, null, 200);
+            requests.incrementAndGet();
+          }
+          return null;
+        }));
+      }
+      for (Future<?> client : clients) {
+        client.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    return requests.get();
+  }
+
+  private String send(String url, String method, String token, String body, int expectedStatus)
+      throws Exception {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                                      .header("Content-Type", "application/json")
+                                      .method(method,
+                                          body == null ? HttpRequest.BodyPublishers.noBody()
+                                                       : HttpRequest.BodyPublishers.ofString(body));
+    if (token != null) {
+      request.header("Authorization", token);
+    }
+    HttpResponse<String> response =
+        httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    assertEquals(expectedStatus, response.statusCode(), url);
+    return response.body();
+  }
+}
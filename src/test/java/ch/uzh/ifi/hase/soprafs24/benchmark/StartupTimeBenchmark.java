@@ -0,0 +1,49 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the time from starting the JVM until the first registration (POST /users) succeeded,
+ * for the default configuration, the fast-start profile, and the fast-start profile with the
+ * class data sharing archive of the cdsArchive Gradle task. Every variant is started a few
+ * times in a new JVM, the median is reported.
+ * Run with ./gradlew startupTime, which builds the archive and passes the jar class path (class
+ * data sharing only works with classes from jar files).
+ */
+@Tag("benchmark")
+public class StartupTimeBenchmark {
+  private static final int RUNS = 3;
+
+  @Test
+  public void timeToFirstRequest() throws Exception {
+    long defaultStart = median(List.of(), List.of());
+    long fastStart = median(List.of(), List.of("--spring.profiles.active=fast-start"));
+    System.out.printf("Time to first request: default=%d ms, fast-start=%d ms%n", defaultStart,
+        fastStart);
+
+    String cdsArchive = System.getProperty("startup.cds-archive");
+    if (cdsArchive != null && new File(cdsArchive).exists()) {
+      long cdsStart = median(List.of("-XX:SharedArchiveFile=" + cdsArchive),
+          List.of("--spring.profiles.active=fast-start"));
+      System.out.printf("Time to first request: fast-start with class data sharing=%d ms%n",
+          cdsStart);
+    }
+  }
+
+  private long median(List<String> jvmArgs, List<String> appArgs) throws Exception {
+    List<Long> times = new ArrayList<>();
+    for (int run = 0; run < RUNS; run++) {
+      try (ApplicationProcess application =
+               new ApplicationProcess(ApplicationProcess.jvmCommand(jvmArgs), appArgs)) {
+        times.add(application.awaitFirstRequest());
+      }
+    }
+    Collections.sort(times);
+    return times.get(RUNS / 2);
+  }
+}
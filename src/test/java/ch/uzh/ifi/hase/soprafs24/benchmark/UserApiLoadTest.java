@@ -0,0 +1,309 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.Application;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Load test of the user API: boots the application on a random port against an in-memory H2
+ * and sends a mix of register, login, list, get, update and status requests at a fixed rate.
+ * The load generator follows an open model: requests are sent at their scheduled time, no matter
+ * how many are still waiting for a response. Latencies are measured from the scheduled time, so
+ * a stalled server shows up in the percentiles instead of slowing down the generator
+ * (coordinated omission).
+ * The run fails if a route answers with unexpected status codes, or if its p99 latency is more
+ * than loadtest.tolerance above the baseline in loadtest/baseline.properties.
+ * Run with ./gradlew loadTest, configured with system properties:
+ * - loadtest.rps: requests per second (default 50)
+ * - loadtest.duration: measured duration (default PT30S), after a warmup of loadtest.warmup
+ * - loadtest.mix: weights of the routes (default register:5,login:5,list:10,get:50,update:15,
+ * status:15)
+ * - loadtest.tolerance: allowed p99 regression over the baseline (default 1.0, i.e. +100%)
+ */
+@Tag("benchmark")
+public class UserApiLoadTest {
+  private static final int USERS = 100;
+  private static final String PASSWORD = "psw";
+
+  private final int rps = Integer.getInteger("loadtest.rps", 50);
+  private final Duration duration =
+      Duration.parse(System.getProperty("loadtest.duration", "PT30S"));
+  private final Duration warmup = Duration.parse(System.getProperty("loadtest.warmup", "PT5S"));
+  private final String mix = System.getProperty(
+      "loadtest.mix", "register:5,login:5,list:10,get:50,update:15,status:15");
+  private final double tolerance =
+      Double.parseDouble(System.getProperty("loadtest.tolerance", "1.0"));
+
+  private final HttpClient httpClient = HttpClient.newBuilder()
+                                            .version(HttpClient.Version.HTTP_1_1)
+                                            .connectTimeout(Duration.ofSeconds(5))
+                                            .build();
+  private final AtomicInteger registrations = new AtomicInteger();
+
+  private String baseUrl;
+  // id, token and username of the users sending the authorized requests
+  private final List<String[]> users = new ArrayList<>();
+  // users which only log in, logging in rotates the token
+  private final List<String> loginUsernames = new ArrayList<>();
+
+  @Test
+  public void userApiUnderLoad() throws Exception {
+    ConfigurableApplicationContext context =
+        new SpringApplicationBuilder(Application.class)
+            .properties("logging.level.root=WARN", "spring.jpa.show-sql=false")
+            // arguments, application.properties takes precedence over the default properties
+            .run("--server.port=0", "--spring.datasource.url=jdbc:h2:mem:loadtest");
+    try {
+      baseUrl = "http://localhost:"
+          + ((WebServerApplicationContext) context).getWebServer().getPort();
+      createUsers();
+
+      run(warmup, new LinkedHashMap<>());
+      Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+      run(duration, recorders);
+
+      report(recorders);
+    } finally {
+      context.close();
+    }
+  }
+
+  private void createUsers() throws Exception {
+    for (int i = 0; i < USERS; i++) {
+      String username = "load" + i;
+      HttpResponse<String> created = send(route("POST", "/users", null,
+          "{\"name\":\"" + username + "\",\"username\":\"" + username + "\",\"password\":\""
+              + PASSWORD + "\"}"))
+                                         .get();
+      users.add(new String[] {
+          extract(created.body(), "id"), extract(created.body(), "token"), username});
+
+      String loginUsername = "login" + i;
+      send(route("POST", "/users", null,
+               "{\"name\":\"" + loginUsername + "\",\"username\":\"" + loginUsername
+                   + "\",\"password\":\"" + PASSWORD + "\"}"))
+          .get();
+      loginUsernames.add(loginUsername);
+    }
+  }
+
+  private static String extract(String json, String key) {
+    return json.replaceAll(".*\"" + key + "\":\"?([^\",}]+)\"?.*", "$1");
+  }
+
+  /**
+   * send requests at the target rate for the given duration
+   */
+  private void run(Duration runDuration, Map<String, LatencyRecorder> recorders)
+      throws Exception {
+    List<String> routes = new ArrayList<>();
+    List<Integer> cumulativeWeights = new ArrayList<>();
+    int totalWeight = 0;
+    for (String entry : mix.split(",")) {
+      String[] routeAndWeight = entry.trim().split(":");
+      totalWeight += Integer.parseInt(routeAndWeight[1]);
+      routes.add(routeAndWeight[0]);
+      cumulativeWeights.add(totalWeight);
+      recorders.computeIfAbsent(routeAndWeight[0], LatencyRecorder::new);
+    }
+
+    // same sequence of routes in every run
+    Random random = new Random(42);
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rps;
+    long requests = runDuration.toNanos() / intervalNanos;
+    List<CompletableFuture<?>> pending = new ArrayList<>();
+
+    long start = System.nanoTime();
+    for (long i = 0; i < requests; i++) {
+      long scheduled = start + i * intervalNanos;
+      long wait = scheduled - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+
+      int pick = random.nextInt(totalWeight);
+      int index = 0;
+      while (cumulativeWeights.get(index) <= pick) {
+        index++;
+      }
+      String route = routes.get(index);
+      LatencyRecorder recorder = recorders.get(route);
+      long sent = System.nanoTime();
+      pending.add(send(request(route, random)).whenComplete((response, error) -> {
+        long now = System.nanoTime();
+        boolean ok = error == null && response.statusCode() == expectedStatus(route);
+        recorder.record(now - scheduled, now - sent, ok);
+      }));
+    }
+    CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("Sent %d requests in %.1f s (%.0f req/s, target %d req/s)%n", requests,
+        seconds, requests / seconds, rps);
+  }
+
+  private HttpRequest request(String route, Random random) {
+    String[] user = users.get(random.nextInt(users.size()));
+    String id = user[0];
+    String token = user[1];
+    switch (route) {
+      case "register":
+        String username = "registered" + registrations.incrementAndGet();
+        return route("POST", "/users", null,
+            "{\"name\":\"" + username + "\",\"username\":\"" + username + "\",\"password\":\""
+                + PASSWORD + "\"}");
+      case "login":
+        return route("POST", "/users/auth", null,
+            "{\"username\":\"" + loginUsernames.get(random.nextInt(loginUsernames.size()))
+                + "\",\"password\":\"" + PASSWORD + "\"}");
+      case "list":
+        return route("GET", "/users", token, null);
+      case "get":
+        return route("GET", "/users/" + users.get(random.nextInt(users.size()))[0], token, null);
+      case "update":
+        // the username stays the same, it has to be unique
+        return route("PUT", "/users/" + id, token,
+            "{\"username\":\"" + user[2] + "\",\"name\":\"" + user[2] + " "
+                + random.nextInt(1000) + "\",\"birthday\":\"2000-01-01\"}");
+      case "status":
+        return route("PATCH", "/users/" + id + "/status", token,
+            "{\"status\":\"" + (random.nextBoolean() ? "ONLINE" : "OFFLINE") + "\"}");
+      default:
+        throw new IllegalArgumentException("Unknown route " + route);
+    }
+  }
+
+  private static int expectedStatus(String route) {
+    switch (route) {
+      case "register":
+        return 201;
+      case "update":
+      case "status":
+        return 204;
+      default:
+        return 200;
+    }
+  }
+
+  private HttpRequest route(String method, String path, String token, String body) {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                                      .header("Content-Type", "application/json")
+                                      .timeout(Duration.ofSeconds(30))
+                                      .method(method,
+                                          body == null ? HttpRequest.BodyPublishers.noBody()
+                                                       : HttpRequest.BodyPublishers.ofString(body));
+    if (token != null) {
+      request.header("Authorization", token);
+    }
+    return request.build();
+  }
+
+  private CompletableFuture<HttpResponse<String>> send(HttpRequest request) {
+    return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  private void report(Map<String, LatencyRecorder> recorders) throws IOException {
+    Properties baseline = new Properties();
+    try (InputStream in = getClass().getResourceAsStream("/loadtest/baseline.properties")) {
+      if (in != null) {
+        baseline.load(in);
+      }
+    }
+
+    List<String> failures = new ArrayList<>();
+    System.out.printf("%-9s %7s %6s %8s %8s %8s %8s %8s %12s%n", "route", "count", "errors",
+        "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "p99 sent ms");
+    for (LatencyRecorder recorder : recorders.values()) {
+      System.out.printf("%-9s %7d %6d %8.1f %8.1f %8.1f %8.1f %8.1f %12.1f%n", recorder.route,
+          recorder.count, recorder.errors, recorder.percentile(0.5), recorder.percentile(0.9),
+          recorder.percentile(0.99), recorder.percentile(0.999), recorder.percentile(1),
+          recorder.servicePercentile(0.99));
+
+      if (recorder.errors > 0) {
+        failures.add(recorder.route + ": " + recorder.errors + " unexpected responses");
+      }
+      String baselineP99 = baseline.getProperty(recorder.route + ".p99-ms");
+      if (baselineP99 != null && recorder.count > 0) {
+        double limit = Double.parseDouble(baselineP99) * (1 + tolerance);
+        if (recorder.percentile(0.99) > limit) {
+          failures.add(String.format("%s: p99 %.1f ms exceeds %.1f ms (baseline %s ms)",
+              recorder.route, recorder.percentile(0.99), limit, baselineP99));
+        }
+      }
+    }
+    assertTrue(failures.isEmpty(), String.join("\n", failures));
+  }
+
+  /**
+   * all latencies of one route, in nanoseconds
+   */
+  private static class LatencyRecorder {
+    private final String route;
+    private long[] latencies = new long[1024];
+    private long[] serviceTimes = new long[1024];
+    private int count;
+    private int errors;
+
+    private LatencyRecorder(String route) {
+      this.route = route;
+    }
+
+    /**
+     * @param latency time since the request was scheduled
+     * @param serviceTime time since the request was actually sent
+     */
+    private synchronized void record(long latency, long serviceTime, boolean ok) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+        serviceTimes = Arrays.copyOf(serviceTimes, count * 2);
+      }
+      latencies[count] = latency;
+      serviceTimes[count] = serviceTime;
+      count++;
+      if (!ok) {
+        errors++;
+      }
+    }
+
+    private synchronized double percentile(double percentile) {
+      return percentile(latencies, percentile);
+    }
+
+    private synchronized double servicePercentile(double percentile) {
+      return percentile(serviceTimes, percentile);
+    }
+
+    private double percentile(long[] values, double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(values, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.min(count - 1, Math.ceil(percentile * count) - 1);
+      return sorted[Math.max(index, 0)] / 1e6;
+    }
+  }
+}
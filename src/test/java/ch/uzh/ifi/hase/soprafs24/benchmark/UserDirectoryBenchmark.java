@@ -0,0 +1,82 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.service.UserDirectory;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/**
+ * Compares the heap used per user by the UserDirectory with 1M users to a HashMap of User
+ * entities (measured with fewer users, so it fits into the default test heap), and the time to
+ * list all users from the directory.
+ * Run with ./gradlew benchmark
+ */
+@Tag("benchmark")
+public class UserDirectoryBenchmark {
+  private static final int USERS = 1_000_000;
+  private static final int MAP_USERS = 200_000;
+  private static final LocalDateTime CREATED = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+  private static User user(long id) {
+    User user = new User();
+    user.setId(id);
+    // names repeat, usernames and tokens are unique
+    user.setName("User " + (id % 5000));
+    user.setUsername("user" + id);
+    user.setPassword("psw");
+    user.setStatus(id % 3 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE);
+    user.setToken(String.format("%08x-4b1d-4c2e-9f3a-%012x", id, id * 31));
+    user.setTokenIssued(CREATED);
+    user.setTokenExpires(CREATED.plusDays(1));
+    user.setCreated(CREATED.plusSeconds(id));
+    return user;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @Test
+  public void memoryPerUser() throws Exception {
+    long before = usedHeap();
+    Map<Long, User> map = new HashMap<>();
+    for (long id = 1; id <= MAP_USERS; id++) {
+      map.put(id, user(id));
+    }
+    double mapBytes = (double) (usedHeap() - before) / MAP_USERS;
+    assertEquals(MAP_USERS, map.size());
+    map = null;
+
+    before = usedHeap();
+    UserDirectory userDirectory = new UserDirectory(Mockito.mock(UserRepository.class),
+        Mockito.mock(PlatformTransactionManager.class), true, 1000);
+    for (long id = 1; id <= USERS; id++) {
+      userDirectory.put(user(id));
+    }
+    double directoryBytes = (double) (usedHeap() - before) / USERS;
+    assertEquals(USERS, userDirectory.size());
+
+    long start = System.nanoTime();
+    int listed = userDirectory.findAll().size();
+    double listMillis = (System.nanoTime() - start) / 1e6;
+    assertEquals(USERS, listed);
+
+    System.out.printf("User directory: %.0f bytes/user (HashMap of entities: %.0f bytes/user), "
+            + "list of %d users in %.0f ms%n",
+        directoryBytes, mapBytes, USERS, listMillis);
+  }
+}
@@ -0,0 +1,99 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.repository.UserSearchProjection;
+import ch.uzh.ifi.hase.soprafs24.service.UserSearchIndex;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.LongFunction;
+import java.util.stream.LongStream;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+/**
+ * Search latency of the UserSearchIndex with 1M users: the index is rebuilt from a streamed scan
+ * and then queried by name prefix (enough prefix matches), by username (one prefix match, filled
+ * up with fuzzy matches) and with typos (only fuzzy matches). Fails if the p99 latency of a query
+ * kind is above its target: PREFIX_P99_TARGET_MILLIS for prefix matches only, otherwise
+ * FUZZY_P99_TARGET_MILLIS.
+ * Run with ./gradlew benchmark
+ */
+@Tag("benchmark")
+public class UserSearchBenchmark {
+  private static final int USERS = 1_000_000;
+  private static final int QUERIES = 10_000;
+  private static final int WARMUP_QUERIES = 2_000;
+  private static final int LIMIT = 20;
+  private static final int MIN_ID = 1000;
+  private static final double PREFIX_P99_TARGET_MILLIS = 1;
+  private static final double FUZZY_P99_TARGET_MILLIS = 50;
+
+  private static UserSearchProjection user(long id) {
+    return new UserSearchProjection() {
+      @Override
+      public Long getId() {
+        return id;
+      }
+
+      @Override
+      public String getUsername() {
+        return "user" + id;
+      }
+
+      @Override
+      public String getName() {
+        // names repeat, usernames are unique
+        return "Name" + (id % 5000) + " Surname" + (id % 997);
+      }
+    };
+  }
+
+  @Test
+  public void searchLatency() {
+    UserRepository userRepository = Mockito.mock(UserRepository.class);
+    Mockito.when(userRepository.streamAllForSearch())
+        .thenAnswer(invocation -> LongStream.rangeClosed(1, USERS).mapToObj(id -> user(id)));
+    UserSearchIndex userSearchIndex = new UserSearchIndex(userRepository, 0.5);
+
+    long start = System.nanoTime();
+    userSearchIndex.rebuild();
+    double rebuildSeconds = (System.nanoTime() - start) / 1e9;
+    assertEquals(USERS, userSearchIndex.size());
+
+    Random random = new Random(42);
+    double nameP99 = p99(userSearchIndex, id -> "name" + (id % 5000), random);
+    double usernameP99 = p99(userSearchIndex, id -> "user" + id, random);
+    // a missing letter, so there is no prefix match
+    double fuzzyP99 = p99(userSearchIndex, id -> "usr" + id, random);
+
+    System.out.printf("User search with %d users: rebuild in %.1f s, p99 name prefix %.3f ms,"
+            + " username %.3f ms, typo %.3f ms%n",
+        USERS, rebuildSeconds, nameP99, usernameP99, fuzzyP99);
+    assertTrue(nameP99 <= PREFIX_P99_TARGET_MILLIS, "name prefix p99 " + nameP99);
+    assertTrue(usernameP99 <= FUZZY_P99_TARGET_MILLIS, "username p99 " + usernameP99);
+    assertTrue(fuzzyP99 <= FUZZY_P99_TARGET_MILLIS, "typo p99 " + fuzzyP99);
+  }
+
+  /**
+   * @return p99 latency in milliseconds of the queries for random users, of the users with at
+   * least 4 digits, so a typo still leaves enough shared trigrams
+   */
+  private static double p99(
+      UserSearchIndex userSearchIndex, LongFunction<String> query, Random random) {
+    for (int i = 0; i < WARMUP_QUERIES; i++) {
+      userSearchIndex.search(query.apply(MIN_ID + random.nextInt(USERS - MIN_ID)), LIMIT);
+    }
+    long[] nanos = new long[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      String text = query.apply(MIN_ID + random.nextInt(USERS - MIN_ID));
+      long start = System.nanoTime();
+      assertFalse(userSearchIndex.search(text, LIMIT).isEmpty(), text);
+      nanos[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(nanos);
+    return nanos[(int) Math.ceil(QUERIES * 0.99) - 1] / 1e6;
+  }
+}
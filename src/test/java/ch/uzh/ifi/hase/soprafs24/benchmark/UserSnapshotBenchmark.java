@@ -0,0 +1,61 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.Application;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.service.UserSnapshotFile;
+import ch.uzh.ifi.hase.soprafs24.service.UserSnapshots;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Map;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Measures the bulk import and the export of 100000 users with UserSnapshots, in users per
+ * second, and the size of the snapshot file per user.
+ * Run with ./gradlew benchmark
+ */
+@Tag("benchmark")
+public class UserSnapshotBenchmark {
+  private static final int USERS = 100_000;
+
+  @TempDir Path directory;
+
+  @Test
+  public void importAndExport() throws Exception {
+    Path generated = directory.resolve("generated.snapshot");
+    LocalDateTime created = LocalDateTime.of(2024, 1, 1, 0, 0);
+    try (UserSnapshotFile.Writer writer = UserSnapshotFile.Writer.create(generated)) {
+      for (int i = 1; i <= USERS; i++) {
+        writer.write(i, "user" + i, "User Number " + i, i % 4 == 0 ? "token-" + i : null,
+            i % 3 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE, created.plusSeconds(i));
+      }
+    }
+
+    ConfigurableApplicationContext context =
+        new SpringApplicationBuilder(Application.class)
+            .properties("logging.level.root=WARN", "spring.jpa.show-sql=false")
+            .run("--server.port=0", "--spring.datasource.url=jdbc:h2:mem:benchmark-snapshot");
+    try {
+      UserSnapshots userSnapshots = context.getBean(UserSnapshots.class);
+      Map<String, Object> imported = userSnapshots.run("import", generated.toString());
+      assertEquals((long) USERS, imported.get("users"));
+
+      Path exported = directory.resolve("exported.snapshot");
+      Map<String, Object> export = userSnapshots.run("export", exported.toString());
+      assertEquals((long) USERS, export.get("users"));
+
+      System.out.printf("User snapshot: import=%d users/s, export=%d users/s, %.1f bytes/user%n",
+          imported.get("usersPerSecond"), export.get("usersPerSecond"),
+          (double) Files.size(exported) / USERS);
+    } finally {
+      context.close();
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class ActuatorAuthenticationTest {
+  private MockHttpServletResponse filter(ActuatorAuthentication filter, String uri,
+      String authorization) throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", uri);
+    if (authorization != null) {
+      request.addHeader(HttpHeaders.AUTHORIZATION, authorization);
+    }
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, new MockFilterChain());
+    return response;
+  }
+
+  /**
+   * verifies that administrative endpoints need the token, health and the API do not
+   */
+  @Test
+  public void doFilter_adminEndpoint_tokenRequired() throws Exception {
+    ActuatorAuthentication filter = new ActuatorAuthentication("/actuator", "secret");
+
+    assertEquals(401, filter(filter, "/actuator/reshard", null).getStatus());
+    assertEquals(403, filter(filter, "/actuator/reshard", "wrong").getStatus());
+    assertEquals(200, filter(filter, "/actuator/reshard", "secret").getStatus());
+    assertEquals(200, filter(filter, "/actuator/health/readiness", null).getStatus());
+    assertEquals(200, filter(filter, "/users", null).getStatus());
+  }
+
+  /**
+   * verifies that without a configured token the administrative endpoints are not served
+   */
+  @Test
+  public void doFilter_noTokenConfigured_forbidden() throws Exception {
+    ActuatorAuthentication filter = new ActuatorAuthentication("/actuator", "");
+
+    assertEquals(403, filter(filter, "/actuator/reshard", "").getStatus());
+    assertEquals(200, filter(filter, "/actuator/health", null).getStatus());
+  }
+}
@@ -0,0 +1,86 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+public class AllocationProfilerTest {
+  private static final int ALLOCATION = 4 * 1024 * 1024;
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final AllocationProfiler profiler = new AllocationProfiler(meterRegistry, "10000/s");
+
+  // keeps the allocations reachable, so they are not optimized away
+  private byte[] allocated;
+
+  @AfterEach
+  public void shutdown() {
+    profiler.shutdown();
+  }
+
+  private void request(String method, String pattern, int bytes) throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest(method, "/users/1");
+    profiler.doFilter(request, new MockHttpServletResponse(), (servletRequest, response) -> {
+      servletRequest.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, pattern);
+      allocate(bytes);
+    });
+  }
+
+  private void allocate(int bytes) {
+    allocated = new byte[bytes];
+  }
+
+  /**
+   * verifies that the allocated bytes are measured per request and route
+   */
+  @Test
+  public void doFilter_allocatingRequests_bytesPerRequestPerRoute() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      request("GET", "/users/{id}", ALLOCATION);
+      request("PUT", "/users/{id}", 0);
+    }
+
+    long getBytes = profiler.getBytesPerRequest("GET /users/{id}");
+    assertTrue(getBytes >= ALLOCATION, "allocated " + getBytes);
+    assertTrue(getBytes < 2 * ALLOCATION, "allocated " + getBytes);
+    assertTrue(profiler.getBytesPerRequest("PUT /users/{id}") < ALLOCATION / 4);
+    assertEquals(0, profiler.getBytesPerRequest("DELETE /users/auth"));
+    assertEquals(10, meterRegistry.get("user.allocation.bytes")
+                         .tag("route", "GET /users/{id}")
+                         .summary()
+                         .count());
+
+    profiler.reset();
+    assertEquals(0, profiler.getBytesPerRequest("GET /users/{id}"));
+  }
+
+  /**
+   * verifies that the sampled allocations are attributed to the site within the route
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void allocations_sampledAllocations_topSiteOfRoute() throws Exception {
+    List<Map<String, Object>> topSites = List.of();
+    long deadline = System.nanoTime() + 20_000_000_000L;
+    while (topSites.isEmpty() && System.nanoTime() < deadline) {
+      for (int i = 0; i < 20; i++) {
+        request("GET", "/users/{id}", ALLOCATION);
+      }
+      Thread.sleep(500);
+      Map<String, Object> route =
+          (Map<String, Object>) profiler.allocations().get("GET /users/{id}");
+      topSites = (List<Map<String, Object>>) route.get("topSites");
+    }
+
+    assertFalse(topSites.isEmpty());
+    String topSite = (String) topSites.get(0).get("site");
+    assertTrue(topSite.startsWith(AllocationProfilerTest.class.getName() + ".allocate:"), topSite);
+  }
+}
@@ -0,0 +1,27 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.service.TokenSweeper;
+import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+
+public class FastStartConfigTest {
+  private final LazyInitializationExcludeFilter filter =
+      FastStartConfig.scheduledBeansExcludeFilter();
+
+  /**
+   * verifies that beans with scheduled tasks are created eagerly, and all others lazily
+   */
+  @Test
+  public void scheduledBeansExcludeFilter_onlyScheduledBeansExcluded() {
+    assertTrue(filter.isExcluded(
+        "tokenSweeper", new RootBeanDefinition(TokenSweeper.class), TokenSweeper.class));
+    assertTrue(filter.isExcluded("h2FileMaintenance",
+        new RootBeanDefinition(H2FileMaintenance.class), H2FileMaintenance.class));
+    assertFalse(filter.isExcluded(
+        "userService", new RootBeanDefinition(UserService.class), UserService.class));
+  }
+}
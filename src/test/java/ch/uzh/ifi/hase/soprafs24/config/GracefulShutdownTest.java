@@ -0,0 +1,113 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class GracefulShutdownTest {
+  private final StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+
+  private final FlushOnShutdown flushable = Mockito.mock(FlushOnShutdown.class);
+
+  private GracefulShutdown createGracefulShutdown(Duration drainTimeout) {
+    beanFactory.addBean("flushable", flushable);
+    GracefulShutdown gracefulShutdown =
+        new GracefulShutdown(beanFactory.getBeanProvider(FlushOnShutdown.class),
+            Mockito.mock(ApplicationEventPublisher.class), drainTimeout, Duration.ofSeconds(7));
+    gracefulShutdown.start();
+    return gracefulShutdown;
+  }
+
+  /**
+   * verifies that in-flight requests complete, new requests are rejected with Retry-After and
+   * the state is flushed after the drain
+   */
+  @Test
+  public void stop_inFlightRequest_drainedThenFlushed() throws Exception {
+    GracefulShutdown gracefulShutdown = createGracefulShutdown(Duration.ofSeconds(10));
+    CountDownLatch requestStarted = new CountDownLatch(1);
+    CountDownLatch releaseRequest = new CountDownLatch(1);
+
+    MockHttpServletResponse inFlightResponse = new MockHttpServletResponse();
+    CompletableFuture<Void> inFlight = CompletableFuture.runAsync(() -> {
+      try {
+        gracefulShutdown.doFilter(new MockHttpServletRequest("PUT", "/users/1"), inFlightResponse,
+            (request, response) -> {
+              requestStarted.countDown();
+              try {
+                releaseRequest.await();
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    assertTrue(requestStarted.await(5, TimeUnit.SECONDS));
+
+    CompletableFuture<Void> stopped = CompletableFuture.runAsync(gracefulShutdown::stop);
+
+    // new requests are rejected while draining
+    MockHttpServletResponse rejected = new MockHttpServletResponse();
+    while (rejected.getStatus() != 503) {
+      rejected = new MockHttpServletResponse();
+      gracefulShutdown.doFilter(
+          new MockHttpServletRequest("GET", "/users"), rejected, new MockFilterChain());
+      Thread.sleep(1);
+    }
+    assertEquals("7", rejected.getHeader("Retry-After"));
+    assertFalse(stopped.isDone());
+    Mockito.verify(flushable, Mockito.never()).flushOnShutdown();
+
+    releaseRequest.countDown();
+    inFlight.get(5, TimeUnit.SECONDS);
+    stopped.get(5, TimeUnit.SECONDS);
+
+    assertEquals(200, inFlightResponse.getStatus());
+    Mockito.verify(flushable).flushOnShutdown();
+    assertFalse(gracefulShutdown.isRunning());
+  }
+
+  /**
+   * verifies that the shutdown does not wait longer than the drain timeout
+   */
+  @Test
+  public void drain_requestTooSlow_timeout() throws Exception {
+    GracefulShutdown gracefulShutdown = createGracefulShutdown(Duration.ofMillis(50));
+    CountDownLatch requestStarted = new CountDownLatch(1);
+    CountDownLatch releaseRequest = new CountDownLatch(1);
+
+    CompletableFuture<Void> inFlight = CompletableFuture.runAsync(() -> {
+      try {
+        gracefulShutdown.doFilter(new MockHttpServletRequest("PATCH", "/users/1/status"),
+            new MockHttpServletResponse(), (request, response) -> {
+              requestStarted.countDown();
+              try {
+                releaseRequest.await();
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    assertTrue(requestStarted.await(5, TimeUnit.SECONDS));
+
+    assertEquals(1, gracefulShutdown.drain());
+
+    releaseRequest.countDown();
+    inFlight.get(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,41 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class H2FileMaintenanceTest {
+  @TempDir Path dataDirectory;
+
+  /**
+   * verifies that compacting a file database keeps all data
+   */
+  @Test
+  public void compact_fileDatabase_dataKept() throws Exception {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:nioMapped:" + dataDirectory.resolve("users"));
+    dataSource.setUser("sa");
+
+    // keep one connection open, so the database is not closed in between
+    try (Connection connection = dataSource.getConnection();
+         Statement statement = connection.createStatement()) {
+      statement.execute("create table test(id int primary key, name varchar(100))");
+      for (int i = 0; i < 1000; i++) {
+        statement.execute("insert into test values(" + i + ", 'name " + i + "')");
+      }
+      statement.execute("delete from test where id >= 10");
+
+      new H2FileMaintenance(dataSource, 80, 1 << 20).compact();
+
+      ResultSet resultSet = statement.executeQuery("select count(*) from test");
+      resultSet.next();
+      assertEquals(10, resultSet.getInt(1));
+    }
+  }
+}
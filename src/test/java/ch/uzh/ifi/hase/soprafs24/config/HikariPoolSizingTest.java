@@ -0,0 +1,33 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+public class HikariPoolSizingTest {
+  @Test
+  public void poolSize_derivedFromCores() {
+    HikariPoolSizing poolSizing = new HikariPoolSizing(new MockEnvironment());
+
+    assertEquals(2, poolSizing.poolSize(1));
+    assertEquals(8, poolSizing.poolSize(4));
+    assertEquals(20, poolSizing.poolSize(64)); // capped at max-pool-size
+  }
+
+  /**
+   * verifies that an explicitly configured pool size is not overwritten
+   */
+  @Test
+  public void postProcess_explicitPoolSize_unchanged() {
+    MockEnvironment environment =
+        new MockEnvironment().withProperty("spring.datasource.hikari.maximum-pool-size", "3");
+    HikariDataSource dataSource = new HikariDataSource();
+    dataSource.setMaximumPoolSize(3);
+
+    new HikariPoolSizing(environment).postProcessAfterInitialization(dataSource, "dataSource");
+
+    assertEquals(3, dataSource.getMaximumPoolSize());
+  }
+}
@@ -0,0 +1,92 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+public class QueryCounterTest {
+  private static final String BY_ID = "select * from user where id=?";
+  private static final long MILLI = 1_000_000;
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final QueryCounter queryCounter = createQueryCounter();
+
+  private QueryCounter createQueryCounter() {
+    StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+    beanFactory.addBean("meterRegistry", meterRegistry);
+    return new QueryCounter(beanFactory.getBeanProvider(MeterRegistry.class),
+        Duration.ofMillis(100), 10, Duration.ofMillis(200), 5);
+  }
+
+  private void request(Runnable statements) throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/users");
+    queryCounter.doFilter(request, new MockHttpServletResponse(), (servletRequest, response) -> {
+      servletRequest.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/users");
+      statements.run();
+    });
+  }
+
+  private double counter(String name) {
+    return meterRegistry.get(name).tag("route", "GET /users").counter().count();
+  }
+
+  @Test
+  public void doFilter_fewStatements_withinBudget() throws Exception {
+    request(() -> {
+      queryCounter.statementExecuted("select * from user", 0, MILLI, null);
+      queryCounter.statementExecuted(BY_ID, 0, MILLI, null);
+    });
+
+    assertEquals(2, meterRegistry.get("user.queries.count").summary().totalAmount());
+    assertEquals(
+        2, meterRegistry.get("user.queries.time").timer().totalTime(TimeUnit.MILLISECONDS));
+    assertNull(meterRegistry.find("user.queries.over-budget").counter());
+    assertNull(meterRegistry.find("user.queries.n-plus-one").counter());
+  }
+
+  @Test
+  public void doFilter_sameStatementPerRow_nPlusOneAndOverBudget() throws Exception {
+    request(() -> {
+      queryCounter.statementExecuted("select * from user", 0, MILLI, null);
+      for (int i = 0; i < 11; i++) {
+        queryCounter.statementExecuted(BY_ID, 0, MILLI, null);
+      }
+    });
+
+    assertEquals(1, counter("user.queries.n-plus-one"));
+    assertEquals(1, counter("user.queries.over-budget"));
+  }
+
+  @Test
+  public void doFilter_slowStatement_overTimeBudget() throws Exception {
+    request(() -> queryCounter.statementExecuted(BY_ID, 0, 300 * MILLI, null));
+
+    assertEquals(1, meterRegistry.get("user.queries.slow").counter().count());
+    assertEquals(1, counter("user.queries.over-budget"));
+  }
+
+  @Test
+  public void measure_nested_countedByBoth() {
+    QueryCounter.QueryStatistics outer = queryCounter.measure(() -> {
+      queryCounter.statementExecuted(BY_ID, 0, MILLI, null);
+      QueryCounter.QueryStatistics nested =
+          queryCounter.measure(() -> queryCounter.statementExecuted(BY_ID, 0, MILLI, null));
+      assertEquals(1, nested.getCount());
+    });
+
+    assertEquals(2, outer.getCount());
+    assertEquals(2, outer.getExecutions().get(BY_ID));
+
+    // outside of a measurement nothing is counted
+    queryCounter.statementExecuted(BY_ID, 0, MILLI, null);
+    assertEquals(2, outer.getCount());
+  }
+}
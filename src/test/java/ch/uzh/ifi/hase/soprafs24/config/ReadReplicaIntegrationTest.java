@@ -0,0 +1,175 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.exceptions.NotFoundException;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Test class for the read replica routing, with two separate in-memory H2 databases as primary
+ * and replica. There is no replication between them, so a read shows where it was sent to.
+ * The replica reports its lag in the replica_status table.
+ *
+ * @see ReplicaRoutingDataSource
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {"spring.datasource.url=" + ReadReplicaIntegrationTest.PRIMARY_URL,
+                    "user.datasource.replica-urls=" + ReadReplicaIntegrationTest.REPLICA_URL,
+                    "user.datasource.replica-lag-query=select lag_seconds from replica_status",
+                    "user.datasource.replica-max-lag-seconds=5",
+                    "user.datasource.replica-check-interval=PT1H",
+                    "spring.datasource.hikari.maximum-pool-size=3"})
+public class ReadReplicaIntegrationTest {
+  static final String PRIMARY_URL = "jdbc:h2:mem:replication-primary;DB_CLOSE_DELAY=-1";
+  static final String REPLICA_URL = "jdbc:h2:mem:replication-replica;DB_CLOSE_DELAY=-1";
+
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Autowired private UserService userService;
+
+  @Autowired private ReplicaRoutingDataSource replicaRoutingDataSource;
+
+  @Autowired private ReadYourWrites readYourWrites;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    userRepository.deleteAll();
+
+    // the replica gets the schema of the primary, but no data
+    List<String> schema = new ArrayList<>();
+    try (Connection primary = DriverManager.getConnection(PRIMARY_URL, "sa", "");
+         Statement statement = primary.createStatement();
+         ResultSet resultSet = statement.executeQuery("script nodata")) {
+      while (resultSet.next()) {
+        schema.add(resultSet.getString(1));
+      }
+    }
+    executeOnReplica("drop all objects");
+    for (String sql : schema) {
+      executeOnReplica(sql);
+    }
+    executeOnReplica("create table replica_status(lag_seconds int)");
+    executeOnReplica("insert into replica_status values(0)");
+    replicaRoutingDataSource.checkReplicas();
+  }
+
+  @AfterEach
+  public void teardown() {
+    readYourWrites.setCurrentRequestPinned(false);
+  }
+
+  private void executeOnReplica(String sql) throws Exception {
+    try (Connection replica = DriverManager.getConnection(REPLICA_URL, "sa", "");
+         Statement statement = replica.createStatement()) {
+      statement.execute(sql);
+    }
+  }
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  @Test
+  public void pools_hikariProperties_boundToEveryPool() {
+    Map<String, DataSource> targets = replicaRoutingDataSource.getTargets();
+
+    assertEquals(Set.of("primary", "replica-0"), targets.keySet());
+    targets.forEach((name, dataSource) -> {
+      HikariDataSource pool = (HikariDataSource) dataSource;
+      assertEquals(name, pool.getPoolName());
+      assertEquals(3, pool.getMaximumPoolSize());
+    });
+  }
+
+  @Test
+  public void readOnly_replicaUsable_readFromReplica() throws Exception {
+    assertEquals(List.of("replica-0"), replicaRoutingDataSource.getUsableReplicas());
+
+    // written to the primary
+    createUser("primaryUser");
+    try (Connection primary = DriverManager.getConnection(PRIMARY_URL, "sa", "");
+         Statement statement = primary.createStatement();
+         ResultSet resultSet = statement.executeQuery("select count(*) from user")) {
+      resultSet.next();
+      assertEquals(1, resultSet.getInt(1));
+    }
+
+    // read-only transaction reads from the empty replica
+    assertTrue(userService.getUsers().isEmpty());
+  }
+
+  @Test
+  public void getUserById_replicaUsable_readFromReplica() {
+    User user = createUser("primaryUser");
+
+    // not on the replica yet, except for the writer pinned to the primary
+    assertThrows(NotFoundException.class, () -> userService.getUserById(user.getId()));
+
+    readYourWrites.setCurrentRequestPinned(true);
+    assertEquals("primaryUser", userService.getUserById(user.getId()).getUsername());
+  }
+
+  @Test
+  public void readOnly_replicaLagging_readFromPrimary() throws Exception {
+    createUser("primaryUser");
+
+    executeOnReplica("update replica_status set lag_seconds = 60");
+    replicaRoutingDataSource.checkReplicas();
+
+    assertTrue(replicaRoutingDataSource.getUsableReplicas().isEmpty());
+    assertEquals(1, userService.getUsers().size());
+  }
+
+  @Test
+  public void readOnly_replicaDown_readFromPrimary() throws Exception {
+    createUser("primaryUser");
+
+    executeOnReplica("drop table replica_status");
+    replicaRoutingDataSource.checkReplicas();
+
+    assertTrue(replicaRoutingDataSource.getUsableReplicas().isEmpty());
+    assertEquals(1, userService.getUsers().size());
+  }
+
+  @Test
+  public void readOnly_afterOwnWrite_readFromPrimary() {
+    User user = createUser("writer");
+    User updated = new User();
+    updated.setUsername("writerRenamed");
+    updated.setName("new name");
+    userService.updateUser(updated, user.getId(), user.getToken());
+
+    // the writer is pinned to the primary and sees the change, nobody else is pinned
+    assertTrue(readYourWrites.isPinned(user.getToken()));
+    assertFalse(readYourWrites.isPinned("otherToken"));
+
+    readYourWrites.setCurrentRequestPinned(readYourWrites.isPinned(user.getToken()));
+    assertEquals("writerRenamed", userService.getUsers().get(0).getUsername());
+
+    readYourWrites.setCurrentRequestPinned(false);
+    assertTrue(userService.getUsers().isEmpty());
+  }
+}
@@ -0,0 +1,52 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Test class for the StartupWarmup, with the application on a random port so the synthetic
+ * requests go through the web server.
+ *
+ * @see StartupWarmup
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = {"spring.datasource.url=jdbc:h2:mem:warmup",
+        "user.startup.warmup-iterations=2"})
+public class StartupWarmupIntegrationTest {
+  @Autowired private StartupWarmup startupWarmup;
+
+  @Autowired private ApplicationAvailability applicationAvailability;
+
+  @Autowired private TestRestTemplate restTemplate;
+
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Test
+  public void warmup_beforeReady_allRoutesRequested() throws Exception {
+    assertTrue(startupWarmup.awaitWarmup(Duration.ofSeconds(30)));
+    assertEquals(ReadinessState.ACCEPTING_TRAFFIC, applicationAvailability.getReadinessState());
+
+    // warmup user created, 13 routes, 2 iterations, warmup user deleted, no server errors
+    assertEquals(28, startupWarmup.getRequests());
+    assertEquals(0, startupWarmup.getFailedRequests());
+    assertEquals(0, userRepository.count());
+  }
+
+  @Test
+  public void warmupRequest_afterWarmup_ok() {
+    assertEquals(
+        HttpStatus.OK, restTemplate.getForEntity("/_ah/warmup", String.class).getStatusCode());
+    assertEquals(HttpStatus.OK,
+        restTemplate.getForEntity("/actuator/health/readiness", String.class).getStatusCode());
+  }
+}
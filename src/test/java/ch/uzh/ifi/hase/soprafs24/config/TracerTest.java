@@ -0,0 +1,144 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+public class TracerTest {
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+  private static final String PARENT_ID = "00f067aa0ba902b7";
+
+  private final List<List<Span>> exported = new ArrayList<>();
+  private final Tracer tracer = createTracer();
+
+  private Tracer createTracer() {
+    StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+    beanFactory.addBean("exporter", (SpanExporter) exported::add);
+    return new Tracer(beanFactory.getBeanProvider(SpanExporter.class), 10);
+  }
+
+  private MockHttpServletResponse request(String traceparent) throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/users/1");
+    if (traceparent != null) {
+      request.addHeader(Tracer.TRACEPARENT, traceparent);
+    }
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    tracer.doFilter(request, response, (servletRequest, servletResponse) -> {
+      servletRequest.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/users/{id}");
+      Span service = tracer.startSpan("UserService.getUser", "service");
+      long start = System.nanoTime();
+      tracer.statementExecuted("select * from users where id=?", start, 1000, null);
+      tracer.endSpan(service, null);
+    });
+    return response;
+  }
+
+  @Test
+  public void parseTraceparent_validAndInvalidHeaders() {
+    assertNotNull(Tracer.parseTraceparent("00-" + TRACE_ID + "-" + PARENT_ID + "-01"));
+    // future versions may append fields
+    assertNotNull(Tracer.parseTraceparent("01-" + TRACE_ID + "-" + PARENT_ID + "-01-extra"));
+
+    assertNull(Tracer.parseTraceparent(null));
+    assertNull(Tracer.parseTraceparent("00-" + TRACE_ID + "-" + PARENT_ID + "-01-extra"));
+    assertNull(Tracer.parseTraceparent("ff-" + TRACE_ID + "-" + PARENT_ID + "-01"));
+    assertNull(Tracer.parseTraceparent("00-" + "0".repeat(32) + "-" + PARENT_ID + "-01"));
+    assertNull(Tracer.parseTraceparent("00-" + TRACE_ID + "-" + "0".repeat(16) + "-01"));
+    assertNull(Tracer.parseTraceparent("00-" + TRACE_ID + "-" + PARENT_ID));
+  }
+
+  /**
+   * verifies that a sampled incoming trace is continued, with the spans nested by layer
+   */
+  @Test
+  public void doFilter_sampledTraceparent_traceContinued() throws Exception {
+    MockHttpServletResponse response = request("00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+
+    assertEquals(1, exported.size());
+    List<Span> spans = exported.get(0);
+    assertEquals(3, spans.size());
+    Span http = spans.get(0);
+    Span service = spans.get(1);
+    Span jdbc = spans.get(2);
+
+    assertEquals("GET /users/{id}", http.getName());
+    assertEquals(PARENT_ID, http.getParentSpanId());
+    assertEquals("200", http.getAttributes().get("http.status"));
+    assertEquals(http.getSpanId(), service.getParentSpanId());
+    assertEquals("service", service.getLayer());
+    assertEquals(service.getSpanId(), jdbc.getParentSpanId());
+    assertEquals("JDBC SELECT", jdbc.getName());
+    assertEquals("select * from users where id=?", jdbc.getAttributes().get("db.statement"));
+    for (Span span : spans) {
+      assertEquals(TRACE_ID, span.getTraceId());
+      assertTrue(span.getDurationMicros() >= 0);
+    }
+
+    assertEquals("00-" + TRACE_ID + "-" + http.getSpanId() + "-01",
+        response.getHeader(Tracer.TRACEPARENT));
+  }
+
+  /**
+   * verifies that a trace not sampled by the caller is propagated, but not recorded
+   */
+  @Test
+  public void doFilter_unsampledTraceparent_notExported() throws Exception {
+    MockHttpServletResponse response = request("00-" + TRACE_ID + "-" + PARENT_ID + "-00");
+
+    assertTrue(exported.isEmpty());
+    String traceparent = response.getHeader(Tracer.TRACEPARENT);
+    assertTrue(traceparent.startsWith("00-" + TRACE_ID + "-"));
+    assertTrue(traceparent.endsWith("-00"));
+    assertNull(tracer.startSpan("outside of a request", "service"));
+  }
+
+  /**
+   * verifies that a new trace is started without traceparent
+   */
+  @Test
+  public void doFilter_noTraceparent_newTrace() throws Exception {
+    MockHttpServletResponse response = request(null);
+
+    assertEquals(1, exported.size());
+    Span http = exported.get(0).get(0);
+    assertNull(http.getParentSpanId());
+    assertNotNull(Tracer.parseTraceparent(response.getHeader(Tracer.TRACEPARENT)));
+    assertTrue(response.getHeader(Tracer.TRACEPARENT).contains(http.getTraceId()));
+  }
+
+  /**
+   * verifies that the sampler adapts to about the target rate, at a low and a high request rate
+   */
+  @Test
+  public void adaptiveSampler_differentRequestRates_aboutTargetRate() {
+    Tracer.AdaptiveSampler sampler = new Tracer.AdaptiveSampler(10);
+    long now = 0;
+
+    // 5 requests per second: all sampled
+    int sampled = 0;
+    for (int i = 0; i < 50; i++) {
+      now += TimeUnit.MILLISECONDS.toNanos(200);
+      sampled += sampler.sample(now) ? 1 : 0;
+    }
+    assertEquals(50, sampled);
+
+    // 1000 requests per second for 20 seconds, measured over the last 10 seconds
+    sampled = 0;
+    for (int i = 0; i < 20_000; i++) {
+      now += TimeUnit.MILLISECONDS.toNanos(1);
+      boolean sample = sampler.sample(now);
+      if (i >= 10_000 && sample) {
+        sampled++;
+      }
+    }
+    assertTrue(sampled >= 50 && sampled <= 200, "sampled " + sampled);
+    assertTrue(sampler.getProbability() < 0.05, "probability " + sampler.getProbability());
+  }
+}
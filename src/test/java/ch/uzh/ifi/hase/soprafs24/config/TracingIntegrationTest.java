@@ -0,0 +1,104 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Test class for the tracing of requests through all layers, with the application on a random
+ * port.
+ *
+ * @see Tracer
+ * @see TracingAspect
+ * @see StatementObservation
+ * @see InMemorySpanExporter
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = {"spring.datasource.url=jdbc:h2:mem:tracing",
+        "user.startup.warmup-iterations=0", "user.actuator.token=admin",
+        "user.queries.enabled=true"})
+public class TracingIntegrationTest {
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+  @Autowired private TestRestTemplate restTemplate;
+
+  @Autowired private InMemorySpanExporter exporter;
+
+  @Test
+  public void createAndGetUser_sampledTraceparent_spansOfAllLayers() {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    headers.set(Tracer.TRACEPARENT, "00-" + TRACE_ID + "-00f067aa0ba902b7-01");
+    ResponseEntity<Map<String, Object>> created = restTemplate.exchange("/users",
+        HttpMethod.POST,
+        new HttpEntity<>("{\"name\":\"Tracy\",\"username\":\"tracy\",\"password\":\"psw\"}",
+            headers),
+        new ParameterizedTypeReference<Map<String, Object>>() {});
+    assertEquals(HttpStatus.CREATED, created.getStatusCode());
+    assertTrue(created.getHeaders().getFirst(Tracer.TRACEPARENT).startsWith("00-" + TRACE_ID));
+
+    headers.set(HttpHeaders.AUTHORIZATION, (String) created.getBody().get("token"));
+    ResponseEntity<String> found = restTemplate.exchange("/users/" + created.getBody().get("id"),
+        HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    assertEquals(HttpStatus.OK, found.getStatusCode());
+
+    List<Span> spans = exporter.trace(TRACE_ID);
+    Set<String> layers = spans.stream().map(Span::getLayer).collect(Collectors.toSet());
+    assertEquals(Set.of("http", "controller", "service", "repository", "jdbc"), layers);
+
+    // every span hangs below a span of the trace, except the two request spans
+    Map<String, Span> spansById = new HashMap<>();
+    spans.forEach(span -> spansById.put(span.getSpanId(), span));
+    for (Span span : spans) {
+      Span parent = spansById.get(span.getParentSpanId());
+      if (span.getLayer().equals("http")) {
+        assertEquals("00f067aa0ba902b7", span.getParentSpanId());
+      } else if (span.getLayer().equals("controller")) {
+        assertEquals("http", parent.getLayer());
+      } else if (span.getLayer().equals("repository")) {
+        assertNotEquals("http", parent.getLayer(), span.getName());
+      } else if (span.getLayer().equals("jdbc")) {
+        assertNotNull(parent, span.getName());
+      }
+    }
+    assertTrue(spans.stream().anyMatch(span -> span.getName().equals("POST /users")));
+    assertTrue(spans.stream().anyMatch(span -> span.getName().equals("GET /users/{id}")));
+    assertTrue(spans.stream().anyMatch(
+        span -> span.getName().equals("JDBC INSERT") && "repository".equals(
+            spansById.get(span.getParentSpanId()).getLayer())));
+
+    // both requests continued the same trace, the first one is its root
+    List<Map<String, Object>> traces = exporter.traces("POST /users", null, null);
+    assertTrue(traces.stream().anyMatch(trace -> trace.get("traceId").equals(TRACE_ID)));
+  }
+
+  /**
+   * verifies that the traces endpoint is served over HTTP, only with the actuator token
+   */
+  @Test
+  public void tracesEndpoint_exposedWithToken() {
+    HttpHeaders headers = new HttpHeaders();
+    headers.set(HttpHeaders.AUTHORIZATION, "admin");
+    ResponseEntity<String> traces = restTemplate.exchange("/actuator/traces", HttpMethod.GET,
+        new HttpEntity<>(headers), String.class);
+    assertEquals(HttpStatus.OK, traces.getStatusCode());
+
+    assertEquals(HttpStatus.UNAUTHORIZED,
+        restTemplate.getForEntity("/actuator/traces", String.class).getStatusCode());
+  }
+}
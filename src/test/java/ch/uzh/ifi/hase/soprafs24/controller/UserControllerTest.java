@@ -1,9 +1,11 @@
 package ch.uzh.ifi.hase.soprafs24.controller;
 
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.BDDMockito.given;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
@@ -11,21 +13,34 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 import ch.uzh.ifi.hase.soprafs24.constant.Permissions;
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
 import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChange;
 import ch.uzh.ifi.hase.soprafs24.exceptions.NotFoundException;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.service.IdempotencyStore;
+import ch.uzh.ifi.hase.soprafs24.service.UserPageCache;
+import ch.uzh.ifi.hase.soprafs24.service.UserRegistrationQueue;
+import ch.uzh.ifi.hase.soprafs24.service.UserRowStore;
 import ch.uzh.ifi.hase.soprafs24.service.UserService;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Optional;
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
@@ -39,11 +54,18 @@ import org.springframework.web.server.ResponseStatusException;
  * This tests if the UserController works.
  */
 @WebMvcTest(UserController.class)
+@Import(IdempotencyStore.class)
 public class UserControllerTest {
   @Autowired private MockMvc mockMvc;
 
   @MockBean private UserService userService;
 
+  @MockBean private UserRegistrationQueue userRegistrationQueue;
+
+  @MockBean private UserRowStore userRowStore;
+
+  @MockBean private UserPageCache userPageCache;
+
   /**
    * verifies that the auth request with valid username and password is successful with
    * @throws Exception
@@ -58,6 +80,8 @@ public class UserControllerTest {
     user.setToken(token);
 
     given(userService.isUserAuthorized(Mockito.anyString(), Mockito.anyString())).willReturn(user);
+    given(userService.rotateToken(Mockito.any()))
+        .willAnswer(invocation -> invocation.getArgument(0));
 
     UserPostDTO userPostDTO = new UserPostDTO();
     userPostDTO.setPassword("1234");
@@ -143,6 +167,8 @@ public class UserControllerTest {
     given(userService.isAuthorized(Mockito.anyString(), Mockito.eq(Permissions.READ)))
         .willReturn(true);
     given(userService.getUserByToken(Mockito.anyString())).willReturn(user);
+    given(userService.rotateToken(Mockito.any()))
+        .willAnswer(invocation -> invocation.getArgument(0));
 
     UserPostDTO userPostDTO = new UserPostDTO();
     userPostDTO.setToken(token);
@@ -160,6 +186,36 @@ public class UserControllerTest {
     ;
   }
 
+  /**
+   * verifies that the auth request returns the rotated token and not the old one
+   * @throws Exception
+   */
+  @Test
+  public void authUser_tokenRotated() throws Exception {
+    User user = new User();
+    user.setUsername("testUsername");
+    user.setToken("old");
+
+    User rotatedUser = new User();
+    rotatedUser.setUsername("testUsername");
+    rotatedUser.setToken("new");
+
+    given(userService.isUserAuthorized(Mockito.anyString(), Mockito.anyString())).willReturn(user);
+    given(userService.rotateToken(Mockito.eq(user))).willReturn(rotatedUser);
+
+    UserPostDTO userPostDTO = new UserPostDTO();
+    userPostDTO.setPassword("1234");
+    userPostDTO.setUsername("testUsername");
+
+    MockHttpServletRequestBuilder postRequest = post("/users/auth")
+                                                    .contentType(MediaType.APPLICATION_JSON)
+                                                    .content(asJsonString(userPostDTO));
+
+    mockMvc.perform(postRequest)
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.token", is("new")));
+  }
+
   /**
    * verifies that the auth request with an invalid token returns the expected error
    * @throws Exception
@@ -190,6 +246,38 @@ public class UserControllerTest {
     mockMvc.perform(postRequest).andExpect(status().isForbidden());
   }
 
+  /**
+   * verifies that the logout request with a valid token invalidates the token
+   * @throws Exception
+   */
+  @Test
+  public void logoutUser_validToken_success() throws Exception {
+    String token = "1";
+
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+
+    mockMvc.perform(delete("/users/auth").header("Authorization", token))
+        .andExpect(status().isNoContent());
+
+    Mockito.verify(userService, Mockito.times(1)).logout(token);
+  }
+
+  /**
+   * verifies that the logout request with an invalid token returns the expected error
+   * @throws Exception
+   */
+  @Test
+  public void logoutUser_invalidToken_throwsException() throws Exception {
+    given(userService.isAuthorized(Mockito.anyString(), Mockito.eq(Permissions.READ)))
+        .willReturn(false);
+
+    mockMvc.perform(delete("/users/auth").header("Authorization", "2"))
+        .andExpect(status().isForbidden());
+
+    Mockito.verify(userService, Mockito.never()).logout(Mockito.anyString());
+  }
+
   @Test
   public void givenUsers_whenGetUsers_thenReturnJsonArray() throws Exception {
     String token = "1";
@@ -225,6 +313,210 @@ public class UserControllerTest {
     ;
   }
 
+  /**
+   * verifies that many users can be requested by id with one request
+   */
+  @Test
+  public void givenUsers_whenGetUsersByIds_thenReturnJsonArray() throws Exception {
+    String token = "1";
+
+    User first = new User();
+    first.setId(2L);
+    first.setUsername("second");
+    User second = new User();
+    second.setId(1L);
+    second.setUsername("first");
+
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+    given(userService.getUsersByIds(Mockito.eq(List.of(2L, 1L))))
+        .willReturn(List.of(first, second));
+
+    mockMvc.perform(get("/users").param("ids", "2,1").header("Authorization", token))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(2)))
+        .andExpect(jsonPath("$[0].id", is(2)))
+        .andExpect(jsonPath("$[1].id", is(1)));
+
+    Mockito.verify(userService, Mockito.never()).getUsers();
+  }
+
+  /**
+   * verifies that a page of users is requested with the id of the last user before it
+   */
+  @Test
+  public void givenUsers_whenGetPage_thenUsersAfterCursor() throws Exception {
+    String token = "1";
+
+    User user = new User();
+    user.setId(3L);
+    user.setUsername("third");
+
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+    given(userService.getUsersAfter(2L, 1)).willReturn(List.of(user));
+
+    mockMvc.perform(get("/users").param("after", "2").param("limit", "1")
+                        .header("Authorization", token))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(1)))
+        .andExpect(jsonPath("$[0].id", is(3)));
+    mockMvc.perform(get("/users").param("limit", "0").header("Authorization", token))
+        .andExpect(status().isBadRequest());
+    mockMvc.perform(get("/users").param("ids", "1").param("limit", "1")
+                        .header("Authorization", token))
+        .andExpect(status().isBadRequest());
+
+    Mockito.verify(userService, Mockito.never()).getUsers();
+  }
+
+  /**
+   * verifies that cached pages are written as they are, compressed if the client accepts gzip
+   */
+  @Test
+  public void givenPageCache_whenGetUsers_thenCachedPage() throws Exception {
+    String token = "1";
+    byte[] json = "[{\"id\":1}]".getBytes(StandardCharsets.UTF_8);
+    byte[] gzip = {31, -117, 8, 0};
+
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+    given(userPageCache.isEnabled()).willReturn(true);
+    given(userPageCache.get(Mockito.anyString(), Mockito.any()))
+        .willReturn(new UserPageCache.Page(0, json, gzip));
+
+    mockMvc.perform(get("/users").header("Authorization", token))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$[0].id", is(1)))
+        .andExpect(header().string("Content-Type", "application/json"))
+        .andExpect(header().stringValues("Vary", hasItem("Accept-Encoding")));
+    mockMvc.perform(get("/users").header("Authorization", token)
+                        .header("Accept-Encoding", "br, gzip;q=0.8"))
+        .andExpect(status().isOk())
+        .andExpect(header().string("Content-Encoding", "gzip"))
+        .andExpect(content().bytes(gzip));
+    mockMvc.perform(get("/users").param("fields", "id").param("after", "5").param("limit", "10")
+                        .header("Authorization", token))
+        .andExpect(status().isOk());
+
+    Mockito.verify(userPageCache, Mockito.times(2)).get(Mockito.eq("all null"), Mockito.any());
+    Mockito.verify(userPageCache).get(Mockito.eq("after 5 limit 10 [ID]"), Mockito.any());
+    Mockito.verify(userService, Mockito.never()).getUsers();
+  }
+
+  /**
+   * verifies that the stored rows are written as they are if the user row store is enabled
+   */
+  @Test
+  public void givenRowStore_whenGetUsers_thenStoredJson() throws Exception {
+    String token = "1";
+
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+    given(userRowStore.isEnabled()).willReturn(true);
+    Mockito.doAnswer(invocation -> {
+      OutputStream out = invocation.getArgument(0);
+      out.write("[{\"id\":1,\"username\":\"first\"}]".getBytes(StandardCharsets.UTF_8));
+      return null;
+    }).when(userRowStore).writeAll(Mockito.any());
+    given(userRowStore.findById(1L)).willReturn(Optional.of(
+        ByteBuffer.wrap("{\"id\":1,\"username\":\"first\"}".getBytes(StandardCharsets.UTF_8))));
+
+    mockMvc.perform(get("/users").header("Authorization", token))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(1)))
+        .andExpect(jsonPath("$[0].username", is("first")))
+        .andExpect(header().string("Content-Type", "application/json"));
+    mockMvc.perform(get("/users/1").header("Authorization", token))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.username", is("first")));
+    mockMvc.perform(get("/users/2").header("Authorization", token))
+        .andExpect(status().isNotFound());
+
+    Mockito.verify(userService, Mockito.never()).getUsers();
+  }
+
+  /**
+   * verifies that only the selected fields are returned if fields= is given
+   */
+  @Test
+  public void givenUsers_whenGetUserFields_thenOnlySelectedFields() throws Exception {
+    String token = "1";
+
+    TupleElement<?> id = Mockito.mock(TupleElement.class);
+    Mockito.when(id.getAlias()).thenReturn("id");
+    TupleElement<?> username = Mockito.mock(TupleElement.class);
+    Mockito.when(username.getAlias()).thenReturn("username");
+    Tuple tuple = Mockito.mock(Tuple.class);
+    Mockito.when(tuple.getElements()).thenReturn(List.of(id, username));
+    Mockito.doReturn(1L).when(tuple).get(id);
+    Mockito.doReturn("turing").when(tuple).get(username);
+
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+    given(userService.getUserFields(Mockito.isNull(),
+              Mockito.eq(EnumSet.of(UserField.ID, UserField.USERNAME))))
+        .willReturn(List.of(tuple));
+
+    mockMvc.perform(get("/users").param("fields", "username").header("Authorization", token))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(1)))
+        .andExpect(jsonPath("$[0].id", is(1)))
+        .andExpect(jsonPath("$[0].username", is("turing")))
+        .andExpect(jsonPath("$[0].token").doesNotExist());
+
+    Mockito.verify(userService, Mockito.never()).getUsers();
+  }
+
+  /**
+   * verifies that an unknown field returns the expected error
+   */
+  @Test
+  public void getUserFieldsWithId_unknownField_badRequest() throws Exception {
+    String token = "1";
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+
+    mockMvc.perform(get("/users/1").param("fields", "password").header("Authorization", token))
+        .andExpect(status().isBadRequest());
+  }
+
+  /**
+   * verifies that the search request returns the users found by the service
+   */
+  @Test
+  public void searchUsers_validInput_success() throws Exception {
+    String token = "1";
+
+    User user = new User();
+    user.setId(1L);
+    user.setName("Alan Turing");
+    user.setUsername("turing");
+
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+    given(userService.searchUsers(Mockito.eq("tur"), Mockito.eq(20)))
+        .willReturn(Collections.singletonList(user));
+
+    mockMvc.perform(get("/users/search").param("q", "tur").header("Authorization", token))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$", hasSize(1)))
+        .andExpect(jsonPath("$[0].username", is(user.getUsername())));
+  }
+
+  /**
+   * verifies that the search request with an empty query returns the expected error
+   */
+  @Test
+  public void searchUsers_emptyQuery_badRequest() throws Exception {
+    String token = "1";
+    given(userService.isAuthorized(Mockito.eq(token), Mockito.eq(Permissions.READ)))
+        .willReturn(true);
+
+    mockMvc.perform(get("/users/search").param("q", " ").header("Authorization", token))
+        .andExpect(status().isBadRequest());
+  }
+
   /**
    * verifies that when getting all users with an invalid token, the expected error is thrown
    */
@@ -272,6 +564,226 @@ public class UserControllerTest {
     ;
   }
 
+  /**
+   * verifies that the changes since a sequence are returned with tombstones and the next cursor
+   */
+  @Test
+  public void getUserChanges_validToken_changesAndCursor() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("changed");
+    user.setStatus(UserStatus.ONLINE);
+    UserChange updated = new UserChange();
+    updated.setUserId(1L);
+    updated.setSequence(11);
+    updated.setUser(user);
+    UserChange deleted = new UserChange();
+    deleted.setUserId(2L);
+    deleted.setSequence(12);
+    deleted.setDeleted(true);
+
+    given(userService.isAuthorized("token", Permissions.READ)).willReturn(true);
+    given(userService.getChanges(10, 2)).willReturn(List.of(updated, deleted));
+
+    mockMvc.perform(get("/users/changes?since=10&limit=2").header("Authorization", "token"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.changes", hasSize(2)))
+        .andExpect(jsonPath("$.changes[0].sequence", is(11)))
+        .andExpect(jsonPath("$.changes[0].deleted", is(false)))
+        .andExpect(jsonPath("$.changes[0].user.username", is("changed")))
+        .andExpect(jsonPath("$.changes[1].id", is(2)))
+        .andExpect(jsonPath("$.changes[1].deleted", is(true)))
+        .andExpect(jsonPath("$.next", is(12)))
+        .andExpect(jsonPath("$.more", is(true)));
+
+    mockMvc.perform(get("/users/changes?since=-1").header("Authorization", "token"))
+        .andExpect(status().isBadRequest());
+    mockMvc.perform(get("/users/changes?since=10")).andExpect(status().isForbidden());
+  }
+
+  @Test
+  public void deleteUser_validToken_noContent() throws Exception {
+    mockMvc.perform(delete("/users/1").header("Authorization", "token"))
+        .andExpect(status().isNoContent());
+    Mockito.verify(userService).deleteUser(1L, "token");
+  }
+
+  /**
+   * verifies that an asynchronous create request is queued and answered with the status URL
+   */
+  @Test
+  public void createUserAsync_enabled_accepted() throws Exception {
+    UserRegistrationQueue.Registration registration =
+        Mockito.mock(UserRegistrationQueue.Registration.class);
+    given(registration.getId()).willReturn("abc");
+    given(registration.getState()).willReturn(UserRegistrationQueue.State.QUEUED);
+    given(userRegistrationQueue.isEnabled()).willReturn(true);
+    given(userRegistrationQueue.submit(Mockito.any())).willReturn(registration);
+    given(userRegistrationQueue.getRegistration("abc")).willReturn(registration);
+
+    UserPostDTO userPostDTO = new UserPostDTO();
+    userPostDTO.setName("Test User");
+    userPostDTO.setUsername("testUsername");
+
+    mockMvc
+        .perform(post("/users")
+                     .contentType(MediaType.APPLICATION_JSON)
+                     .content(asJsonString(userPostDTO))
+                     .header("Prefer", "respond-async"))
+        .andExpect(status().isAccepted())
+        .andExpect(header().string("Location", "/users/registrations/abc"))
+        .andExpect(jsonPath("$.id", is("abc")))
+        .andExpect(jsonPath("$.status", is("QUEUED")));
+    Mockito.verify(userService, Mockito.never()).createUser(Mockito.any());
+
+    mockMvc.perform(get("/users/registrations/abc"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.status", is("QUEUED")));
+    mockMvc.perform(get("/users/registrations/unknown")).andExpect(status().isNotFound());
+  }
+
+  /**
+   * verifies that a full registration queue answers with 503
+   */
+  @Test
+  public void createUserAsync_queueFull_serviceUnavailable() throws Exception {
+    given(userRegistrationQueue.isEnabled()).willReturn(true);
+    given(userRegistrationQueue.submit(Mockito.any()))
+        .willThrow(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE));
+
+    UserPostDTO userPostDTO = new UserPostDTO();
+    userPostDTO.setUsername("testUsername");
+
+    mockMvc
+        .perform(post("/users")
+                     .contentType(MediaType.APPLICATION_JSON)
+                     .content(asJsonString(userPostDTO))
+                     .header("Prefer", "respond-async"))
+        .andExpect(status().isServiceUnavailable());
+  }
+
+  /**
+   * verifies that without asynchronous registration the user is created synchronously
+   */
+  @Test
+  public void createUserAsync_disabled_created() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("testUsername");
+    given(userService.createUser(Mockito.any())).willReturn(user);
+
+    UserPostDTO userPostDTO = new UserPostDTO();
+    userPostDTO.setUsername("testUsername");
+
+    mockMvc
+        .perform(post("/users")
+                     .contentType(MediaType.APPLICATION_JSON)
+                     .content(asJsonString(userPostDTO))
+                     .header("Prefer", "respond-async"))
+        .andExpect(status().isCreated())
+        .andExpect(jsonPath("$.id", is(1)));
+    Mockito.verify(userRegistrationQueue, Mockito.never()).submit(Mockito.any());
+  }
+
+  /**
+   * verifies that a retried create request with the same Idempotency-Key returns the first user
+   * without creating another one
+   */
+  @Test
+  public void createUser_sameIdempotencyKey_createdOnce() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setName("Test User");
+    user.setUsername("idempotent");
+    user.setToken("1");
+    user.setStatus(UserStatus.OFFLINE);
+
+    UserPostDTO userPostDTO = new UserPostDTO();
+    userPostDTO.setName("Test User");
+    userPostDTO.setUsername("idempotent");
+
+    given(userService.createUser(Mockito.any())).willReturn(user);
+
+    for (int i = 0; i < 2; i++) {
+      mockMvc
+          .perform(post("/users")
+                       .contentType(MediaType.APPLICATION_JSON)
+                       .content(asJsonString(userPostDTO))
+                       .header(IdempotencyStore.HEADER, "create-idempotent"))
+          .andExpect(status().isCreated())
+          .andExpect(jsonPath("$.id", is(1)));
+    }
+    Mockito.verify(userService, Mockito.times(1)).createUser(Mockito.any());
+
+    // same key, different request
+    userPostDTO.setUsername("other");
+    mockMvc
+        .perform(post("/users")
+                     .contentType(MediaType.APPLICATION_JSON)
+                     .content(asJsonString(userPostDTO))
+                     .header(IdempotencyStore.HEADER, "create-idempotent"))
+        .andExpect(status().isUnprocessableEntity());
+  }
+
+  /**
+   * verifies that the Idempotency-Key of one client does not replay its user to another client
+   */
+  @Test
+  public void createUser_sameIdempotencyKeyOtherClient_createdAgain() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("idempotent");
+    user.setToken("1");
+    user.setStatus(UserStatus.OFFLINE);
+
+    UserPostDTO userPostDTO = new UserPostDTO();
+    userPostDTO.setUsername("idempotent");
+
+    given(userService.createUser(Mockito.any())).willReturn(user);
+
+    for (String address : List.of("10.0.0.1", "10.0.0.2")) {
+      mockMvc
+          .perform(post("/users")
+                       .contentType(MediaType.APPLICATION_JSON)
+                       .content(asJsonString(userPostDTO))
+                       .header(IdempotencyStore.HEADER, "guessed-key")
+                       .with(request -> {
+                         request.setRemoteAddr(address);
+                         return request;
+                       }))
+          .andExpect(status().isCreated());
+    }
+    Mockito.verify(userService, Mockito.times(2)).createUser(Mockito.any());
+  }
+
+  /**
+   * verifies that a failed request is not kept, so it can be retried with the same key
+   */
+  @Test
+  public void editUser_failedWithIdempotencyKey_retried() throws Exception {
+    User user = new User();
+    user.setId(1L);
+    user.setUsername("edited");
+
+    UserPostDTO userPostDTO = new UserPostDTO();
+    userPostDTO.setUsername("edited");
+
+    given(userService.updateUser(Mockito.any(), Mockito.any(), Mockito.any()))
+        .willThrow(new ResponseStatusException(HttpStatus.FORBIDDEN))
+        .willReturn(user);
+
+    MockHttpServletRequestBuilder putRequest = put("/users/1")
+                                                   .contentType(MediaType.APPLICATION_JSON)
+                                                   .content(asJsonString(userPostDTO))
+                                                   .header("Authorization", "token")
+                                                   .header(IdempotencyStore.HEADER, "edit-1");
+    mockMvc.perform(putRequest).andExpect(status().isForbidden());
+    mockMvc.perform(putRequest).andExpect(status().isNoContent());
+    mockMvc.perform(putRequest).andExpect(status().isNoContent());
+    Mockito.verify(userService, Mockito.times(2))
+        .updateUser(Mockito.any(), Mockito.any(), Mockito.any());
+  }
+
   /**
    * verifies that the get request with valid user id is successful and returns the correct user
    * properties
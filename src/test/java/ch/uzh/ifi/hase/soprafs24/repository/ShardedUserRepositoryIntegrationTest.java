@@ -0,0 +1,274 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.service.UserChangeLog;
+import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.persistence.Tuple;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Test class for the sharded UserRepository, with three in-memory H2 databases as shards of
+ * which two are used at the start, and one more as directory.
+ *
+ * @see ShardedUserRepository
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:shard-directory",
+                    "user.sharding.shard-urls=jdbc:h2:mem:shard-0;DB_CLOSE_DELAY=-1,"
+                        + "jdbc:h2:mem:shard-1;DB_CLOSE_DELAY=-1,"
+                        + "jdbc:h2:mem:shard-2;DB_CLOSE_DELAY=-1",
+                    "user.sharding.shard-count=2", "user.sharding.reshard-batch-size=3",
+                    "user.sharding.layout-refresh-interval=PT0.1S"})
+public class ShardedUserRepositoryIntegrationTest {
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Autowired private UserService userService;
+
+  @Autowired private UserShards userShards;
+
+  @Autowired private UserResharder userResharder;
+
+  @Autowired private UserChangeLog userChangeLog;
+
+  @Autowired private PlatformTransactionManager transactionManager;
+
+  @BeforeEach
+  public void setup() {
+    userRepository.deleteAll();
+  }
+
+  @AfterEach
+  public void teardown() {
+    if (userShards.getShardCount() != 2) {
+      userResharder.reshard(2);
+    }
+  }
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  private List<User> createUsers(int count) {
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      users.add(createUser("user" + i));
+    }
+    return users;
+  }
+
+  private int countOnShard(int index) {
+    return userShards.shard(index).queryForObject("select count(*) from users", Integer.class);
+  }
+
+  private int countIndexEntries() {
+    return userShards.directory().queryForObject("select count(*) from user_index", Integer.class);
+  }
+
+  @Test
+  public void sharded_isUserRepository() {
+    assertTrue(userRepository instanceof ShardedUserRepository);
+  }
+
+  @Test
+  public void createUser_recordedInChangeLog() {
+    User user = createUser("logged");
+
+    assertTrue(userChangeLog.findSince(0, Integer.MAX_VALUE).stream().anyMatch(
+        change -> change.getUserId().equals(user.getId())));
+  }
+
+  @Test
+  public void createUser_transactionRolledBack_nothingWritten() {
+    new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+      createUser("rolledBack");
+      // visible within the transaction
+      assertNotNull(userRepository.findByUsername("rolledBack"));
+      status.setRollbackOnly();
+    });
+
+    assertNull(userRepository.findByUsername("rolledBack"));
+    assertEquals(0, userRepository.count());
+    assertEquals(0, countIndexEntries());
+  }
+
+  @Test
+  public void createUsers_oneUserFails_noneCreated() {
+    List<User> newUsers = new ArrayList<>();
+    for (String username : List.of("first", "second")) {
+      User user = new User();
+      user.setName("name " + username);
+      user.setUsername(username);
+      user.setPassword("psw");
+      newUsers.add(user);
+    }
+    // rejected by the shard after the first user was written
+    newUsers.get(1).setPassword(null);
+
+    assertThrows(DataIntegrityViolationException.class, () -> userService.createUsers(newUsers));
+
+    assertEquals(0, userRepository.count());
+    assertEquals(0, countIndexEntries());
+    assertNull(userRepository.findByUsername("first"));
+  }
+
+  @Test
+  public void save_usersSpreadOverUsedShards() {
+    List<User> users = createUsers(20);
+
+    assertTrue(countOnShard(0) > 0);
+    assertTrue(countOnShard(1) > 0);
+    assertEquals(0, countOnShard(2));
+    assertEquals(20, userRepository.count());
+    for (User user : users) {
+      assertEquals(1, userShards.shard(userShards.shardOf(user.getId()))
+                          .queryForObject("select count(*) from users where id = ?",
+                              Integer.class, user.getId()));
+    }
+  }
+
+  @Test
+  public void findByUsernameAndToken_routedByIndex() {
+    User user = createUser("indexed");
+
+    assertEquals(user.getId(), userRepository.findByUsername("indexed").getId());
+    assertEquals(user.getId(), userRepository.findByToken(user.getToken()).getId());
+    assertNull(userRepository.findByUsername("unknown"));
+    assertNull(userRepository.findByToken("unknown"));
+  }
+
+  @Test
+  public void save_duplicateUsername_throwsException() {
+    createUser("duplicate");
+
+    User user = new User();
+    user.setName("other name");
+    user.setUsername("duplicate");
+    user.setPassword("psw");
+    user.setToken("other token");
+    user.setStatus(UserStatus.OFFLINE);
+    assertThrows(DataIntegrityViolationException.class, () -> userRepository.save(user));
+    assertEquals(1, userRepository.count());
+  }
+
+  @Test
+  public void save_changedUsernameAndToken_indexUpdated() {
+    User user = createUser("before");
+    String oldToken = user.getToken();
+
+    user.setUsername("after");
+    userService.rotateToken(user);
+
+    assertNull(userRepository.findByUsername("before"));
+    assertNull(userRepository.findByToken(oldToken));
+    assertEquals(user.getId(), userRepository.findByUsername("after").getId());
+    assertEquals(user.getId(), userRepository.findByToken(user.getToken()).getId());
+
+    // the old username is free again
+    assertNotNull(createUser("before"));
+  }
+
+  @Test
+  public void findAfterId_scatterGatherOrderedById() {
+    List<Long> ids = createUsers(11).stream().map(User::getId).collect(Collectors.toList());
+
+    List<User> page = userRepository.findAfterId(ids.get(3), PageRequest.of(0, 4));
+
+    assertEquals(11, userRepository.count());
+    assertEquals(
+        ids.subList(4, 8), page.stream().map(User::getId).collect(Collectors.toList()));
+    assertEquals(
+        ids, userRepository.findAll().stream().map(User::getId).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void findFieldsByIds_fromShards() {
+    User user = createUser("fields");
+
+    List<Tuple> tuples = userRepository.findFieldsByIds(
+        List.of(user.getId()), EnumSet.of(UserField.ID, UserField.USERNAME));
+
+    assertEquals(1, tuples.size());
+    assertEquals("fields", tuples.get(0).get("username"));
+    assertEquals(2, tuples.get(0).getElements().size());
+  }
+
+  @Test
+  public void reshard_usersMovedAndStillFound() {
+    List<User> users = createUsers(30);
+
+    int moved = userResharder.reshard(3);
+
+    // jump hash only moves users to the new shard
+    assertEquals(countOnShard(2), moved);
+    assertTrue(moved > 0);
+    assertEquals(30, userRepository.count());
+    for (User user : users) {
+      User found = userRepository.findByToken(user.getToken());
+      assertEquals(user.getId(), found.getId());
+      assertEquals(1, userShards.shard(userShards.shardOf(user.getId()))
+                          .queryForObject("select count(*) from users where id = ?",
+                              Integer.class, user.getId()));
+    }
+    assertNull(userShards.getPreviousShardCount());
+  }
+
+  @Test
+  public void reshard_interrupted_lookupsUsePreviousShard() {
+    List<User> users = createUsers(10);
+
+    // new layout, but no user moved yet
+    userShards.startResharding(3);
+    for (User user : users) {
+      assertEquals(user.getUsername(), userRepository.findById(user.getId()).get().getUsername());
+    }
+    assertEquals(10, userRepository.findAll().size());
+
+    // continue the resharding
+    userResharder.reshard(3);
+    assertEquals(10, userRepository.count());
+  }
+
+  @Test
+  public void refreshLayout_reshardingStartedByOtherInstance_followed() {
+    List<User> users = createUsers(10);
+
+    // another instance started resharding to 3 shards
+    userShards.directory().update(
+        "update user_shard_layout set shard_count = 3, previous_shard_count = 2 where id = 1");
+    userShards.refreshLayout();
+
+    assertEquals(3, userShards.getShardCount());
+    assertEquals(2, userShards.getPreviousShardCount());
+    assertThrows(IllegalStateException.class, () -> userShards.startResharding(3));
+    for (User user : users) {
+      assertEquals(user.getId(), userRepository.findByUsername(user.getUsername()).getId());
+    }
+
+    // continued on this instance
+    userResharder.reshard(3);
+    assertNull(userShards.getPreviousShardCount());
+    assertEquals(10, userRepository.count());
+  }
+}
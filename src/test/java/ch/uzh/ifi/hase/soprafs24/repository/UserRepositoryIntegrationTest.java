@@ -2,12 +2,16 @@ package ch.uzh.ifi.hase.soprafs24.repository;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import ch.uzh.ifi.hase.soprafs24.constant.UserField;
 import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs24.entity.User;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.EnumSet;
+import java.util.List;
+import javax.persistence.Tuple;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -84,4 +88,42 @@ public class UserRepositoryIntegrationTest {
     assertTrue(found.getCreated().isAfter(before) || found.getCreated().isEqual(before));
     assertTrue(found.getCreated().isBefore(after) || found.getCreated().isEqual(after));
   }
+
+  /**
+   * validate that only the selected fields are loaded and the tuples are ordered by id
+   */
+  @Test
+  public void findFieldsByIds_onlySelectedFields() {
+    User first = new User();
+    first.setName("First");
+    first.setUsername("first");
+    first.setStatus(UserStatus.OFFLINE);
+    first.setToken("1");
+    first.setPassword("psw");
+    entityManager.persist(first);
+
+    User second = new User();
+    second.setName("Second");
+    second.setUsername("second");
+    second.setStatus(UserStatus.ONLINE);
+    second.setToken("2");
+    second.setPassword("psw");
+    entityManager.persist(second);
+    entityManager.flush();
+
+    List<Tuple> tuples = userRepository.findFieldsByIds(
+        List.of(second.getId(), first.getId()), EnumSet.of(UserField.ID, UserField.USERNAME));
+
+    assertEquals(2, tuples.size());
+    assertEquals(2, tuples.get(0).getElements().size());
+    assertEquals(first.getId(), tuples.get(0).get("id", Long.class));
+    assertEquals("first", tuples.get(0).get("username"));
+    assertEquals("second", tuples.get(1).get("username"));
+
+    assertEquals(2, userRepository.findFieldsByIds(null, EnumSet.of(UserField.ID)).size());
+
+    tuples = userRepository.findFieldsAfterId(first.getId(), 10, EnumSet.of(UserField.USERNAME));
+    assertEquals(1, tuples.size());
+    assertEquals("second", tuples.get(0).get("username"));
+  }
 }
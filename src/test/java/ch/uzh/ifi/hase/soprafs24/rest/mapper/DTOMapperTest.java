@@ -7,13 +7,20 @@ import ch.uzh.ifi.hase.soprafs24.entity.User;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
 
 /**
  * DTOMapperTest
  * Tests if the mapping between the internal and the external/API representation
  * works.
  */
+@SuppressWarnings("unchecked")
 public class DTOMapperTest {
   @Test
   public void testCreateUser_fromUserPostDTO_toUser_success() {
@@ -52,4 +59,26 @@ public class DTOMapperTest {
     assertEquals(user.getStatus(), userGetDTO.getStatus());
     assertEquals(user.getCreated().toString(), userGetDTO.getCreated());
   }
+
+  @Test
+  public void testGetUserFields_fromTuple_toMap_success() {
+    LocalDateTime created = LocalDateTime.now();
+    TupleElement<Long> id = Mockito.mock(TupleElement.class);
+    Mockito.when(id.getAlias()).thenReturn("id");
+    TupleElement<LocalDateTime> createdElement = Mockito.mock(TupleElement.class);
+    Mockito.when(createdElement.getAlias()).thenReturn("created");
+
+    Tuple tuple = Mockito.mock(Tuple.class);
+    Mockito.when(tuple.getElements()).thenReturn(List.of(id, createdElement));
+    Mockito.when(tuple.get(id)).thenReturn(1L);
+    Mockito.when(tuple.get(createdElement)).thenReturn(created);
+
+    // MAP -> Create map with only the selected fields
+    Map<String, Object> userFields = DTOMapper.INSTANCE.convertTupleToUserFields(tuple);
+
+    // check content, formatted the same way as UserGetDTO
+    assertEquals(List.of("id", "created"), List.copyOf(userFields.keySet()));
+    assertEquals(1L, userFields.get("id"));
+    assertEquals(DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(created), userFields.get("created"));
+  }
 }
@@ -0,0 +1,142 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public class IdempotencyStoreTest {
+  private final AtomicInteger executions = new AtomicInteger();
+
+  private Integer operation() {
+    return executions.incrementAndGet();
+  }
+
+  /**
+   * verifies that concurrent duplicates wait for the running execution instead of executing again
+   */
+  @Test
+  public void execute_concurrentDuplicates_executedOnce() throws Exception {
+    IdempotencyStore store = new IdempotencyStore(Duration.ofHours(1), 100);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<Integer> first =
+          executor.submit(() -> store.execute("POST /users", "client", "key", "a", () -> {
+            started.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new IllegalStateException(e);
+            }
+            return operation();
+          }));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+
+      List<Future<Integer>> duplicates = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        duplicates.add(executor.submit(
+            () -> store.execute("POST /users", "client", "key", "a", this::operation)));
+      }
+      release.countDown();
+
+      assertEquals(1, first.get(5, TimeUnit.SECONDS));
+      for (Future<Integer> duplicate : duplicates) {
+        assertEquals(1, duplicate.get(5, TimeUnit.SECONDS));
+      }
+      assertEquals(1, executions.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void execute_withoutKey_alwaysExecuted() {
+    IdempotencyStore store = new IdempotencyStore(Duration.ofHours(1), 100);
+
+    assertEquals(1, store.execute("POST /users", "client", null, "a", this::operation));
+    assertEquals(2, store.execute("POST /users", "client", null, "a", this::operation));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void execute_sameKeyOtherRoute_executedAgain() {
+    IdempotencyStore store = new IdempotencyStore(Duration.ofHours(1), 100);
+
+    assertEquals(1, store.execute("PUT /users/1", "client", "key", "a", this::operation));
+    assertEquals(2, store.execute("PUT /users/2", "client", "key", "a", this::operation));
+    assertEquals(1, store.execute("PUT /users/1", "client", "key", "a", this::operation));
+  }
+
+  /**
+   * verifies that the key of one client is never replayed to another one
+   */
+  @Test
+  public void execute_sameKeyOtherCaller_executedAgain() {
+    IdempotencyStore store = new IdempotencyStore(Duration.ofHours(1), 100);
+
+    assertEquals(1, store.execute("POST /users", "client", "key", "a", this::operation));
+    assertEquals(2, store.execute("POST /users", "other", "key", "a", this::operation));
+    assertEquals(1, store.execute("POST /users", "client", "key", "a", this::operation));
+  }
+
+  @Test
+  public void fingerprint_differentRequests_different() {
+    assertEquals(IdempotencyStore.fingerprint("[\"a\"]".getBytes(StandardCharsets.UTF_8)),
+        IdempotencyStore.fingerprint("[\"a\"]".getBytes(StandardCharsets.UTF_8)));
+    assertNotEquals(IdempotencyStore.fingerprint("[\"Aa\"]".getBytes(StandardCharsets.UTF_8)),
+        IdempotencyStore.fingerprint("[\"BB\"]".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void execute_reusedKeyDifferentRequest_unprocessable() {
+    IdempotencyStore store = new IdempotencyStore(Duration.ofHours(1), 100);
+    store.execute("POST /users", "client", "key", "a", this::operation);
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+        () -> store.execute("POST /users", "client", "key", "b", this::operation));
+    assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, exception.getStatus());
+    assertEquals(1, executions.get());
+  }
+
+  /**
+   * verifies that the store is bounded and keys expire after the ttl
+   */
+  @Test
+  public void execute_manyKeysAndExpiry_evicted() throws Exception {
+    IdempotencyStore bounded = new IdempotencyStore(Duration.ofHours(1), 3);
+    for (int i = 0; i < 5; i++) {
+      bounded.execute("POST /users", "client", "key" + i, "a", this::operation);
+    }
+    assertEquals(3, bounded.size());
+    // the oldest key was evicted
+    assertEquals(6, bounded.execute("POST /users", "client", "key0", "a", this::operation));
+
+    IdempotencyStore expiring = new IdempotencyStore(Duration.ofMillis(10), 100);
+    int first = expiring.execute("POST /users", "client", "key", "a", this::operation);
+    Thread.sleep(20);
+    assertEquals(first + 1, expiring.execute("POST /users", "client", "key", "a", this::operation));
+    assertEquals(1, expiring.size());
+  }
+
+  @Test
+  public void execute_invalidKey_badRequest() {
+    IdempotencyStore store = new IdempotencyStore(Duration.ofHours(1), 100);
+
+    ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+        () -> store.execute("POST /users", "client", "k".repeat(256), "a", this::operation));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+  }
+}
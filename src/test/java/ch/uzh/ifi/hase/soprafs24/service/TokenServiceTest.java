@@ -0,0 +1,115 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import org.junit.jupiter.api.Test;
+
+public class TokenServiceTest {
+  private static final String KEY_1 = "k1:c2VjcmV0LWtleS1vbmUtc2VjcmV0LWtleS1vbmU=";
+  private static final String KEY_2 = "k2:c2VjcmV0LWtleS10d28tc2VjcmV0LWtleS10d28=";
+
+  private final Clock clock = Clock.fixed(Instant.parse("2024-03-01T12:00:00Z"), ZoneOffset.UTC);
+
+  private TokenService signedTokenService(String keys, Clock clock) {
+    return new TokenService(true, Duration.ofHours(1), keys, 100, clock);
+  }
+
+  /**
+   * verifies that unsigned mode issues plain UUID tokens, which have to be checked in the db
+   */
+  @Test
+  public void issue_unsigned_uuid() {
+    TokenService tokenService = new TokenService(false, Duration.ofHours(1), "", 100, clock);
+    String token = tokenService.issue(1L);
+
+    assertEquals(36, token.length());
+    assertFalse(tokenService.isSignedToken(token));
+    assertNull(tokenService.verify(token));
+  }
+
+  @Test
+  public void verify_signedToken_success() {
+    TokenService tokenService = signedTokenService(KEY_1, clock);
+    String token = tokenService.issue(42L);
+
+    assertTrue(tokenService.isSignedToken(token));
+    assertEquals(42L, tokenService.verify(token));
+  }
+
+  /**
+   * verifies that two tokens for the same user in the same second are still different
+   */
+  @Test
+  public void issue_sameUserSameTime_differentTokens() {
+    TokenService tokenService = signedTokenService(KEY_1, clock);
+    assertNotEquals(tokenService.issue(42L), tokenService.issue(42L));
+  }
+
+  @Test
+  public void verify_tamperedToken_invalid() {
+    TokenService tokenService = signedTokenService(KEY_1, clock);
+    String token = tokenService.issue(42L);
+    String tampered = token.replace(".42.", ".43.");
+
+    assertNull(tokenService.verify(tampered));
+  }
+
+  @Test
+  public void verify_expiredToken_invalid() {
+    String token = signedTokenService(KEY_1, clock).issue(42L);
+    Clock later = Clock.offset(clock, Duration.ofHours(2));
+
+    assertNull(signedTokenService(KEY_1, later).verify(token));
+  }
+
+  @Test
+  public void verify_revokedToken_invalid() {
+    TokenService tokenService = signedTokenService(KEY_1, clock);
+    String token = tokenService.issue(42L);
+    tokenService.revoke(token);
+
+    assertNull(tokenService.verify(token));
+  }
+
+  /**
+   * verifies that the revocation list does not grow beyond its size, and that the tokens dropped
+   * from it stay rejected
+   */
+  @Test
+  public void revoke_listFull_soonestExpiringRejected() {
+    TokenService tokenService = new TokenService(true, Duration.ofHours(1), KEY_1, 2, clock);
+    String first = tokenService.issue(1L);
+    TokenService later = new TokenService(true, Duration.ofHours(1), KEY_1, 2,
+        Clock.offset(clock, Duration.ofMinutes(10)));
+    String second = later.issue(2L);
+    String third = later.issue(3L);
+    String notRevoked = later.issue(4L);
+
+    later.revoke(first);
+    later.revoke(second);
+    later.revoke(third);
+
+    assertNull(later.verify(first));
+    assertNull(later.verify(second));
+    assertNull(later.verify(third));
+    assertEquals(4L, later.verify(notRevoked));
+  }
+
+  /**
+   * verifies that after a key rotation, tokens signed with the old key are still accepted and new
+   * tokens are signed with the new key
+   */
+  @Test
+  public void verify_keyRotation_oldTokensStillValid() {
+    String oldToken = signedTokenService(KEY_1, clock).issue(42L);
+    TokenService rotated = signedTokenService(KEY_2 + "," + KEY_1, clock);
+
+    assertEquals(42L, rotated.verify(oldToken));
+    assertTrue(rotated.issue(42L).startsWith("v1.k2."));
+    assertNull(signedTokenService(KEY_2, clock).verify(oldToken));
+  }
+}
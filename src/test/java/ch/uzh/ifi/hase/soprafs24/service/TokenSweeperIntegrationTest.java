@@ -0,0 +1,108 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.ExpiredToken;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Test class for the TokenSweeper, which invalidates expired tokens in chunks.
+ *
+ * @see TokenSweeper
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = "user.token.sweeper.chunk-size=2")
+public class TokenSweeperIntegrationTest {
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Autowired private UserService userService;
+
+  @Autowired private TokenSweeper tokenSweeper;
+
+  @Autowired private MeterRegistry meterRegistry;
+
+  @Autowired private PlatformTransactionManager transactionManager;
+
+  @BeforeEach
+  public void setup() {
+    userRepository.deleteAll();
+  }
+
+  private User createUser(String username, LocalDateTime tokenExpires) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    user = userService.createUser(user);
+
+    user.setTokenExpires(tokenExpires);
+    return userRepository.saveAndFlush(user);
+  }
+
+  @Test
+  public void sweep_expiredTokens_invalidatedInChunks() {
+    LocalDateTime past = LocalDateTime.now().minusHours(1);
+    for (int i = 0; i < 5; i++) {
+      createUser("expired" + i, past);
+    }
+    User validUser = createUser("valid", LocalDateTime.now().plusHours(1));
+    double invalidatedBefore = meterRegistry.counter("user.token.sweeper.invalidated").count();
+
+    // 5 expired tokens with chunks of 2 rows
+    assertEquals(5, tokenSweeper.sweep());
+
+    for (User user : userRepository.findAll()) {
+      if (user.getId().equals(validUser.getId())) {
+        assertEquals(validUser.getToken(), user.getToken());
+      } else {
+        assertNull(user.getToken());
+        assertNull(user.getTokenExpires());
+      }
+    }
+    assertEquals(
+        5, meterRegistry.counter("user.token.sweeper.invalidated").count() - invalidatedBefore);
+    assertTrue(meterRegistry.get("user.token.sweeper.lag").gauge().value() >= 3600);
+
+    // nothing left to sweep
+    assertEquals(0, tokenSweeper.sweep());
+    assertEquals(0, meterRegistry.get("user.token.sweeper.lag").gauge().value());
+  }
+
+  /**
+   * verifies that a token issued after the expired tokens were selected is not invalidated
+   */
+  @Test
+  public void invalidateTokens_tokenRotatedSinceSelected_kept() {
+    LocalDateTime now = LocalDateTime.now();
+    User expired = createUser("expired", now.minusHours(1));
+    User rotated = createUser("rotated", now.minusHours(1));
+    List<Long> ids = new ArrayList<>();
+    for (ExpiredToken expiredToken :
+        userRepository.findTokensExpiredBefore(now, Pageable.unpaged())) {
+      ids.add(expiredToken.getId());
+    }
+
+    userService.rotateToken(userRepository.findById(rotated.getId()).orElseThrow());
+    String rotatedToken = userRepository.findById(rotated.getId()).orElseThrow().getToken();
+
+    Integer invalidated = new TransactionTemplate(transactionManager)
+        .execute(status -> userRepository.invalidateTokens(ids, now));
+    assertEquals(1, invalidated);
+    assertNull(userRepository.findById(expired.getId()).orElseThrow().getToken());
+    assertEquals(rotatedToken, userRepository.findById(rotated.getId()).orElseThrow().getToken());
+  }
+}
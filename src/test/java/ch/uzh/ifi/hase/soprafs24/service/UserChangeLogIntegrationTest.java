@@ -0,0 +1,107 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.config.QueryCounter;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChange;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Test class for the change sequence of the users and the sync of the changes since a sequence.
+ *
+ * @see UserChangeLog
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:changes",
+                    "user.queries.enabled=true"})
+public class UserChangeLogIntegrationTest {
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Autowired private UserService userService;
+
+  @Autowired private QueryCounter queryCounter;
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  private long latestSequence() {
+    List<UserChange> changes = userService.getChanges(0, Integer.MAX_VALUE);
+    return changes.isEmpty() ? 0 : changes.get(changes.size() - 1).getSequence();
+  }
+
+  /**
+   * verifies that a sync since a sequence only returns the users changed after it, once each, and
+   * deleted users as tombstones
+   */
+  @Test
+  public void getChanges_sinceSequence_onlyLaterChanges() {
+    long since = latestSequence();
+    User updated = createUser("changes1");
+    User deleted = createUser("changes2");
+    User unchanged = createUser("changes3");
+    long afterCreation = latestSequence();
+
+    User input = new User();
+    input.setStatus(UserStatus.ONLINE);
+    userService.updateUserStatus(input, updated.getId(), updated.getToken());
+    userService.deleteUser(deleted.getId(), deleted.getToken());
+
+    List<UserChange> changes = userService.getChanges(since, 100);
+    assertEquals(3, changes.size());
+    // ordered by their latest change
+    assertEquals(unchanged.getId(), changes.get(0).getUserId());
+    assertEquals(updated.getId(), changes.get(1).getUserId());
+    assertEquals(UserStatus.ONLINE, changes.get(1).getUser().getStatus());
+    assertEquals(deleted.getId(), changes.get(2).getUserId());
+    assertTrue(changes.get(2).isDeleted());
+    assertNull(changes.get(2).getUser());
+    assertNull(userRepository.findByUsername("changes2"));
+
+    List<UserChange> later = userService.getChanges(afterCreation, 100);
+    assertEquals(2, later.size());
+    List<Long> sequences = new ArrayList<>();
+    for (UserChange change : changes) {
+      sequences.add(change.getSequence());
+    }
+    assertTrue(sequences.get(0) < sequences.get(1) && sequences.get(1) < sequences.get(2));
+
+    // paging with the last sequence as cursor
+    List<UserChange> firstPage = userService.getChanges(since, 2);
+    List<UserChange> secondPage = userService.getChanges(firstPage.get(1).getSequence(), 2);
+    assertEquals(1, secondPage.size());
+    assertEquals(deleted.getId(), secondPage.get(0).getUserId());
+    assertEquals(0, userService.getChanges(latestSequence(), 100).size());
+  }
+
+  /**
+   * verifies that a sync reads the changes and the changed users, independent of the number of
+   * users
+   */
+  @Test
+  public void getChanges_statementCount() {
+    createUser("counted1");
+    long since = latestSequence();
+    createUser("counted2");
+    createUser("counted3");
+
+    QueryCounter.QueryStatistics statistics =
+        queryCounter.measure(() -> assertEquals(2, userService.getChanges(since, 100).size()));
+
+    // changes, changed users
+    assertEquals(2, statistics.getCount(), statistics.getExecutions().toString());
+  }
+}
@@ -0,0 +1,85 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.config.QueryCounter;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Test class for the list and detail reads served by the user directory.
+ *
+ * @see UserDirectory
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:directory",
+                    "user.directory.enabled=true", "user.queries.enabled=true"})
+public class UserDirectoryIntegrationTest {
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Autowired private UserService userService;
+
+  @Autowired private QueryCounter queryCounter;
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  private static void assertSameUser(User expected, User actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.getUsername(), actual.getUsername());
+    assertEquals(expected.getStatus(), actual.getStatus());
+    assertEquals(expected.getToken(), actual.getToken());
+    assertEquals(expected.getBirthday(), actual.getBirthday());
+    assertEquals(expected.getCreated(), actual.getCreated());
+  }
+
+  /**
+   * verifies that the directory serves the same users as the database after creations, updates,
+   * logins and deletions, without statements
+   */
+  @Test
+  public void getUsers_afterWrites_sameAsDatabase() {
+    User updated = createUser("directory1");
+    User deleted = createUser("directory2");
+    User loggedIn = createUser("directory3");
+
+    User input = new User();
+    input.setUsername("directory1b");
+    input.setName("name directory1b");
+    input.setBirthday("2001-02-03");
+    userService.updateUser(input, updated.getId(), updated.getToken());
+    input = new User();
+    input.setStatus(UserStatus.ONLINE);
+    userService.updateUserStatus(input, updated.getId(), updated.getToken());
+    userService.deleteUser(deleted.getId(), deleted.getToken());
+    userService.rotateToken(userRepository.findById(loggedIn.getId()).orElseThrow());
+
+    List<User> stored = userRepository.findAll();
+    AtomicReference<List<User>> served = new AtomicReference<>();
+    QueryCounter.QueryStatistics statistics =
+        queryCounter.measure(() -> served.set(userService.getUsers()));
+
+    assertEquals(0, statistics.getCount());
+    assertEquals(stored.size(), served.get().size());
+    for (int i = 0; i < stored.size(); i++) {
+      assertSameUser(stored.get(i), served.get().get(i));
+    }
+    assertSameUser(userRepository.findById(updated.getId()).orElseThrow(),
+        userService.getUserById(updated.getId()));
+    assertEquals(1, userService.getUsersByIds(List.of(deleted.getId(), loggedIn.getId())).size());
+  }
+}
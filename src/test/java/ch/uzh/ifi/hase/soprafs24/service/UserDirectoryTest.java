@@ -0,0 +1,131 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.PlatformTransactionManager;
+
+public class UserDirectoryTest {
+  private static final LocalDateTime CREATED = LocalDateTime.of(2024, 5, 1, 8, 0, 0, 123456789);
+
+  private final UserRepository userRepository = Mockito.mock(UserRepository.class);
+  private final PlatformTransactionManager transactionManager =
+      Mockito.mock(PlatformTransactionManager.class);
+  private final UserDirectory userDirectory =
+      new UserDirectory(userRepository, transactionManager, true, 2);
+
+  private static User user(long id, String name, UserStatus status) {
+    User user = new User();
+    user.setId(id);
+    user.setName(name);
+    user.setUsername("user" + id);
+    user.setStatus(status);
+    user.setToken("token" + id);
+    user.setCreated(CREATED.plusSeconds(id));
+    return user;
+  }
+
+  private List<Long> ids() {
+    List<Long> ids = new ArrayList<>();
+    for (User user : userDirectory.findAll()) {
+      ids.add(user.getId());
+    }
+    return ids;
+  }
+
+  /**
+   * verifies that added, updated and removed users are served with all fields, ordered by id
+   */
+  @Test
+  public void putAndRemove_usersServedOrderedById() {
+    userDirectory.put(user(1, "Anna", UserStatus.ONLINE));
+    userDirectory.put(user(3, "Anna", UserStatus.OFFLINE));
+    // committed out of order
+    userDirectory.put(user(2, "Bob", UserStatus.ONLINE));
+    User updated = user(3, "Carla", UserStatus.ONLINE);
+    updated.setBirthday("2000-01-01");
+    userDirectory.put(updated);
+    userDirectory.remove(1);
+
+    assertEquals(List.of(2L, 3L), ids());
+    User found = userDirectory.findById(3).orElseThrow();
+    assertEquals("Carla", found.getName());
+    assertEquals("user3", found.getUsername());
+    assertEquals(UserStatus.ONLINE, found.getStatus());
+    assertEquals("token3", found.getToken());
+    assertEquals("2000-01-01", found.getBirthday());
+    // rounded to microseconds like the database
+    assertEquals(LocalDateTime.of(2024, 5, 1, 8, 0, 3, 123457000), found.getCreated());
+    assertTrue(userDirectory.findById(1).isEmpty());
+    assertEquals(2, userDirectory.findAllById(List.of(3L, 1L, 2L)).size());
+
+    // the token of user 3 was replaced since it was swept
+    userDirectory.clearTokens(Map.of(2L, "token2", 3L, "expired3"));
+    assertNull(userDirectory.findById(2).orElseThrow().getToken());
+    assertEquals("token3", userDirectory.findById(3).orElseThrow().getToken());
+  }
+
+  /**
+   * verifies that the users are still served after compactions, e.g. after many deletions and
+   * token rotations
+   */
+  @Test
+  public void put_manyChanges_compacted() {
+    for (long id = 1; id <= 5000; id++) {
+      userDirectory.put(user(id, "name" + (id % 10), UserStatus.OFFLINE));
+    }
+    for (long id = 1; id <= 5000; id++) {
+      if (id % 3 != 0) {
+        userDirectory.remove(id);
+      }
+    }
+    for (int round = 0; round < 10; round++) {
+      for (long id = 3; id <= 5000; id += 3) {
+        User rotated = user(id, "name" + (id % 10), UserStatus.ONLINE);
+        rotated.setToken("token" + id + "-" + round);
+        userDirectory.put(rotated);
+      }
+    }
+
+    assertEquals(1666, userDirectory.size());
+    List<Long> ids = ids();
+    assertEquals(1666, ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      assertEquals(3L * (i + 1), ids.get(i));
+    }
+    User found = userDirectory.findById(4998).orElseThrow();
+    assertEquals("token4998-9", found.getToken());
+    assertEquals("name8", found.getName());
+  }
+
+  /**
+   * verifies that a load reads all pages and keeps the changes made while it was loading
+   */
+  @Test
+  public void load_pages_allUsersAndConcurrentChanges() {
+    Mockito.when(userRepository.findAfterId(0, PageRequest.of(0, 2)))
+        .thenReturn(
+            List.of(user(1, "Anna", UserStatus.OFFLINE), user(2, "Bob", UserStatus.OFFLINE)));
+    Mockito.when(userRepository.findAfterId(2, PageRequest.of(0, 2))).thenAnswer(invocation -> {
+      // written while the load is running
+      userDirectory.put(user(4, "Dora", UserStatus.ONLINE));
+      return List.of(user(3, "Carla", UserStatus.OFFLINE));
+    });
+
+    userDirectory.load();
+
+    assertEquals(List.of(1L, 2L, 3L, 4L), ids());
+    // from the primary, a read replica may not have the latest writes yet
+    Mockito.verify(transactionManager, Mockito.never())
+        .getTransaction(Mockito.argThat(definition -> definition.isReadOnly()));
+  }
+}
@@ -0,0 +1,126 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.config.ReadYourWrites;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+
+public class UserLookupCoalescerTest {
+  private final UserRepository userRepository = Mockito.mock(UserRepository.class);
+  private final PlatformTransactionManager transactionManager =
+      Mockito.mock(PlatformTransactionManager.class);
+  private final ReadYourWrites readYourWrites = new ReadYourWrites("", Duration.ZERO);
+
+  private UserLookupCoalescer coalescer(Duration window, int maxBatchSize) {
+    return new UserLookupCoalescer(
+        userRepository, transactionManager, readYourWrites, window, maxBatchSize);
+  }
+
+  private static User user(Long id) {
+    User user = new User();
+    user.setId(id);
+    return user;
+  }
+
+  /**
+   * verifies that bulk lookups are split into chunks
+   */
+  @Test
+  public void findAllById_chunked() {
+    UserLookupCoalescer coalescer = coalescer(Duration.ZERO, 2);
+    Mockito.when(userRepository.findAllById(Mockito.any()))
+        .thenAnswer(invocation -> {
+          List<User> users = new ArrayList<>();
+          for (Long id : invocation.<Iterable<Long>>getArgument(0)) {
+            users.add(user(id));
+          }
+          return users;
+        });
+
+    assertEquals(5, coalescer.findAllById(List.of(1L, 2L, 3L, 4L, 5L)).size());
+    Mockito.verify(userRepository, Mockito.times(3)).findAllById(Mockito.any());
+  }
+
+  /**
+   * verifies that without a window every lookup goes to the repository directly
+   */
+  @Test
+  public void findById_disabled_noCoalescing() {
+    UserLookupCoalescer coalescer = coalescer(Duration.ZERO, 500);
+    Mockito.when(userRepository.findById(1L)).thenReturn(Optional.of(user(1L)));
+
+    assertFalse(coalescer.isEnabled());
+    assertEquals(1L, coalescer.findById(1L).get().getId());
+    Mockito.verify(userRepository, Mockito.never()).findAllById(Mockito.any());
+    // read-only, so it may be served by a read replica
+    Mockito.verify(transactionManager)
+        .getTransaction(Mockito.argThat(TransactionDefinition::isReadOnly));
+  }
+
+  /**
+   * verifies that concurrent lookups within the window are loaded with a single query
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void findById_concurrentLookups_oneQuery() throws Exception {
+    UserLookupCoalescer coalescer = coalescer(Duration.ofMillis(200), 500);
+    Mockito.when(userRepository.findAllById(Mockito.any()))
+        .thenReturn(List.of(user(1L), user(2L)));
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Future<Optional<User>> first = executor.submit(() -> coalescer.findById(1L));
+      Future<Optional<User>> second = executor.submit(() -> coalescer.findById(2L));
+      Future<Optional<User>> missing = executor.submit(() -> coalescer.findById(3L));
+
+      assertEquals(1L, first.get().get().getId());
+      assertEquals(2L, second.get().get().getId());
+      assertTrue(missing.get().isEmpty());
+    } finally {
+      executor.shutdown();
+      coalescer.shutdown();
+    }
+
+    ArgumentCaptor<Iterable<Long>> ids = ArgumentCaptor.forClass(Iterable.class);
+    Mockito.verify(userRepository, Mockito.times(1)).findAllById(ids.capture());
+    assertEquals(3, ((List<Long>) ids.getValue()).size());
+    // one read-only transaction for the batch
+    Mockito.verify(transactionManager)
+        .getTransaction(Mockito.argThat(TransactionDefinition::isReadOnly));
+  }
+
+  /**
+   * verifies that lookups of a client pinned to the primary are not coalesced, the pin only
+   * routes the transactions of the request thread to the primary
+   */
+  @Test
+  public void findById_pinnedRequest_loadedInRequestThread() {
+    ReadYourWrites pinningReadYourWrites =
+        new ReadYourWrites("jdbc:replica", Duration.ofSeconds(5));
+    UserLookupCoalescer coalescer = new UserLookupCoalescer(userRepository, transactionManager,
+        pinningReadYourWrites, Duration.ofMillis(200), 500);
+    Mockito.when(userRepository.findById(1L)).thenReturn(Optional.of(user(1L)));
+
+    pinningReadYourWrites.setCurrentRequestPinned(true);
+    try {
+      assertEquals(1L, coalescer.findById(1L).get().getId());
+    } finally {
+      pinningReadYourWrites.setCurrentRequestPinned(false);
+      coalescer.shutdown();
+    }
+    Mockito.verify(userRepository, Mockito.never()).findAllById(Mockito.any());
+  }
+}
@@ -0,0 +1,169 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserChangeType;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.entity.UserChangeEvent;
+import ch.uzh.ifi.hase.soprafs24.repository.UserOutboxRepository;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.event.EventListener;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Test class for the outbox of the user change events and its relay.
+ *
+ * @see UserChangeOutbox
+ * @see UserOutboxRelay
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {"user.outbox.batch-size=2", "user.outbox.relay-interval=PT1H",
+                    "spring.datasource.url=jdbc:h2:mem:outbox"})
+public class UserOutboxIntegrationTest {
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Autowired private UserOutboxRepository userOutboxRepository;
+
+  @Autowired private UserService userService;
+
+  @Autowired private UserOutboxRelay userOutboxRelay;
+
+  @Autowired private MeterRegistry meterRegistry;
+
+  @Autowired private ObjectMapper objectMapper;
+
+  @Autowired private RecordingListener listener;
+
+  @TestConfiguration
+  static class ListenerConfig {
+    @Bean
+    RecordingListener recordingListener() {
+      return new RecordingListener();
+    }
+  }
+
+  static class RecordingListener {
+    private final List<UserChangeEvent> events = new ArrayList<>();
+    private boolean failing;
+
+    @EventListener
+    public void onUserChange(UserChangeEvent event) {
+      if (failing) {
+        throw new IllegalStateException("listener failed");
+      }
+      events.add(event);
+    }
+  }
+
+  @BeforeEach
+  public void setup() {
+    userRepository.deleteAll();
+    userOutboxRepository.deleteAll();
+    listener.events.clear();
+    listener.failing = false;
+  }
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  /**
+   * verifies that the events of the changes are published in order and removed from the outbox
+   */
+  @Test
+  public void relay_changes_publishedInOrder() throws Exception {
+    User user = createUser("outbox");
+    User input = new User();
+    input.setUsername("outbox");
+    input.setName("renamed");
+    userService.updateUser(input, user.getId(), user.getToken());
+    input.setStatus(UserStatus.ONLINE);
+    userService.updateUserStatus(input, user.getId(), user.getToken());
+    assertEquals(3, userOutboxRepository.count());
+
+    // in batches of 2
+    assertEquals(3, userOutboxRelay.relay());
+
+    assertEquals(0, userOutboxRepository.count());
+    List<UserChangeType> types = new ArrayList<>();
+    for (UserChangeEvent event : listener.events) {
+      assertEquals(user.getId(), event.getUserId());
+      types.add(event.getType());
+    }
+    assertEquals(
+        List.of(UserChangeType.CREATED, UserChangeType.UPDATED, UserChangeType.STATUS_UPDATED),
+        types);
+
+    JsonNode payload = objectMapper.readTree(listener.events.get(1).getPayload());
+    assertEquals("renamed", payload.get("name").asText());
+    assertFalse(payload.has("token"));
+    assertFalse(payload.has("password"));
+    assertEquals(0, meterRegistry.get("user.outbox.lag").gauge().value());
+  }
+
+  /**
+   * verifies that events are kept and published again if publishing failed
+   */
+  @Test
+  public void relay_listenerFails_publishedAgain() {
+    createUser("outbox");
+    listener.failing = true;
+
+    assertEquals(0, userOutboxRelay.relay());
+    assertEquals(1, userOutboxRepository.count());
+
+    listener.failing = false;
+    assertEquals(1, userOutboxRelay.relay());
+    assertEquals(1, listener.events.size());
+    assertEquals(0, userOutboxRepository.count());
+  }
+
+  /**
+   * verifies that no event is recorded for a change which is rolled back
+   */
+  @Test
+  public void createUser_rolledBack_noEvent() {
+    createUser("outbox");
+    userOutboxRepository.deleteAll();
+
+    assertThrows(ResponseStatusException.class, () -> createUser("outbox"));
+    assertEquals(0, userOutboxRepository.count());
+  }
+
+  @Test
+  public void fileSink_batch_appendedAsJsonLines(@TempDir Path directory) throws Exception {
+    createUser("outbox1");
+    createUser("outbox2");
+    Path file = directory.resolve("changes/user-changes.jsonl");
+    FileUserChangeSink sink = new FileUserChangeSink(file, objectMapper);
+
+    sink.publish(userOutboxRepository.findAll());
+
+    List<String> lines = Files.readAllLines(file);
+    assertEquals(2, lines.size());
+    JsonNode line = objectMapper.readTree(lines.get(1));
+    assertEquals("CREATED", line.get("type").asText());
+    assertEquals("outbox2", line.get("user").get("username").asText());
+  }
+}
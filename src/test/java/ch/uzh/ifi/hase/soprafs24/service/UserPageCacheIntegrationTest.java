@@ -0,0 +1,62 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Test class for outdating the cached pages by the writes of the UserService.
+ *
+ * @see UserPageCache
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:pagecache",
+                    "user.page-cache.enabled=true"})
+public class UserPageCacheIntegrationTest {
+  @Autowired private UserService userService;
+
+  @Autowired private UserPageCache userPageCache;
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  /**
+   * verifies that a page is rendered again after a committed write, and only then
+   */
+  @Test
+  public void get_afterWrite_renderedAgain() {
+    AtomicInteger renderings = new AtomicInteger();
+    UserPageCache.Renderer renderer = () -> {
+      renderings.incrementAndGet();
+      StringBuilder usernames = new StringBuilder();
+      for (User user : userService.getUsers()) {
+        usernames.append(user.getUsername()).append(' ');
+      }
+      return usernames.toString().getBytes(StandardCharsets.UTF_8);
+    };
+
+    User first = createUser("page1");
+    userPageCache.get("test", renderer);
+    userPageCache.get("test", renderer);
+    assertEquals(1, renderings.get());
+
+    createUser("page2");
+    userService.deleteUser(first.getId(), first.getToken());
+    String page = new String(userPageCache.get("test", renderer).getJson(), StandardCharsets.UTF_8);
+
+    assertEquals(2, renderings.get());
+    assertTrue(page.contains("page2"));
+    assertFalse(page.contains("page1"));
+  }
+}
@@ -0,0 +1,127 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+public class UserPageCacheTest {
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final PlatformTransactionManager transactionManager =
+      Mockito.mock(PlatformTransactionManager.class);
+  private final UserPageCache userPageCache =
+      new UserPageCache(meterRegistry, transactionManager, true, true, 10, 2);
+
+  @AfterEach
+  public void shutdown() {
+    userPageCache.shutdown();
+  }
+
+  private static byte[] json(String content) {
+    return content.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * verifies that concurrent misses of a page render it once, and that the page is rendered
+   * again once it was invalidated
+   */
+  @Test
+  public void get_concurrentMisses_renderedOnce() throws Exception {
+    AtomicInteger renderings = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    UserPageCache.Renderer renderer = () -> {
+      renderings.incrementAndGet();
+      try {
+        assertTrue(release.await(5, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      return json("[" + renderings.get() + "]");
+    };
+
+    ExecutorService requests = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<UserPageCache.Page>> pages = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        pages.add(requests.submit(() -> userPageCache.get("all", renderer)));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      for (Future<UserPageCache.Page> page : pages) {
+        assertEquals("[1]", new String(page.get(5, TimeUnit.SECONDS).getJson(),
+            StandardCharsets.UTF_8));
+      }
+    } finally {
+      requests.shutdownNow();
+    }
+    assertEquals(1, renderings.get());
+
+    userPageCache.get("all", renderer);
+    assertEquals(1, renderings.get());
+    userPageCache.invalidate();
+    assertEquals("[2]",
+        new String(userPageCache.get("all", renderer).getJson(), StandardCharsets.UTF_8));
+    assertEquals(1, meterRegistry.counter("user.page-cache.hits").count());
+    assertEquals(2, meterRegistry.counter("user.page-cache.rebuilds").count());
+  }
+
+  /**
+   * verifies that large pages are kept compressed as well, small ones only as JSON
+   */
+  @Test
+  public void get_largePage_compressed() throws IOException {
+    String large = "[" + "\"user\",".repeat(500) + "\"user\"]";
+
+    UserPageCache.Page page = userPageCache.get("large", () -> json(large));
+    UserPageCache.Page small = userPageCache.get("small", () -> json("[]"));
+
+    assertTrue(page.getGzip().length < page.getJson().length);
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(page.getGzip()))) {
+      assertEquals(large, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    assertNull(small.getGzip());
+  }
+
+  /**
+   * verifies that pages are rendered in a read-write transaction, which is never routed to a read
+   * replica
+   */
+  @Test
+  public void get_missing_renderedInReadWriteTransaction() {
+    userPageCache.get("all", () -> json("[]"));
+
+    Mockito.verify(transactionManager)
+        .getTransaction(Mockito.argThat(definition -> !definition.isReadOnly()));
+  }
+
+  /**
+   * verifies that a failed rendering is passed to the request and retried by the next one
+   */
+  @Test
+  public void get_renderingFails_retried() {
+    IllegalStateException exception = assertThrows(IllegalStateException.class,
+        () -> userPageCache.get("all", () -> {
+          throw new IllegalStateException("database down");
+        }));
+    assertEquals("database down", exception.getMessage());
+
+    assertEquals("[]",
+        new String(userPageCache.get("all", () -> json("[]")).getJson(), StandardCharsets.UTF_8));
+  }
+}
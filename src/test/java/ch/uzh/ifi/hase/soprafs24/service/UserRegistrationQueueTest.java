@@ -0,0 +1,156 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public class UserRegistrationQueueTest {
+  private final UserService userService = Mockito.mock(UserService.class);
+  private final UserRepository userRepository = Mockito.mock(UserRepository.class);
+  private final UserRegistrationQueue queue = new UserRegistrationQueue(
+      userService, userRepository, true, 2, 1, 10, Duration.ofHours(1), 100);
+
+  // the first batch waits for release, so the following registrations stay queued
+  private final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @AfterEach
+  public void shutdown() {
+    release.countDown();
+    queue.shutdown();
+  }
+
+  private static User user(String username) {
+    User user = new User();
+    user.setUsername(username);
+    return user;
+  }
+
+  private void blockFirstBatch() {
+    Mockito.when(userService.createUsers(Mockito.any())).thenAnswer(invocation -> {
+      firstBatchStarted.countDown();
+      assertTrue(release.await(5, TimeUnit.SECONDS));
+      return invocation.getArgument(0);
+    });
+  }
+
+  private static void awaitCompleted(UserRegistrationQueue.Registration registration)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (registration.getState() == UserRegistrationQueue.State.QUEUED) {
+      assertTrue(deadline - System.nanoTime() > 0, "registration not completed");
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * verifies that the registrations queued while the worker is busy are created in one batch
+   */
+  @Test
+  public void submit_whileBusy_createdInOneBatch() throws Exception {
+    blockFirstBatch();
+    UserRegistrationQueue.Registration first = queue.submit(user("first"));
+    assertTrue(firstBatchStarted.await(5, TimeUnit.SECONDS));
+    UserRegistrationQueue.Registration second = queue.submit(user("second"));
+    UserRegistrationQueue.Registration third = queue.submit(user("third"));
+    assertEquals(UserRegistrationQueue.State.QUEUED, second.getState());
+    release.countDown();
+
+    for (UserRegistrationQueue.Registration registration : List.of(first, second, third)) {
+      awaitCompleted(registration);
+      assertEquals(UserRegistrationQueue.State.CREATED, registration.getState());
+    }
+    assertEquals("third", third.getUser().getUsername());
+    assertSame(third, queue.getRegistration(third.getId()));
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<User>> batches = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(userService, Mockito.times(2)).createUsers(batches.capture());
+    assertEquals(2, batches.getAllValues().get(1).size());
+  }
+
+  /**
+   * verifies that a failed batch is retried one by one, so only the invalid registration fails
+   */
+  @Test
+  public void submit_batchFails_createdOneByOne() throws Exception {
+    Mockito.when(userService.createUsers(Mockito.any()))
+        .thenThrow(new ResponseStatusException(HttpStatus.BAD_REQUEST, "not unique"));
+    Mockito.when(userService.createUser(Mockito.any())).thenAnswer(invocation -> {
+      User newUser = invocation.getArgument(0);
+      if (newUser.getUsername().equals("taken")) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "not unique");
+      }
+      return newUser;
+    });
+
+    UserRegistrationQueue.Registration free = queue.submit(user("free"));
+    UserRegistrationQueue.Registration taken = queue.submit(user("taken"));
+    awaitCompleted(free);
+    awaitCompleted(taken);
+
+    assertEquals(UserRegistrationQueue.State.CREATED, free.getState());
+    assertEquals(UserRegistrationQueue.State.FAILED, taken.getState());
+    assertEquals("not unique", taken.getMessage());
+    assertNull(taken.getUser());
+  }
+
+  /**
+   * verifies that registrations are rejected if the queue is full, and that invalid ones are
+   * rejected right away
+   */
+  @Test
+  public void submit_queueFullOrInvalid_rejected() throws Exception {
+    blockFirstBatch();
+    queue.submit(user("first"));
+    assertTrue(firstBatchStarted.await(5, TimeUnit.SECONDS));
+    queue.submit(user("second"));
+
+    // already queued
+    ResponseStatusException exception =
+        assertThrows(ResponseStatusException.class, () -> queue.submit(user("second")));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+    assertEquals(1, queue.getQueueSize());
+
+    queue.submit(user("third"));
+    exception = assertThrows(ResponseStatusException.class, () -> queue.submit(user("fourth")));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus());
+
+    Mockito.when(userRepository.findByUsername("existing")).thenReturn(user("existing"));
+    exception = assertThrows(ResponseStatusException.class, () -> queue.submit(user("existing")));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+    exception = assertThrows(ResponseStatusException.class, () -> queue.submit(user("")));
+    assertEquals(HttpStatus.BAD_REQUEST, exception.getStatus());
+  }
+
+  /**
+   * verifies that queued registrations are still created on shutdown, and new ones rejected
+   */
+  @Test
+  public void flushOnShutdown_queued_created() throws Exception {
+    blockFirstBatch();
+    UserRegistrationQueue.Registration first = queue.submit(user("first"));
+    assertTrue(firstBatchStarted.await(5, TimeUnit.SECONDS));
+    UserRegistrationQueue.Registration second = queue.submit(user("second"));
+    release.countDown();
+
+    queue.flushOnShutdown();
+
+    assertEquals(UserRegistrationQueue.State.CREATED, first.getState());
+    assertEquals(UserRegistrationQueue.State.CREATED, second.getState());
+    ResponseStatusException exception =
+        assertThrows(ResponseStatusException.class, () -> queue.submit(user("third")));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus());
+  }
+}
@@ -0,0 +1,92 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Test class for the serialized users of the user row store.
+ *
+ * @see UserRowStore
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:rowstore",
+                    "user.row-store.enabled=true"})
+public class UserRowStoreIntegrationTest {
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Autowired private UserService userService;
+
+  @Autowired private UserRowStore userRowStore;
+
+  @Autowired private ObjectMapper objectMapper;
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  private String storedJson() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    userRowStore.writeAll(out);
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  private String databaseJson() throws IOException {
+    List<UserGetDTO> userGetDTOs = new ArrayList<>();
+    for (User user : userRepository.findAll()) {
+      userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+    }
+    return objectMapper.writeValueAsString(userGetDTOs);
+  }
+
+  /**
+   * verifies that the store writes the same JSON as serializing the users of the database, before
+   * and after a refresh
+   */
+  @Test
+  public void writeAll_afterWritesAndRefresh_sameAsDatabase() throws IOException {
+    User updated = createUser("rows1");
+    User deleted = createUser("rows2");
+    User loggedIn = createUser("rows3");
+
+    User input = new User();
+    input.setUsername("rows1b");
+    input.setName("name rows1b");
+    input.setBirthday("2001-02-03");
+    userService.updateUser(input, updated.getId(), updated.getToken());
+    input = new User();
+    input.setStatus(UserStatus.ONLINE);
+    userService.updateUserStatus(input, updated.getId(), updated.getToken());
+    userService.deleteUser(deleted.getId(), deleted.getToken());
+    userService.rotateToken(userRepository.findById(loggedIn.getId()).orElseThrow());
+
+    assertEquals(databaseJson(), storedJson());
+    userRowStore.refresh();
+    assertEquals(databaseJson(), storedJson());
+
+    createUser("rows4");
+    userService.deleteUser(loggedIn.getId(),
+        userRepository.findById(loggedIn.getId()).orElseThrow().getToken());
+    assertEquals(databaseJson(), storedJson());
+    assertTrue(userRowStore.findById(deleted.getId()).isEmpty());
+  }
+}
@@ -0,0 +1,135 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+
+public class UserRowStoreTest {
+  private static final LocalDateTime CREATED = LocalDateTime.of(2024, 5, 1, 8, 0);
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final UserRepository userRepository = Mockito.mock(UserRepository.class);
+
+  private final PlatformTransactionManager transactionManager =
+      Mockito.mock(PlatformTransactionManager.class);
+
+  private UserRowStore userRowStore(DataSize segmentSize, String directory) {
+    return new UserRowStore(userRepository, transactionManager, objectMapper, true, segmentSize,
+        directory, 1000, 10);
+  }
+
+  private static User user(long id, String name) {
+    User user = new User();
+    user.setId(id);
+    user.setName(name);
+    user.setUsername("user" + id);
+    user.setStatus(UserStatus.OFFLINE);
+    user.setToken("token" + id);
+    user.setCreated(CREATED.plusSeconds(id));
+    return user;
+  }
+
+  private List<UserGetDTO> all(UserRowStore userRowStore) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    userRowStore.writeAll(out);
+    return Arrays.asList(objectMapper.readValue(out.toByteArray(), UserGetDTO[].class));
+  }
+
+  private static List<Long> ids(List<UserGetDTO> users) {
+    List<Long> ids = new ArrayList<>();
+    for (UserGetDTO user : users) {
+      ids.add(user.getId());
+    }
+    return ids;
+  }
+
+  private UserGetDTO find(UserRowStore userRowStore, long id) throws IOException {
+    ByteBuffer row = userRowStore.findById(id).orElseThrow();
+    return objectMapper.readValue(StandardCharsets.UTF_8.decode(row).toString(), UserGetDTO.class);
+  }
+
+  /**
+   * verifies that the changes since the last refresh are served on top of the snapshot
+   */
+  @Test
+  public void changes_afterRefresh_mergedWithSnapshot() throws IOException {
+    Mockito.when(userRepository.findAfterId(0, PageRequest.of(0, 1000)))
+        .thenReturn(List.of(user(1, "Anna"), user(2, "Bob"), user(4, "Dora")));
+    UserRowStore userRowStore = userRowStore(DataSize.ofMegabytes(1), "");
+    userRowStore.refresh();
+
+    userRowStore.put(user(3, "Carla"));
+    userRowStore.put(user(5, "Emil"));
+    userRowStore.put(user(2, "Bea"));
+    userRowStore.remove(4);
+    userRowStore.clearTokens(Map.of(1L, "token1", 4L, "token4", 5L, "expired5"));
+
+    List<UserGetDTO> users = all(userRowStore);
+    assertEquals(List.of(1L, 2L, 3L, 5L), ids(users));
+    assertEquals("Bea", users.get(1).getName());
+    assertNull(users.get(0).getToken());
+    assertEquals("Anna", users.get(0).getName());
+    assertEquals("token5", find(userRowStore, 5).getToken());
+    assertTrue(userRowStore.findById(4).isEmpty());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    userRowStore.writeAllById(List.of(5L, 4L, 1L, 5L), out);
+    assertEquals(List.of(5L, 1L),
+        ids(Arrays.asList(objectMapper.readValue(out.toByteArray(), UserGetDTO[].class))));
+  }
+
+  /**
+   * verifies that a refresh into many small memory mapped segments serves all users, and keeps
+   * the changes made while it was loading
+   */
+  @Test
+  public void refresh_mappedSegments_allUsersAndConcurrentChanges(@TempDir Path directory)
+      throws IOException {
+    UserRowStore userRowStore = userRowStore(DataSize.ofBytes(500), directory.toString());
+    Mockito.when(userRepository.findAfterId(Mockito.anyLong(), Mockito.any()))
+        .thenAnswer(invocation -> {
+          long after = invocation.getArgument(0);
+          if (after == 1000) {
+            // written while the refresh is running
+            userRowStore.put(user(5000, "new"));
+          }
+          List<User> page = new ArrayList<>();
+          for (long id = after + 1; id <= Math.min(after + 1000, 2500); id++) {
+            page.add(user(id, "name" + id));
+          }
+          return page;
+        });
+
+    userRowStore.refresh();
+
+    List<UserGetDTO> users = all(userRowStore);
+    assertEquals(2501, users.size());
+    assertEquals(5000L, users.get(2500).getId());
+    assertEquals("name1234", find(userRowStore, 1234).getName());
+    assertEquals(CREATED.plusSeconds(2500).toString(), find(userRowStore, 2500).getCreated());
+    assertTrue(userRowStore.findById(2501).isEmpty());
+    // from the primary, a read replica may not have the latest writes yet
+    Mockito.verify(transactionManager, Mockito.never())
+        .getTransaction(Mockito.argThat(definition -> definition.isReadOnly()));
+  }
+}
@@ -0,0 +1,124 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.repository.UserSearchProjection;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class UserSearchIndexTest {
+  private UserSearchIndex userSearchIndex;
+
+  private void indexUser(Long id, String username, String name) {
+    User user = new User();
+    user.setId(id);
+    user.setUsername(username);
+    user.setName(name);
+    userSearchIndex.index(user);
+  }
+
+  @BeforeEach
+  public void setup() {
+    userSearchIndex = new UserSearchIndex(null, 0.5);
+    indexUser(1L, "turing", "Alan Turing");
+    indexUser(2L, "lovelace", "Ada Lovelace");
+    indexUser(3L, "hopper", "Grace Hopper");
+  }
+
+  /**
+   * verifies that users are found by a prefix of the username, the name or a word of the name
+   */
+  @Test
+  public void search_prefix_success() {
+    assertEquals(List.of(1L), userSearchIndex.search("tur", 10));
+    assertEquals(List.of(2L), userSearchIndex.search("ADA", 10));
+    assertEquals(List.of(3L), userSearchIndex.search("hop", 10));
+  }
+
+  /**
+   * verifies that users are found even if the query has a typo
+   */
+  @Test
+  public void search_typo_fuzzyMatch() {
+    assertEquals(List.of(2L), userSearchIndex.search("lovelance", 10));
+  }
+
+  @Test
+  public void search_noMatch_empty() {
+    assertTrue(userSearchIndex.search("xyz", 10).isEmpty());
+    assertTrue(userSearchIndex.search("  ", 10).isEmpty());
+  }
+
+  @Test
+  public void search_limit() {
+    indexUser(4L, "turing2", "Turing Two");
+    assertEquals(1, userSearchIndex.search("turing", 1).size());
+  }
+
+  /**
+   * verifies that the old username is not found anymore after the user was updated
+   */
+  @Test
+  public void index_update_oldTermsRemoved() {
+    indexUser(1L, "enigma", "Alan Turing");
+
+    assertEquals(List.of(1L), userSearchIndex.search("enig", 10));
+    assertTrue(userSearchIndex.search("turing", 10).contains(1L));
+    assertFalse(userSearchIndex.search("tur", 10).isEmpty());
+
+    userSearchIndex.remove(1L);
+    assertTrue(userSearchIndex.search("enig", 10).isEmpty());
+    assertEquals(2, userSearchIndex.size());
+  }
+
+  /**
+   * verifies that a user removed within a transaction is only removed once it committed, so a
+   * rolled back deletion never hides the user
+   */
+  @Test
+  public void remove_inTransaction_removedAfterCommit() {
+    TransactionSynchronizationManager.initSynchronization();
+    try {
+      userSearchIndex.remove(1L);
+      assertEquals(List.of(1L), userSearchIndex.search("tur", 10));
+
+      for (TransactionSynchronization synchronization :
+          TransactionSynchronizationManager.getSynchronizations()) {
+        synchronization.afterCommit();
+      }
+    } finally {
+      TransactionSynchronizationManager.clearSynchronization();
+    }
+    assertTrue(userSearchIndex.search("tur", 10).isEmpty());
+  }
+
+  /**
+   * verifies that searches during a rebuild see the complete previous index until the new one
+   * is swapped in
+   */
+  @Test
+  public void rebuild_concurrentSearch_previousIndexServed() {
+    UserRepository userRepository = Mockito.mock(UserRepository.class);
+    userSearchIndex = new UserSearchIndex(userRepository, 0.5);
+    indexUser(1L, "turing", "Alan Turing");
+    UserSearchProjection hopper = Mockito.mock(UserSearchProjection.class);
+    Mockito.when(hopper.getId()).thenReturn(3L);
+    Mockito.when(hopper.getUsername()).thenReturn("hopper");
+    Mockito.when(hopper.getName()).thenReturn("Grace Hopper");
+    Mockito.when(userRepository.streamAllForSearch())
+        .thenReturn(Stream.of(hopper).peek(
+            user -> assertEquals(List.of(1L), userSearchIndex.search("tur", 10))));
+
+    userSearchIndex.rebuild();
+
+    assertTrue(userSearchIndex.search("tur", 10).isEmpty());
+    assertEquals(List.of(3L), userSearchIndex.search("hop", 10));
+  }
+}
@@ -2,9 +2,12 @@ package ch.uzh.ifi.hase.soprafs24.service;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import ch.uzh.ifi.hase.soprafs24.config.QueryCounter;
 import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs24.entity.User;
 import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -19,12 +22,15 @@ import org.springframework.web.server.ResponseStatusException;
  * @see UserService
  */
 @WebAppConfiguration
-@SpringBootTest
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:userservice",
+                    "user.queries.enabled=true"})
 public class UserServiceIntegrationTest {
   @Qualifier("userRepository") @Autowired private UserRepository userRepository;
 
   @Autowired private UserService userService;
 
+  @Autowired private QueryCounter queryCounter;
+
   @BeforeEach
   public void setup() {
     userRepository.deleteAll();
@@ -95,4 +101,134 @@ public class UserServiceIntegrationTest {
     // should not throw an error
     assertDoesNotThrow(() -> userService.createUser(testUser2));
   }
+
+  @Test
+  public void createUsers_validInputs_allCreated() {
+    List<User> newUsers = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      User newUser = new User();
+      newUser.setName("name " + i);
+      newUser.setUsername("batch" + i);
+      newUser.setPassword("psw");
+      newUsers.add(newUser);
+    }
+
+    List<User> createdUsers = userService.createUsers(newUsers);
+
+    assertEquals(3, createdUsers.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals("batch" + i, createdUsers.get(i).getUsername());
+      assertNotNull(createdUsers.get(i).getToken());
+      assertNotNull(userRepository.findByUsername("batch" + i));
+    }
+  }
+
+  /**
+   * verifies that none of the users of a batch is created if one of them is invalid
+   */
+  @Test
+  public void createUsers_duplicateUsername_noneCreated() {
+    List<User> newUsers = new ArrayList<>();
+    for (String username : List.of("batch0", "batch1", "batch0")) {
+      User newUser = new User();
+      newUser.setName("name " + newUsers.size());
+      newUser.setUsername(username);
+      newUser.setPassword("psw");
+      newUsers.add(newUser);
+    }
+
+    assertThrows(ResponseStatusException.class, () -> userService.createUsers(newUsers));
+    assertEquals(0, userRepository.count());
+  }
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  // statement counts: adding a statement to an operation (e.g. an N+1 lookup) fails these tests
+
+  @Test
+  public void createUser_statementCount() {
+    QueryCounter.QueryStatistics statistics = queryCounter.measure(() -> createUser("counted"));
+
+    // name check, username check, id sequence, insert, outbox insert, change counter lock and
+    // update, change insert
+    assertEquals(8, statistics.getCount(), statistics.getExecutions().toString());
+  }
+
+  @Test
+  public void getUserById_statementCount() {
+    User user = createUser("counted");
+
+    QueryCounter.QueryStatistics statistics =
+        queryCounter.measure(() -> userService.getUserById(user.getId()));
+
+    assertEquals(1, statistics.getCount(), statistics.getExecutions().toString());
+  }
+
+  @Test
+  public void getUsers_statementCount() {
+    createUser("counted1");
+    createUser("counted2");
+    createUser("counted3");
+
+    QueryCounter.QueryStatistics statistics = queryCounter.measure(() -> userService.getUsers());
+
+    assertEquals(1, statistics.getCount(), statistics.getExecutions().toString());
+  }
+
+  @Test
+  public void getUsersByIds_statementCount() {
+    List<Long> ids = List.of(createUser("counted1").getId(), createUser("counted2").getId(),
+        createUser("counted3").getId());
+
+    QueryCounter.QueryStatistics statistics =
+        queryCounter.measure(() -> userService.getUsersByIds(ids));
+
+    // one IN query, not one query per id
+    assertEquals(1, statistics.getCount(), statistics.getExecutions().toString());
+  }
+
+  @Test
+  public void updateUser_statementCount() {
+    User user = createUser("counted");
+    User input = new User();
+    input.setUsername("counted");
+    input.setName("renamed");
+
+    QueryCounter.QueryStatistics statistics = queryCounter.measure(
+        () -> userService.updateUser(input, user.getId(), user.getToken()));
+
+    // username check, user by id, token check, update, outbox insert, change counter lock and
+    // update, change update
+    assertEquals(8, statistics.getCount(), statistics.getExecutions().toString());
+  }
+
+  @Test
+  public void updateUserStatus_statementCount() {
+    User user = createUser("counted");
+    User input = new User();
+    input.setStatus(UserStatus.ONLINE);
+
+    QueryCounter.QueryStatistics statistics = queryCounter.measure(
+        () -> userService.updateUserStatus(input, user.getId(), user.getToken()));
+
+    // user by id, token check, update, outbox insert, change counter lock and update, change
+    // update
+    assertEquals(7, statistics.getCount(), statistics.getExecutions().toString());
+  }
+
+  @Test
+  public void isUserAuthorized_statementCount() {
+    createUser("counted");
+
+    QueryCounter.QueryStatistics statistics =
+        queryCounter.measure(() -> userService.isUserAuthorized("counted", "psw"));
+
+    assertEquals(1, statistics.getCount(), statistics.getExecutions().toString());
+  }
 }
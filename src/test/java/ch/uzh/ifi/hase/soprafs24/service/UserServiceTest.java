@@ -2,11 +2,15 @@ package ch.uzh.ifi.hase.soprafs24.service;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import ch.uzh.ifi.hase.soprafs24.config.ReadYourWrites;
 import ch.uzh.ifi.hase.soprafs24.constant.Permissions;
 import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs24.entity.User;
 import ch.uzh.ifi.hase.soprafs24.exceptions.NotFoundException;
 import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -20,11 +24,32 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.springframework.web.server.ResponseStatusException;
 
 public class UserServiceTest {
   @Mock private UserRepository userRepository;
 
+  @Mock private UserSearchIndex userSearchIndex;
+
+  @Mock private UserLookupCoalescer userLookupCoalescer;
+
+  @Mock private ReadYourWrites readYourWrites;
+
+  @Mock private UserChangeOutbox userChangeOutbox;
+
+  @Mock private UserChangeLog userChangeLog;
+
+  @Mock private UserDirectory userDirectory;
+
+  @Mock private UserRowStore userRowStore;
+
+  @Mock private UserPageCache userPageCache;
+
+  @Spy
+  private TokenService tokenService =
+      new TokenService(false, Duration.ofHours(24), "", 100, Clock.systemUTC());
+
   @InjectMocks private UserService userService;
 
   private User testUser;
@@ -63,6 +88,38 @@ public class UserServiceTest {
     Mockito.verify(userRepository, Mockito.times(1)).findAll();
   }
 
+  /**
+   * verifies that search results are returned in the order of the search index
+   */
+  @Test
+  void searchUsers_keepsIndexOrder() {
+    User otherUser = new User();
+    otherUser.setId(2L);
+    Mockito.when(userSearchIndex.search("test", 10)).thenReturn(List.of(2L, 1L));
+    Mockito.when(userRepository.findAllById(List.of(2L, 1L)))
+        .thenReturn(List.of(testUser, otherUser));
+
+    List<User> users = userService.searchUsers("test", 10);
+
+    assertEquals(List.of(otherUser, testUser), users);
+  }
+
+  /**
+   * verifies that the bulk lookup returns the users in the order of the given ids, without
+   * duplicates and without ids that do not exist
+   */
+  @Test
+  void getUsersByIds_keepsInputOrder() {
+    User otherUser = new User();
+    otherUser.setId(2L);
+    Mockito.when(userLookupCoalescer.findAllById(List.of(2L, 3L, 1L)))
+        .thenReturn(List.of(testUser, otherUser));
+
+    List<User> users = userService.getUsersByIds(List.of(2L, 3L, 1L, 2L));
+
+    assertEquals(List.of(otherUser, testUser), users);
+  }
+
   @Test
   public void createUser_validInputs_success() {
     // when -> any object is being save in the userRepository -> return the dummy
@@ -357,7 +414,7 @@ public class UserServiceTest {
   @Test
   public void getUserById_validInputs_success() {
     Long userId = 1L;
-    Mockito.when(userRepository.findById(Mockito.eq(userId)))
+    Mockito.when(userLookupCoalescer.findById(Mockito.eq(userId)))
         .thenReturn(Optional.ofNullable(testUser));
 
     // insert test user
@@ -376,7 +433,7 @@ public class UserServiceTest {
   public void getUserById_validInputs_notFoundError() {
     // this user id does not exist
     Long userId = 2L;
-    Mockito.when(userRepository.findById(userId)).thenReturn(Optional.empty());
+    Mockito.when(userLookupCoalescer.findById(userId)).thenReturn(Optional.empty());
 
     // Act and Assert
     assertThrows(NotFoundException.class, () -> { userService.getUserById(userId); });
@@ -474,6 +531,67 @@ public class UserServiceTest {
     assertFalse(isAuth);
   }
 
+  /**
+   * verifies that signed tokens are checked without looking them up in the database
+   */
+  @Test
+  public void isAuthorized_signedToken_noDatabaseLookup() {
+    TokenService signedTokenService =
+        new TokenService(true, Duration.ofHours(24), "", 100, Clock.systemUTC());
+    UserService signedUserService = new UserService(userRepository, signedTokenService,
+        userSearchIndex, userLookupCoalescer, readYourWrites, userChangeOutbox, userChangeLog,
+        userDirectory, userRowStore, userPageCache);
+    String token = signedTokenService.issue(1L);
+
+    assertTrue(signedUserService.isAuthorized(token, Permissions.READ));
+    assertTrue(signedUserService.isAuthorized(token, Permissions.READ_WRITE, 1L));
+    assertFalse(signedUserService.isAuthorized(token, Permissions.READ_WRITE, 2L));
+
+    Mockito.verify(userRepository, Mockito.never()).findByToken(Mockito.any());
+  }
+
+  /**
+   * verifies that a logged out user's token is not valid anymore
+   */
+  @Test
+  public void logout_tokenReplaced() {
+    String userToken = "token";
+    testUser.setToken(userToken);
+    Mockito.when(userRepository.findByToken(Mockito.eq(userToken))).thenReturn(testUser);
+
+    userService.logout(userToken);
+
+    assertNotEquals(userToken, testUser.getToken());
+    Mockito.verify(userRepository, Mockito.times(1)).save(testUser);
+  }
+
+  /**
+   * verifies that a new token with issue and expiry timestamps is set on rotation
+   */
+  @Test
+  public void rotateToken_newTokenWithExpiry() {
+    testUser.setToken("token");
+
+    User rotatedUser = userService.rotateToken(testUser);
+
+    assertNotEquals("token", rotatedUser.getToken());
+    assertNotNull(rotatedUser.getTokenIssued());
+    assertTrue(rotatedUser.getTokenExpires().isAfter(rotatedUser.getTokenIssued()));
+  }
+
+  /**
+   * verifies that an expired token is not accepted anymore
+   */
+  @Test
+  public void isAuthorized_expiredToken_invalid() {
+    String userToken = "token";
+    testUser.setToken(userToken);
+    testUser.setTokenExpires(LocalDateTime.now().minusMinutes(1));
+    Mockito.when(userRepository.findByToken(Mockito.eq(userToken))).thenReturn(testUser);
+
+    assertFalse(userService.isAuthorized(userToken, Permissions.READ));
+  }
+
   /**
    * verifies that authorization works, if username and password are valid and correct
    */
@@ -0,0 +1,76 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class UserSnapshotFileTest {
+  private static final LocalDateTime CREATED = LocalDateTime.of(2024, 3, 1, 12, 30, 15, 123456000);
+
+  @TempDir Path directory;
+
+  /**
+   * verifies that users spanning several blocks are read back as written, including missing
+   * values and the hash of the token
+   */
+  @Test
+  public void read_written_sameUsers() throws Exception {
+    Path file = directory.resolve("users.snapshot");
+    int users = UserSnapshotFile.BLOCK_ROWS + 10;
+    try (UserSnapshotFile.Writer writer = UserSnapshotFile.Writer.create(file)) {
+      for (int i = 1; i <= users; i++) {
+        writer.write(i * 3L, "user" + i, i % 2 == 0 ? "näme " + i : null,
+            i % 3 == 0 ? "token" + i : null, i % 5 == 0 ? null : UserStatus.ONLINE,
+            i % 7 == 0 ? null : CREATED.plusSeconds(i));
+      }
+    }
+
+    try (UserSnapshotFile.Reader reader = UserSnapshotFile.Reader.open(file)) {
+      for (int i = 1; i <= users; i++) {
+        assertTrue(reader.next());
+        assertEquals(i * 3L, reader.getId());
+        assertEquals("user" + i, reader.getUsername());
+        assertEquals(i % 2 == 0 ? "näme " + i : null, reader.getName());
+        if (i % 3 == 0) {
+          assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(("token" + i).getBytes()),
+              reader.getTokenHash());
+        } else {
+          assertNull(reader.getTokenHash());
+        }
+        assertEquals(i % 5 == 0 ? null : UserStatus.ONLINE, reader.getStatus());
+        assertEquals(i % 7 == 0 ? null : CREATED.plusSeconds(i), reader.getCreated());
+      }
+      assertFalse(reader.next());
+    }
+  }
+
+  /**
+   * verifies that truncated files and other files are rejected
+   */
+  @Test
+  public void read_truncatedOrOtherFile_fails() throws Exception {
+    Path file = directory.resolve("users.snapshot");
+    try (UserSnapshotFile.Writer writer = UserSnapshotFile.Writer.create(file)) {
+      writer.write(1, "user", "name", null, UserStatus.OFFLINE, CREATED);
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(Files.size(file) - 20);
+    }
+    try (UserSnapshotFile.Reader reader = UserSnapshotFile.Reader.open(file)) {
+      assertThrows(IOException.class, reader::next);
+    }
+
+    Path other = directory.resolve("other.txt");
+    Files.writeString(other, "no user snapshot");
+    assertThrows(IOException.class, () -> UserSnapshotFile.Reader.open(other));
+  }
+}
@@ -0,0 +1,123 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+/**
+ * Test class for the export of the users to a snapshot file and the bulk import of it.
+ *
+ * @see UserSnapshots
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:snapshots",
+                    "user.snapshot.batch-size=2"})
+public class UserSnapshotsIntegrationTest {
+  @Qualifier("userRepository") @Autowired private UserRepository userRepository;
+
+  @Autowired private UserService userService;
+
+  @Autowired private UserSnapshots userSnapshots;
+
+  @Autowired private UserSearchIndex userSearchIndex;
+
+  @TempDir Path directory;
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setName("name " + username);
+    user.setUsername(username);
+    user.setPassword("psw");
+    return userService.createUser(user);
+  }
+
+  /**
+   * verifies that exported users are imported with the same id, username, name, status and
+   * creation time, but without password and token, and that new users get later ids
+   */
+  @Test
+  public void importSnapshot_exported_sameUsers() throws Exception {
+    User first = createUser("snapshot1");
+    User second = createUser("snapshot2");
+    User third = createUser("snapshot3");
+    User input = new User();
+    input.setStatus(UserStatus.ONLINE);
+    userService.updateUserStatus(input, second.getId(), second.getToken());
+    // as stored, the creation time is rounded to microseconds
+    first = userRepository.findById(first.getId()).orElseThrow();
+    second = userRepository.findById(second.getId()).orElseThrow();
+    third = userRepository.findById(third.getId()).orElseThrow();
+
+    long users = userRepository.count();
+    Path file = directory.resolve("users.snapshot");
+    Map<String, Object> exported = userSnapshots.run("export", file.toString());
+    assertEquals(users, exported.get("users"));
+    assertTrue(Files.size(file) > 0);
+
+    userRepository.deleteAll();
+    userRepository.flush();
+    Map<String, Object> imported = userSnapshots.run("import", file.toString());
+    assertEquals(users, imported.get("users"));
+
+    for (User original : new User[] {first, second, third}) {
+      User restored = userRepository.findById(original.getId()).orElseThrow();
+      assertEquals(original.getUsername(), restored.getUsername());
+      assertEquals(original.getName(), restored.getName());
+      assertEquals(original.getStatus(), restored.getStatus());
+      assertEquals(original.getCreated(), restored.getCreated());
+      assertNull(restored.getToken());
+      assertNotEquals("psw", restored.getPassword());
+    }
+    assertEquals(second.getId(), userSearchIndex.search("snapshot2", 10).get(0));
+    assertTrue(createUser("snapshot4").getId() > third.getId());
+  }
+
+  /**
+   * verifies that an import of users which already exist fails
+   */
+  @Test
+  public void importSnapshot_existingUsers_fails() throws Exception {
+    createUser("snapshot5");
+    Path file = directory.resolve("users.snapshot");
+    userSnapshots.export(file);
+
+    assertThrows(RuntimeException.class, () -> userSnapshots.importSnapshot(file));
+  }
+
+  /**
+   * verifies that the batches committed before a failed import are indexed like a complete
+   * import
+   */
+  @Test
+  public void importSnapshot_failedAfterFirstBatch_committedUsersIndexed() throws Exception {
+    User first = createUser("partial1");
+    createUser("partial2");
+    User third = createUser("partial3");
+    Path file = directory.resolve("users.snapshot");
+    userSnapshots.export(file);
+
+    // the last user still exists, so the import fails at its batch
+    for (User user : userRepository.findAll()) {
+      if (!user.getId().equals(third.getId())) {
+        userRepository.delete(user);
+      }
+    }
+    userRepository.flush();
+    userSearchIndex.rebuild();
+
+    assertThrows(RuntimeException.class, () -> userSnapshots.importSnapshot(file));
+    assertTrue(userRepository.findById(first.getId()).isPresent());
+    assertEquals(first.getId(), userSearchIndex.search("partial1", 10).get(0));
+  }
+}